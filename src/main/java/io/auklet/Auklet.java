@@ -5,8 +5,18 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.core.AukletDaemonExecutor;
 import io.auklet.core.DataUsageMonitor;
+import io.auklet.core.EventBuffer;
+import io.auklet.core.EventSpool;
 import io.auklet.core.AukletExceptionHandler;
+import io.auklet.core.CrashJournal;
+import io.auklet.core.CaptureQueue;
+import io.auklet.core.HasAgent;
+import io.auklet.core.PersistenceService;
+import io.auklet.core.TimingWheel;
+import io.auklet.config.ConfigSnapshot;
 import io.auklet.config.DeviceAuth;
+import io.auklet.config.HostIdentity;
+import io.auklet.net.CircuitBreaker;
 import io.auklet.net.Https;
 import io.auklet.util.SysUtil;
 import io.auklet.util.ThreadUtil;
@@ -24,7 +34,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>The entry point for the Auklet agent for Java and related languages/platforms.</p>
@@ -40,6 +58,7 @@ import java.util.concurrent.*;
  *   <li>All {@code public static} methods in the {@link Auklet} class.</li>
  *   <li>All {@code public} methods in the {@link Config} class.</li>
  *   <li>The {@link AukletException} class.</li>
+ *   <li>The {@link DrainReport}, {@link ExecutorStats} and {@link LatencySnapshot} classes.</li>
  * </ul>
  *
  * <p><b>Unless instructed to do so by Auklet support, do not use any classes/fields/methods other than
@@ -52,9 +71,40 @@ public final class Auklet {
     public static final String VERSION;
     private static final Logger LOGGER = LoggerFactory.getLogger(Auklet.class);
     private static final Object LOCK = new Object();
+    private static final Object CAPTURE_LOCK = new Object();
+    private static final int STAGE_QUEUE_SIZE = 1000;
+    // Each stage of the agent's work runs on its own executor, so that a slow task in one stage (such as
+    // a blocking API call during housekeeping) does not delay the delivery of events in the others.
     private static final AukletDaemonExecutor DAEMON = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("Auklet"));
+    private static final AukletDaemonExecutor CAPTURE = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("AukletCapture"), STAGE_QUEUE_SIZE);
+    private static final AukletDaemonExecutor ENCODE = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("AukletEncode"), STAGE_QUEUE_SIZE);
+    private static final AukletDaemonExecutor TRANSPORT = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("AukletTransport"), STAGE_QUEUE_SIZE);
+    private static final AukletDaemonExecutor HOUSEKEEPING = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("AukletHousekeeping"), STAGE_QUEUE_SIZE);
+    // Timers for housekeeping tasks are kept in a timing wheel, and run on the housekeeping executor when due.
+    private static final TimingWheel TIMERS = new TimingWheel(HOUSEKEEPING, ThreadUtil.createDaemonThreadFactory("AukletTimer"), 100L, TimeUnit.MILLISECONDS, 512);
+    // Application threads hand events to the capture executor through this queue, which is drained by a
+    // single task that is only submitted when the queue becomes non-empty.
+    private static final CaptureQueue<CapturedEvent> CAPTURE_QUEUE = new CaptureQueue<>(1024);
+    private static final AtomicBoolean CAPTURE_DRAIN_SCHEDULED = new AtomicBoolean(false);
+    private static final Runnable CAPTURE_DRAIN_TASK = createCaptureDrainTask();
+    private static final Runnable STAGE_BARRIER = new Runnable() {
+        @Override public void run() { /* no-op */ }
+    };
     private static final String INVALID_INIT_MSG = "Use Auklet.init() to initialize the agent.";
+    private static final int PRE_INIT_BUFFER_SIZE = 100;
+    private static final long INIT_RETRY_MIN_DELAY = TimeUnit.SECONDS.toMillis(30);
+    private static final long INIT_RETRY_MAX_DELAY = TimeUnit.HOURS.toMillis(1);
+    // Columnar batches are cut at this many bytes of event messages, so that no batch is too large to publish.
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    // Events that are sent before the agent has started are buffered here, and sent once it starts.
+    private static final EventBuffer PRE_INIT_BUFFER = new EventBuffer(PRE_INIT_BUFFER_SIZE);
     @GuardedBy("LOCK") private static Auklet agent = null;
+    // The agent to which captured events are dispatched; only set once the agent has fully started.
+    @GuardedBy("CAPTURE_LOCK") private static Auklet runningAgent = null;
+    // While the agent is running in degraded mode, events are spooled to disk instead of buffered.
+    @GuardedBy("CAPTURE_LOCK") private static EventSpool degradedSpool = null;
+    @GuardedBy("LOCK") private static ScheduledFuture<?> initRetryTask = null;
+    @GuardedBy("LOCK") private static long initRetryDelay = 0L;
 
     private final String appId;
     private final String apiKey;
@@ -63,13 +113,29 @@ public final class Auklet {
     private final File configDir;
     private final String serialPort;
     private final int mqttThreads;
-    private final String macHash;
-    private final String ipAddress;
+    private final int startupTimeout;
+    private final int shutdownTimeout;
+    private final boolean frameDictionary;
+    private final boolean fingerprintReferences;
+    private final int fingerprintResendHours;
+    private final boolean columnarBatches;
+    private final PersistenceService persistence;
+    private final CrashJournal crashJournal;
+    private final EventEncoder eventEncoder;
     private final Https https;
+    private final CircuitBreaker apiCircuit = new CircuitBreaker("Auklet API");
+    private final ConfigSnapshot configSnapshot;
+    private final HostIdentity hostIdentity;
     private final DeviceAuth deviceAuth;
     private final AbstractSink sink;
     private final DataUsageMonitor usageMonitor;
     private final Thread shutdownHook;
+    private volatile boolean started = false;
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesFailed = new AtomicLong();
+    // The transport task that is running, if any; the transport stage is single-threaded.
+    private volatile TransportTask runningTransport = null;
+    @GuardedBy("repeatingTasks") private final List<ScheduledFuture<?>> repeatingTasks = new ArrayList<>();
 
     static {
         // Extract Auklet agent version from the BuildConfig class.
@@ -160,6 +226,46 @@ public final class Auklet {
         if (mqttThreadsFromConfig < 1) mqttThreadsFromConfig = 3;
         this.mqttThreads = mqttThreadsFromConfig;
 
+        Integer startupTimeoutFromConfigMaybeNull = SysUtil.getValue(config.getStartupTimeout(), "AUKLET_STARTUP_TIMEOUT", "auklet.startup.timeout");
+        int startupTimeoutFromConfig = startupTimeoutFromConfigMaybeNull == null ? 30 : startupTimeoutFromConfigMaybeNull;
+        if (startupTimeoutFromConfig < 1) startupTimeoutFromConfig = 30;
+        this.startupTimeout = startupTimeoutFromConfig;
+
+        Integer shutdownTimeoutFromConfigMaybeNull = SysUtil.getValue(config.getShutdownTimeout(), "AUKLET_SHUTDOWN_TIMEOUT", "auklet.shutdown.timeout");
+        int shutdownTimeoutFromConfig = shutdownTimeoutFromConfigMaybeNull == null ? 5 : shutdownTimeoutFromConfigMaybeNull;
+        if (shutdownTimeoutFromConfig < 0) shutdownTimeoutFromConfig = 5;
+        this.shutdownTimeout = shutdownTimeoutFromConfig;
+
+        // Collapsed frames change the shape of the stack trace, so no frames are collapsed unless configured.
+        String frameExcludePackages = SysUtil.getValue(config.getFrameExcludePackages(), "AUKLET_FRAME_EXCLUDE_PACKAGES", "auklet.frame.exclude.packages");
+        String frameIncludePackages = SysUtil.getValue(config.getFrameIncludePackages(), "AUKLET_FRAME_INCLUDE_PACKAGES", "auklet.frame.include.packages");
+        FrameFilter frameFilter = new FrameFilter(frameExcludePackages, frameIncludePackages);
+
+        Integer maxEventSizeFromConfigMaybeNull = SysUtil.getValue(config.getMaxEventSize(), "AUKLET_MAX_EVENT_SIZE", "auklet.max.event.size");
+        int maxEventSizeFromConfig = maxEventSizeFromConfigMaybeNull == null ? EventEncoder.DEFAULT_MAX_EVENT_SIZE : maxEventSizeFromConfigMaybeNull;
+        if (maxEventSizeFromConfig < EventEncoder.MIN_MAX_EVENT_SIZE) maxEventSizeFromConfig = EventEncoder.DEFAULT_MAX_EVENT_SIZE;
+        this.eventEncoder = new EventEncoder(frameFilter, maxEventSizeFromConfig);
+
+        Boolean frameDictionaryMaybeNull = SysUtil.getValue(config.getFrameDictionary(), "AUKLET_FRAME_DICTIONARY", "auklet.frame.dictionary");
+        this.frameDictionary = frameDictionaryMaybeNull == null ? false : frameDictionaryMaybeNull;
+
+        Boolean fingerprintReferencesMaybeNull = SysUtil.getValue(config.getFingerprintReferences(), "AUKLET_FINGERPRINT_REFERENCES", "auklet.fingerprint.references");
+        this.fingerprintReferences = fingerprintReferencesMaybeNull == null ? false : fingerprintReferencesMaybeNull;
+        Integer fingerprintResendHoursFromConfigMaybeNull = SysUtil.getValue(config.getFingerprintResendHours(), "AUKLET_FINGERPRINT_RESEND_HOURS", "auklet.fingerprint.resend.hours");
+        int fingerprintResendHoursFromConfig = fingerprintResendHoursFromConfigMaybeNull == null ? 24 : fingerprintResendHoursFromConfigMaybeNull;
+        if (fingerprintResendHoursFromConfig < 1) fingerprintResendHoursFromConfig = 24;
+        this.fingerprintResendHours = fingerprintResendHoursFromConfig;
+        Boolean columnarBatchesMaybeNull = SysUtil.getValue(config.getColumnarBatches(), "AUKLET_COLUMNAR_BATCHES", "auklet.columnar.batches");
+        this.columnarBatches = columnarBatchesMaybeNull == null ? false : columnarBatchesMaybeNull;
+
+        String fsyncPolicyFromConfig = SysUtil.getValue(config.getFsyncPolicy(), "AUKLET_FSYNC_POLICY", "auklet.fsync.policy");
+        PersistenceService.FsyncPolicy fsyncPolicy = PersistenceService.FsyncPolicy.fromString(fsyncPolicyFromConfig);
+        if (fsyncPolicy == null) {
+            if (fsyncPolicyFromConfig != null) LOGGER.warn("Invalid fsync policy '{}', using default.", fsyncPolicyFromConfig);
+            fsyncPolicy = PersistenceService.FsyncPolicy.CRITICAL;
+        }
+        this.persistence = new PersistenceService(fsyncPolicy);
+
         // Finalizing the config dir may cause changes to the filesystem, so we wait to do this
         // until we've validated the rest of the config, in case there is a config error; this
         // approach avoids unnecessary filesystem changes for bad configs.
@@ -171,26 +277,24 @@ public final class Auklet {
         }
         this.configDir = platform.obtainConfigDir(SysUtil.getValue(config.getConfigDir(), "AUKLET_CONFIG_DIR", "auklet.config.dir"));
         if (configDir == null) throw new AukletException("Could not find or create any config directory; see previous logged errors for details.");
+        this.crashJournal = new CrashJournal(this.configDir, fsyncPolicy != PersistenceService.FsyncPolicy.NEVER, this.eventEncoder);
+        this.spoolJournaledCrashes();
 
         LOGGER.debug("Configuring agent resources.");
-        this.https = new Https(config.getSslCertificates());
+        Integer httpMaxIdleConnectionsFromConfigMaybeNull = SysUtil.getValue(config.getHttpMaxIdleConnections(), "AUKLET_HTTP_MAX_IDLE_CONNECTIONS", "auklet.http.max.idle.connections");
+        int httpMaxIdleConnectionsFromConfig = httpMaxIdleConnectionsFromConfigMaybeNull == null ? 5 : httpMaxIdleConnectionsFromConfigMaybeNull;
+        if (httpMaxIdleConnectionsFromConfig < 0) httpMaxIdleConnectionsFromConfig = 5;
+        Integer httpMaxRequestsFromConfigMaybeNull = SysUtil.getValue(config.getHttpMaxRequests(), "AUKLET_HTTP_MAX_REQUESTS", "auklet.http.max.requests");
+        int httpMaxRequestsFromConfig = httpMaxRequestsFromConfigMaybeNull == null ? 16 : httpMaxRequestsFromConfigMaybeNull;
+        if (httpMaxRequestsFromConfig < 1) httpMaxRequestsFromConfig = 16;
+        Integer httpMaxRequestsPerHostFromConfigMaybeNull = SysUtil.getValue(config.getHttpMaxRequestsPerHost(), "AUKLET_HTTP_MAX_REQUESTS_PER_HOST", "auklet.http.max.requests.per.host");
+        int httpMaxRequestsPerHostFromConfig = httpMaxRequestsPerHostFromConfigMaybeNull == null ? 5 : httpMaxRequestsPerHostFromConfigMaybeNull;
+        if (httpMaxRequestsPerHostFromConfig < 1) httpMaxRequestsPerHostFromConfig = 5;
+        this.https = new Https(config.getSslCertificates(), httpMaxIdleConnectionsFromConfig, httpMaxRequestsFromConfig, httpMaxRequestsPerHostFromConfig);
+        this.configSnapshot = ConfigSnapshot.read(new File(this.configDir, ConfigSnapshot.FILENAME), this.appId);
+        this.hostIdentity = new HostIdentity();
         this.deviceAuth = new DeviceAuth();
 
-        LOGGER.debug("Getting IP/MAC address.");
-        this.macHash = Util.getMacAddressHash();
-        String ip = "";
-        try (Response response = this.https.doRequest(new Request.Builder().url("https://checkip.amazonaws.com"))) {
-            String responseString = response.body().string().trim();
-            if (response.isSuccessful()) {
-                ip = responseString;
-            } else {
-                LOGGER.warn("Could not get public IP address: {}", responseString);
-            }
-        } catch (IOException e) {
-            LOGGER.warn("Could not get public IP address.", e);
-        }
-        this.ipAddress = ip;
-
         // In the future we may want to make this some kind of SinkFactory.
         if (this.serialPort != null) {
             this.sink = new SerialPortSink();
@@ -213,8 +317,9 @@ public final class Auklet {
         }
 
         if (uncaughtExceptionHandler) {
+            this.crashJournal.open();
             try {
-                Thread.setDefaultUncaughtExceptionHandler(new AukletExceptionHandler());
+                Thread.setDefaultUncaughtExceptionHandler(new AukletExceptionHandler(this.crashJournal));
             } catch (SecurityException e) {
                 throw new AukletException("Could not set default uncaught exception handler.", e);
             }
@@ -258,27 +363,7 @@ public final class Auklet {
         LOGGER.debug("Scheduling init task.");
         Callable<Boolean> initTask = new Callable<Boolean>() {
             @NonNull @Override public Boolean call() {
-                synchronized (LOCK) {
-                    // We check this here to provide a proper message, in case the user accidentally attempted to
-                    // init twice. We check again in the constructor to prevent instantiation via reflection.
-                    if (agent != null) {
-                        LOGGER.error("Agent is already initialized; use Auklet.shutdown() first.");
-                        return false;
-                    }
-                    LOGGER.info("Starting agent.");
-                    try {
-                        agent = new Auklet(config);
-                        agent.start();
-                        LOGGER.info("Agent started successfully.");
-                        return true;
-                    } catch (Exception e) {
-                        // Catch everything so that even programming errors result in an orderly
-                        // shutdown of the agent.
-                        shutdown();
-                        LOGGER.error("Could not start agent.", e);
-                        return false;
-                    }
-                }
+                return doInit(config);
             }
         };
         try {
@@ -301,22 +386,18 @@ public final class Auklet {
             LOGGER.debug("Ignoring send request for null throwable.");
             return;
         }
-        LOGGER.debug("Scheduling send task.");
-        Runnable sendTask = new Runnable() {
-            @Override public void run() {
-                synchronized (LOCK) {
-                    if (agent == null) {
-                        LOGGER.debug("Ignoring send request because agent is null.");
-                        return;
-                    }
-                    agent.doSend(throwable);
-                }
+        LOGGER.debug("Queueing send task.");
+        if (!CAPTURE_QUEUE.offer(new CapturedEvent(throwable, System.currentTimeMillis()))) {
+            LOGGER.error("Could not send event because the capture queue is full.");
+            return;
+        }
+        if (CAPTURE_DRAIN_SCHEDULED.compareAndSet(false, true)) {
+            try {
+                CAPTURE.execute(CAPTURE_DRAIN_TASK);
+            } catch (RejectedExecutionException e) {
+                CAPTURE_DRAIN_SCHEDULED.set(false);
+                LOGGER.error("Could not send event.", e);
             }
-        };
-        try {
-            DAEMON.submit(sendTask);
-        } catch (RejectedExecutionException e) {
-            LOGGER.error("Could not send event.", e);
         }
     }
 
@@ -326,29 +407,38 @@ public final class Auklet {
      * with a builtin JVM shutdown hook is unnecessary, unless you wish to shutdown the Auklet agent earlier
      * than JVM shutdown.</p>
      *
+     * <p>Before the agent shuts down, it stops capturing events and spends up to the configured shutdown
+     * timeout delivering the events that are still in its pipeline. Events that cannot be delivered in time
+     * are spooled to disk, and sent when the agent next starts.</p>
+     *
      * <p>Any error that occurs during shutdown will be logged automatically.</p>
      *
-     * @return a future whose result is always {@code null}.
+     * @return a future whose result is a {@link DrainReport} describing what happened to the events that
+     * were still in the pipeline, or {@code null} if the agent was not running. The future is declared as a
+     * {@code Future<Object>} for compatibility, so cast its result to {@link DrainReport}.
      */
     @NonNull public static Future<Object> shutdown() {
         LOGGER.debug("Scheduling shutdown task.");
-        Runnable shutdownTask = new Runnable() {
-            @Override public void run() {
+        Callable<Object> shutdownTask = new Callable<Object>() {
+            @Override public Object call() {
                 synchronized (LOCK) {
+                    cancelInitRetry();
+                    synchronized (CAPTURE_LOCK) {
+                        if (degradedSpool != null) {
+                            LOGGER.info("Leaving degraded mode.");
+                            degradedSpool = null;
+                        }
+                    }
                     if (agent == null) {
                         LOGGER.debug("Ignoring shutdown request because agent is null.");
-                        return;
+                        return null;
                     }
-                    // Do not log cancelled tasks during shutdown.
-                    DAEMON.logCancelExceptions(false);
-                    agent.doShutdown(false);
-                    agent = null;
-                    DAEMON.logCancelExceptions(true);
+                    return stopAgent(false);
                 }
             }
         };
         try {
-            return DAEMON.submit(shutdownTask, null);
+            return DAEMON.submit(shutdownTask);
         } catch (RejectedExecutionException e) {
             FutureTask<Object> future = new FutureTask<>(new Runnable() {@Override public void run() { /* no-op */ }}, null);
             future.run();
@@ -357,6 +447,23 @@ public final class Auklet {
         }
     }
 
+    /**
+     * <p>Returns a snapshot of the instrumentation of each of the agent's executors, keyed by the name of
+     * the stage of work that the executor performs: {@code daemon}, {@code capture}, {@code encode},
+     * {@code transport} and {@code housekeeping}.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public static Map<String, ExecutorStats> getExecutorStats() {
+        Map<String, ExecutorStats> stats = new LinkedHashMap<>();
+        stats.put("daemon", DAEMON.getStats());
+        stats.put("capture", CAPTURE.getStats());
+        stats.put("encode", ENCODE.getStats());
+        stats.put("transport", TRANSPORT.getStats());
+        stats.put("housekeeping", HOUSEKEEPING.getStats());
+        return Collections.unmodifiableMap(stats);
+    }
+
     /**
      * <p>Returns the app ID for this instance of the agent.</p>
      *
@@ -391,22 +498,79 @@ public final class Auklet {
      */
     public int getMqttThreads() { return this.mqttThreads; }
 
+    /**
+     * <p>Returns whether the MQTT sink sends each frame string only once per connection.</p>
+     *
+     * @return {@code false} by default.
+     */
+    public boolean isFrameDictionaryEnabled() { return this.frameDictionary; }
+
+    /**
+     * <p>Returns whether the MQTT sink sends repeat occurrences of known errors as references.</p>
+     *
+     * @return {@code false} by default.
+     */
+    public boolean isFingerprintReferencesEnabled() { return this.fingerprintReferences; }
+
+    /**
+     * <p>Returns the number of hours after which a known error is sent in full again.</p>
+     *
+     * @return never less than 1.
+     */
+    public int getFingerprintResendHours() { return this.fingerprintResendHours; }
+
+    /**
+     * <p>Returns whether events that are sent together are combined into one columnar batch.</p>
+     *
+     * @return {@code false} by default.
+     */
+    public boolean isColumnarBatchesEnabled() { return this.columnarBatches; }
+
     /**
      * <p>Returns the MAC address hash for this instance of the agent.</p>
      *
-     * @return never {@code null} or empty.
+     * @return never {@code null}, but may be empty if the MAC address hash could not be determined.
      */
     @NonNull public String getMacHash() {
-        return this.macHash;
+        return this.hostIdentity.getMacHash();
     }
 
     /**
      * <p>Returns the public IP address for this instance of the agent.</p>
      *
-     * @return never {@code null} or empty.
+     * @return never {@code null}, but empty if the IP address has not yet been determined or could
+     * not be determined.
      */
     @NonNull public String getIpAddress() {
-        return this.ipAddress;
+        return this.hostIdentity.getIpAddress();
+    }
+
+    /**
+     * <p>Returns the warm-start config snapshot that was loaded when this instance of the agent was
+     * created.</p>
+     *
+     * @return never {@code null}, but may be empty.
+     */
+    @NonNull public ConfigSnapshot getConfigSnapshot() {
+        return this.configSnapshot;
+    }
+
+    /**
+     * <p>Returns the encoder that limits the size of events and decides which stack frames to collapse.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public EventEncoder getEventEncoder() {
+        return this.eventEncoder;
+    }
+
+    /**
+     * <p>Returns the service through which all config directory files are written.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public PersistenceService getPersistence() {
+        return this.persistence;
     }
 
     /**
@@ -439,6 +603,9 @@ public final class Auklet {
     /**
      * <p>Makes an authenticated request to the Auklet API.</p>
      *
+     * <p>API requests are guarded by a circuit breaker: their timeout adapts to the API's observed latency,
+     * and while the API is failing, requests fail immediately instead of waiting for a timeout.</p>
+     *
      * @param request a partially built OkHttp request object. This method fully assembles
      * the URL component of the request and also handles authentication.
      * @param path the URL path - that is, the entire URL minus the protocol and host/domain.
@@ -452,11 +619,44 @@ public final class Auklet {
         request
                 .url(this.baseUrl + Util.addLeadingSlash(path))
                 .header("Authorization", "JWT " + this.apiKey);
+        return this.https.doRequest(request, this.apiCircuit);
+    }
+
+    /**
+     * <p>Makes an authenticated request to the Auklet API without blocking the calling thread.</p>
+     *
+     * @param request a partially built OkHttp request object. This method fully assembles
+     * the URL component of the request and also handles authentication.
+     * @param path the URL path - that is, the entire URL minus the protocol and host/domain.
+     * Must not be {@code null} or empty.
+     * @return never {@code null}. The caller must close the response.
+     * @throws AukletException if the request cannot be queued.
+     * @see Https#doRequestAsync(Request.Builder)
+     */
+    @NonNull public Future<Response> doApiRequestAsync(@NonNull Request.Builder request, @NonNull String path) throws AukletException {
+        if (request == null) throw new AukletException("HTTP request is null.");
+        if (Util.isNullOrEmpty(path)) throw new AukletException("URL path is null or empty.");
+        request
+                .url(this.baseUrl + Util.addLeadingSlash(path))
+                .header("Authorization", "JWT " + this.apiKey);
+        return this.https.doRequestAsync(request, this.apiCircuit);
+    }
+
+    /**
+     * <p>Makes an unauthenticated request to a URL outside of the Auklet API.</p>
+     *
+     * @param request a fully built OkHttp request object, including the URL.
+     * @return never {@code null}.
+     * @throws AukletException if an error occurs with the request.
+     */
+    @NonNull public Response doRequest(@NonNull Request.Builder request) throws AukletException {
+        if (request == null) throw new AukletException("HTTP request is null.");
         return this.https.doRequest(request);
     }
 
     /**
-     * <p>Schedules the given one-shot task to run on the Auklet agent's daemon executor thread.</p>
+     * <p>Schedules the given one-shot task to run on the Auklet agent's housekeeping executor thread, which
+     * is also used for blocking API calls and disk I/O.</p>
      *
      * @param command the task to execute.
      * @param delay the time from now to delay execution.
@@ -469,14 +669,36 @@ public final class Auklet {
         if (command == null) throw new AukletException("Daemon task is null.");
         if (unit == null) throw new AukletException("Daemon task time unit is null.");
         try {
-            return DAEMON.schedule(command, delay, unit);
-        } catch (RejectedExecutionException e) {
+            return TIMERS.schedule(command, delay, unit);
+        } catch (IllegalArgumentException e) {
             throw new AukletException("Could not schedule one-shot task.", e);
         }
     }
 
     /**
-     * <p>Schedules the given task to run on the Auklet agent's daemon executor thread.</p>
+     * <p>Schedules a one-shot task that was returned by {@link #scheduleOneShotTask(Runnable, long, TimeUnit)}
+     * to run again, re-using its timer. Use this for tasks that are scheduled over and over, such as
+     * debounced writes and retries.</p>
+     *
+     * @param task the task's future, as returned by {@code scheduleOneShotTask}.
+     * @param delay the time from now to delay execution.
+     * @param unit the time unit of the delay parameter.
+     * @throws AukletException to wrap any underlying exceptions.
+     * @see TimingWheel#reschedule(ScheduledFuture, long, TimeUnit)
+     */
+    public void rescheduleOneShotTask(@NonNull ScheduledFuture<?> task, long delay, @NonNull TimeUnit unit) throws AukletException {
+        if (task == null) throw new AukletException("Daemon task is null.");
+        if (unit == null) throw new AukletException("Daemon task time unit is null.");
+        try {
+            TIMERS.reschedule(task, delay, unit);
+        } catch (IllegalArgumentException e) {
+            throw new AukletException("Could not reschedule one-shot task.", e);
+        }
+    }
+
+    /**
+     * <p>Schedules the given task to run on the Auklet agent's housekeeping executor thread, which
+     * is also used for blocking API calls and disk I/O.</p>
      *
      * @param command the task to execute.
      * @param initialDelay the time to delay first execution.
@@ -490,12 +712,168 @@ public final class Auklet {
         if (command == null) throw new AukletException("Daemon task is null.");
         if (unit == null) throw new AukletException("Daemon task time unit is null.");
         try {
-            return DAEMON.scheduleAtFixedRate(command, initialDelay, period, unit);
-        } catch (RejectedExecutionException | IllegalArgumentException e) {
+            ScheduledFuture<?> future = TIMERS.scheduleAtFixedRate(command, initialDelay, period, unit);
+            synchronized (this.repeatingTasks) {
+                this.repeatingTasks.add(future);
+            }
+            return future;
+        } catch (IllegalArgumentException e) {
             throw new AukletException("Could not schedule repeating task.", e);
         }
     }
 
+    /**
+     * <p>Initializes the agent. If the agent cannot be started because the Auklet API is unreachable,
+     * the agent enters degraded mode, in which events are spooled to disk while initialization is
+     * retried with exponential backoff.</p>
+     *
+     * @param config the agent config object. May be {@code null}.
+     * @return {@code true} if the agent was initialized successfully, {@code false} otherwise.
+     */
+    private static boolean doInit(@Nullable final Config config) {
+        synchronized (LOCK) {
+            // We check this here to provide a proper message, in case the user accidentally attempted to
+            // init twice. We check again in the constructor to prevent instantiation via reflection.
+            if (agent != null) {
+                LOGGER.error("Agent is already initialized; use Auklet.shutdown() first.");
+                return false;
+            }
+            cancelInitRetry();
+            LOGGER.info("Starting agent.");
+            try {
+                agent = new Auklet(config);
+                agent.start();
+                LOGGER.info("Agent started successfully.");
+                initRetryDelay = 0L;
+                synchronized (CAPTURE_LOCK) {
+                    degradedSpool = null;
+                    runningAgent = agent;
+                    // Buffered events are queued before any newly captured events.
+                    agent.sendBufferedEvents();
+                }
+                return true;
+            } catch (Exception e) {
+                // Catch everything so that even programming errors result in an orderly
+                // shutdown of the agent.
+                LOGGER.error("Could not start agent.", e);
+                File configDir = agent == null ? null : agent.getConfigDir();
+                if (agent != null) stopAgent(false);
+                if (configDir != null && isApiUnreachable(e)) enterDegradedMode(config, configDir);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * <p>Spools events to disk and schedules a retry of agent initialization.</p>
+     *
+     * @param config the agent config object. May be {@code null}.
+     * @param configDir the agent's config directory. Never {@code null}.
+     */
+    @GuardedBy("LOCK") private static void enterDegradedMode(@Nullable final Config config, @NonNull File configDir) {
+        synchronized (CAPTURE_LOCK) {
+            if (degradedSpool == null) degradedSpool = new EventSpool(configDir);
+            // Move any events that are buffered in memory to the spool, so they are not lost if the app exits.
+            for (byte[] event : PRE_INIT_BUFFER.drain()) degradedSpool.append(event);
+        }
+        initRetryDelay = initRetryDelay == 0L ? INIT_RETRY_MIN_DELAY : Math.min(initRetryDelay * 2, INIT_RETRY_MAX_DELAY);
+        LOGGER.warn("Auklet API is unreachable; running in degraded mode. Will retry in {} seconds.", TimeUnit.MILLISECONDS.toSeconds(initRetryDelay));
+        try {
+            initRetryTask = DAEMON.schedule(new AukletDaemonExecutor.CancelSilentlyRunnable() {
+                @Override public void run() {
+                    doInit(config);
+                }
+            }, initRetryDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Could not schedule agent init retry.", e);
+        }
+    }
+
+    /** <p>Cancels any pending retry of agent initialization.</p> */
+    @GuardedBy("LOCK") private static void cancelInitRetry() {
+        if (initRetryTask != null) {
+            initRetryTask.cancel(false);
+            initRetryTask = null;
+        }
+    }
+
+    /**
+     * <p>Determines whether or not the given agent startup failure was caused by an inability to reach
+     * the Auklet API.</p>
+     *
+     * @param e never {@code null}.
+     * @return {@code true} if the failure was caused by an I/O error or a startup timeout.
+     */
+    private static boolean isApiUnreachable(@NonNull Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof TimeoutException) return true;
+            if (cause.getCause() == cause) break;
+        }
+        return false;
+    }
+
+    /**
+     * <p>Holds the given event until the agent has started.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     */
+    @GuardedBy("CAPTURE_LOCK") private static void bufferEvent(@NonNull Throwable throwable, long timestamp) {
+        byte[] event;
+        try {
+            // The agent's config is not known yet, so no frames are collapsed and the default size limit applies.
+            event = EventEncoder.DEFAULT.encodeEventBody(throwable, timestamp);
+        } catch (AukletException e) {
+            LOGGER.warn("Could not buffer event.", e);
+            return;
+        }
+        if (degradedSpool != null) {
+            LOGGER.debug("Spooling event because agent is running in degraded mode.");
+            degradedSpool.append(event);
+        } else {
+            LOGGER.debug("Buffering event because agent is not running.");
+            PRE_INIT_BUFFER.add(event);
+        }
+    }
+
+    /**
+     * <p>Shuts down the running agent.</p>
+     *
+     * @param viaJvmHook {@code true} if shutdown is occurring due to a JVM hook, {@code false} otherwise.
+     * @return never {@code null}.
+     */
+    @GuardedBy("LOCK") @NonNull private static DrainReport stopAgent(boolean viaJvmHook) {
+        try {
+            return agent.doShutdown(viaJvmHook);
+        } finally {
+            agent = null;
+        }
+    }
+
+    /**
+     * <p>Creates the task that drains the capture queue, dispatching each event to the running agent or,
+     * if the agent is not running, holding it until the agent starts.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private static Runnable createCaptureDrainTask() {
+        return new Runnable() {
+            @Override public void run() {
+                do {
+                    synchronized (CAPTURE_LOCK) {
+                        CapturedEvent event;
+                        while ((event = CAPTURE_QUEUE.poll()) != null) {
+                            if (runningAgent == null) bufferEvent(event.throwable, event.timestamp);
+                            else runningAgent.doSend(event.throwable, event.timestamp);
+                        }
+                    }
+                    CAPTURE_DRAIN_SCHEDULED.set(false);
+                    // An event may have been queued after the queue was drained but before the flag was cleared.
+                } while (!CAPTURE_QUEUE.isEmpty() && CAPTURE_DRAIN_SCHEDULED.compareAndSet(false, true));
+            }
+        };
+    }
+
     /**
      * <p>Creates a JVM shutdown thread that shuts down the Auklet agent.</p>
      *
@@ -507,8 +885,7 @@ public final class Auklet {
                 synchronized (LOCK) {
                     if (agent != null) {
                         try {
-                            agent.doShutdown(true);
-                            agent = null;
+                            stopAgent(true);
                         } catch (Exception e) {
                             // Because this is a shutdown hook thread, we want to make sure we intercept
                             // any kind of exception and log it for the benefit of the end-user.
@@ -528,52 +905,549 @@ public final class Auklet {
      *     <li>Loading configuration files from disk.</li>
      *     <li>Starting the data sink selected by the agent configuration.</li>
      *     <li>Starting the data usage monitor daemon.</li>
+     *     <li>Starting the hand-over of events from the crash journal's emergency path.</li>
      * </ul>
      *
+     * <p>Steps that do not depend on each other are run concurrently, and the entire process must complete
+     * within the configured startup timeout. Cached host identity values are used immediately and refreshed
+     * in the background, and the data sink may complete its connection in the background after this method
+     * returns.</p>
+     *
      * @throws AukletException if the underlying resources cannot be started.
      */
     private void start() throws AukletException {
         LOGGER.debug("Starting internal resources.");
-        this.deviceAuth.start(this);
-        this.usageMonitor.start(this);
-        this.platform.start(this);
-        this.sink.start(this);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.startupTimeout);
+        this.persistence.start(this);
+        // Device registration needs the MAC address hash, so the host identity must be loaded first.
+        this.hostIdentity.start(this);
+        ExecutorService startup = Executors.newCachedThreadPool(ThreadUtil.createDaemonThreadFactory("AukletStartup-%d"));
+        try {
+            Future<?> deviceAuthStarted = startup.submit(this.createStartTask(this.deviceAuth));
+            Future<?> usageMonitorStarted = startup.submit(this.createStartTask(this.usageMonitor));
+            Future<?> platformStarted = startup.submit(this.createStartTask(this.platform));
+            Future<?> sinkPrepared = startup.submit(new Callable<Void>() {
+                @Override public Void call() throws AukletException {
+                    sink.prepare(Auklet.this);
+                    return null;
+                }
+            });
+            // The sink needs the device credentials and the data usage limits before it can start.
+            awaitStartupTask(deviceAuthStarted, deadline, "device auth");
+            awaitStartupTask(usageMonitorStarted, deadline, "data usage monitor");
+            awaitStartupTask(sinkPrepared, deadline, "data sink config");
+            this.sink.start(this);
+            awaitStartupTask(platformStarted, deadline, "platform");
+            this.started = true;
+            this.scheduleRepeatingTask(new Runnable() {
+                @Override public void run() {
+                    sendEmergencyEvent();
+                }
+            }, 1L, 1L, TimeUnit.SECONDS);
+        } catch (AukletException | RuntimeException e) {
+            // Abandon any startup tasks that are still running.
+            startup.shutdownNow();
+            throw e;
+        } finally {
+            startup.shutdown();
+        }
+        this.saveConfigSnapshot();
+    }
+
+    /** <p>Saves the in-memory state of the agent's config files as a warm-start snapshot.</p> */
+    private void saveConfigSnapshot() {
+        ConfigSnapshot snapshot = new ConfigSnapshot();
+        snapshot.add(this.hostIdentity);
+        snapshot.add(this.deviceAuth);
+        this.usageMonitor.addToSnapshot(snapshot);
+        this.sink.addToSnapshot(snapshot);
+        try {
+            this.persistence.write(new File(this.configDir, ConfigSnapshot.FILENAME), snapshot.toBytes(this.appId), false);
+        } catch (AukletException | IOException e) {
+            LOGGER.warn("Could not save warm-start snapshot.", e);
+        }
+    }
+
+    /**
+     * <p>Creates a task that starts the given agent component.</p>
+     *
+     * @param component the component to start. Never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull private Callable<Void> createStartTask(@NonNull final HasAgent component) {
+        return new Callable<Void>() {
+            @Override public Void call() throws AukletException {
+                component.start(Auklet.this);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * <p>Waits for the given startup task to complete.</p>
+     *
+     * @param task the task. Never {@code null}.
+     * @param deadline the {@link System#nanoTime()} value by which the task must complete.
+     * @param name the name of the component being started, for logging purposes.
+     * @throws AukletException if the task fails, or does not complete by the deadline.
+     */
+    private static void awaitStartupTask(@NonNull Future<?> task, long deadline, @NonNull String name) throws AukletException {
+        try {
+            task.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AukletException) throw (AukletException) cause;
+            throw new AukletException("Error while starting " + name + ".", cause);
+        } catch (TimeoutException e) {
+            throw new AukletException("Timed out while starting " + name + ".", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AukletException("Interrupted while starting " + name + ".", e);
+        }
     }
 
     /**
      * <p>Queues a task to submit the given throwable to the data sink.</p>
      *
      * @param throwable if {@code null}, this method is no-op.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
      */
-    private void doSend(@Nullable final Throwable throwable) {
+    private void doSend(@Nullable final Throwable throwable, final long timestamp) {
         if (throwable == null) return;
         try {
-            this.scheduleOneShotTask(new Runnable() {
-                @Override public void run() {
-                    try {
-                        LOGGER.debug("Sending event for exception: {}", throwable.getClass().getName());
-                        sink.send(throwable);
-                    } catch (AukletException e) {
-                        LOGGER.warn("Could not send event.", e);
-                    }
-                }
-            }, 0, TimeUnit.SECONDS); // 5-second cooldown.
-        } catch (AukletException e) {
+            ENCODE.submit(new EncodeTask(throwable, timestamp));
+        } catch (RejectedExecutionException e) {
             LOGGER.warn("Could not queue event send task.", e);
         }
     }
 
+    /**
+     * <p>Moves any uncaught exceptions that were journaled by a previous run of the agent to the event spool,
+     * so that they are sent once the agent starts.</p>
+     */
+    private void spoolJournaledCrashes() {
+        List<byte[]> crashes = this.crashJournal.drain();
+        if (crashes.isEmpty()) return;
+        LOGGER.info("Recovered {} uncaught exceptions from the crash journal.", crashes.size());
+        EventSpool spool = new EventSpool(this.configDir);
+        for (byte[] crash : crashes) spool.append(crash);
+    }
+
+    /**
+     * <p>Hands the event that was recorded by the crash journal's emergency path, if any, over to the
+     * agent's pipeline.</p>
+     */
+    private void sendEmergencyEvent() {
+        byte[] event = this.crashJournal.takeEmergencyEvent();
+        if (event == null) return;
+        LOGGER.info("Sending uncaught JVM error that was recorded by the crash journal.");
+        List<byte[]> events = new ArrayList<>();
+        events.add(event);
+        try {
+            ENCODE.submit(new EncodeBufferedTask(events, null));
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Could not queue JVM error send task.", e);
+        }
+    }
+
+    /**
+     * <p>Sends all events that were spooled to disk or buffered in memory before the agent started. The
+     * spooled events are released from the spool once they have all been delivered.</p>
+     */
+    @GuardedBy("CAPTURE_LOCK") private void sendBufferedEvents() {
+        final EventSpool spool = new EventSpool(this.configDir);
+        List<byte[]> events = spool.drain();
+        Runnable onDelivered = events.isEmpty() ? null : new Runnable() {
+            @Override public void run() {
+                spool.release();
+            }
+        };
+        events.addAll(PRE_INIT_BUFFER.drain());
+        if (events.isEmpty()) return;
+        LOGGER.info("Sending {} events that were reported before the agent started.", events.size());
+        try {
+            ENCODE.submit(new EncodeBufferedTask(events, onDelivered));
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Could not queue buffered event send task.", e);
+        }
+    }
+
+    /**
+     * <p>Queues a task to write the given encoded messages to the data sink.</p>
+     *
+     * @param messages never {@code null}.
+     */
+    private void queueTransport(@NonNull List<byte[]> messages) {
+        this.queueTransport(messages, null);
+    }
+
+    /**
+     * <p>Queues a task to write the given encoded messages to the data sink, and to run the given callback
+     * once they have all been delivered.</p>
+     *
+     * @param messages never {@code null}.
+     * @param onDelivered may be {@code null}. If there are no messages, it is run immediately.
+     */
+    private void queueTransport(@NonNull List<byte[]> messages, @Nullable Runnable onDelivered) {
+        if (messages.isEmpty()) {
+            if (onDelivered != null) onDelivered.run();
+            return;
+        }
+        try {
+            TRANSPORT.submit(new TransportTask(messages, onDelivered));
+        } catch (RejectedExecutionException e) {
+            this.messagesFailed.addAndGet(messages.size());
+            LOGGER.warn("Could not queue event transport task; dropping {} events.", messages.size(), e);
+        }
+    }
+
     /**
      * <p>Shuts down the Auklet agent.</p>
      *
      * @param viaJvmHook {@code true} if shutdown is occurring due to a JVM hook, {@code false} otherwise.
+     * @return never {@code null}.
      */
-    private void doShutdown(boolean viaJvmHook) {
+    @NonNull private DrainReport doShutdown(boolean viaJvmHook) {
         LOGGER.info("Shutting down agent.");
-        boolean jvmHookIsShuttingDown = this.shutdownHook != null && viaJvmHook;
-        if (!jvmHookIsShuttingDown) Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
-        this.sink.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.shutdownTimeout);
+        if (this.shutdownHook != null && !viaJvmHook) Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+        synchronized (this.repeatingTasks) {
+            for (ScheduledFuture<?> task : this.repeatingTasks) {
+                task.cancel(false);
+            }
+            this.repeatingTasks.clear();
+        }
+        if (this.started) this.sendEmergencyEvent();
+        DrainReport report = this.drain(deadline);
+        // Every event that reached the pipeline has now been delivered or spooled, so journaled crashes and
+        // replayed spool events are redundant.
+        if (this.started && report.getLost() == 0) {
+            this.crashJournal.clear();
+            new EventSpool(this.configDir).release();
+        }
+        this.crashJournal.close();
+        this.persistence.flush();
+        if (this.started) this.saveConfigSnapshot();
+        this.sink.shutdown(remainingMillis(deadline));
         this.https.shutdown();
+        return report;
+    }
+
+    /**
+     * <p>Stops capturing events and delivers the events that are still in the agent's pipeline, until the
+     * given deadline. Events that have been captured are passed through the encode and transport stages in
+     * turn, and then the agent waits for the data sink to confirm their delivery. Whatever has not been
+     * delivered by the deadline is spooled to disk, to be sent when the agent next starts.</p>
+     *
+     * @param deadline the deadline, as a {@link System#nanoTime()} value.
+     * @return never {@code null}.
+     */
+    @NonNull private DrainReport drain(long deadline) {
+        if (!this.started) {
+            synchronized (CAPTURE_LOCK) {
+                runningAgent = null;
+            }
+            return new DrainReport(0L, 0L, 0L, 0L);
+        }
+        long sentBefore = this.messagesSent.get();
+        long failedBefore = this.messagesFailed.get();
+        long droppedBefore = this.sink.getDroppedCount();
+        int pendingBefore = this.sink.getPendingCount();
+        // Let events that were captured before shutdown began reach the encode stage, then stop capture.
+        awaitStage(CAPTURE, deadline);
+        synchronized (CAPTURE_LOCK) {
+            runningAgent = null;
+        }
+        awaitStage(ENCODE, deadline);
+        awaitStage(TRANSPORT, deadline);
+        // Stop the transport stage before counting, so that nothing is sent after it has been counted.
+        List<Object> queuedTransport = TRANSPORT.removeQueuedTasks();
+        TransportTask running = this.runningTransport;
+        List<byte[]> unsent = running == null ? Collections.<byte[]>emptyList() : running.withdraw();
+        List<byte[]> undelivered = this.sink.awaitDelivery(remainingMillis(deadline));
+        long dropped = this.sink.getDroppedCount() - droppedBefore;
+        long flushed = Math.max(0L, this.messagesSent.get() - sentBefore - dropped + pendingBefore - undelivered.size());
+        // Collect everything that was not delivered, oldest first.
+        List<byte[]> bodies = new ArrayList<>();
+        for (byte[] message : undelivered) bodies.add(this.extractEventBody(message));
+        for (byte[] message : unsent) bodies.add(this.extractEventBody(message));
+        for (Object task : queuedTransport) {
+            if (task instanceof PipelineTask) bodies.addAll(((PipelineTask) task).getEventBodies());
+        }
+        for (Object task : ENCODE.removeQueuedTasks()) {
+            if (task instanceof PipelineTask) bodies.addAll(((PipelineTask) task).getEventBodies());
+        }
+        synchronized (CAPTURE_LOCK) {
+            CapturedEvent event;
+            while ((event = CAPTURE_QUEUE.poll()) != null) bodies.add(encodeEventBody(event.throwable, event.timestamp));
+            bodies.addAll(PRE_INIT_BUFFER.drain());
+        }
+        long persisted = 0L;
+        long lost = this.messagesFailed.get() - failedBefore;
+        if (!bodies.isEmpty()) {
+            EventSpool spool = new EventSpool(this.configDir);
+            for (byte[] body : bodies) {
+                if (body != null && spool.append(body)) persisted++;
+                else lost++;
+            }
+        }
+        DrainReport report = new DrainReport(flushed, dropped, persisted, lost);
+        LOGGER.info("Agent pipeline drained: {}.", report);
+        return report;
+    }
+
+    /**
+     * <p>Waits until all tasks that are currently queued in the given stage's executor have run, or until
+     * the given deadline.</p>
+     *
+     * @param stage never {@code null}.
+     * @param deadline the deadline, as a {@link System#nanoTime()} value.
+     */
+    private static void awaitStage(@NonNull AukletDaemonExecutor stage, long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return;
+        try {
+            // Stage executors are single-threaded and run due tasks in order, so this runs after the others.
+            stage.submit(STAGE_BARRIER).get(remaining, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+            LOGGER.debug("Stopped waiting for executor stage to drain.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * <p>Returns the number of milliseconds until the given deadline.</p>
+     *
+     * @param deadline the deadline, as a {@link System#nanoTime()} value.
+     * @return zero if the deadline has passed.
+     */
+    private static long remainingMillis(long deadline) {
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(0L, deadline - System.nanoTime()));
+    }
+
+    /**
+     * <p>Encodes the body of the given event, for spooling.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     * @return {@code null} if the event could not be encoded.
+     */
+    @CheckForNull private byte[] encodeEventBody(@NonNull Throwable throwable, long timestamp) {
+        try {
+            return this.eventEncoder.encodeEventBody(throwable, timestamp);
+        } catch (AukletException e) {
+            LOGGER.warn("Could not encode event.", e);
+            return null;
+        }
+    }
+
+    /**
+     * <p>Extracts the body of the event in the given message, for spooling.</p>
+     *
+     * @param message never {@code null}.
+     * @return {@code null} if the event body could not be extracted.
+     */
+    @CheckForNull private byte[] extractEventBody(@NonNull byte[] message) {
+        try {
+            return this.sink.extractEventBody(message);
+        } catch (AukletException e) {
+            LOGGER.warn("Could not extract event from message.", e);
+            return null;
+        }
+    }
+
+    /** <p>An event that has been reported to the agent, but not yet dispatched.</p> */
+    private static final class CapturedEvent {
+        private final Throwable throwable;
+        private final long timestamp;
+        private CapturedEvent(@NonNull Throwable throwable, long timestamp) {
+            this.throwable = throwable;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /** <p>A task in the agent's pipeline whose events can be spooled instead, if it cannot be run.</p> */
+    private interface PipelineTask {
+        /**
+         * <p>Returns the bodies of the events that this task would have sent.</p>
+         *
+         * @return never {@code null}. An element is {@code null} if that event's body could not be obtained.
+         */
+        @NonNull List<byte[]> getEventBodies();
+    }
+
+    /** <p>Encodes a captured event and queues it for transport.</p> */
+    private final class EncodeTask implements Runnable, PipelineTask {
+        private final Throwable throwable;
+        private final long timestamp;
+        private EncodeTask(@NonNull Throwable throwable, long timestamp) {
+            this.throwable = throwable;
+            this.timestamp = timestamp;
+        }
+        @Override public void run() {
+            try {
+                LOGGER.debug("Sending event for exception: {}", this.throwable.getClass().getName());
+                byte[] message = sink.encode(this.throwable, this.timestamp);
+                final long record = crashJournal.claim(this.throwable);
+                Runnable onDelivered = record == 0L ? null : new Runnable() {
+                    @Override public void run() {
+                        crashJournal.release(record);
+                    }
+                };
+                queueTransport(Collections.singletonList(message), onDelivered);
+            } catch (AukletException e) {
+                LOGGER.warn("Could not send event.", e);
+            }
+        }
+        @Override @NonNull public List<byte[]> getEventBodies() {
+            return Collections.singletonList(encodeEventBody(this.throwable, this.timestamp));
+        }
+    }
+
+    /** <p>Encodes events that were buffered before the agent started, and queues them for transport.</p> */
+    private final class EncodeBufferedTask implements Runnable, PipelineTask {
+        private final List<byte[]> eventBodies;
+        private final Runnable onDelivered;
+        private EncodeBufferedTask(@NonNull List<byte[]> eventBodies, @Nullable Runnable onDelivered) {
+            this.eventBodies = eventBodies;
+            this.onDelivered = onDelivered;
+        }
+        @Override public void run() {
+            List<byte[]> messages = new ArrayList<>(this.eventBodies.size());
+            for (byte[] event : this.eventBodies) {
+                try {
+                    messages.add(sink.encodeFromBody(event));
+                } catch (AukletException e) {
+                    LOGGER.warn("Could not send buffered event.", e);
+                }
+            }
+            queueTransport(messages, this.onDelivered);
+        }
+        @Override @NonNull public List<byte[]> getEventBodies() {
+            return this.eventBodies;
+        }
+    }
+
+    /** <p>Writes encoded messages to the data sink.</p> */
+    private final class TransportTask implements Runnable, PipelineTask {
+        private final List<byte[]> messages;
+        private final Runnable onDelivered;
+        // The number of messages that have not yet been confirmed as delivered.
+        private final AtomicInteger undelivered;
+        // The index of the first message that has not yet been handed to the sink.
+        @GuardedBy("this") private int next = 0;
+        @GuardedBy("this") private boolean sending = false;
+        @GuardedBy("this") private boolean withdrawn = false;
+        private TransportTask(@NonNull List<byte[]> messages, @Nullable Runnable onDelivered) {
+            this.messages = messages;
+            this.onDelivered = onDelivered;
+            this.undelivered = new AtomicInteger(messages.size());
+        }
+        @Override public void run() {
+            runningTransport = this;
+            try {
+                List<byte[]> batch;
+                while ((batch = this.takeBatch()) != null) {
+                    try {
+                        this.transport(batch);
+                    } finally {
+                        synchronized (this) {
+                            this.sending = false;
+                            this.notifyAll();
+                        }
+                    }
+                }
+            } finally {
+                runningTransport = null;
+            }
+        }
+        /**
+         * <p>Takes the next messages to send, as one batch if columnar batches are enabled.</p>
+         *
+         * @return {@code null} if all messages have been taken or the task has been withdrawn.
+         */
+        @CheckForNull private synchronized List<byte[]> takeBatch() {
+            if (this.withdrawn || this.next >= this.messages.size()) return null;
+            int start = this.next;
+            int end = start + 1;
+            if (columnarBatches) {
+                int bytes = this.messages.get(start).length;
+                while (end < this.messages.size() && bytes + this.messages.get(end).length <= MAX_BATCH_BYTES) {
+                    bytes += this.messages.get(end++).length;
+                }
+            }
+            this.next = end;
+            this.sending = true;
+            return this.messages.subList(start, end);
+        }
+        /**
+         * <p>Stops this task from handing any more messages to the sink, waiting for the messages that it
+         * is handing over now.</p>
+         *
+         * @return the messages that will not be sent. Never {@code null}.
+         */
+        @NonNull private synchronized List<byte[]> withdraw() {
+            this.withdrawn = true;
+            boolean interrupted = false;
+            // Handing messages to the sink does not block on the network, so this wait is short.
+            while (this.sending) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            return new ArrayList<>(this.messages.subList(this.next, this.messages.size()));
+        }
+        /**
+         * <p>Sends the given messages as one batch, or one at a time if there is only one of them or if
+         * the batch cannot be sent.</p>
+         *
+         * @param batch never {@code null} or empty.
+         */
+        private void transport(@NonNull List<byte[]> batch) {
+            if (batch.size() > 1) {
+                try {
+                    if (this.onDelivered == null) sink.sendBatch(batch);
+                    else sink.sendBatch(batch, this.delivered(batch.size()));
+                    messagesSent.addAndGet(batch.size());
+                    return;
+                } catch (AukletException e) {
+                    LOGGER.warn("Could not send {} events as a batch; sending them one at a time.", batch.size(), e);
+                }
+            }
+            for (byte[] message : batch) {
+                try {
+                    if (this.onDelivered == null) sink.sendMessage(message);
+                    else sink.sendMessage(message, this.delivered(1));
+                    messagesSent.incrementAndGet();
+                } catch (AukletException e) {
+                    messagesFailed.incrementAndGet();
+                    LOGGER.warn("Could not send event.", e);
+                }
+            }
+        }
+        /**
+         * <p>Returns a callback that records the delivery of the given number of this task's messages, and
+         * runs this task's callback once all of them have been delivered.</p>
+         *
+         * @param count the number of messages.
+         * @return never {@code null}.
+         */
+        @NonNull private Runnable delivered(final int count) {
+            return new Runnable() {
+                @Override public void run() {
+                    if (undelivered.addAndGet(-count) == 0) onDelivered.run();
+                }
+            };
+        }
+        @Override @NonNull public List<byte[]> getEventBodies() {
+            List<byte[]> bodies = new ArrayList<>(this.messages.size());
+            for (byte[] message : this.messages) bodies.add(extractEventBody(message));
+            return bodies;
+        }
     }
 
 }
@@ -10,6 +10,7 @@ package io.auklet;
  *   <li>All {@code public static} methods in the {@link Auklet} class.</li>
  *   <li>All {@code public} methods in the {@link Config} class.</li>
  *   <li>The {@link AukletException} class.</li>
+ *   <li>The {@link DrainReport}, {@link ExecutorStats} and {@link LatencySnapshot} classes.</li>
  * </ul>
  *
  * <p><b>Unless instructed to do so by Auklet support, do not use any classes/fields/methods other than
@@ -147,6 +147,162 @@ import java.util.*;
  *       </td>
  *       <td>3</td>
  *     </tr>
+ *     <tr>
+ *       <td>Startup timeout (in seconds)</td>
+ *       <td>{@link #setStartupTimeout(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_STARTUP_TIMEOUT}</li>
+ *           <li>JVM system property {@code auklet.startup.timeout}</li>
+ *         </ol>
+ *       </td>
+ *       <td>30</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Fsync policy for config files ({@code always}, {@code critical} or {@code never})</td>
+ *       <td>{@link #setFsyncPolicy(String)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_FSYNC_POLICY}</li>
+ *           <li>JVM system property {@code auklet.fsync.policy}</li>
+ *         </ol>
+ *       </td>
+ *       <td>{@code critical}</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Shutdown timeout (in seconds), for delivering events that are in flight</td>
+ *       <td>{@link #setShutdownTimeout(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_SHUTDOWN_TIMEOUT}</li>
+ *           <li>JVM system property {@code auklet.shutdown.timeout}</li>
+ *         </ol>
+ *       </td>
+ *       <td>5</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Maximum idle HTTP connections</td>
+ *       <td>{@link #setHttpMaxIdleConnections(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_HTTP_MAX_IDLE_CONNECTIONS}</li>
+ *           <li>JVM system property {@code auklet.http.max.idle.connections}</li>
+ *         </ol>
+ *       </td>
+ *       <td>5</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Maximum concurrent HTTP requests</td>
+ *       <td>{@link #setHttpMaxRequests(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_HTTP_MAX_REQUESTS}</li>
+ *           <li>JVM system property {@code auklet.http.max.requests}</li>
+ *         </ol>
+ *       </td>
+ *       <td>16</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Maximum concurrent HTTP requests per host</td>
+ *       <td>{@link #setHttpMaxRequestsPerHost(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_HTTP_MAX_REQUESTS_PER_HOST}</li>
+ *           <li>JVM system property {@code auklet.http.max.requests.per.host}</li>
+ *         </ol>
+ *       </td>
+ *       <td>5</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Comma-separated package prefixes whose stack frames are collapsed</td>
+ *       <td>{@link #setFrameExcludePackages(String)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_FRAME_EXCLUDE_PACKAGES}</li>
+ *           <li>JVM system property {@code auklet.frame.exclude.packages}</li>
+ *         </ol>
+ *       </td>
+ *       <td>None (no frames are collapsed)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Comma-separated package prefixes whose stack frames are never collapsed</td>
+ *       <td>{@link #setFrameIncludePackages(String)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_FRAME_INCLUDE_PACKAGES}</li>
+ *           <li>JVM system property {@code auklet.frame.include.packages}</li>
+ *         </ol>
+ *       </td>
+ *       <td>None</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Maximum size of each event, in bytes (at least 1024)</td>
+ *       <td>{@link #setMaxEventSize(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_MAX_EVENT_SIZE}</li>
+ *           <li>JVM system property {@code auklet.max.event.size}</li>
+ *         </ol>
+ *       </td>
+ *       <td>32768</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Send each stack frame string only once per dictionary epoch</td>
+ *       <td>{@link #setFrameDictionary(Boolean)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_FRAME_DICTIONARY}</li>
+ *           <li>JVM system property {@code auklet.frame.dictionary}</li>
+ *         </ol>
+ *       </td>
+ *       <td>{@code false} (frame strings are sent in every event)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Send repeat occurrences of known errors as references</td>
+ *       <td>{@link #setFingerprintReferences(Boolean)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_FINGERPRINT_REFERENCES}</li>
+ *           <li>JVM system property {@code auklet.fingerprint.references}</li>
+ *         </ol>
+ *       </td>
+ *       <td>{@code false} (every event is sent in full)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Hours after which a known error is sent in full again</td>
+ *       <td>{@link #setFingerprintResendHours(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_FINGERPRINT_RESEND_HOURS}</li>
+ *           <li>JVM system property {@code auklet.fingerprint.resend.hours}</li>
+ *         </ol>
+ *       </td>
+ *       <td>24</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Send events that are sent together as one columnar batch</td>
+ *       <td>{@link #setColumnarBatches(Boolean)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_COLUMNAR_BATCHES}</li>
+ *           <li>JVM system property {@code auklet.columnar.batches}</li>
+ *         </ol>
+ *       </td>
+ *       <td>{@code false} (every event is sent as its own message)</td>
+ *     </tr>
  *   </tbody>
  * </table>
  *
@@ -157,6 +313,7 @@ import java.util.*;
  *   <li>All {@code public static} methods in the {@link Auklet} class.</li>
  *   <li>All {@code public} methods in the {@link Config} class.</li>
  *   <li>The {@link AukletException} class.</li>
+ *   <li>The {@link DrainReport}, {@link ExecutorStats} and {@link LatencySnapshot} classes.</li>
  * </ul>
  *
  * <p><b>Unless instructed to do so by Auklet support, do not use any classes/fields/methods other than
@@ -177,6 +334,19 @@ public final class Config {
     private String serialPort = null;
     private Object androidContext = null;
     private Integer mqttThreads = null;
+    private Integer startupTimeout = null;
+    private String fsyncPolicy = null;
+    private Integer shutdownTimeout = null;
+    private Integer httpMaxIdleConnections = null;
+    private Integer httpMaxRequests = null;
+    private Integer httpMaxRequestsPerHost = null;
+    private String frameExcludePackages = null;
+    private String frameIncludePackages = null;
+    private Integer maxEventSize = null;
+    private Boolean frameDictionary = null;
+    private Boolean fingerprintReferences = null;
+    private Integer fingerprintResendHours = null;
+    private Boolean columnarBatches = null;
 
     /**
      * <p>Sets the Auklet agent's app ID.</p>
@@ -305,6 +475,185 @@ public final class Config {
         return this;
     }
 
+    /**
+     * <p>Tells the Auklet agent how long, in seconds, it may take to start up before initialization is
+     * considered to have failed. Connecting to the data sink is not included in this time; that
+     * connection is completed in the background after the agent has started.</p>
+     *
+     * @param startupTimeout may be {@code null}. Values less than 1 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setStartupTimeout(@Nullable Integer startupTimeout) {
+        if (startupTimeout != null && startupTimeout < 1) startupTimeout = null;
+        this.startupTimeout = startupTimeout;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent when to force writes to its config files onto the storage device. Use
+     * {@code always} to sync every write, {@code critical} to sync only files that would otherwise need
+     * to be re-obtained from the Auklet API, or {@code never} to leave flushing to the OS, which reduces
+     * wear on flash storage at the cost of durability across power loss.</p>
+     *
+     * @param fsyncPolicy may be {@code null}. Empty string is coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setFsyncPolicy(@Nullable String fsyncPolicy) {
+        if (Util.isNullOrEmpty(fsyncPolicy)) fsyncPolicy = null;
+        this.fsyncPolicy = fsyncPolicy;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent how long, in seconds, it may spend delivering events that are still in
+     * flight when it shuts down. Events that cannot be delivered in time are saved to disk and sent when
+     * the agent next starts. Use 0 to save them without waiting.</p>
+     *
+     * @param shutdownTimeout may be {@code null}. Values less than 0 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setShutdownTimeout(@Nullable Integer shutdownTimeout) {
+        if (shutdownTimeout != null && shutdownTimeout < 0) shutdownTimeout = null;
+        this.shutdownTimeout = shutdownTimeout;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent how many idle HTTP connections to keep open for reuse.</p>
+     *
+     * @param httpMaxIdleConnections may be {@code null}. Values less than 0 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setHttpMaxIdleConnections(@Nullable Integer httpMaxIdleConnections) {
+        if (httpMaxIdleConnections != null && httpMaxIdleConnections < 0) httpMaxIdleConnections = null;
+        this.httpMaxIdleConnections = httpMaxIdleConnections;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent how many HTTP requests it may execute concurrently.</p>
+     *
+     * @param httpMaxRequests may be {@code null}. Values less than 1 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setHttpMaxRequests(@Nullable Integer httpMaxRequests) {
+        if (httpMaxRequests != null && httpMaxRequests < 1) httpMaxRequests = null;
+        this.httpMaxRequests = httpMaxRequests;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent how many HTTP requests it may execute concurrently against
+     * any one host.</p>
+     *
+     * @param httpMaxRequestsPerHost may be {@code null}. Values less than 1 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setHttpMaxRequestsPerHost(@Nullable Integer httpMaxRequestsPerHost) {
+        if (httpMaxRequestsPerHost != null && httpMaxRequestsPerHost < 1) httpMaxRequestsPerHost = null;
+        this.httpMaxRequestsPerHost = httpMaxRequestsPerHost;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent which framework packages to collapse in stack traces, as a comma-separated
+     * list of package prefixes. Consecutive frames from the same framework package are sent as a single
+     * frame that records how many frames were collapsed, which makes events smaller while keeping your own
+     * code's frames intact. By default, or if this is {@code none}, every frame is sent. To collapse
+     * reflection, Spring, Netty and Tomcat frames, pass {@link io.auklet.sink.FrameFilter#FRAMEWORK_PACKAGES}.</p>
+     *
+     * @param frameExcludePackages may be {@code null}. Empty string is coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setFrameExcludePackages(@Nullable String frameExcludePackages) {
+        if (Util.isNullOrEmpty(frameExcludePackages)) frameExcludePackages = null;
+        this.frameExcludePackages = frameExcludePackages;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent which packages never to collapse in stack traces, as a comma-separated list
+     * of package prefixes, even if they are within a package passed to
+     * {@link #setFrameExcludePackages(String)}.</p>
+     *
+     * @param frameIncludePackages may be {@code null}. Empty string is coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setFrameIncludePackages(@Nullable String frameIncludePackages) {
+        if (Util.isNullOrEmpty(frameIncludePackages)) frameIncludePackages = null;
+        this.frameIncludePackages = frameIncludePackages;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent the maximum size of each event, in bytes. Events that would be larger are
+     * truncated: long messages are shortened, frames are removed from the middle of long stack traces, and
+     * causes or suppressed exceptions that do not fit are left out. Each event records what was removed.</p>
+     *
+     * @param maxEventSize may be {@code null}. Values less than 1024 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setMaxEventSize(@Nullable Integer maxEventSize) {
+        if (maxEventSize != null && maxEventSize < 1024) maxEventSize = null;
+        this.maxEventSize = maxEventSize;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent whether or not to send each class name, method name and file path in stack
+     * traces only once, and refer to it by a numeric ID in later events. The IDs are valid until the agent
+     * starts a new dictionary epoch, for example after the MQTT connection is lost. This makes events much
+     * smaller when the same code fails repeatedly, but requires the receiving end to support it.</p>
+     *
+     * @param frameDictionary may be {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setFrameDictionary(@Nullable Boolean frameDictionary) {
+        this.frameDictionary = frameDictionary;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent whether or not to send repeat occurrences of an error as a reference to it,
+     * once the error has been delivered in full. A reference carries the error's fingerprint, type,
+     * message and the system metrics, but no stack trace. This saves a lot of data on devices that hit the
+     * same errors repeatedly, but requires the receiving end to support it.</p>
+     *
+     * @param fingerprintReferences may be {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setFingerprintReferences(@Nullable Boolean fingerprintReferences) {
+        this.fingerprintReferences = fingerprintReferences;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent how many hours after an error was last delivered in full to send it in full
+     * again, when {@link #setFingerprintReferences(Boolean)} is enabled.</p>
+     *
+     * @param fingerprintResendHours may be {@code null}. Values less than 1 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setFingerprintResendHours(@Nullable Integer fingerprintResendHours) {
+        if (fingerprintResendHours != null && fingerprintResendHours < 1) fingerprintResendHours = null;
+        this.fingerprintResendHours = fingerprintResendHours;
+        return this;
+    }
+
+    /**
+     * <p>Tells the Auklet agent whether or not to combine events that are sent together, such as those
+     * reported before the agent started, into one message in which the stack frames are stored column by
+     * column. Such messages are smaller and compress better than the events would separately, but require
+     * the receiving end to support them.</p>
+     *
+     * @param columnarBatches may be {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setColumnarBatches(@Nullable Boolean columnarBatches) {
+        this.columnarBatches = columnarBatches;
+        return this;
+    }
+
     /** <p>Returns the desired app ID.</p> */
     /*package*/ @CheckForNull String getAppId() {
         return appId;
@@ -351,4 +700,44 @@ public final class Config {
     /** <p>Returns the desired number of MQTT threads.</p> */
     /*package*/ @CheckForNull Integer getMqttThreads() { return mqttThreads; }
 
+    /** <p>Returns the desired startup timeout.</p> */
+    /*package*/ @CheckForNull Integer getStartupTimeout() { return startupTimeout; }
+
+    /** <p>Returns the desired fsync policy.</p> */
+    /*package*/ @CheckForNull String getFsyncPolicy() { return fsyncPolicy; }
+
+
+    /** <p>Returns the desired shutdown timeout.</p> */
+    /*package*/ @CheckForNull Integer getShutdownTimeout() { return shutdownTimeout; }
+
+    /** <p>Returns the desired maximum number of idle HTTP connections.</p> */
+    /*package*/ @CheckForNull Integer getHttpMaxIdleConnections() { return httpMaxIdleConnections; }
+
+    /** <p>Returns the desired maximum number of concurrent HTTP requests.</p> */
+    /*package*/ @CheckForNull Integer getHttpMaxRequests() { return httpMaxRequests; }
+
+    /** <p>Returns the desired maximum number of concurrent HTTP requests per host.</p> */
+    /*package*/ @CheckForNull Integer getHttpMaxRequestsPerHost() { return httpMaxRequestsPerHost; }
+
+    /** <p>Returns the desired package prefixes whose stack frames are collapsed.</p> */
+    /*package*/ @CheckForNull String getFrameExcludePackages() { return frameExcludePackages; }
+
+    /** <p>Returns the desired package prefixes whose stack frames are never collapsed.</p> */
+    /*package*/ @CheckForNull String getFrameIncludePackages() { return frameIncludePackages; }
+
+    /** <p>Returns the desired maximum event size.</p> */
+    /*package*/ @CheckForNull Integer getMaxEventSize() { return maxEventSize; }
+
+    /** <p>Returns the desired frame dictionary behavior.</p> */
+    /*package*/ @CheckForNull Boolean getFrameDictionary() { return frameDictionary; }
+
+    /** <p>Returns the desired fingerprint reference behavior.</p> */
+    /*package*/ @CheckForNull Boolean getFingerprintReferences() { return fingerprintReferences; }
+
+    /** <p>Returns the desired number of hours after which a known error is sent in full again.</p> */
+    /*package*/ @CheckForNull Integer getFingerprintResendHours() { return fingerprintResendHours; }
+
+    /** <p>Returns the desired columnar batch behavior.</p> */
+    /*package*/ @CheckForNull Boolean getColumnarBatches() { return columnarBatches; }
+
 }
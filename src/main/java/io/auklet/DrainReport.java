@@ -0,0 +1,95 @@
+package io.auklet;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+
+/**
+ * <p>Reports what happened to the events that were still in the agent's pipeline when it shut down. This
+ * is the result of the future returned by {@link Auklet#shutdown()}, which is declared as a
+ * {@code Future<Object>} for compatibility:</p>
+ *
+ * <pre>
+ * DrainReport report = (DrainReport) Auklet.shutdown().get();
+ * </pre>
+ *
+ * <p>Each event in the pipeline is counted in one of four categories: delivered, dropped because of
+ * the data usage limit, spooled to disk, or lost.</p>
+ *
+ * <p>The <b>only</b> classes/methods in the Auklet agent Javadocs that are officially supported for end
+ * users are:</p>
+ *
+ * <ul>
+ *   <li>All {@code public static} methods in the {@link Auklet} class.</li>
+ *   <li>All {@code public} methods in the {@link Config} class.</li>
+ *   <li>The {@link AukletException} class.</li>
+ *   <li>The {@link DrainReport}, {@link ExecutorStats} and {@link LatencySnapshot} classes.</li>
+ * </ul>
+ *
+ * <p><b>Unless instructed to do so by Auklet support, do not use any classes/fields/methods other than
+ * those described above.</b></p>
+ */
+@Immutable
+public final class DrainReport {
+
+    private final long flushed;
+    private final long dropped;
+    private final long persisted;
+    private final long lost;
+
+    /**
+     * Constructor.
+     *
+     * @param flushed the number of events that were delivered during shutdown.
+     * @param dropped the number of events that were not sent because they would have exceeded the data usage limit.
+     * @param persisted the number of events that were spooled to disk, to be sent when the agent next starts.
+     * @param lost the number of events that could neither be delivered nor spooled.
+     */
+    public DrainReport(long flushed, long dropped, long persisted, long lost) {
+        this.flushed = flushed;
+        this.dropped = dropped;
+        this.persisted = persisted;
+        this.lost = lost;
+    }
+
+    /**
+     * <p>Returns the number of events that were delivered during shutdown.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getFlushed() {
+        return this.flushed;
+    }
+
+    /**
+     * <p>Returns the number of events that were not sent because they would have exceeded the data usage
+     * limit.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * <p>Returns the number of events that were spooled to disk, to be sent when the agent next starts.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getPersisted() {
+        return this.persisted;
+    }
+
+    /**
+     * <p>Returns the number of events that could neither be delivered nor spooled.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getLost() {
+        return this.lost;
+    }
+
+    @NonNull @Override public String toString() {
+        return this.flushed + " events flushed, " + this.dropped + " dropped, " + this.persisted + " persisted, " + this.lost + " lost";
+    }
+
+}
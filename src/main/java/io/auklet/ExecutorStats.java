@@ -0,0 +1,229 @@
+package io.auklet;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>A point-in-time snapshot of the instrumentation of one of the agent's executors, with a breakdown
+ * by task type. Timers that run on the executor are instrumented along with its other tasks.</p>
+ *
+ * <p>The type of a task is the name of its class or, for anonymous classes, the name of the method or
+ * class in which it was declared.</p>
+ *
+ * <p>The <b>only</b> classes/methods in the Auklet agent Javadocs that are officially supported for end
+ * users are:</p>
+ *
+ * <ul>
+ *   <li>All {@code public static} methods in the {@link Auklet} class.</li>
+ *   <li>All {@code public} methods in the {@link Config} class.</li>
+ *   <li>The {@link AukletException} class.</li>
+ *   <li>The {@link DrainReport}, {@link ExecutorStats} and {@link LatencySnapshot} classes.</li>
+ * </ul>
+ *
+ * <p><b>Unless instructed to do so by Auklet support, do not use any classes/fields/methods other than
+ * those described above.</b></p>
+ */
+@Immutable
+public final class ExecutorStats {
+
+    private final int queueDepth;
+    private final int peakQueueDepth;
+    private final int activeCount;
+    private final long completedCount;
+    private final long rejectedCount;
+    private final int pendingTimerCount;
+    private final Map<String, TaskStats> taskStats;
+
+    /**
+     * Constructor.
+     *
+     * @param queueDepth the number of tasks that were queued in the executor.
+     * @param peakQueueDepth the largest number of tasks that have been queued in the executor at once.
+     * @param activeCount the number of tasks that were running.
+     * @param completedCount the number of task executions that have completed.
+     * @param rejectedCount the number of tasks that have been rejected because the queue was full.
+     * @param pendingTimerCount the number of timers that were waiting to be run on the executor.
+     * @param taskStats the instrumentation for each type of task. Never {@code null}.
+     */
+    public ExecutorStats(int queueDepth, int peakQueueDepth, int activeCount, long completedCount, long rejectedCount, int pendingTimerCount, @NonNull Map<String, TaskStats> taskStats) {
+        this.queueDepth = queueDepth;
+        this.peakQueueDepth = peakQueueDepth;
+        this.activeCount = activeCount;
+        this.completedCount = completedCount;
+        this.rejectedCount = rejectedCount;
+        this.pendingTimerCount = pendingTimerCount;
+        this.taskStats = Collections.unmodifiableMap(new TreeMap<>(taskStats));
+    }
+
+    /**
+     * <p>Returns the number of tasks that were queued in the executor, including scheduled tasks that are
+     * not yet due. Timers that are waiting in the agent's timing wheel are not queued in the executor until
+     * they expire; see {@link #getPendingTimerCount()}.</p>
+     *
+     * @return a non-negative number.
+     */
+    public int getQueueDepth() {
+        return this.queueDepth;
+    }
+
+    /**
+     * <p>Returns the largest number of tasks that have been queued in the executor at once.</p>
+     *
+     * @return a non-negative number.
+     */
+    public int getPeakQueueDepth() {
+        return this.peakQueueDepth;
+    }
+
+    /**
+     * <p>Returns the number of tasks that were running.</p>
+     *
+     * @return a non-negative number.
+     */
+    public int getActiveCount() {
+        return this.activeCount;
+    }
+
+    /**
+     * <p>Returns the number of task executions that have completed.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getCompletedCount() {
+        return this.completedCount;
+    }
+
+    /**
+     * <p>Returns the number of tasks that have been rejected because the queue was full.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount;
+    }
+
+    /**
+     * <p>Returns the number of timers that were waiting in the agent's timing wheel to be run on the executor.</p>
+     *
+     * @return a non-negative number.
+     */
+    public int getPendingTimerCount() {
+        return this.pendingTimerCount;
+    }
+
+    /**
+     * <p>Returns the instrumentation for each type of task that has been submitted to the executor.</p>
+     *
+     * @return never {@code null}. Keys are task types.
+     */
+    @NonNull public Map<String, TaskStats> getTaskStats() {
+        return this.taskStats;
+    }
+
+    /** <p>A point-in-time snapshot of the instrumentation of one type of task.</p> */
+    @Immutable
+    public static final class TaskStats {
+
+        private final LatencySnapshot queueTime;
+        private final LatencySnapshot runTime;
+        private final long failedCount;
+        private final long cancelledCount;
+        private final long cancelledSilentlyCount;
+        private final long rejectedCount;
+        private final int pendingTimerCount;
+
+        /**
+         * Constructor.
+         *
+         * @param queueTime how long tasks of this type waited in the queue after they were due. Never {@code null}.
+         * @param runTime how long tasks of this type took to run. Never {@code null}.
+         * @param failedCount the number of task executions of this type that threw an exception.
+         * @param cancelledCount the number of tasks of this type that were cancelled and whose cancellation was logged.
+         * @param cancelledSilentlyCount the number of tasks of this type that were cancelled without being logged.
+         * @param rejectedCount the number of tasks of this type that were rejected because the queue was full.
+         * @param pendingTimerCount the number of timers of this type that were waiting in a timing wheel.
+         */
+        public TaskStats(@NonNull LatencySnapshot queueTime, @NonNull LatencySnapshot runTime, long failedCount, long cancelledCount, long cancelledSilentlyCount, long rejectedCount, int pendingTimerCount) {
+            this.queueTime = queueTime;
+            this.runTime = runTime;
+            this.failedCount = failedCount;
+            this.cancelledCount = cancelledCount;
+            this.cancelledSilentlyCount = cancelledSilentlyCount;
+            this.rejectedCount = rejectedCount;
+            this.pendingTimerCount = pendingTimerCount;
+        }
+
+        /**
+         * <p>Returns the histogram of how long tasks of this type waited in the queue after they were due.</p>
+         *
+         * @return never {@code null}.
+         */
+        @NonNull public LatencySnapshot getQueueTime() {
+            return this.queueTime;
+        }
+
+        /**
+         * <p>Returns the histogram of how long tasks of this type took to run.</p>
+         *
+         * @return never {@code null}.
+         */
+        @NonNull public LatencySnapshot getRunTime() {
+            return this.runTime;
+        }
+
+        /**
+         * <p>Returns the number of task executions of this type that threw an exception.</p>
+         *
+         * @return a non-negative number.
+         */
+        public long getFailedCount() {
+            return this.failedCount;
+        }
+
+        /**
+         * <p>Returns the number of tasks of this type that were cancelled and whose cancellation was logged,
+         * or, for timers that were cancelled before they expired, would have been logged had they been
+         * queued in the executor.</p>
+         *
+         * @return a non-negative number.
+         */
+        public long getCancelledCount() {
+            return this.cancelledCount;
+        }
+
+        /**
+         * <p>Returns the number of tasks of this type that were cancelled without being logged, because
+         * the agent cancels them routinely or because cancellation logging was disabled.</p>
+         *
+         * @return a non-negative number.
+         */
+        public long getCancelledSilentlyCount() {
+            return this.cancelledSilentlyCount;
+        }
+
+        /**
+         * <p>Returns the number of tasks of this type that were rejected because the queue was full.</p>
+         *
+         * @return a non-negative number.
+         */
+        public long getRejectedCount() {
+            return this.rejectedCount;
+        }
+
+        /**
+         * <p>Returns the number of timers of this type that were waiting in the agent's timing wheel to be
+         * run on the executor.</p>
+         *
+         * @return a non-negative number.
+         */
+        public int getPendingTimerCount() {
+            return this.pendingTimerCount;
+        }
+
+    }
+
+}
@@ -0,0 +1,112 @@
+package io.auklet;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A point-in-time copy of a histogram of durations, with buckets whose bounds are successive powers of
+ * two microseconds.</p>
+ *
+ * <p>The <b>only</b> classes/methods in the Auklet agent Javadocs that are officially supported for end
+ * users are:</p>
+ *
+ * <ul>
+ *   <li>All {@code public static} methods in the {@link Auklet} class.</li>
+ *   <li>All {@code public} methods in the {@link Config} class.</li>
+ *   <li>The {@link AukletException} class.</li>
+ *   <li>The {@link DrainReport}, {@link ExecutorStats} and {@link LatencySnapshot} classes.</li>
+ * </ul>
+ *
+ * <p><b>Unless instructed to do so by Auklet support, do not use any classes/fields/methods other than
+ * those described above.</b></p>
+ */
+@Immutable
+public final class LatencySnapshot {
+
+    private final long[] buckets;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param buckets the number of recorded durations in each bucket, as described by
+     * {@link #getBucketCounts()}. Never {@code null}.
+     * @param count the number of recorded durations.
+     * @param totalNanos the sum of the recorded durations, in nanoseconds.
+     * @param maxNanos the longest recorded duration, in nanoseconds.
+     */
+    public LatencySnapshot(@NonNull long[] buckets, long count, long totalNanos, long maxNanos) {
+        this.buckets = buckets.clone();
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * <p>Returns the number of recorded durations.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * <p>Returns the mean recorded duration.</p>
+     *
+     * @param unit never {@code null}.
+     * @return zero if no durations have been recorded.
+     */
+    public long getMean(@NonNull TimeUnit unit) {
+        return this.count == 0 ? 0L : unit.convert(this.totalNanos / this.count, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * <p>Returns the longest recorded duration.</p>
+     *
+     * @param unit never {@code null}.
+     * @return zero if no durations have been recorded.
+     */
+    public long getMax(@NonNull TimeUnit unit) {
+        return unit.convert(this.maxNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * <p>Returns an upper bound for the given percentile of the recorded durations. The bound is the
+     * upper bound of the bucket that contains the percentile, capped at the longest recorded duration,
+     * and so is within a factor of two of the true value.</p>
+     *
+     * @param percentile a number between 0 and 100.
+     * @param unit never {@code null}.
+     * @return zero if no durations have been recorded.
+     */
+    public long getPercentile(double percentile, @NonNull TimeUnit unit) {
+        if (this.count == 0) return 0L;
+        long rank = (long) Math.ceil(this.count * Math.max(0d, Math.min(percentile, 100d)) / 100d);
+        long seen = 0;
+        for (int i = 0; i < this.buckets.length; i++) {
+            seen += this.buckets[i];
+            if (seen >= rank && seen > 0) {
+                long upperNanos = i == this.buckets.length - 1 ? this.maxNanos : TimeUnit.MICROSECONDS.toNanos(1L << i);
+                return unit.convert(Math.min(upperNanos, this.maxNanos), TimeUnit.NANOSECONDS);
+            }
+        }
+        return unit.convert(this.maxNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * <p>Returns the number of recorded durations in each bucket. Bucket 0 holds durations under 1
+     * microsecond, bucket {@code i} holds durations of at least 2<sup>i-1</sup> and less than
+     * 2<sup>i</sup> microseconds, and the last bucket also holds all longer durations.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public long[] getBucketCounts() {
+        return this.buckets.clone();
+    }
+
+}
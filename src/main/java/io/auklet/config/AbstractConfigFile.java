@@ -5,8 +5,14 @@ import io.auklet.Auklet;
 import io.auklet.AukletException;
 import io.auklet.core.HasAgent;
 import net.jcip.annotations.NotThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 
 /**
  * <p>Descendants of this class represent a configuration file located inside the Auklet agent's
@@ -18,6 +24,8 @@ import java.io.File;
 @NotThreadSafe
 public abstract class AbstractConfigFile extends HasAgent {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractConfigFile.class);
+
     protected File file;
 
     @Override public void start(@NonNull Auklet agent) throws AukletException {
@@ -32,4 +40,50 @@ public abstract class AbstractConfigFile extends HasAgent {
      */
     @NonNull protected abstract String getName();
 
+    /**
+     * <p>Writes the in-memory state of this config file to the given output, for inclusion in the
+     * agent's {@link ConfigSnapshot}.</p>
+     *
+     * <p>The default implementation writes nothing and returns {@code false}.</p>
+     *
+     * @param out never {@code null}.
+     * @return {@code true} if this config file supports snapshots, {@code false} otherwise.
+     * @throws IOException if the state cannot be written.
+     */
+    protected boolean writeSnapshot(@NonNull DataOutput out) throws IOException {
+        return false;
+    }
+
+    /**
+     * <p>Restores the in-memory state of this config file from the given input, which was produced
+     * by {@link #writeSnapshot(DataOutput)}.</p>
+     *
+     * <p>The default implementation reads nothing and returns {@code false}.</p>
+     *
+     * @param in never {@code null}.
+     * @return {@code true} if the state was restored, {@code false} otherwise.
+     * @throws IOException if the state cannot be read.
+     */
+    protected boolean readSnapshot(@NonNull DataInput in) throws IOException {
+        return false;
+    }
+
+    /**
+     * <p>Attempts to restore the in-memory state of this config file from the agent's warm-start snapshot.</p>
+     *
+     * @return {@code true} if the state was restored, {@code false} if the config file must be read as usual.
+     */
+    protected final boolean restoreFromSnapshot() {
+        try {
+            DataInputStream in = this.getAgent().getConfigSnapshot().getSection(this);
+            if (in == null) return false;
+            boolean restored = this.readSnapshot(in);
+            if (restored) LOGGER.debug("Restored config file '{}' from warm-start snapshot.", this.getName());
+            return restored;
+        } catch (AukletException | IOException e) {
+            LOGGER.debug("Could not restore config file '{}' from warm-start snapshot.", this.getName(), e);
+            return false;
+        }
+    }
+
 }
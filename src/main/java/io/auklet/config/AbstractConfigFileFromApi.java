@@ -2,21 +2,51 @@ package io.auklet.config;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.Auklet;
 import io.auklet.AukletException;
 import io.auklet.util.FileUtil;
+import io.auklet.util.JsonUtil;
+import io.auklet.util.Util;
+import mjson.Json;
 import net.jcip.annotations.NotThreadSafe;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 
 /**
  * <p>Base class of all Auklet agent config files that are sourced from the API.</p>
  *
  * <p>Type {@code T} represents the data type that is returned by the Auklet API, and is also what
  * is used to persist the config file to disk.</p>
+ *
+ * <p>Alongside each config file that was fetched with a GET request, this class persists the HTTP cache
+ * validators ({@code ETag} and {@code Last-Modified}) that the API returned with it, so that subclasses
+ * that refresh their config periodically can make conditional requests that cost only an HTTP 304
+ * response when the config has not changed. Config files that are only fetched when they are missing
+ * from disk gain nothing from this, and should not make conditional requests.</p>
  */
 @NotThreadSafe
 public abstract class AbstractConfigFileFromApi<T> extends AbstractConfigFile {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractConfigFileFromApi.class);
+    private static final String VALIDATORS_SUFFIX = ".validators";
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+
+    private File validatorsFile;
+    private Json pendingValidators = null;
+    private boolean notModified = false;
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        super.start(agent);
+        this.validatorsFile = new File(agent.getConfigDir(), this.getName() + VALIDATORS_SUFFIX);
+    }
+
     /**
      * <p>Loads the config for this object, either from disk or from the API. If the latter, this method
      * persists the API response to disk prior to returning.</p>
@@ -29,11 +59,32 @@ public abstract class AbstractConfigFileFromApi<T> extends AbstractConfigFile {
         T config = this.readFromDisk();
         if (config == null) {
             config = this.fetchFromApi();
-            this.writeToDisk(config);
+            this.saveToDisk(config);
         }
         return config;
     }
 
+    /**
+     * <p>Writes the config file to disk, followed by the cache validators that were returned by the API
+     * along with it.</p>
+     *
+     * @param contents never {@code null}.
+     * @throws AukletException if an error occurs while writing the config file.
+     */
+    protected final void saveToDisk(@NonNull T contents) throws AukletException {
+        this.writeToDisk(contents);
+        Json validators = this.pendingValidators;
+        this.pendingValidators = null;
+        try {
+            if (validators == null) FileUtil.deleteQuietly(this.validatorsFile);
+            else this.getAgent().getPersistence().write(this.validatorsFile, validators.toString().getBytes(Util.UTF_8), false);
+        } catch (AukletException | IOException e) {
+            // The validators are only an optimization, so do not fail here.
+            LOGGER.warn("Could not save cache validators for config file '{}'.", this.getName(), e);
+            FileUtil.deleteQuietly(this.validatorsFile);
+        }
+    }
+
     /**
      * <p>Returns the config file contents from disk.</p>
      *
@@ -72,4 +123,72 @@ public abstract class AbstractConfigFileFromApi<T> extends AbstractConfigFile {
         }
     }
 
+    /**
+     * <p>Adds {@code If-None-Match}/{@code If-Modified-Since} headers to the given request, if the config
+     * file exists on disk and cache validators were saved along with it.</p>
+     *
+     * @param request never {@code null}.
+     * @return {@code true} if the request was made conditional, {@code false} otherwise.
+     */
+    protected final boolean addConditionalHeaders(@NonNull Request.Builder request) {
+        this.notModified = false;
+        try {
+            if (this.file.length() == 0) return false;
+            byte[] bytes = FileUtil.read(this.validatorsFile);
+            if (bytes.length == 0) return false;
+            Json validators = JsonUtil.readJson(new String(bytes, Util.UTF_8));
+            boolean conditional = false;
+            if (validators.has(ETAG_KEY)) {
+                request.header("If-None-Match", validators.at(ETAG_KEY).asString());
+                conditional = true;
+            }
+            if (validators.has(LAST_MODIFIED_KEY)) {
+                request.header("If-Modified-Since", validators.at(LAST_MODIFIED_KEY).asString());
+                conditional = true;
+            }
+            return conditional;
+        } catch (IOException | SecurityException | IllegalArgumentException | UnsupportedOperationException e) {
+            LOGGER.warn("Could not read cache validators for config file '{}'.", this.getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * <p>Inspects the response to a request made by this object. If the response indicates that the
+     * config has not changed, this object remembers that fact (see {@link #wasNotModified()}). If the
+     * response to a GET request was successful, its cache validators are retained until the next call to
+     * {@link #saveToDisk(Object)}. Validators are not retained for other methods, because they do not
+     * describe a resource that can be fetched conditionally.</p>
+     *
+     * @param response never {@code null}.
+     * @return {@code true} if the response is an HTTP 304, {@code false} otherwise.
+     */
+    protected final boolean checkValidators(@NonNull Response response) {
+        if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            this.notModified = true;
+            return true;
+        }
+        this.notModified = false;
+        this.pendingValidators = null;
+        if (response.isSuccessful() && "GET".equals(response.request().method())) {
+            Json validators = Json.object();
+            String etag = response.header("ETag");
+            String lastModified = response.header("Last-Modified");
+            if (!Util.isNullOrEmpty(etag)) validators.set(ETAG_KEY, etag);
+            if (!Util.isNullOrEmpty(lastModified)) validators.set(LAST_MODIFIED_KEY, lastModified);
+            this.pendingValidators = validators.asJsonMap().isEmpty() ? null : validators;
+        }
+        return false;
+    }
+
+    /**
+     * <p>Returns whether or not the most recent fetch from the API was answered with HTTP 304 (not
+     * modified), in which case the config returned by that fetch is the one already on disk.</p>
+     *
+     * @return {@code true} if the config on disk is still current, {@code false} otherwise.
+     */
+    protected final boolean wasNotModified() {
+        return this.notModified;
+    }
+
 }
@@ -2,13 +2,14 @@ package io.auklet.config;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.auklet.AukletException;
-import io.auklet.util.FileUtil;
 import io.auklet.util.JsonUtil;
 import io.auklet.util.Util;
 import mjson.Json;
 import net.jcip.annotations.NotThreadSafe;
 import okhttp3.Request;
 import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 
@@ -18,6 +19,8 @@ import java.io.IOException;
 @NotThreadSafe
 public abstract class AbstractJsonConfigFileFromApi extends AbstractConfigFileFromApi<Json> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractJsonConfigFileFromApi.class);
+
     /**
      * <p>Submits a request to the Auklet API and returns the response as a JSON object.</p>
      *
@@ -32,21 +35,70 @@ public abstract class AbstractJsonConfigFileFromApi extends AbstractConfigFileFr
         if (Util.isNullOrEmpty(path)) throw new AukletException("JSON URL path is null or empty.");
         request.header("Content-Type", "application/json; charset=utf-8");
         try (Response response = this.getAgent().doApiRequest(request, path)) {
-            String responseString = response.body().string();
-            if (response.isSuccessful()) {
-                return JsonUtil.validateJson(JsonUtil.readJson(responseString), this.getClass().getName());
-            } else {
-                throw new AukletException(String.format("Error while getting Auklet JSON config file '%s': %s: %s", this.getName(), response.message(), responseString));
+            return this.parseResponse(response);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new AukletException(String.format("Error while getting Auklet JSON config file '%s'.", this.getName()), e);
+        }
+    }
+
+    /**
+     * <p>Submits a GET request to the Auklet API and returns the response as a JSON object, keeping the
+     * response's cache validators so that they are saved along with the config. If validators were saved
+     * along with the config on disk, the request is conditional; if the API reports that the config has
+     * not changed, the config is read from disk instead, and {@link #wasNotModified()} returns
+     * {@code true}.</p>
+     *
+     * @param path the URL path - that is, the entire URL minus the protocol and host/domain.
+     * Must not be {@code null} or empty.
+     * @return never {@code null}.
+     * @throws AukletException if the request fails or has an error.
+     */
+    @NonNull protected final Json makeConditionalJsonRequest(@NonNull String path) throws AukletException {
+        if (Util.isNullOrEmpty(path)) throw new AukletException("JSON URL path is null or empty.");
+        try {
+            Request.Builder request = new Request.Builder().get();
+            if (this.addConditionalHeaders(request)) {
+                request.header("Content-Type", "application/json; charset=utf-8");
+                try (Response response = this.getAgent().doApiRequest(request, path)) {
+                    if (!this.checkValidators(response)) return this.parseResponse(response);
+                }
+                Json fromDisk = this.readFromDisk();
+                if (fromDisk != null) return fromDisk;
+                LOGGER.warn("JSON config file '{}' is unchanged on the API but could not be read from disk; re-downloading.", this.getName());
+                request = new Request.Builder().get();
+            }
+            request.header("Content-Type", "application/json; charset=utf-8");
+            try (Response response = this.getAgent().doApiRequest(request, path)) {
+                this.checkValidators(response);
+                return this.parseResponse(response);
             }
         } catch (IOException | IllegalArgumentException e) {
             throw new AukletException(String.format("Error while getting Auklet JSON config file '%s'.", this.getName()), e);
         }
     }
 
+    /**
+     * <p>Returns the body of the given API response as a JSON object.</p>
+     *
+     * @param response never {@code null}.
+     * @return never {@code null}.
+     * @throws AukletException if the response was not successful.
+     * @throws IOException if the response body cannot be read.
+     * @throws IllegalArgumentException if the response body is not valid JSON.
+     */
+    @NonNull private Json parseResponse(@NonNull Response response) throws AukletException, IOException {
+        String responseString = response.body().string();
+        if (response.isSuccessful()) {
+            return JsonUtil.validateJson(JsonUtil.readJson(responseString), this.getClass().getName());
+        } else {
+            throw new AukletException(String.format("Error while getting Auklet JSON config file '%s': %s: %s", this.getName(), response.message(), responseString));
+        }
+    }
+
     @Override protected void writeToDisk(@NonNull Json contents) throws AukletException {
         if (contents == null) throw new AukletException("Input is null.");
         try {
-            FileUtil.writeUtf8(this.file, contents.toString());
+            this.getAgent().getPersistence().write(this.file, contents.toString().getBytes(Util.UTF_8), true);
         } catch (IOException e) {
             throw new AukletException("Could not save JSON file to disk.", e);
         }
@@ -10,6 +10,8 @@ import okhttp3.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 /**
@@ -25,6 +27,7 @@ public final class AukletIoBrokers extends AbstractJsonConfigFileFromApi {
     @Override public void start(@NonNull Auklet agent) throws AukletException {
         LOGGER.debug("Loading auklet.io MQTT broker configuration.");
         super.start(agent);
+        if (this.restoreFromSnapshot()) return;
         Json config = this.loadConfig();
         this.url = "ssl://" + config.at("brokers").asString() + ":" + config.at("port").asString();
     }
@@ -40,6 +43,17 @@ public final class AukletIoBrokers extends AbstractJsonConfigFileFromApi {
      */
     @NonNull public String getUrl() { return this.url; }
 
+    @Override protected boolean writeSnapshot(@NonNull DataOutput out) throws IOException {
+        if (this.url == null) return false;
+        out.writeUTF(this.url);
+        return true;
+    }
+
+    @Override protected boolean readSnapshot(@NonNull DataInput in) throws IOException {
+        this.url = in.readUTF();
+        return true;
+    }
+
     @Override protected Json readFromDisk() {
         try {
             String fromDisk = this.getStringFromDisk();
@@ -3,7 +3,6 @@ package io.auklet.config;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
-import io.auklet.util.FileUtil;
 import io.auklet.util.Util;
 import net.jcip.annotations.NotThreadSafe;
 import okhttp3.Request;
@@ -12,6 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
@@ -29,6 +29,7 @@ public final class AukletIoCert extends AbstractConfigFileFromApi<String> {
     @Override public void start(@NonNull Auklet agent) throws AukletException {
         LOGGER.debug("Loading auklet.io CA certificate.");
         super.start(agent);
+        if (this.restoreFromSnapshot()) return;
         String certString = this.loadConfig();
         // Load the cert file from disk and convert it to an X509 object.
         try (BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(certString.getBytes("UTF-8")))) {
@@ -50,6 +51,31 @@ public final class AukletIoCert extends AbstractConfigFileFromApi<String> {
      */
     @NonNull public X509Certificate getCert() { return this.cert; }
 
+    @Override protected boolean writeSnapshot(@NonNull DataOutput out) throws IOException {
+        if (this.cert == null) return false;
+        try {
+            // Store the cert in DER form, which is cheaper to parse than PEM.
+            byte[] encoded = this.cert.getEncoded();
+            out.writeInt(encoded.length);
+            out.write(encoded);
+            return true;
+        } catch (CertificateEncodingException e) {
+            throw new IOException("Could not encode MQTT CA cert.", e);
+        }
+    }
+
+    @Override protected boolean readSnapshot(@NonNull DataInput in) throws IOException {
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        try {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            this.cert = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(encoded));
+            return true;
+        } catch (CertificateException e) {
+            throw new IOException("Could not decode MQTT CA cert.", e);
+        }
+    }
+
     @Override protected String readFromDisk() {
         try {
             return Util.orElseNullEmpty(this.getStringFromDisk(), null);
@@ -78,7 +104,7 @@ public final class AukletIoCert extends AbstractConfigFileFromApi<String> {
     @Override protected void writeToDisk(@NonNull String contents) throws AukletException {
         if (Util.isNullOrEmpty(contents)) throw new AukletException("Input is null or empty.");
         try {
-            FileUtil.writeUtf8(this.file, contents);
+            this.getAgent().getPersistence().write(this.file, contents.getBytes(Util.UTF_8), true);
         } catch (IOException e) {
             throw new AukletException("Could not save MQTT CA cert to disk.", e);
         }
@@ -0,0 +1,185 @@
+package io.auklet.config;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.AukletException;
+import io.auklet.util.FileUtil;
+import net.jcip.annotations.NotThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A binary snapshot of the in-memory state of the agent's config files, which allows a warm start
+ * to restore all config without any JSON parsing or schema validation.</p>
+ *
+ * <p>The snapshot consists of one section per config file. Each section records the length and CRC32 of
+ * the contents of the config file from which it was taken, and is ignored if the config file has since
+ * changed; in that case, the config file itself is read as usual. Modification times are not compared,
+ * because their resolution can be too coarse to tell two writes apart. The snapshot is versioned,
+ * checksummed and, because it contains device credentials, encrypted in the same way as the
+ * {@link DeviceAuth} file. Any snapshot that cannot be read or verified is ignored in its entirety.</p>
+ */
+@NotThreadSafe
+public final class ConfigSnapshot {
+
+    public static final String FILENAME = "snapshot";
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigSnapshot.class);
+    private static final int MAGIC = 0x41554B53; // "AUKS"
+    private static final short VERSION = 2;
+    private static final int CHECKSUM_SIZE = 8;
+
+    private final Map<String, Section> sections = new LinkedHashMap<>();
+
+    /**
+     * <p>Reads the snapshot from the given file.</p>
+     *
+     * @param file the snapshot file. Never {@code null}.
+     * @param appId the app ID, from which the encryption key is derived. Never {@code null}.
+     * @return never {@code null}. If the snapshot does not exist or cannot be read or verified, the
+     * returned snapshot is empty.
+     */
+    @NonNull public static ConfigSnapshot read(@NonNull File file, @NonNull String appId) {
+        ConfigSnapshot snapshot = new ConfigSnapshot();
+        try {
+            byte[] encrypted = FileUtil.read(file);
+            if (encrypted.length == 0) return snapshot;
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.DECRYPT_MODE, DeviceAuth.createKey(appId));
+            byte[] bytes = cipher.doFinal(encrypted);
+            if (bytes.length < CHECKSUM_SIZE) throw new IOException("Snapshot is truncated.");
+            int dataLength = bytes.length - CHECKSUM_SIZE;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, dataLength);
+            long checksum = new DataInputStream(new ByteArrayInputStream(bytes, dataLength, CHECKSUM_SIZE)).readLong();
+            if (checksum != crc.getValue()) throw new IOException("Snapshot checksum mismatch.");
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, dataLength));
+            if (in.readInt() != MAGIC) throw new IOException("Not a snapshot file.");
+            short version = in.readShort();
+            if (version != VERSION) throw new IOException("Unsupported snapshot version: " + version);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long length = in.readLong();
+                long contentsChecksum = in.readLong();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                snapshot.sections.put(name, new Section(length, contentsChecksum, payload));
+            }
+            LOGGER.debug("Loaded warm-start snapshot with {} sections.", count);
+            return snapshot;
+        } catch (IOException | GeneralSecurityException | SecurityException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            LOGGER.debug("Ignoring warm-start snapshot.", e);
+            return new ConfigSnapshot();
+        }
+    }
+
+    /**
+     * <p>Returns the section of this snapshot that was taken from the given config file, provided that
+     * the config file has not changed since the snapshot was taken.</p>
+     *
+     * @param configFile never {@code null}.
+     * @return {@code null} if there is no such section, or if the section is stale.
+     */
+    @CheckForNull DataInputStream getSection(@NonNull AbstractConfigFile configFile) {
+        Section section = this.sections.get(configFile.getName());
+        if (section == null) return null;
+        try {
+            File source = configFile.file;
+            // The length is compared first, so that most changed config files need not be read.
+            if (source.length() != section.length) return null;
+            if (checksum(FileUtil.read(source)) != section.checksum) return null;
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(section.payload));
+    }
+
+    /**
+     * <p>Adds a section for the given config file to this snapshot, if the config file supports snapshots
+     * and exists on disk.</p>
+     *
+     * @param configFile never {@code null}.
+     */
+    public void add(@NonNull AbstractConfigFile configFile) {
+        try {
+            File source = configFile.file;
+            if (source == null) return;
+            byte[] contents = FileUtil.read(source);
+            if (contents.length == 0) return;
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            if (!configFile.writeSnapshot(out)) return;
+            out.flush();
+            this.sections.put(configFile.getName(), new Section(contents.length, checksum(contents), payload.toByteArray()));
+        } catch (IOException | SecurityException e) {
+            LOGGER.warn("Could not add config file '{}' to warm-start snapshot.", configFile.getName(), e);
+        }
+    }
+
+    /**
+     * <p>Serializes and encrypts this snapshot.</p>
+     *
+     * @param appId the app ID, from which the encryption key is derived. Never {@code null}.
+     * @return never {@code null}.
+     * @throws AukletException if the snapshot cannot be serialized or encrypted.
+     */
+    @NonNull public byte[] toBytes(@NonNull String appId) throws AukletException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(this.sections.size());
+            for (Map.Entry<String, Section> entry : this.sections.entrySet()) {
+                Section section = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(section.length);
+                out.writeLong(section.checksum);
+                out.writeInt(section.payload.length);
+                out.write(section.payload);
+            }
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.ENCRYPT_MODE, DeviceAuth.createKey(appId));
+            return cipher.doFinal(bytes.toByteArray());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new AukletException("Could not save warm-start snapshot.", e);
+        }
+    }
+
+    /**
+     * <p>Returns the CRC32 of the given config file contents.</p>
+     *
+     * @param contents never {@code null}.
+     * @return the checksum.
+     */
+    private static long checksum(@NonNull byte[] contents) {
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        return crc.getValue();
+    }
+
+    /** <p>A snapshot of a single config file.</p> */
+    private static final class Section {
+        private final long length;
+        private final long checksum;
+        private final byte[] payload;
+        private Section(long length, long checksum, @NonNull byte[] payload) {
+            this.length = length;
+            this.checksum = checksum;
+            this.payload = payload;
+        }
+    }
+
+}
@@ -7,10 +7,11 @@ import io.auklet.core.DataUsageConfig;
 import io.auklet.util.JsonUtil;
 import mjson.Json;
 import net.jcip.annotations.NotThreadSafe;
-import okhttp3.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 /**
@@ -29,6 +30,7 @@ public final class DataUsageLimit extends AbstractJsonConfigFileFromApi {
     @Override public void start(@NonNull Auklet agent) throws AukletException {
         LOGGER.debug("Loading data usage limits file.");
         super.start(agent);
+        if (this.restoreFromSnapshot()) return;
         Json config = this.loadConfig();
         this.updateConfig(config);
     }
@@ -46,13 +48,31 @@ public final class DataUsageLimit extends AbstractJsonConfigFileFromApi {
     public void refresh() {
         try {
             Json config = this.fetchFromApi();
-            this.writeToDisk(config);
+            if (this.wasNotModified()) {
+                LOGGER.debug("Data usage limit config is unchanged.");
+                return;
+            }
+            this.saveToDisk(config);
             this.updateConfig(config);
         } catch (AukletException e) {
             LOGGER.warn("Could not refresh data usage limit config from API.", e);
         }
     }
 
+    @Override protected boolean writeSnapshot(@NonNull DataOutput out) throws IOException {
+        if (this.usageConfig == null) return false;
+        out.writeLong(this.usageConfig.getEmissionPeriod());
+        out.writeLong(this.usageConfig.getStorageLimit());
+        out.writeLong(this.usageConfig.getCellularDataLimit());
+        out.writeInt(this.usageConfig.getCellularPlanDate());
+        return true;
+    }
+
+    @Override protected boolean readSnapshot(@NonNull DataInput in) throws IOException {
+        this.usageConfig = new DataUsageConfig(in.readLong(), in.readLong(), in.readLong(), in.readInt());
+        return true;
+    }
+
     @Override protected Json readFromDisk() {
         try {
             String fromDisk = this.getStringFromDisk();
@@ -66,7 +86,7 @@ public final class DataUsageLimit extends AbstractJsonConfigFileFromApi {
 
     @Override protected Json fetchFromApi() throws AukletException {
         String appConfigRequest = String.format("/private/devices/%s/app_config/", this.getAgent().getAppId());
-        return this.makeJsonRequest(new Request.Builder().get(), appConfigRequest);
+        return this.makeConditionalJsonRequest(appConfigRequest);
     }
 
     /**
@@ -3,22 +3,24 @@ package io.auklet.config;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
-import io.auklet.core.AukletDaemonExecutor;
 import io.auklet.util.FileUtil;
 import io.auklet.util.JsonUtil;
+import io.auklet.util.Util;
 import mjson.Json;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
  * <p>This config file persists between agent restarts the amount of data that has been sent by
- * the Auklet agent to the sink, pursuant to the defined {@link DataUsageLimit}.</p>
+ * the Auklet agent to the sink, pursuant to the defined {@link DataUsageLimit}, along with the
+ * time at which the usage was last reset.</p>
  */
 @ThreadSafe
 public final class DataUsageTracker extends AbstractConfigFile {
@@ -26,23 +28,27 @@ public final class DataUsageTracker extends AbstractConfigFile {
     private static final Logger LOGGER = LoggerFactory.getLogger(DataUsageTracker.class);
     private static final String USAGE_FILE = "usage";
     private static final String USAGE_KEY = "usage";
+    private static final String LAST_RESET_KEY = "lastReset";
 
     private final Object lock = new Object();
-    @GuardedBy("lock") private ScheduledFuture<?> currentWriteTask;
     @GuardedBy("lock") private long bytesSent = 0L;
+    @GuardedBy("lock") private long lastReset = 0L;
 
     @Override public void start(@NonNull Auklet agent) throws AukletException {
         LOGGER.debug("Loading data usage tracker file.");
         super.start(agent);
+        if (this.restoreFromSnapshot()) return;
         try {
             // If the file doesn't exist, create it.
-            if (!this.file.exists()) this.writeUsageToDisk(0L);
+            FileUtil.restoreBackup(this.file);
+            if (!this.file.exists()) this.getAgent().getPersistence().write(this.file, toBytes(0L, 0L), false);
             // Read from disk.
             byte[] usageBytes = FileUtil.read(this.file);
             String usageString = new String(usageBytes, "UTF-8");
             // Parse the JSON and set relevant fields.
             Json usageJson = JsonUtil.validateJson(JsonUtil.readJson(usageString), this.getClass().getName());
             this.bytesSent = usageJson.at(USAGE_KEY, 0L).asLong();
+            this.lastReset = usageJson.at(LAST_RESET_KEY, 0L).asLong();
         } catch (IOException | SecurityException | IllegalArgumentException e) {
             LOGGER.warn("Could not read data usage tracker file from disk, assuming zero usage.", e);
         }
@@ -61,6 +67,18 @@ public final class DataUsageTracker extends AbstractConfigFile {
         }
     }
 
+    /**
+     * <p>Returns the time at which the data usage was last reset.</p>
+     *
+     * @return the reset time in milliseconds since the epoch, or zero if the usage has never been
+     * reset or if the reset time was not recorded.
+     */
+    public long getLastReset() {
+        synchronized (lock) {
+            return this.lastReset;
+        }
+    }
+
     /**
      * <p>Adds the input number of bytes to the current amount of bytes sent.</p>
      *
@@ -74,54 +92,62 @@ public final class DataUsageTracker extends AbstractConfigFile {
         }
     }
 
-    /** <p>Resets the data usage to zero.</p> */
-    public void reset() {
+    /**
+     * <p>Resets the data usage to zero.</p>
+     *
+     * @param resetTime the time of the reset, in milliseconds since the epoch.
+     */
+    public void reset(long resetTime) {
         synchronized (lock) {
             this.bytesSent = 0L;
+            this.lastReset = resetTime;
             this.saveUsage(this.bytesSent);
         }
     }
 
+    @Override protected boolean writeSnapshot(@NonNull DataOutput out) throws IOException {
+        synchronized (lock) {
+            out.writeLong(this.bytesSent);
+            out.writeLong(this.lastReset);
+            return true;
+        }
+    }
+
+    @Override protected boolean readSnapshot(@NonNull DataInput in) throws IOException {
+        synchronized (lock) {
+            this.bytesSent = in.readLong();
+            this.lastReset = in.readLong();
+            return true;
+        }
+    }
+
     /**
-     * <p>Asynchronously saves the given usage value to disk.</p>
+     * <p>Asynchronously saves the given usage value, and the current reset time, to disk. Saves that occur
+     * in quick succession are coalesced into a single write.</p>
      *
      * @param givenUsage the usage value to write.
      */
-    @GuardedBy("lock") private void saveUsage(final long givenUsage) {
+    @GuardedBy("lock") private void saveUsage(long givenUsage) {
         try {
-            // If there is already a pending write task, cancel it.
-            if (this.currentWriteTask != null) currentWriteTask.cancel(false);
-            // Queue the new write task.
-            this.currentWriteTask = this.getAgent().scheduleOneShotTask(new AukletDaemonExecutor.CancelSilentlyRunnable() {
-                @Override
-                public void run() {
-                    // This task is no longer pending, so clear its status.
-                    synchronized (lock) {
-                        currentWriteTask = null;
-                    }
-                    try {
-                        writeUsageToDisk(givenUsage);
-                    } catch (IOException | SecurityException e) {
-                        LOGGER.warn("Could not save data usage to disk.", e);
-                    }
-                }
-            }, 5, TimeUnit.SECONDS); // 5-second cooldown.
-        } catch (AukletException e) {
+            this.getAgent().getPersistence().writeLater(this.file, toBytes(givenUsage, this.lastReset), 5, TimeUnit.SECONDS);
+        } catch (AukletException | IOException e) {
             LOGGER.warn("Could not queue data usage save task.", e);
         }
     }
 
     /**
-     * <p>Write the usage value to disk.</p>
+     * <p>Serializes the usage value and reset time.</p>
      *
      * @param usage the current usage value.
-     * @throws IOException if an error occurs while writing the file.
-     * @throws SecurityException if an error occurs while writing the file.
+     * @param resetTime the time of the last reset.
+     * @return never {@code null}.
+     * @throws IOException if the value cannot be encoded.
      */
-    @GuardedBy("lock") private void writeUsageToDisk(long usage) throws IOException {
+    @NonNull private static byte[] toBytes(long usage, long resetTime) throws IOException {
         Json usageJson = Json.object();
         usageJson.set(USAGE_KEY, usage);
-        FileUtil.writeUtf8(this.file, usageJson.toString());
+        usageJson.set(LAST_RESET_KEY, resetTime);
+        return usageJson.toString().getBytes(Util.UTF_8);
     }
 
 }
@@ -18,6 +18,8 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -51,7 +53,8 @@ public final class DeviceAuth extends AbstractJsonConfigFileFromApi {
         }
         // MQTT credentials are derived from the app ID, so use that as the encryption key.
         // This way, if the app ID changes, we will obtain new credentials.
-        this.aesKey = new SecretKeySpec(agent.getAppId().substring(0,16).getBytes(), "AES");
+        this.aesKey = createKey(agent.getAppId());
+        if (this.restoreFromSnapshot()) return;
         // Read/parse the config.
         Json config = this.loadConfig();
         this.organizationId = config.at("organization").asString();
@@ -64,6 +67,16 @@ public final class DeviceAuth extends AbstractJsonConfigFileFromApi {
         return FILENAME;
     }
 
+    /**
+     * <p>Returns the AES key used to encrypt files that contain device credentials.</p>
+     *
+     * @param appId the app ID. Never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull static Key createKey(@NonNull String appId) {
+        return new SecretKeySpec(appId.substring(0,16).getBytes(), "AES");
+    }
+
     /**
      * <p>Returns the organization ID for this device.</p>
      *
@@ -109,6 +122,23 @@ public final class DeviceAuth extends AbstractJsonConfigFileFromApi {
         return "java/events/" + this.getOrganizationId() + "/" + this.getClientUsername();
     }
 
+    @Override protected boolean writeSnapshot(@NonNull DataOutput out) throws IOException {
+        if (this.organizationId == null) return false;
+        out.writeUTF(this.organizationId);
+        out.writeUTF(this.clientId);
+        out.writeUTF(this.clientUsername);
+        out.writeUTF(this.clientPassword);
+        return true;
+    }
+
+    @Override protected boolean readSnapshot(@NonNull DataInput in) throws IOException {
+        this.organizationId = in.readUTF();
+        this.clientId = in.readUTF();
+        this.clientUsername = in.readUTF();
+        this.clientPassword = in.readUTF();
+        return true;
+    }
+
     @Override protected Json readFromDisk() {
         try {
             // Read and decrypt the device auth file from disk.
@@ -139,7 +169,7 @@ public final class DeviceAuth extends AbstractJsonConfigFileFromApi {
             // Encrypt and save the JSON string to disk.
             this.aesCipher.init(Cipher.ENCRYPT_MODE, this.aesKey);
             byte[] encrypted = this.aesCipher.doFinal(contents.toString().getBytes("UTF-8"));
-            FileUtil.write(this.file, encrypted);
+            this.getAgent().getPersistence().write(this.file, encrypted, true);
         } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | IOException e) {
             throw new AukletException("Could not encrypt/save device data to disk.", e);
         }
@@ -0,0 +1,218 @@
+package io.auklet.config;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.Auklet;
+import io.auklet.AukletException;
+import io.auklet.util.FileUtil;
+import io.auklet.util.JsonUtil;
+import io.auklet.util.Util;
+import mjson.Json;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>This config file caches the identity of the host on which the agent is running (the MAC address
+ * hash and the public IP address), so that the agent does not need to determine these values every time
+ * it starts. Cached values are used immediately and are refreshed in the background once they expire.</p>
+ */
+@ThreadSafe
+public final class HostIdentity extends AbstractConfigFile {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HostIdentity.class);
+    private static final String MAC_HASH_KEY = "macHash";
+    private static final String MAC_HASH_TIME_KEY = "macHashTime";
+    private static final String IP_ADDRESS_KEY = "ipAddress";
+    private static final String IP_ADDRESS_TIME_KEY = "ipAddressTime";
+    private static final long MAC_HASH_TTL = TimeUnit.DAYS.toMillis(1);
+    private static final long IP_ADDRESS_TTL = TimeUnit.HOURS.toMillis(1);
+    // Values that will expire within this window are refreshed early, to absorb scheduling jitter.
+    private static final long TTL_TOLERANCE = TimeUnit.MINUTES.toMillis(1);
+
+    private final Object lock = new Object();
+    @GuardedBy("lock") private String macHash = "";
+    @GuardedBy("lock") private long macHashTime = 0L;
+    @GuardedBy("lock") private String ipAddress = "";
+    @GuardedBy("lock") private long ipAddressTime = 0L;
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        LOGGER.debug("Loading host identity file.");
+        super.start(agent);
+        synchronized (this.lock) {
+            if (!this.restoreFromSnapshot()) this.readFromDisk();
+            // The MAC address hash is needed to register the device, so it cannot wait.
+            if (this.macHash.isEmpty()) {
+                this.macHash = Util.getMacAddressHash();
+                this.macHashTime = System.currentTimeMillis();
+                this.writeToDisk();
+            }
+        }
+        agent.scheduleRepeatingTask(this.createRefreshTask(), this.getTimeUntilRefresh(), IP_ADDRESS_TTL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override public String getName() { return "identity"; }
+
+    /**
+     * <p>Returns the MAC address hash of this device.</p>
+     *
+     * @return never {@code null}, but may be empty if the MAC address hash could not be determined.
+     */
+    @NonNull public String getMacHash() {
+        synchronized (this.lock) {
+            return this.macHash;
+        }
+    }
+
+    /**
+     * <p>Returns the public IP address of this device.</p>
+     *
+     * @return never {@code null}, but empty if the IP address has not yet been determined or could
+     * not be determined.
+     */
+    @NonNull public String getIpAddress() {
+        synchronized (this.lock) {
+            return this.ipAddress;
+        }
+    }
+
+    /** <p>Refreshes any identity values that have expired, and saves them to disk.</p> */
+    public void refresh() {
+        long now = System.currentTimeMillis();
+        boolean refreshMacHash;
+        boolean refreshIpAddress;
+        synchronized (this.lock) {
+            refreshMacHash = isExpired(this.macHashTime, MAC_HASH_TTL, now);
+            refreshIpAddress = isExpired(this.ipAddressTime, IP_ADDRESS_TTL, now);
+        }
+        if (!refreshMacHash && !refreshIpAddress) return;
+        String newMacHash = refreshMacHash ? Util.getMacAddressHash() : "";
+        String newIpAddress = refreshIpAddress ? this.lookupIpAddress() : "";
+        synchronized (this.lock) {
+            if (!newMacHash.isEmpty()) {
+                if (!newMacHash.equals(this.macHash)) LOGGER.info("MAC address hash has changed.");
+                this.macHash = newMacHash;
+                this.macHashTime = now;
+            }
+            if (!newIpAddress.isEmpty()) {
+                if (!newIpAddress.equals(this.ipAddress)) LOGGER.debug("Public IP address is now {}", newIpAddress);
+                this.ipAddress = newIpAddress;
+                this.ipAddressTime = now;
+            }
+            this.writeToDisk();
+        }
+    }
+
+    /**
+     * <p>Returns the amount of time until the next identity value expires.</p>
+     *
+     * @return a non-negative number of milliseconds.
+     */
+    private long getTimeUntilRefresh() {
+        long now = System.currentTimeMillis();
+        synchronized (this.lock) {
+            long macHashExpiry = this.macHashTime + MAC_HASH_TTL - TTL_TOLERANCE;
+            long ipAddressExpiry = this.ipAddressTime + IP_ADDRESS_TTL - TTL_TOLERANCE;
+            return Math.max(0L, Math.min(macHashExpiry, ipAddressExpiry) - now);
+        }
+    }
+
+    /**
+     * <p>Creates the periodic task that refreshes expired identity values.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private Runnable createRefreshTask() {
+        return new Runnable() {
+            @Override public void run() {
+                refresh();
+            }
+        };
+    }
+
+    /**
+     * <p>Looks up the public IP address of this device.</p>
+     *
+     * @return never {@code null}, but empty if the lookup fails.
+     */
+    @NonNull private String lookupIpAddress() {
+        LOGGER.debug("Getting public IP address.");
+        try (Response response = this.getAgent().doRequest(new Request.Builder().url("https://checkip.amazonaws.com"))) {
+            String responseString = response.body().string().trim();
+            if (response.isSuccessful()) return responseString;
+            LOGGER.warn("Could not get public IP address: {}", responseString);
+        } catch (AukletException | IOException e) {
+            LOGGER.warn("Could not get public IP address.", e);
+        }
+        return "";
+    }
+
+    @Override protected boolean writeSnapshot(@NonNull DataOutput out) throws IOException {
+        synchronized (this.lock) {
+            out.writeUTF(this.macHash);
+            out.writeLong(this.macHashTime);
+            out.writeUTF(this.ipAddress);
+            out.writeLong(this.ipAddressTime);
+            return true;
+        }
+    }
+
+    @Override protected boolean readSnapshot(@NonNull DataInput in) throws IOException {
+        synchronized (this.lock) {
+            this.macHash = in.readUTF();
+            this.macHashTime = in.readLong();
+            this.ipAddress = in.readUTF();
+            this.ipAddressTime = in.readLong();
+            return true;
+        }
+    }
+
+    /** <p>Reads the cached identity values from disk, if the file exists.</p> */
+    @GuardedBy("lock") private void readFromDisk() {
+        try {
+            byte[] bytes = FileUtil.read(this.file);
+            if (bytes.length == 0) return;
+            Json identity = JsonUtil.validateJson(JsonUtil.readJson(new String(bytes, Util.UTF_8)), this.getClass().getName());
+            this.macHash = identity.at(MAC_HASH_KEY).asString();
+            this.macHashTime = identity.at(MAC_HASH_TIME_KEY).asLong();
+            this.ipAddress = identity.at(IP_ADDRESS_KEY).asString();
+            this.ipAddressTime = identity.at(IP_ADDRESS_TIME_KEY).asLong();
+        } catch (AukletException | IOException | SecurityException | IllegalArgumentException e) {
+            LOGGER.warn("Could not read host identity file from disk, will recalculate.", e);
+        }
+    }
+
+    /** <p>Writes the identity values to disk.</p> */
+    @GuardedBy("lock") private void writeToDisk() {
+        Json identity = Json.object()
+                .set(MAC_HASH_KEY, this.macHash)
+                .set(MAC_HASH_TIME_KEY, this.macHashTime)
+                .set(IP_ADDRESS_KEY, this.ipAddress)
+                .set(IP_ADDRESS_TIME_KEY, this.ipAddressTime);
+        try {
+            this.getAgent().getPersistence().write(this.file, identity.toString().getBytes(Util.UTF_8), false);
+        } catch (AukletException | IOException e) {
+            LOGGER.warn("Could not save host identity file to disk.", e);
+        }
+    }
+
+    /**
+     * <p>Determines whether or not a value obtained at the given time has expired.</p>
+     *
+     * @param time the time at which the value was obtained.
+     * @param ttl how long the value remains valid.
+     * @param now the current time.
+     * @return {@code true} if the value has expired or will expire shortly.
+     */
+    private static boolean isExpired(long time, long ttl, long now) {
+        return now - time >= ttl - TTL_TOLERANCE;
+    }
+
+}
@@ -0,0 +1,207 @@
+package io.auklet.config;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.Auklet;
+import io.auklet.AukletException;
+import io.auklet.core.PersistenceService;
+import io.auklet.util.FileUtil;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>This config file persists between agent restarts the fingerprints of the events that have been
+ * delivered in full, so that repeat occurrences of those events can be sent as references.</p>
+ *
+ * <p>The most recently delivered fingerprints are kept exactly, along with the time of their last full
+ * delivery. Older fingerprints are added to a Bloom filter, which is cleared once per resend interval,
+ * so a fingerprint is only ever known for one resend interval after its last full delivery. A false
+ * positive of the Bloom filter causes an event that the receiver has not seen to be sent as a
+ * reference; with the default sizes this happens for well under one percent of fingerprints, even when
+ * thousands of distinct fingerprints have been delivered within one resend interval.</p>
+ */
+@ThreadSafe
+public final class KnownFingerprints extends AbstractConfigFile {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KnownFingerprints.class);
+    private static final String FINGERPRINTS_FILE = "fingerprints";
+    private static final int VERSION = 1;
+    private static final int MAX_RECENT = 256;
+    // 64K bits, which is 8KB.
+    private static final int BLOOM_WORDS = 1024;
+    private static final int BLOOM_HASHES = 4;
+
+    private final long resendMillis;
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final LinkedHashMap<Long, Long> recent = new LinkedHashMap<>(64, 0.75f, true);
+    @GuardedBy("lock") private final long[] bloom = new long[BLOOM_WORDS];
+    @GuardedBy("lock") private long bloomCreated = 0L;
+    // Serialized only when the coalesced write happens, not on every delivery.
+    private final PersistenceService.Contents contents = new PersistenceService.Contents() {
+        @Override public byte[] toBytes() throws IOException {
+            return KnownFingerprints.this.toBytes();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param resendHours the number of hours after which a known event is sent in full again.
+     */
+    public KnownFingerprints(int resendHours) {
+        this.resendMillis = TimeUnit.HOURS.toMillis(resendHours);
+    }
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        LOGGER.debug("Loading known fingerprints file.");
+        super.start(agent);
+        synchronized (this.lock) {
+            this.bloomCreated = System.currentTimeMillis();
+            FileUtil.restoreBackup(this.file);
+            if (!this.file.exists()) return;
+            try {
+                this.read(FileUtil.read(this.file));
+            } catch (IOException | SecurityException e) {
+                LOGGER.warn("Could not read known fingerprints file from disk, assuming no known fingerprints.", e);
+                this.recent.clear();
+                for (int i = 0; i < BLOOM_WORDS; i++) this.bloom[i] = 0L;
+                this.bloomCreated = System.currentTimeMillis();
+            }
+        }
+    }
+
+    @Override public String getName() { return FINGERPRINTS_FILE; }
+
+    /**
+     * <p>Returns whether an event with the given fingerprint was delivered in full within the resend
+     * interval.</p>
+     *
+     * @param fingerprint the fingerprint of the event.
+     * @param now the current time, in milliseconds since the epoch.
+     * @return {@code true} if the event may be sent as a reference.
+     */
+    public boolean isKnown(long fingerprint, long now) {
+        synchronized (this.lock) {
+            Long lastDelivered = this.recent.get(fingerprint);
+            if (lastDelivered != null) return now - lastDelivered < this.resendMillis;
+            this.rotateBloom(now);
+            long h1 = fingerprint;
+            long h2 = fingerprint >>> 32 | 1L;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = bloomBit(h1 + i * h2);
+                if ((this.bloom[bit >>> 6] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * <p>Records that an event with the given fingerprint was delivered in full.</p>
+     *
+     * @param fingerprint the fingerprint of the event.
+     * @param now the current time, in milliseconds since the epoch.
+     */
+    public void delivered(long fingerprint, long now) {
+        synchronized (this.lock) {
+            this.rotateBloom(now);
+            this.recent.put(fingerprint, now);
+            if (this.recent.size() > MAX_RECENT) {
+                Iterator<Map.Entry<Long, Long>> eldest = this.recent.entrySet().iterator();
+                Map.Entry<Long, Long> entry = eldest.next();
+                eldest.remove();
+                // A fingerprint delivered before the Bloom filter was created would outlive its resend interval.
+                if (entry.getValue() >= this.bloomCreated) this.addToBloom(entry.getKey());
+            }
+        }
+        // Outside the lock, because the save may serialize the fingerprints immediately on this thread.
+        this.save();
+    }
+
+    /**
+     * <p>Clears the Bloom filter if it is older than the resend interval.</p>
+     *
+     * @param now the current time, in milliseconds since the epoch.
+     */
+    @GuardedBy("lock") private void rotateBloom(long now) {
+        if (now - this.bloomCreated < this.resendMillis && now >= this.bloomCreated) return;
+        for (int i = 0; i < BLOOM_WORDS; i++) this.bloom[i] = 0L;
+        this.bloomCreated = now;
+    }
+
+    @GuardedBy("lock") private void addToBloom(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = fingerprint >>> 32 | 1L;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = bloomBit(h1 + i * h2);
+            this.bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * <p>Maps the given hash to a bit of the Bloom filter.</p>
+     *
+     * @param hash the hash.
+     * @return a bit index.
+     */
+    private static int bloomBit(long hash) {
+        return (int) ((hash ^ (hash >>> 32)) & (BLOOM_WORDS * 64 - 1));
+    }
+
+    /** <p>Asynchronously saves the known fingerprints to disk. Saves that occur in quick succession are coalesced.</p> */
+    private void save() {
+        try {
+            this.getAgent().getPersistence().writeLater(this.file, this.contents, 5, TimeUnit.SECONDS);
+        } catch (AukletException e) {
+            LOGGER.warn("Could not queue known fingerprints save task.", e);
+        }
+    }
+
+    /**
+     * <p>Serializes the known fingerprints in the format of the known fingerprints file.</p>
+     *
+     * @return never {@code null}.
+     * @throws IOException if the fingerprints cannot be serialized.
+     */
+    @NonNull /*package*/ byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (this.lock) {
+            out.writeInt(VERSION);
+            out.writeLong(this.bloomCreated);
+            for (long word : this.bloom) out.writeLong(word);
+            out.writeInt(this.recent.size());
+            for (Map.Entry<Long, Long> entry : this.recent.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * <p>Reads the known fingerprints that were serialized by {@link #toBytes()}.</p>
+     *
+     * @param bytes never {@code null}.
+     * @throws IOException if the bytes are not in the expected format.
+     */
+    /*package*/ void read(@NonNull byte[] bytes) throws IOException {
+        DataInput in = new DataInputStream(new ByteArrayInputStream(bytes));
+        synchronized (this.lock) {
+            if (in.readInt() != VERSION) throw new IOException("Unsupported known fingerprints file version.");
+            this.bloomCreated = in.readLong();
+            for (int i = 0; i < BLOOM_WORDS; i++) this.bloom[i] = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_RECENT) throw new IOException("Invalid number of known fingerprints.");
+            for (int i = 0; i < count; i++) this.recent.put(in.readLong(), in.readLong());
+        }
+    }
+
+}
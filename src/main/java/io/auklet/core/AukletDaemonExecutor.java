@@ -2,23 +2,47 @@ package io.auklet.core;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.ExecutorStats;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>Auklet daemon task executor that logs exceptions that occur in submitted tasks.</p>
  *
  * <p>To prevent an infinite loop, exceptions that are logged by this executor are not submitted
  * to the Auklet data sink and are only logged to SLF4J.</p>
+ *
+ * <p>The executor's queue can optionally be bounded. Tasks that are submitted while the queue is full
+ * are rejected with a {@link RejectedExecutionException}. Repeating tasks occupy one queue slot for as
+ * long as they remain scheduled.</p>
+ *
+ * <p>The executor is instrumented: for each type of task, it records how long tasks waited in the queue
+ * after they were due and how long they took to run, along with failures, cancellations and rejections.
+ * This costs two clock reads and a few atomic increments per task, and can be read at any time via
+ * {@link #getStats()}. Timers in a {@link TimingWheel} that runs on this executor are counted while they
+ * are pending, and their cancellations are counted even if they never reached the queue. Expired timers
+ * are queued without being wrapped, and record their own queue and run times.</p>
  */
 @ThreadSafe
 public final class AukletDaemonExecutor extends ScheduledThreadPoolExecutor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AukletDaemonExecutor.class);
+    private final int maxQueueSize;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final AtomicInteger pendingTimers = new AtomicInteger();
+    // Stats are keyed by task type name; the class-keyed map caches the lookup of each class's name.
+    private final ConcurrentMap<String, TaskTypeStats> taskStats = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, TaskTypeStats> taskStatsByClass = new ConcurrentHashMap<>();
     private final Object lock = new Object();
     @GuardedBy("lock") private boolean logCancelExceptions = true;
 
@@ -29,7 +53,73 @@ public final class AukletDaemonExecutor extends ScheduledThreadPoolExecutor {
      * @param threadFactory the thread factory to use.
      */
     public AukletDaemonExecutor(int corePoolSize, @NonNull ThreadFactory threadFactory) {
+        this(corePoolSize, threadFactory, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param corePoolSize the number of threads in this executor.
+     * @param threadFactory the thread factory to use.
+     * @param maxQueueSize the maximum number of tasks that may be queued in this executor.
+     */
+    public AukletDaemonExecutor(int corePoolSize, @NonNull ThreadFactory threadFactory, int maxQueueSize) {
         super(corePoolSize, threadFactory);
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * <p>Returns the number of tasks that have been rejected because the queue was full.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * <p>Returns a snapshot of this executor's instrumentation.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public ExecutorStats getStats() {
+        Map<String, ExecutorStats.TaskStats> stats = new TreeMap<>();
+        for (TaskTypeStats typeStats : this.taskStats.values()) {
+            stats.put(typeStats.name, typeStats.snapshot());
+        }
+        return new ExecutorStats(this.getQueue().size(), this.peakQueueDepth.get(), this.getActiveCount(),
+                this.getCompletedTaskCount(), this.rejectedCount.get(), this.pendingTimers.get(), stats);
+    }
+
+    /**
+     * <p>Removes all tasks that are queued in this executor without running them, and cancels them
+     * silently. Tasks that are already running are not affected.</p>
+     *
+     * @return the {@link Runnable}s and {@link Callable}s that were originally submitted for the removed
+     * tasks, in the order in which they would have run. Never {@code null}.
+     */
+    @NonNull public List<Object> removeQueuedTasks() {
+        // drainTo() would only remove tasks that are due, so remove each task individually.
+        Object[] queued = this.getQueue().toArray();
+        List<RunnableScheduledFuture<?>> tasks = new ArrayList<>(queued.length);
+        for (Object r : queued) {
+            if (r instanceof RunnableScheduledFuture && this.getQueue().remove(r)) tasks.add((RunnableScheduledFuture<?>) r);
+        }
+        // The queue is not drained in execution order.
+        Collections.sort(tasks);
+        List<Object> sources = new ArrayList<>(tasks.size());
+        for (RunnableScheduledFuture<?> task : tasks) {
+            task.cancel(false);
+            if (task instanceof InstrumentedTask) {
+                InstrumentedTask<?> instrumented = (InstrumentedTask<?>) task;
+                instrumented.stats.cancelledSilently.incrementAndGet();
+                if (instrumented.source != null) sources.add(instrumented.source);
+            } else if (task instanceof TaskWrapper) {
+                // Timers count their own cancellations.
+                sources.add(((TaskWrapper) task).getTask());
+            }
+        }
+        return sources;
     }
 
     /**
@@ -41,57 +131,264 @@ public final class AukletDaemonExecutor extends ScheduledThreadPoolExecutor {
         synchronized(lock) { logCancelExceptions = enabled; }
     }
 
-    /* Logs exceptions that occur in tasks. */
+    /**
+     * <p>Records that a timer for the given task type has been linked into, or unlinked from, a
+     * {@link TimingWheel}.</p>
+     *
+     * @param stats never {@code null}.
+     * @param delta {@code 1} if the timer was linked, {@code -1} if it was unlinked.
+     */
+    /*package*/ void timerPending(@NonNull TaskTypeStats stats, int delta) {
+        this.pendingTimers.addAndGet(delta);
+        stats.pendingTimers.addAndGet(delta);
+    }
+
+    /**
+     * <p>Records that a {@link TimingWheel} timer for the given task was cancelled. Such cancellations
+     * never reach {@link #afterExecute(Runnable, Throwable)}, so they are counted here, using the same
+     * rules for whether they would have been logged, but are not logged.</p>
+     *
+     * @param stats never {@code null}.
+     * @param task the timer's task. Never {@code null}.
+     */
+    /*package*/ void timerCancelled(@NonNull TaskTypeStats stats, @NonNull Object task) {
+        boolean logThis;
+        synchronized(lock) { logThis = logCancelExceptions; }
+        if (task instanceof CancelSilentlyRunnable) logThis = false;
+        (logThis ? stats.cancelled : stats.cancelledSilently).incrementAndGet();
+    }
+
+    /**
+     * <p>Queues the given expired {@link TimingWheel} timer as is, rather than submitting it, so that it
+     * is not wrapped. The queue bound applies as it does to submitted tasks.</p>
+     *
+     * @param timer never {@code null}.
+     * @param stats the instrumentation for the timer's task type. Never {@code null}.
+     * @throws RejectedExecutionException if the executor is shut down or its queue is full.
+     */
+    /*package*/ void executeTimer(@NonNull ExpiredTimer timer, @NonNull TaskTypeStats stats) {
+        if (this.isShutdown()) {
+            this.rejectedCount.incrementAndGet();
+            stats.rejected.incrementAndGet();
+            throw new RejectedExecutionException("Executor is shut down.");
+        }
+        this.checkQueueSize(stats);
+        this.getQueue().add(timer);
+        // Tasks that are queued directly do not start worker threads.
+        this.prestartCoreThread();
+    }
+
+    /**
+     * <p>Records how long an expired {@link TimingWheel} timer waited after it was due.</p>
+     *
+     * @param stats never {@code null}.
+     * @param queueNanos the time between the timer's deadline and when it started running.
+     */
+    /*package*/ void timerStarted(@NonNull TaskTypeStats stats, long queueNanos) {
+        stats.queueTime.record(queueNanos);
+    }
+
+    /**
+     * <p>Records how long an expired {@link TimingWheel} timer took to run, and logs its exception, if
+     * any, as {@link #afterExecute(Runnable, Throwable)} does for other tasks.</p>
+     *
+     * @param stats never {@code null}.
+     * @param runNanos the time that the timer's task took to run.
+     * @param failure the exception that the timer's task threw. May be {@code null}.
+     */
+    /*package*/ void timerFinished(@NonNull TaskTypeStats stats, long runNanos, @Nullable Throwable failure) {
+        stats.runTime.record(runNanos);
+        if (failure != null) {
+            stats.failed.incrementAndGet();
+            LOGGER.warn("Exception in Auklet daemon task.", failure);
+        }
+    }
+
+    /* Records how long the task waited after it was due, and when it started running. */
+    @Override protected void beforeExecute(@Nullable Thread t, @Nullable Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof InstrumentedTask) {
+            InstrumentedTask<?> task = (InstrumentedTask<?>) r;
+            task.startNanos = System.nanoTime();
+            // A due task's delay is negative, and its magnitude is how long it has been waiting.
+            task.stats.queueTime.record(-task.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /* Logs exceptions that occur in tasks, and records how long they took to run. */
     @Override protected void afterExecute(@Nullable Runnable r, @Nullable Throwable t) {
         super.afterExecute(r, t);
+        long endNanos = System.nanoTime();
+        // Timers record their own instrumentation and log their own exceptions.
+        if (r instanceof ExpiredTimer) return;
         if (t == null && r instanceof Future<?>) {
             Future<?> future = (Future<?>) r;
             try {
                 if (future.isDone()) future.get();
             } catch (CancellationException ce) {
-                if (!(future instanceof CancelSilentlyRSF)) t = ce;
+                t = ce;
             } catch (ExecutionException ee) {
                 t = ee.getCause();
             } catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
             }
         }
+        InstrumentedTask<?> task = r instanceof InstrumentedTask ? (InstrumentedTask<?>) r : null;
         if (t instanceof CancellationException) {
             boolean logThis;
             synchronized(lock) { logThis = logCancelExceptions; }
+            if (task != null && task.cancelSilently) logThis = false;
+            if (task != null) (logThis ? task.stats.cancelled : task.stats.cancelledSilently).incrementAndGet();
             if (logThis) LOGGER.warn("Auklet daemon task cancelled.", t);
+            return;
         }
-        else if (t != null) LOGGER.warn("Exception in Auklet daemon task.", t);
+        if (task != null) {
+            task.stats.runTime.record(endNanos - task.startNanos);
+            if (t != null) task.stats.failed.incrementAndGet();
+        }
+        if (t != null) LOGGER.warn("Exception in Auklet daemon task.", t);
     }
 
-    /* Decorates CancelSilentlyFutureTasks so that afterExecute() knows about them. */
+    /* Decorates tasks so that beforeExecute() and afterExecute() can instrument them. */
     @Override
     protected <V> RunnableScheduledFuture<V> decorateTask(
             @Nullable Runnable r, @NonNull RunnableScheduledFuture<V> task) {
         if (task == null) throw new IllegalArgumentException("Task is null.");
-        return r instanceof CancelSilentlyRunnable ? new CancelSilentlyRSF<>(task) : task;
+        TaskTypeStats stats = this.statsFor(r);
+        this.checkQueueSize(stats);
+        return new InstrumentedTask<>(task, r, stats, r instanceof CancelSilentlyRunnable);
+    }
+
+    /* Decorates tasks so that beforeExecute() and afterExecute() can instrument them. */
+    @Override
+    protected <V> RunnableScheduledFuture<V> decorateTask(
+            @Nullable Callable<V> c, @NonNull RunnableScheduledFuture<V> task) {
+        if (task == null) throw new IllegalArgumentException("Task is null.");
+        TaskTypeStats stats = this.statsFor(c);
+        this.checkQueueSize(stats);
+        return new InstrumentedTask<>(task, c, stats, false);
+    }
+
+    /*
+     * Rejects the task that is being scheduled if the queue is full. This is checked when the task is
+     * decorated, which happens for every scheduled/submitted task before it is queued.
+     */
+    private void checkQueueSize(@NonNull TaskTypeStats stats) {
+        int depth = this.getQueue().size();
+        if (depth >= this.maxQueueSize) {
+            this.rejectedCount.incrementAndGet();
+            stats.rejected.incrementAndGet();
+            throw new RejectedExecutionException("Executor queue is full.");
+        }
+        int peak;
+        while (depth + 1 > (peak = this.peakQueueDepth.get())) {
+            if (this.peakQueueDepth.compareAndSet(peak, depth + 1)) break;
+        }
+    }
+
+    /**
+     * <p>Returns the instrumentation for the type of the given task, creating it if necessary.</p>
+     *
+     * @param task the submitted task. May be {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull /*package*/ TaskTypeStats statsFor(@Nullable Object task) {
+        if (task instanceof TaskWrapper) task = ((TaskWrapper) task).getTask();
+        Class<?> type = task == null ? Object.class : task.getClass();
+        TaskTypeStats stats = this.taskStatsByClass.get(type);
+        if (stats == null) {
+            String name = taskTypeName(type);
+            TaskTypeStats newStats = new TaskTypeStats(name);
+            stats = this.taskStats.putIfAbsent(name, newStats);
+            if (stats == null) stats = newStats;
+            this.taskStatsByClass.putIfAbsent(type, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * <p>Returns a readable name for the given task class. Anonymous classes are named after the method
+     * or class in which they are declared, so all anonymous tasks declared in one method share a type.</p>
+     *
+     * @param type never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull private static String taskTypeName(@NonNull Class<?> type) {
+        if (!type.isAnonymousClass()) return type.getName();
+        Class<?> enclosingClass = type.getEnclosingClass();
+        String enclosingName = enclosingClass == null ? type.getName() : enclosingClass.getName();
+        Method method = type.getEnclosingMethod();
+        if (method != null) return enclosingName + '.' + method.getName();
+        Constructor<?> constructor = type.getEnclosingConstructor();
+        if (constructor != null) return enclosingName + ".<init>";
+        return enclosingName;
     }
 
     /** A {@link Runnable} that the {@link AukletDaemonExecutor} will not log if it is cancelled. */
     public abstract static class CancelSilentlyRunnable implements Runnable {}
 
+    /**
+     * <p>A task that runs another task on the executor's behalf. The wrapped task's type is used for
+     * instrumentation.</p>
+     */
+    /*package*/ interface TaskWrapper {
+        /**
+         * <p>Returns the wrapped task.</p>
+         *
+         * @return never {@code null}.
+         */
+        @NonNull Object getTask();
+    }
+
+    /**
+     * <p>An expired {@link TimingWheel} timer, which is queued by {@link #executeTimer} without being
+     * wrapped, and which instruments itself.</p>
+     */
+    /*package*/ interface ExpiredTimer extends RunnableScheduledFuture<Object> {}
+
+    /* Instrumentation for one type of task. */
+    /*package*/ static final class TaskTypeStats {
+        private final String name;
+        private final LatencyHistogram queueTime = new LatencyHistogram();
+        private final LatencyHistogram runTime = new LatencyHistogram();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong cancelled = new AtomicLong();
+        private final AtomicLong cancelledSilently = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicInteger pendingTimers = new AtomicInteger();
+        private TaskTypeStats(@NonNull String name) {
+            this.name = name;
+        }
+        @NonNull private ExecutorStats.TaskStats snapshot() {
+            return new ExecutorStats.TaskStats(this.queueTime.snapshot(), this.runTime.snapshot(), this.failed.get(),
+                    this.cancelled.get(), this.cancelledSilently.get(), this.rejected.get(), this.pendingTimers.get());
+        }
+    }
+
     /*
-     * Internal version of CancelSilentlyRunnable that is required by the
-     * decorateTask() methods to pass to afterExecute() the fact that cancellation
-     * should not be logged.
+     * Wraps every task so that beforeExecute() and afterExecute() know the task's type, when it started
+     * running, and whether its cancellation should be logged.
      */
-    private static final class CancelSilentlyRSF<V> implements RunnableScheduledFuture<V> {
+    private static final class InstrumentedTask<V> implements RunnableScheduledFuture<V> {
         private final RunnableScheduledFuture<V> task;
-        private CancelSilentlyRSF(@NonNull RunnableScheduledFuture<V> task) {
+        private final Object source;
+        private final TaskTypeStats stats;
+        private final boolean cancelSilently;
+        // Only accessed by the thread that is running the task.
+        private long startNanos;
+        private InstrumentedTask(@NonNull RunnableScheduledFuture<V> task, @Nullable Object source, @NonNull TaskTypeStats stats, boolean cancelSilently) {
             if (task == null) throw new IllegalArgumentException("Task is null");
             this.task = task;
+            this.source = source;
+            this.stats = stats;
+            this.cancelSilently = cancelSilently;
         }
         @Override
         public boolean isPeriodic() { return task.isPeriodic(); }
         @Override
         public long getDelay(@Nullable TimeUnit unit) { return task.getDelay(unit); }
         @Override
-        public int compareTo(@Nullable Delayed o) { return task.compareTo(o); }
+        public int compareTo(@Nullable Delayed o) { return task.compareTo(o instanceof InstrumentedTask ? ((InstrumentedTask<?>) o).task : o); }
         @Override
         public void run() { task.run(); }
         @Override
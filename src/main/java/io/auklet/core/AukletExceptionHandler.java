@@ -1,21 +1,47 @@
 package io.auklet.core;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.Auklet;
 import net.jcip.annotations.Immutable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** <p>This class sends all uncaught exceptions, except {@link ThreadDeath}, to Auklet.</p> */
+/**
+ * <p>This class sends all uncaught exceptions, except {@link ThreadDeath}, to Auklet.</p>
+ *
+ * <p>Because the JVM may exit as soon as this handler returns, each exception is first recorded
+ * synchronously in the {@link CrashJournal}, and then sent through the agent's pipeline as usual. A
+ * {@link VirtualMachineError} means that memory or another JVM resource may be exhausted, so it is recorded
+ * via the journal's allocation-free emergency path instead, and the agent sends it once memory is available
+ * again. {@link StackOverflowError} is sent as usual, however: the thread's stack has
+ * unwound by the time this handler runs, and the regular encoder compresses its recursive stack trace.</p>
+ */
 @Immutable
 public final class AukletExceptionHandler implements Thread.UncaughtExceptionHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AukletExceptionHandler.class);
 
+    private final CrashJournal journal;
+
+    /**
+     * Constructor.
+     *
+     * @param journal the journal in which to record uncaught exceptions. Never {@code null}.
+     */
+    public AukletExceptionHandler(@NonNull CrashJournal journal) {
+        this.journal = journal;
+    }
+
     @Override public void uncaughtException(@Nullable Thread t, @Nullable Throwable e) {
         if (e == null) return;
-        if (!(e instanceof ThreadDeath)) {
-            LOGGER.debug("Sending uncaught exception.");
+        if (e instanceof VirtualMachineError && !(e instanceof StackOverflowError)) {
+            if (this.journal.appendEmergency(e, System.currentTimeMillis())) return;
+            // The journal could not take the event, so fall back to sending it normally.
+            Auklet.send(e);
+        } else if (!(e instanceof ThreadDeath)) {
+            LOGGER.debug("Journaling and sending uncaught exception.");
+            this.journal.append(e, System.currentTimeMillis());
             Auklet.send(e);
         }
     }
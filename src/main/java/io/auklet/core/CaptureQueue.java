@@ -0,0 +1,95 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.util.ThreadUtil;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>A bounded, lock-free queue with any number of producers and a single consumer, through which
+ * captured events are handed from application threads to the agent.</p>
+ *
+ * <p>This is the Java 7 baseline, which is built on atomic classes. The agent JAR is a multi-release JAR;
+ * JVMs that support Java 9 or later load an override of this class that uses {@code VarHandle}s.</p>
+ *
+ * @param <E> the type of element held in this queue.
+ */
+@ThreadSafe
+public final class CaptureQueue<E> {
+
+    // How long the consumer busy-waits for a producer before yielding, e.g. if the producer was descheduled.
+    private static final int MAX_SPINS = 100;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the capacity of this queue. Must be a positive power of two.
+     * @throws IllegalArgumentException if the capacity is not a positive power of two.
+     */
+    public CaptureQueue(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a positive power of two.");
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * <p>Adds the given element to this queue. This method may be invoked by any thread.</p>
+     *
+     * @param e never {@code null}.
+     * @return {@code true} if the element was added, {@code false} if this queue is full.
+     */
+    public boolean offer(@NonNull E e) {
+        while (true) {
+            long t = this.tail.get();
+            if (t - this.head.get() >= this.capacity) return false;
+            if (this.tail.compareAndSet(t, t + 1)) {
+                this.buffer.lazySet((int) (t & this.mask), e);
+                return true;
+            }
+            ThreadUtil.onSpinWait();
+        }
+    }
+
+    /**
+     * <p>Removes and returns the element at the head of this queue. This method must only be invoked by
+     * one thread at a time.</p>
+     *
+     * @return {@code null} if this queue is empty.
+     */
+    @CheckForNull public E poll() {
+        long h = this.head.get();
+        int index = (int) (h & this.mask);
+        E e = this.buffer.get(index);
+        if (e == null) {
+            if (h == this.tail.get()) return null;
+            // A producer has claimed this slot but has not yet stored its element.
+            for (int spins = 0; (e = this.buffer.get(index)) == null; spins++) {
+                if (spins < MAX_SPINS) ThreadUtil.onSpinWait();
+                else Thread.yield();
+            }
+        }
+        this.buffer.lazySet(index, null);
+        this.head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * <p>Determines whether or not this queue is empty.</p>
+     *
+     * @return {@code true} if this queue is empty.
+     */
+    public boolean isEmpty() {
+        return this.head.get() == this.tail.get();
+    }
+
+}
@@ -0,0 +1,494 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.sink.EventEncoder;
+import io.auklet.util.FileUtil;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A small write-ahead journal of uncaught exceptions, located in the agent's configuration directory.</p>
+ *
+ * <p>When a thread dies from an uncaught exception, especially the main thread, the JVM may exit before
+ * the agent's pipeline has a chance to deliver or spool the event. The journal records such events
+ * synchronously, on the dying thread: the event is encoded into a preallocated buffer and appended to
+ * a file that was opened when the agent was configured, so recording an event neither waits for another
+ * thread nor touches the network. Events that are still in the journal when the agent next starts are
+ * moved to the {@link EventSpool}.</p>
+ *
+ * <p>Each event is appended as a record consisting of its length, a CRC-32 of its bytes, and the bytes
+ * themselves. If the process dies partway through an append, the damaged record and anything after it
+ * are discarded when the journal is next read; all prior records are preserved. When a record is
+ * released, the top bit of its length is set in place, so that the record is skipped when the journal is
+ * next read even if the process dies before the journal is compacted.</p>
+ *
+ * <p>A {@link VirtualMachineError}, such as an {@link OutOfMemoryError}, is recorded via an emergency path
+ * that does not allocate: the event is encoded by an {@link EmergencyEncoder} that was created when the
+ * journal was opened, and written to space in the journal that is reserved for it. The encoded event is
+ * also kept in memory, so that it can be handed over to the agent's pipeline once memory is available
+ * again.</p>
+ *
+ * <p>Journaled events are also sent through the normal pipeline. When the pipeline picks up a journaled
+ * event, it {@link #claim(Throwable) claims} the event's record, and {@link #release(long) releases} it
+ * once the event has been delivered. Once every record in the journal has been released, the journal is
+ * emptied; if released records take up too much of the journal, or it is full, the records that have not
+ * been released are compacted into a new journal file, which replaces the old one atomically. Once the
+ * pipeline has been drained without losing any events, the journal is cleared. If the process is killed
+ * after an event was delivered but before its record was released, the event is sent again when the
+ * agent next starts.</p>
+ *
+ * <p>Records written by the emergency path, and records that were already in the journal when it was
+ * opened, are never released; they are kept until the journal is cleared or drained.</p>
+ */
+@ThreadSafe
+public final class CrashJournal {
+
+    public static final String FILENAME = "crash-journal";
+    private static final Logger LOGGER = LoggerFactory.getLogger(CrashJournal.class);
+    private static final int HEADER_SIZE = 8;
+    // Set in the length of a record whose event has been delivered. Record lengths never use this bit.
+    private static final int RELEASED_FLAG = 0x80000000;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    private static final int EMERGENCY_RECORD_SIZE = 16 * 1024;
+    private static final long MAX_SIZE = 256L * 1024L;
+    // Regular events may not use the space that is reserved for an emergency record.
+    private static final long MAX_REGULAR_SIZE = MAX_SIZE - HEADER_SIZE - EMERGENCY_RECORD_SIZE;
+
+    private final File file;
+    private final boolean sync;
+    private final EventEncoder eventEncoder;
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final RecordBuffer buffer = new RecordBuffer(HEADER_SIZE + MAX_RECORD_SIZE);
+    @GuardedBy("lock") private final CRC32 crc = new CRC32();
+    @GuardedBy("lock") private MessagePacker packer = null;
+    @GuardedBy("lock") private RandomAccessFile journal = null;
+    @GuardedBy("lock") private EmergencyEncoder emergency = null;
+    // The length of the emergency event that is waiting to be handed over, or zero if there is none.
+    @GuardedBy("lock") private int emergencyLength = 0;
+    // The regular records that were appended since the journal was opened, oldest first.
+    @GuardedBy("lock") private final List<Record> records = new ArrayList<>();
+    // The records whose events have not yet been claimed by the pipeline.
+    @GuardedBy("lock") private final Map<Throwable, Record> unclaimed = new IdentityHashMap<>();
+    @GuardedBy("lock") private long releasedBytes = 0L;
+    @GuardedBy("lock") private long nextId = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param configDir the agent's configuration directory. Never {@code null}.
+     * @param sync {@code true} to force each journaled event to the storage device before
+     * {@link #append(Throwable, long)} returns.
+     * @param eventEncoder the encoder for journaled events. Never {@code null}.
+     */
+    public CrashJournal(@NonNull File configDir, boolean sync, @NonNull EventEncoder eventEncoder) {
+        this.file = new File(configDir, FILENAME);
+        this.sync = sync;
+        // Events are truncated to fit in a single record, rather than not journaled at all.
+        this.eventEncoder = eventEncoder.getMaxEventSize() <= MAX_RECORD_SIZE ? eventEncoder : new EventEncoder(eventEncoder.getFrameFilter(), MAX_RECORD_SIZE);
+    }
+
+    /**
+     * <p>Opens this journal for appending, and preallocates the resources needed to record an event.</p>
+     *
+     * @return {@code true} if the journal was opened, {@code false} if it cannot be opened.
+     */
+    public boolean open() {
+        synchronized (this.lock) {
+            if (this.journal != null) return true;
+            this.records.clear();
+            this.unclaimed.clear();
+            this.releasedBytes = 0L;
+            try {
+                FileUtil.restoreBackup(this.file);
+                this.journal = new RandomAccessFile(this.file, "rw");
+                this.journal.seek(this.journal.length());
+                this.packer = newPacker(this.buffer);
+                if (this.emergency == null) this.emergency = new EmergencyEncoder(HEADER_SIZE + EMERGENCY_RECORD_SIZE);
+                return true;
+            } catch (IOException | SecurityException e) {
+                LOGGER.warn("Could not open crash journal.", e);
+                this.closeQuietly();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * <p>Synchronously encodes the given event and appends it to this journal.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     * @return {@code true} if the event was journaled, {@code false} if the journal is not open or full,
+     * or the event cannot be encoded or written.
+     */
+    public boolean append(@NonNull Throwable throwable, long timestamp) {
+        synchronized (this.lock) {
+            if (this.journal == null) return false;
+            try {
+                this.buffer.reset(HEADER_SIZE);
+                this.eventEncoder.packEventBody(this.packer, throwable, timestamp);
+                this.packer.flush();
+                int length = this.buffer.size() - HEADER_SIZE;
+                if (this.journal.length() + HEADER_SIZE + length > MAX_REGULAR_SIZE && this.releasedBytes > 0) this.compact();
+                if (this.journal.length() + HEADER_SIZE + length > MAX_REGULAR_SIZE) {
+                    LOGGER.warn("Crash journal is full; not journaling event.");
+                    return false;
+                }
+                this.crc.reset();
+                this.crc.update(this.buffer.array(), HEADER_SIZE, length);
+                putInt(this.buffer.array(), 0, length);
+                putInt(this.buffer.array(), 4, (int) this.crc.getValue());
+                // Write the whole record at once, to minimize the window in which it is partially written.
+                long offset = this.journal.getFilePointer();
+                this.journal.write(this.buffer.array(), 0, this.buffer.size());
+                if (this.sync) this.journal.getFD().sync();
+                Record record = new Record(this.nextId++, offset, this.buffer.size());
+                this.records.add(record);
+                this.unclaimed.put(throwable, record);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Could not journal event.", e);
+                // The packer may hold part of the failed event; start afresh.
+                this.packer = newPacker(this.buffer);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * <p>Synchronously encodes the given event and appends it to this journal, without allocating any
+     * memory. Only one such event can wait to be handed over at a time; further events are not recorded
+     * until {@link #takeEmergencyEvent()} is called.</p>
+     *
+     * <p>Because logging allocates, this method does not log errors.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     * @return {@code true} if the event was recorded, {@code false} if the journal is not open, another
+     * event is waiting to be handed over, or the event cannot be encoded.
+     */
+    public boolean appendEmergency(@NonNull Throwable throwable, long timestamp) {
+        synchronized (this.lock) {
+            if (this.journal == null || this.emergencyLength != 0) return false;
+            byte[] bytes = this.emergency.array();
+            int end;
+            try {
+                end = this.emergency.encode(throwable, timestamp, HEADER_SIZE);
+            } catch (RuntimeException | VirtualMachineError e) {
+                return false;
+            }
+            this.crc.reset();
+            this.crc.update(bytes, HEADER_SIZE, end - HEADER_SIZE);
+            putInt(bytes, 0, end - HEADER_SIZE);
+            putInt(bytes, 4, (int) this.crc.getValue());
+            this.emergencyLength = end - HEADER_SIZE;
+            try {
+                if (this.journal.length() + end <= MAX_SIZE) {
+                    this.journal.write(bytes, 0, end);
+                    if (this.sync) this.journal.getFD().sync();
+                }
+            } catch (IOException e) {
+                // The event is still handed over to the agent's pipeline.
+            }
+            return true;
+        }
+    }
+
+    /**
+     * <p>Returns the event that was recorded by {@link #appendEmergency(Throwable, long)} and has not yet
+     * been handed over to the agent's pipeline, and marks it as handed over. The event remains in the
+     * journal.</p>
+     *
+     * @return the encoded event body, or {@code null} if there is none.
+     */
+    @CheckForNull public byte[] takeEmergencyEvent() {
+        synchronized (this.lock) {
+            if (this.emergencyLength == 0) return null;
+            byte[] event = Arrays.copyOfRange(this.emergency.array(), HEADER_SIZE, HEADER_SIZE + this.emergencyLength);
+            this.emergencyLength = 0;
+            return event;
+        }
+    }
+
+    /**
+     * <p>Claims the record of the given event, which was journaled by {@link #append(Throwable, long)}, so
+     * that it can be released once the event has been delivered.</p>
+     *
+     * @param throwable never {@code null}.
+     * @return the ID of the event's record, or zero if the event was not journaled or its record has
+     * already been claimed.
+     */
+    public long claim(@NonNull Throwable throwable) {
+        synchronized (this.lock) {
+            Record record = this.unclaimed.remove(throwable);
+            return record == null ? 0L : record.id;
+        }
+    }
+
+    /**
+     * <p>Releases a record that was claimed by {@link #claim(Throwable)}, because its event has been
+     * delivered, marks it as released in the journal file, and reclaims the space of released records if
+     * possible.</p>
+     *
+     * @param id the ID of the record. If zero, or if the record is no longer in the journal, this method
+     * is no-op.
+     */
+    public void release(long id) {
+        if (id == 0L) return;
+        synchronized (this.lock) {
+            if (this.journal == null) return;
+            boolean allReleased = true;
+            long trackedBytes = 0L;
+            Record released = null;
+            for (Record record : this.records) {
+                if (record.id == id && !record.released) {
+                    record.released = true;
+                    this.releasedBytes += record.length;
+                    released = record;
+                }
+                allReleased &= record.released;
+                trackedBytes += record.length;
+            }
+            try {
+                if (released != null) this.markReleased(released);
+                if (allReleased && this.journal.length() == trackedBytes) {
+                    this.truncate();
+                } else if (this.releasedBytes >= MAX_REGULAR_SIZE / 2) {
+                    this.compact();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not reclaim space in crash journal.", e);
+            }
+        }
+    }
+
+    /**
+     * <p>Removes and returns all journaled events that have not been released, oldest first.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public List<byte[]> drain() {
+        synchronized (this.lock) {
+            List<byte[]> events = new ArrayList<>();
+            try {
+                byte[] bytes = FileUtil.read(this.file);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                CRC32 checksum = new CRC32();
+                while (in.available() >= HEADER_SIZE) {
+                    int header = in.readInt();
+                    int expected = in.readInt();
+                    boolean released = (header & RELEASED_FLAG) != 0;
+                    int length = header & ~RELEASED_FLAG;
+                    if (length < 0 || length > in.available()) {
+                        LOGGER.warn("Discarding truncated event at the end of the crash journal.");
+                        break;
+                    }
+                    byte[] event = new byte[length];
+                    in.readFully(event);
+                    checksum.reset();
+                    checksum.update(event, 0, length);
+                    if ((int) checksum.getValue() != expected) {
+                        LOGGER.warn("Discarding corrupt events at the end of the crash journal.");
+                        break;
+                    }
+                    if (!released) events.add(event);
+                }
+            } catch (IOException | SecurityException e) {
+                LOGGER.warn("Could not read crash journal.", e);
+            }
+            this.truncate();
+            return events;
+        }
+    }
+
+    /** <p>Discards all journaled events.</p> */
+    public void clear() {
+        synchronized (this.lock) {
+            this.truncate();
+        }
+    }
+
+    /** <p>Closes this journal. Events that have been journaled are kept until the journal is drained.</p> */
+    public void close() {
+        synchronized (this.lock) {
+            this.closeQuietly();
+        }
+    }
+
+    /**
+     * <p>Replaces the journal file with one that has every record except those that have been released.
+     * The new file is written atomically, so that if the process dies while the journal is compacted,
+     * either the old or the new file survives intact.</p>
+     *
+     * @throws IOException if the journal cannot be compacted. The old journal file is then still in use.
+     */
+    @GuardedBy("lock") private void compact() throws IOException {
+        byte[] old = new byte[(int) this.journal.length()];
+        this.journal.seek(0L);
+        this.journal.readFully(old);
+        ByteArrayOutputStream compacted = new ByteArrayOutputStream(old.length);
+        int position = 0;
+        for (Record record : this.records) {
+            if (!record.released) continue;
+            compacted.write(old, position, (int) record.offset - position);
+            position = (int) (record.offset + record.length);
+        }
+        compacted.write(old, position, old.length - position);
+        this.journal.close();
+        this.journal = null;
+        try {
+            FileUtil.writeAtomically(this.file, compacted.toByteArray(), this.sync);
+        } finally {
+            // If the journal cannot be reopened, it stays closed and no more events are journaled.
+            this.journal = new RandomAccessFile(this.file, "rw");
+            this.journal.seek(this.journal.length());
+        }
+        // Shift each kept record by the size of the released records before it.
+        long removed = 0L;
+        Iterator<Record> iterator = this.records.iterator();
+        while (iterator.hasNext()) {
+            Record record = iterator.next();
+            if (record.released) {
+                removed += record.length;
+                iterator.remove();
+            } else {
+                record.offset -= removed;
+            }
+        }
+        this.releasedBytes = 0L;
+    }
+
+    /**
+     * <p>Sets the released flag in the length of the given record in the journal file.</p>
+     *
+     * @param record never {@code null}.
+     * @throws IOException if the record cannot be marked.
+     */
+    @GuardedBy("lock") private void markReleased(@NonNull Record record) throws IOException {
+        long end = this.journal.getFilePointer();
+        try {
+            this.journal.seek(record.offset);
+            this.journal.writeInt((record.length - HEADER_SIZE) | RELEASED_FLAG);
+            if (this.sync) this.journal.getFD().sync();
+        } finally {
+            this.journal.seek(end);
+        }
+    }
+
+    /** <p>Empties the journal file.</p> */
+    @GuardedBy("lock") private void truncate() {
+        this.records.clear();
+        this.unclaimed.clear();
+        this.releasedBytes = 0L;
+        if (this.journal == null) {
+            FileUtil.deleteQuietly(this.file);
+            return;
+        }
+        try {
+            this.journal.setLength(0L);
+        } catch (IOException e) {
+            LOGGER.warn("Could not clear crash journal.", e);
+        }
+    }
+
+    /** <p>Closes the journal file, if it is open.</p> */
+    @GuardedBy("lock") private void closeQuietly() {
+        if (this.journal != null) {
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                LOGGER.warn("Could not close crash journal.", e);
+            }
+        }
+        this.journal = null;
+        this.packer = null;
+    }
+
+    /**
+     * <p>Writes the given value to the given array in big-endian order.</p>
+     *
+     * @param bytes never {@code null}.
+     * @param position the offset at which to write.
+     * @param value the value to write.
+     */
+    private static void putInt(@NonNull byte[] bytes, int position, int value) {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+
+    /**
+     * <p>Creates a packer that writes to the given buffer.</p>
+     *
+     * @param buffer never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull private static MessagePacker newPacker(@NonNull RecordBuffer buffer) {
+        return new MessagePack.PackerConfig().withBufferSize(1024).newPacker(buffer);
+    }
+
+    /** <p>The location of a regular record in the journal file.</p> */
+    private static final class Record {
+
+        private final long id;
+        private long offset;
+        private final int length;
+        private boolean released = false;
+
+        private Record(long id, long offset, int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * <p>A fixed-capacity output stream that writes to a preallocated array, and which fails rather than
+     * growing when the array is full.</p>
+     */
+    private static final class RecordBuffer extends OutputStream {
+
+        private final byte[] bytes;
+        private int count = 0;
+
+        private RecordBuffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        @Override public void write(int b) throws IOException {
+            if (this.count == this.bytes.length) throw new IOException("Event is too large for the crash journal.");
+            this.bytes[this.count++] = (byte) b;
+        }
+
+        @Override public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len > this.bytes.length - this.count) throw new IOException("Event is too large for the crash journal.");
+            System.arraycopy(b, off, this.bytes, this.count, len);
+            this.count += len;
+        }
+
+        private void reset(int position) {
+            this.count = position;
+        }
+
+        private int size() {
+            return this.count;
+        }
+
+        @NonNull private byte[] array() {
+            return this.bytes;
+        }
+
+    }
+
+}
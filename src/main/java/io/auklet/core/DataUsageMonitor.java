@@ -3,6 +3,7 @@ package io.auklet.core;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
+import io.auklet.config.ConfigSnapshot;
 import io.auklet.config.DataUsageLimit;
 import io.auklet.config.DataUsageTracker;
 import net.jcip.annotations.GuardedBy;
@@ -11,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Calendar;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,10 +28,11 @@ import java.util.concurrent.TimeUnit;
 public final class DataUsageMonitor extends HasAgent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DataUsageMonitor.class);
+    private static final long MAX_DAYS_IN_MONTH_MILLIS = TimeUnit.DAYS.toMillis(32);
     private final Object lock = new Object();
     @GuardedBy("lock") private DataUsageLimit limit;
     @GuardedBy("lock") private DataUsageTracker tracker;
-    @GuardedBy("lock") private boolean awaitingMonthlyReset = false;
+    @GuardedBy("lock") private ScheduledFuture<?> monthlyResetTask;
     @GuardedBy("lock") private int hoursSinceConfigRefresh = 0;
 
     @Override public void start(@NonNull Auklet agent) throws AukletException {
@@ -39,10 +42,24 @@ public final class DataUsageMonitor extends HasAgent {
         this.limit.start(agent);
         this.tracker = new DataUsageTracker();
         this.tracker.start(agent);
-        agent.scheduleRepeatingTask(this.createMonthlyDataUsageResetTask(), 0L, 1L, TimeUnit.DAYS);
+        synchronized (this.lock) {
+            this.scheduleMonthlyDataUsageReset();
+        }
         agent.scheduleRepeatingTask(this.createDataLimitConfigRefreshTask(), 0L, 1L, TimeUnit.HOURS);
     }
 
+    /**
+     * <p>Adds the data usage limit and tracker config files to the given warm-start snapshot.</p>
+     *
+     * @param snapshot never {@code null}.
+     */
+    public void addToSnapshot(@NonNull ConfigSnapshot snapshot) {
+        synchronized (this.lock) {
+            if (this.limit != null) snapshot.add(this.limit);
+            if (this.tracker != null) snapshot.add(this.tracker);
+        }
+    }
+
     /**
      * <p>Returns the data usage limit config for this instance of the agent.</p>
      *
@@ -89,23 +106,52 @@ public final class DataUsageMonitor extends HasAgent {
     }
 
     /**
-     * <p>Creates the periodic task that resets data usage once a month.</p>
+     * <p>Schedules the task that resets data usage at the start of the next cellular plan date. If that
+     * date has already passed (e.g. because the agent was not running at the time), the task is scheduled
+     * to run immediately.</p>
      *
+     * @throws AukletException if the task cannot be scheduled.
+     */
+    @GuardedBy("lock") private void scheduleMonthlyDataUsageReset() throws AukletException {
+        if (this.monthlyResetTask != null) this.monthlyResetTask.cancel(false);
+        int planDate = this.limit.getConfig().getCellularPlanDate();
+        long now = System.currentTimeMillis();
+        long lastReset = this.tracker.getLastReset();
+        // If no reset has ever been recorded, assume that the current usage period began on the most
+        // recent plan date, which matches the behavior of older agent versions.
+        if (lastReset <= 0L) lastReset = calculatePreviousReset(now, planDate);
+        long nextReset = calculateNextReset(lastReset, planDate);
+        long delay = Math.max(0L, nextReset - now);
+        LOGGER.debug("Next monthly data usage reset in {} ms.", delay);
+        this.monthlyResetTask = this.getAgent().scheduleOneShotTask(this.createMonthlyDataUsageResetTask(nextReset), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>Creates the one-shot task that resets data usage at the given time, and then schedules the
+     * next reset.</p>
+     *
+     * @param resetTime the time at which the reset is due, in milliseconds since the epoch.
      * @return never {@code null}.
      */
-    @NonNull private Runnable createMonthlyDataUsageResetTask() {
-        return new Runnable() {
+    @NonNull private Runnable createMonthlyDataUsageResetTask(final long resetTime) {
+        return new AukletDaemonExecutor.CancelSilentlyRunnable() {
             @Override
             public void run() {
                 synchronized (lock) {
-                    if (Calendar.getInstance().get(Calendar.DAY_OF_MONTH) == limit.getConfig().getCellularPlanDate()) {
-                        if (awaitingMonthlyReset) {
-                            tracker.reset();
-                            awaitingMonthlyReset = false;
+                    monthlyResetTask = null;
+                    try {
+                        long now = System.currentTimeMillis();
+                        // The wall clock may have been adjusted since this task was scheduled, in
+                        // which case the reset is not yet due.
+                        if (now >= resetTime) {
+                            // Record the most recent plan date, rather than the current time, so that
+                            // several missed months are caught up with only one reset.
+                            tracker.reset(calculatePreviousReset(now, limit.getConfig().getCellularPlanDate()));
                             LOGGER.info("Reset monthly data usage tracker.");
                         }
-                    } else {
-                        awaitingMonthlyReset = true;
+                        scheduleMonthlyDataUsageReset();
+                    } catch (AukletException e) {
+                        LOGGER.warn("Could not schedule monthly data usage reset.", e);
                     }
                 }
             }
@@ -124,13 +170,76 @@ public final class DataUsageMonitor extends HasAgent {
                 synchronized (lock) {
                     hoursSinceConfigRefresh++;
                     if (hoursSinceConfigRefresh == 24) {
+                        int oldPlanDate = limit.getConfig().getCellularPlanDate();
                         limit.refresh();
                         hoursSinceConfigRefresh = 0;
                         LOGGER.info("Refreshed data limit config from API.");
+                        if (limit.getConfig().getCellularPlanDate() != oldPlanDate) {
+                            try {
+                                scheduleMonthlyDataUsageReset();
+                            } catch (AukletException e) {
+                                LOGGER.warn("Could not reschedule monthly data usage reset.", e);
+                            }
+                        }
                     }
                 }
             }
         };
     }
 
+    /**
+     * <p>Returns the first cellular plan date that occurs strictly after the given time. Plan dates begin
+     * at midnight local time; if the plan date does not exist in a given month, the last day of that month
+     * is used instead.</p>
+     *
+     * @param after the time in milliseconds since the epoch.
+     * @param planDate the cellular plan date (day of month).
+     * @return the next reset time in milliseconds since the epoch.
+     */
+    private static long calculateNextReset(long after, int planDate) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(after);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        setPlanDate(cal, planDate);
+        if (cal.getTimeInMillis() <= after) {
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+            cal.add(Calendar.MONTH, 1);
+            setPlanDate(cal, planDate);
+        }
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * <p>Returns the most recent cellular plan date that occurs at or before the given time.</p>
+     *
+     * @param now the time in milliseconds since the epoch.
+     * @param planDate the cellular plan date (day of month).
+     * @return the previous reset time in milliseconds since the epoch.
+     */
+    private static long calculatePreviousReset(long now, int planDate) {
+        // Every 32-day window contains at least one plan date.
+        long reset = calculateNextReset(now - MAX_DAYS_IN_MONTH_MILLIS, planDate);
+        long next = calculateNextReset(reset, planDate);
+        while (next <= now) {
+            reset = next;
+            next = calculateNextReset(reset, planDate);
+        }
+        return reset;
+    }
+
+    /**
+     * <p>Sets the day of month of the given calendar to the given plan date, clamped to the number of
+     * days in the calendar's current month.</p>
+     *
+     * @param cal never {@code null}.
+     * @param planDate the cellular plan date (day of month).
+     */
+    private static void setPlanDate(@NonNull Calendar cal, int planDate) {
+        int maxDay = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+        cal.set(Calendar.DAY_OF_MONTH, Math.max(1, Math.min(planDate, maxDay)));
+    }
+
 }
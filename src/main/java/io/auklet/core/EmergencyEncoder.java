@@ -0,0 +1,266 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.sink.AbstractSink;
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * <p>A hand-rolled MessagePack encoder for event bodies, for use when the JVM may be out of memory.</p>
+ *
+ * <p>This encoder writes the same {@link AbstractSink#EVENT_BODY_SIZE} map entries as
+ * {@link io.auklet.sink.EventEncoder#encodeEventBody(Throwable, long)}, without a fingerprint or the
+ * throwable's causes or suppressed throwables and without collapsing any frames, into an array that is
+ * allocated when the encoder is created, and does not allocate anything while encoding: map keys are
+ * pre-encoded, and strings are encoded to UTF-8 one character at a time. Only the top frames of the stack
+ * trace are encoded, and long messages are truncated at a character boundary, so that an event always
+ * fits. As in the regular encoding, a truncated message is followed by a {@code messageLength} entry.</p>
+ *
+ * <p>Obtaining a throwable's stack trace requires the JVM to copy it, so if even that allocation fails,
+ * the event is encoded without a stack trace.</p>
+ */
+@NotThreadSafe
+/*package*/ final class EmergencyEncoder {
+
+    private static final int MAX_FRAMES = 32;
+    private static final int MAX_MESSAGE_CHARS = 1024;
+    private static final int MAX_NAME_CHARS = 256;
+    private static final byte[] TIMESTAMP = encodeKey("timestamp");
+    private static final byte[] EXC_TYPE = encodeKey("excType");
+    private static final byte[] MESSAGE = encodeKey("message");
+    private static final byte[] MESSAGE_LENGTH = encodeKey("messageLength");
+    private static final byte[] STACK_TRACE = encodeKey("stackTrace");
+    private static final byte[] FUNCTION_NAME = encodeKey("functionName");
+    private static final byte[] CLASS_NAME = encodeKey("className");
+    private static final byte[] FILE_PATH = encodeKey("filePath");
+    private static final byte[] LINE_NUMBER = encodeKey("lineNumber");
+
+    private final byte[] bytes;
+    private int position = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the size of the encoding buffer. Must be large enough for an event with no stack
+     * trace and a message of the maximum length.
+     */
+    /*package*/ EmergencyEncoder(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    /**
+     * <p>Encodes the body of the given event into this encoder's buffer, starting at the given offset.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     * @param offset the offset at which to start writing.
+     * @return the offset just past the end of the encoded event body.
+     */
+    /*package*/ int encode(@NonNull Throwable throwable, long timestamp, int offset) {
+        this.position = offset;
+        this.putBytes(TIMESTAMP);
+        this.putByte(0xd3);
+        this.putLong(timestamp);
+        this.putBytes(EXC_TYPE);
+        this.putString(throwable.getClass().getName(), MAX_NAME_CHARS);
+        String message = throwable.getMessage();
+        this.putBytes(MESSAGE);
+        this.putString(message, MAX_MESSAGE_CHARS);
+        if (message != null && charsToEncode(message, MAX_MESSAGE_CHARS) < message.length()) {
+            this.putBytes(MESSAGE_LENGTH);
+            this.putByte(0xd2);
+            this.putInt(message.length());
+        }
+        this.putBytes(STACK_TRACE);
+        StackTraceElement[] stackTrace;
+        try {
+            stackTrace = throwable.getStackTrace();
+        } catch (OutOfMemoryError e) {
+            stackTrace = null;
+        }
+        // The array header is written in its 16-bit form and patched once we know how many frames fit.
+        int header = this.position;
+        this.putByte(0xdc);
+        this.putShort(0);
+        int frames = 0;
+        int limit = stackTrace == null ? 0 : Math.min(stackTrace.length, MAX_FRAMES);
+        for (; frames < limit; frames++) {
+            int frameStart = this.position;
+            if (!this.putFrame(stackTrace[frames])) {
+                this.position = frameStart;
+                break;
+            }
+        }
+        int end = this.position;
+        this.position = header + 1;
+        this.putShort(frames);
+        return end;
+    }
+
+    /**
+     * <p>Returns this encoder's buffer.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull /*package*/ byte[] array() {
+        return this.bytes;
+    }
+
+    /**
+     * <p>Encodes the given stack frame, if it fits.</p>
+     *
+     * @param frame never {@code null}.
+     * @return {@code true} if the frame was encoded, {@code false} if the buffer is full.
+     */
+    private boolean putFrame(@NonNull StackTraceElement frame) {
+        int lineNumber = frame.getLineNumber();
+        String fileName = frame.getFileName();
+        int size = 1 + FUNCTION_NAME.length + CLASS_NAME.length + FILE_PATH.length + LINE_NUMBER.length + 5
+                + stringSize(frame.getMethodName(), MAX_NAME_CHARS)
+                + stringSize(frame.getClassName(), MAX_NAME_CHARS)
+                + stringSize(fileName, MAX_NAME_CHARS);
+        if (size > this.bytes.length - this.position) return false;
+        this.putByte(0x84);
+        this.putBytes(FUNCTION_NAME);
+        this.putString(frame.getMethodName(), MAX_NAME_CHARS);
+        this.putBytes(CLASS_NAME);
+        this.putString(frame.getClassName(), MAX_NAME_CHARS);
+        this.putBytes(FILE_PATH);
+        this.putString(fileName, MAX_NAME_CHARS);
+        this.putBytes(LINE_NUMBER);
+        this.putByte(0xd2);
+        // Normalize all negative line numbers, as the regular encoder does.
+        this.putInt(lineNumber < 0 ? -1 : lineNumber);
+        return true;
+    }
+
+    /**
+     * <p>Encodes the given string as a MessagePack string, truncated to the given number of characters.
+     * {@code null} is encoded as the empty string.</p>
+     *
+     * @param s may be {@code null}.
+     * @param maxChars the maximum number of characters to encode.
+     */
+    private void putString(@Nullable String s, int maxChars) {
+        int chars = charsToEncode(s, maxChars);
+        int length = utf8Length(s, chars);
+        if (length < 32) {
+            this.putByte(0xa0 | length);
+        } else if (length < 256) {
+            this.putByte(0xd9);
+            this.putByte(length);
+        } else {
+            this.putByte(0xda);
+            this.putShort(length);
+        }
+        for (int i = 0; i < chars; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                this.putByte(c);
+            } else if (c < 0x800) {
+                this.putByte(0xc0 | (c >> 6));
+                this.putByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                this.putByte(0xf0 | (cp >> 18));
+                this.putByte(0x80 | ((cp >> 12) & 0x3f));
+                this.putByte(0x80 | ((cp >> 6) & 0x3f));
+                this.putByte(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced, as String.getBytes() does.
+                this.putByte('?');
+            } else {
+                this.putByte(0xe0 | (c >> 12));
+                this.putByte(0x80 | ((c >> 6) & 0x3f));
+                this.putByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void putBytes(@NonNull byte[] b) {
+        System.arraycopy(b, 0, this.bytes, this.position, b.length);
+        this.position += b.length;
+    }
+
+    private void putByte(int b) {
+        this.bytes[this.position++] = (byte) b;
+    }
+
+    private void putShort(int v) {
+        this.putByte(v >>> 8);
+        this.putByte(v);
+    }
+
+    private void putInt(int v) {
+        this.putShort(v >>> 16);
+        this.putShort(v);
+    }
+
+    private void putLong(long v) {
+        this.putInt((int) (v >>> 32));
+        this.putInt((int) v);
+    }
+
+    /**
+     * <p>Returns the number of bytes that {@link #putString(String, int)} writes for the given string.</p>
+     *
+     * @param s may be {@code null}.
+     * @param maxChars the maximum number of characters to encode.
+     * @return a positive number.
+     */
+    private static int stringSize(@Nullable String s, int maxChars) {
+        int length = utf8Length(s, charsToEncode(s, maxChars));
+        return length + (length < 32 ? 1 : length < 256 ? 2 : 3);
+    }
+
+    /**
+     * <p>Returns the number of characters of the given string to encode, without splitting a surrogate
+     * pair.</p>
+     *
+     * @param s may be {@code null}.
+     * @param maxChars the maximum number of characters to encode.
+     * @return a non-negative number.
+     */
+    private static int charsToEncode(@Nullable String s, int maxChars) {
+        if (s == null) return 0;
+        int chars = Math.min(s.length(), maxChars);
+        if (chars > 0 && chars < s.length() && Character.isHighSurrogate(s.charAt(chars - 1))) chars--;
+        return chars;
+    }
+
+    /**
+     * <p>Returns the UTF-8 length of the first characters of the given string.</p>
+     *
+     * @param s may be {@code null} if {@code chars} is zero.
+     * @param chars the number of characters.
+     * @return a non-negative number.
+     */
+    private static int utf8Length(@Nullable String s, int chars) {
+        int length = 0;
+        for (int i = 0; i < chars; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) length += 1;
+            else length += 3;
+        }
+        return length;
+    }
+
+    /**
+     * <p>Pre-encodes the given ASCII map key as a MessagePack string.</p>
+     *
+     * @param key never {@code null}. Must be shorter than 32 characters.
+     * @return never {@code null}.
+     */
+    @NonNull private static byte[] encodeKey(@NonNull String key) {
+        byte[] encoded = new byte[key.length() + 1];
+        encoded[0] = (byte) (0xa0 | key.length());
+        for (int i = 0; i < key.length(); i++) encoded[i + 1] = (byte) key.charAt(i);
+        return encoded;
+    }
+
+}
@@ -0,0 +1,69 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>A bounded, in-memory buffer of encoded events. When the buffer is full, the oldest event is
+ * dropped to make room for the newest one.</p>
+ */
+@ThreadSafe
+public final class EventBuffer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventBuffer.class);
+
+    private final int capacity;
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final Deque<byte[]> events = new ArrayDeque<>();
+    @GuardedBy("lock") private long dropped = 0L;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of events to buffer. Must be positive.
+     * @throws IllegalArgumentException if the capacity is not positive.
+     */
+    public EventBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+        this.capacity = capacity;
+    }
+
+    /**
+     * <p>Adds the given encoded event to this buffer, dropping the oldest buffered event if the buffer is full.</p>
+     *
+     * @param event never {@code null}.
+     */
+    public void add(@NonNull byte[] event) {
+        synchronized (this.lock) {
+            if (this.events.size() == this.capacity) {
+                this.events.removeFirst();
+                this.dropped++;
+            }
+            this.events.addLast(event);
+        }
+    }
+
+    /**
+     * <p>Removes and returns all buffered events, oldest first.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public List<byte[]> drain() {
+        synchronized (this.lock) {
+            if (this.dropped > 0) LOGGER.warn("Event buffer was full; {} oldest events were dropped.", this.dropped);
+            List<byte[]> drained = new ArrayList<>(this.events);
+            this.events.clear();
+            this.dropped = 0L;
+            return drained;
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.util.FileUtil;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>A bounded, on-disk spool of encoded events, located in the agent's configuration directory. Events
+ * are spooled while the agent cannot reach the Auklet API, and are sent once the agent starts.</p>
+ *
+ * <p>Each event is appended as a length-prefixed record. If the process dies partway through an append,
+ * the truncated record is discarded when the spool is next read; all prior records are preserved.</p>
+ *
+ * <p>Spooled events are replayed at least once. When the spool is {@link #drain() drained}, its events are
+ * moved to a replay file, where they are kept until the agent {@link #release() releases} them once they
+ * have been delivered or spooled again. If the process dies before then, the events in the replay file
+ * are returned again, ahead of any newly spooled events, when the spool is next drained.</p>
+ *
+ * <p>All instances for the same spool file share one lock, so instances that are created independently
+ * (for example, one for degraded mode and one for replaying journaled crashes) can safely be used
+ * concurrently.</p>
+ */
+@ThreadSafe
+public final class EventSpool {
+
+    public static final String FILENAME = "spool";
+    public static final String REPLAY_FILENAME = "spool-replay";
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSpool.class);
+    private static final long MAX_SIZE = 512L * 1024L;
+    // Keyed by canonical spool file path; there is one entry per configuration directory ever used.
+    private static final ConcurrentMap<File, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private final Object lock;
+    @GuardedBy("lock") private final File file;
+    @GuardedBy("lock") private final File replayFile;
+
+    /**
+     * Constructor.
+     *
+     * @param configDir the agent's configuration directory. Never {@code null}.
+     */
+    public EventSpool(@NonNull File configDir) {
+        this.file = canonicalFile(new File(configDir, FILENAME));
+        this.replayFile = new File(this.file.getParentFile(), REPLAY_FILENAME);
+        Object newLock = new Object();
+        Object existingLock = LOCKS.putIfAbsent(this.file, newLock);
+        this.lock = existingLock == null ? newLock : existingLock;
+    }
+
+    /**
+     * <p>Returns the canonical form of the given file, so that all paths to a spool file share its lock.</p>
+     *
+     * @param file never {@code null}.
+     * @return the absolute form of the file if its canonical form cannot be determined. Never {@code null}.
+     */
+    @NonNull private static File canonicalFile(@NonNull File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException | SecurityException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * <p>Appends the given encoded event to this spool.</p>
+     *
+     * @param event never {@code null}.
+     * @return {@code true} if the event was spooled, {@code false} if the spool is full or cannot be written.
+     */
+    public boolean append(@NonNull byte[] event) {
+        synchronized (this.lock) {
+            try {
+                if (this.file.length() + 4 + event.length > MAX_SIZE) {
+                    LOGGER.warn("Event spool is full; dropping event.");
+                    return false;
+                }
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file, true)))) {
+                    out.writeInt(event.length);
+                    out.write(event);
+                }
+                return true;
+            } catch (IOException | SecurityException e) {
+                LOGGER.warn("Could not spool event.", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * <p>Returns all spooled events, oldest first, and moves them to the replay file, where they are kept
+     * until {@link #release()} is called. Events that are still in the replay file because they were never
+     * released are returned first.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public List<byte[]> drain() {
+        synchronized (this.lock) {
+            List<byte[]> events = readEvents(this.replayFile);
+            List<byte[]> spooled = readEvents(this.file);
+            if (spooled.isEmpty()) return events;
+            events.addAll(spooled);
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                for (byte[] event : events) {
+                    out.writeInt(event.length);
+                    out.write(event);
+                }
+                FileUtil.writeAtomically(this.replayFile, bytes.toByteArray(), false);
+                FileUtil.deleteQuietly(this.file);
+            } catch (IOException | SecurityException e) {
+                // The events stay in the spool, so they are replayed again when the spool is next drained.
+                LOGGER.warn("Could not move spooled events to the replay file.", e);
+            }
+            return events;
+        }
+    }
+
+    /**
+     * <p>Discards the events that were returned by {@link #drain()}, because they have been delivered or
+     * spooled again.</p>
+     */
+    public void release() {
+        synchronized (this.lock) {
+            FileUtil.deleteQuietly(this.replayFile);
+        }
+    }
+
+    /**
+     * <p>Reads the records in the given spool file.</p>
+     *
+     * @param file never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull private static List<byte[]> readEvents(@NonNull File file) {
+        List<byte[]> events = new ArrayList<>();
+        try {
+            byte[] bytes = FileUtil.read(file);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            while (in.available() >= 4) {
+                int length = in.readInt();
+                if (length < 0 || length > in.available()) {
+                    LOGGER.warn("Discarding truncated event at the end of the event spool.");
+                    break;
+                }
+                byte[] event = new byte[length];
+                in.readFully(event);
+                events.add(event);
+            }
+        } catch (IOException | SecurityException e) {
+            LOGGER.warn("Could not read event spool.", e);
+        }
+        return events;
+    }
+
+}
@@ -0,0 +1,66 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.LatencySnapshot;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock-free histogram of durations, with buckets whose bounds are successive powers of two
+ * microseconds. Recording a duration costs a few atomic increments and never allocates, so histograms
+ * can be left enabled in production.</p>
+ */
+@ThreadSafe
+public final class LatencyHistogram {
+
+    // Bucket 0 holds durations under 1us; bucket i holds durations in [2^(i-1), 2^i) us. The last
+    // bucket also holds all longer durations (2^38us is over three days).
+    /*package*/ static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * <p>Records the given duration.</p>
+     *
+     * @param nanos the duration, in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        this.buckets.incrementAndGet(bucketFor(nanos));
+        this.count.incrementAndGet();
+        this.totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = this.maxNanos.get())) {
+            if (this.maxNanos.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    /**
+     * <p>Returns a point-in-time copy of this histogram.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public LatencySnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) counts[i] = this.buckets.get(i);
+        return new LatencySnapshot(counts, this.count.get(), this.totalNanos.get(), this.maxNanos.get());
+    }
+
+    /**
+     * <p>Returns the index of the bucket that holds the given duration.</p>
+     *
+     * @param nanos a non-negative duration, in nanoseconds.
+     * @return a bucket index.
+     */
+    private static int bucketFor(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+}
@@ -0,0 +1,222 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.Auklet;
+import io.auklet.AukletException;
+import io.auklet.util.FileUtil;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>This class performs all writes to files in the agent's configuration directory. Every write replaces
+ * the target file atomically, so a crash can never leave a partially-written file behind, and the bytes
+ * are forced to the storage device according to the configured {@link FsyncPolicy}.</p>
+ *
+ * <p>Files that change frequently can be written with {@link #writeLater(File, byte[], long, TimeUnit)},
+ * which coalesces all writes to the same file that occur within the given delay into a single write of
+ * the latest contents. Callers whose contents are expensive to serialize can instead pass
+ * {@link Contents}, which are only serialized when the coalesced write happens. Pending writes are
+ * flushed by {@link #flush()} when the agent shuts down.</p>
+ */
+@ThreadSafe
+public final class PersistenceService extends HasAgent {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceService.class);
+
+    /** <p>Controls when written bytes are forced to the storage device.</p> */
+    public enum FsyncPolicy {
+        /** <p>Every write is synced.</p> */
+        ALWAYS,
+        /** <p>Only writes of files that would need to be re-obtained from the API if lost are synced.</p> */
+        CRITICAL,
+        /** <p>No writes are synced; the OS decides when to flush its caches.</p> */
+        NEVER;
+
+        /**
+         * <p>Returns the policy with the given name, ignoring case.</p>
+         *
+         * @param name may be {@code null}.
+         * @return {@code null} if the input is {@code null} or is not a valid policy name.
+         */
+        @CheckForNull public static FsyncPolicy fromString(@Nullable String name) {
+            if (name == null) return null;
+            try {
+                return FsyncPolicy.valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /** <p>The contents of a deferred write, which are serialized only when the write happens.</p> */
+    public interface Contents {
+        /**
+         * <p>Serializes the current contents of the file. This is invoked once per write, on any thread,
+         * while other writes wait, so it must not itself write to the persistence service.</p>
+         *
+         * @return never {@code null}.
+         * @throws IOException if the contents cannot be serialized.
+         */
+        @NonNull byte[] toBytes() throws IOException;
+    }
+
+    private final FsyncPolicy fsyncPolicy;
+    // Serializes all disk writes, so that an older write can never land after a newer one.
+    private final Object writeLock = new Object();
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final Map<File, Contents> pendingWrites = new HashMap<>();
+    // One timer per file, rescheduled for each deferred write rather than scheduling a new task.
+    @GuardedBy("lock") private final Map<File, ScheduledFuture<?>> writeTimers = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param fsyncPolicy the fsync policy to apply to all writes. Never {@code null}.
+     */
+    public PersistenceService(@NonNull FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        this.setAgent(agent);
+    }
+
+    /**
+     * <p>Writes the given bytes to the given file immediately, superseding any pending write to that file.</p>
+     *
+     * @param file never {@code null}.
+     * @param bytes never {@code null}.
+     * @param critical {@code true} if the file would need to be re-obtained from the API if it were lost.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(@NonNull File file, @NonNull byte[] bytes, boolean critical) throws IOException {
+        synchronized (this.writeLock) {
+            synchronized (this.lock) {
+                this.pendingWrites.remove(file);
+            }
+            this.doWrite(file, bytes, critical);
+        }
+    }
+
+    /**
+     * <p>Writes the given bytes to the given file after the given delay. If another write to the same file
+     * is requested before then, only the latest contents are written; the delay is not extended.</p>
+     *
+     * @param file never {@code null}.
+     * @param bytes never {@code null}.
+     * @param delay the maximum amount of time for which the write may be deferred.
+     * @param unit never {@code null}.
+     */
+    public void writeLater(@NonNull File file, @NonNull final byte[] bytes, long delay, @NonNull TimeUnit unit) {
+        this.writeLater(file, new Contents() {
+            @Override public byte[] toBytes() {
+                return bytes;
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * <p>Writes the given contents to the given file after the given delay. If another write to the same
+     * file is requested before then, only the latest contents are written; the delay is not extended. The
+     * contents are serialized when the write happens, not when it is requested.</p>
+     *
+     * <p>If the write cannot be deferred, it happens immediately on the calling thread, so the caller
+     * must not hold any lock that the contents take while serializing.</p>
+     *
+     * @param file never {@code null}.
+     * @param contents never {@code null}.
+     * @param delay the maximum amount of time for which the write may be deferred.
+     * @param unit never {@code null}.
+     */
+    public void writeLater(@NonNull final File file, @NonNull Contents contents, long delay, @NonNull TimeUnit unit) {
+        boolean scheduled = false;
+        synchronized (this.lock) {
+            boolean alreadyScheduled = this.pendingWrites.containsKey(file);
+            this.pendingWrites.put(file, contents);
+            if (alreadyScheduled) return;
+            try {
+                ScheduledFuture<?> timer = this.writeTimers.get(file);
+                if (timer == null) {
+                    timer = this.getAgent().scheduleOneShotTask(new AukletDaemonExecutor.CancelSilentlyRunnable() {
+                        @Override public void run() {
+                            writePending(file);
+                        }
+                    }, delay, unit);
+                    this.writeTimers.put(file, timer);
+                } else {
+                    this.getAgent().rescheduleOneShotTask(timer, delay, unit);
+                }
+                scheduled = true;
+            } catch (AukletException e) {
+                LOGGER.debug("Could not defer write of file '{}', writing now.", file.getName(), e);
+            }
+        }
+        // Written outside the lock, because writes take the write lock first.
+        if (!scheduled) this.writePending(file);
+    }
+
+    /** <p>Immediately writes all pending files to disk.</p> */
+    public void flush() {
+        synchronized (this.writeLock) {
+            Map<File, Contents> toWrite;
+            synchronized (this.lock) {
+                toWrite = new LinkedHashMap<>(this.pendingWrites);
+                this.pendingWrites.clear();
+            }
+            for (Map.Entry<File, Contents> write : toWrite.entrySet()) {
+                try {
+                    this.doWrite(write.getKey(), write.getValue().toBytes(), false);
+                } catch (IOException e) {
+                    LOGGER.warn("Could not save file '{}' to disk.", write.getKey().getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Writes the pending contents of the given file, if there are any.</p>
+     *
+     * @param file never {@code null}.
+     */
+    private void writePending(@NonNull File file) {
+        synchronized (this.writeLock) {
+            Contents contents;
+            synchronized (this.lock) {
+                contents = this.pendingWrites.remove(file);
+            }
+            if (contents == null) return;
+            try {
+                this.doWrite(file, contents.toBytes(), false);
+            } catch (IOException e) {
+                LOGGER.warn("Could not save file '{}' to disk.", file.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * <p>Atomically writes the given bytes to the given file, applying the fsync policy.</p>
+     *
+     * @param file never {@code null}.
+     * @param bytes never {@code null}.
+     * @param critical {@code true} if the file would need to be re-obtained from the API if it were lost.
+     * @throws IOException if the file cannot be written.
+     */
+    @GuardedBy("writeLock") private void doWrite(@NonNull File file, @NonNull byte[] bytes, boolean critical) throws IOException {
+        boolean sync = this.fsyncPolicy == FsyncPolicy.ALWAYS || (critical && this.fsyncPolicy == FsyncPolicy.CRITICAL);
+        FileUtil.writeAtomically(file, bytes, sync);
+    }
+
+}
@@ -0,0 +1,471 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+
+/**
+ * <p>A hashed timing wheel that schedules the agent's timers (debounced writes, retries, periodic
+ * refreshes, etc.).</p>
+ *
+ * <p>Time is divided into ticks of fixed duration, and each timer is linked into the wheel bucket for
+ * the tick in which it expires, along with the number of full revolutions of the wheel that must pass
+ * first. Timers are intrusive doubly-linked list nodes, so scheduling and cancelling a timer are O(1),
+ * cancelled timers are unlinked immediately rather than left in a queue, and repeating timers are
+ * re-linked in place. Expired timers are run on the given executor, never on the timer thread
+ * itself.</p>
+ *
+ * <p>Each call to {@code schedule} allocates one timer, which is also the {@link ScheduledFuture}
+ * returned to the caller. Callers that schedule the same one-shot task over and over (debounced writes,
+ * retries) should instead {@link #reschedule(ScheduledFuture, long, TimeUnit) reschedule} the timer that
+ * they already hold, which re-links it without allocating. An expired timer is put into the executor's
+ * queue as is, subject to its queue bound, rather than being submitted and wrapped like other tasks, so
+ * running a timer allocates nothing either.</p>
+ *
+ * <p>Timers are instrumented by the executor under their task's type: pending timers and timers
+ * that are cancelled before they expire are counted in its {@link AukletDaemonExecutor#getStats()
+ * stats}, even though they are not in its queue, and timers record their own queue and run times.</p>
+ *
+ * <p>Timers never expire early, and expire at most one tick late if the timer thread is not delayed.
+ * The timer thread only wakes up for ticks whose buckets contain timers, and does not run at all while
+ * no timers are scheduled.</p>
+ */
+@ThreadSafe
+public final class TimingWheel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimingWheel.class);
+    // Keeps deadlines far enough from Long.MAX_VALUE that tick arithmetic cannot overflow.
+    private static final long MAX_DELAY_NANOS = Long.MAX_VALUE >> 2;
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+    private static final int FAILED = 4;
+
+    private final AukletDaemonExecutor executor;
+    private final ThreadFactory threadFactory;
+    private final long tickNanos;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final Timer[] buckets;
+    // The next tick to be processed; all buckets for earlier ticks have already been processed.
+    @GuardedBy("lock") private long tick = 0L;
+    @GuardedBy("lock") private int size = 0;
+    @GuardedBy("lock") private Thread worker = null;
+
+    /**
+     * Constructor.
+     *
+     * @param executor the executor on which expired timers are run. Never {@code null}.
+     * @param threadFactory the factory for the timer thread. Never {@code null}.
+     * @param tickDuration the duration of one tick. Must be positive.
+     * @param unit the unit of the tick duration. Never {@code null}.
+     * @param ticksPerWheel the number of buckets in the wheel. Must be a positive power of two.
+     * @throws IllegalArgumentException if any argument is invalid.
+     */
+    public TimingWheel(@NonNull AukletDaemonExecutor executor, @NonNull ThreadFactory threadFactory, long tickDuration, @NonNull TimeUnit unit, int ticksPerWheel) {
+        if (executor == null) throw new IllegalArgumentException("Executor is null.");
+        if (threadFactory == null) throw new IllegalArgumentException("Thread factory is null.");
+        if (unit == null) throw new IllegalArgumentException("Tick duration unit is null.");
+        if (tickDuration <= 0) throw new IllegalArgumentException("Tick duration must be positive.");
+        if (ticksPerWheel <= 0 || (ticksPerWheel & (ticksPerWheel - 1)) != 0) throw new IllegalArgumentException("Ticks per wheel must be a positive power of two.");
+        this.executor = executor;
+        this.threadFactory = threadFactory;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.buckets = new Timer[ticksPerWheel];
+        this.mask = ticksPerWheel - 1;
+    }
+
+    /**
+     * <p>Schedules the given one-shot task.</p>
+     *
+     * @param command the task to execute. Never {@code null}.
+     * @param delay the time from now to delay execution.
+     * @param unit the time unit of the delay parameter. Never {@code null}.
+     * @return never {@code null}.
+     * @throws IllegalArgumentException if any argument is invalid.
+     * @see ScheduledExecutorService#schedule(Runnable, long, TimeUnit)
+     */
+    @NonNull public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit) {
+        return this.schedule(command, delay, 0L, unit);
+    }
+
+    /**
+     * <p>Schedules the given task to run repeatedly at a fixed rate. If any execution of the task throws
+     * an exception, subsequent executions are suppressed.</p>
+     *
+     * @param command the task to execute. Never {@code null}.
+     * @param initialDelay the time to delay first execution.
+     * @param period the period between successive executions. Must be positive.
+     * @param unit the time unit of the initialDelay and period parameters. Never {@code null}.
+     * @return never {@code null}.
+     * @throws IllegalArgumentException if any argument is invalid.
+     * @see ScheduledExecutorService#scheduleAtFixedRate(Runnable, long, long, TimeUnit)
+     */
+    @NonNull public ScheduledFuture<?> scheduleAtFixedRate(@NonNull Runnable command, long initialDelay, long period, @NonNull TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException("Period must be positive.");
+        return this.schedule(command, initialDelay, period, unit);
+    }
+
+    /**
+     * <p>Schedules a one-shot timer that was returned by {@link #schedule(Runnable, long, TimeUnit)} to
+     * run its task again, re-using the timer rather than allocating a new one. If the timer is pending,
+     * its deadline is moved. If its task is queued or running, the task runs again after the given delay
+     * or once the current run has finished, whichever is later. Otherwise, the timer is re-linked into
+     * the wheel as if it had just been scheduled.</p>
+     *
+     * @param future the timer. Never {@code null}.
+     * @param delay the time from now to delay execution.
+     * @param unit the time unit of the delay parameter. Never {@code null}.
+     * @throws IllegalArgumentException if any argument is invalid, or if the timer was not returned by
+     * this wheel's {@code schedule} method for a one-shot task.
+     */
+    public void reschedule(@NonNull ScheduledFuture<?> future, long delay, @NonNull TimeUnit unit) {
+        if (!(future instanceof Timer) || ((Timer) future).wheel() != this) throw new IllegalArgumentException("Timer was not scheduled by this timing wheel.");
+        if (unit == null) throw new IllegalArgumentException("Task time unit is null.");
+        Timer timer = (Timer) future;
+        if (timer.periodNanos > 0) throw new IllegalArgumentException("Repeating timers cannot be rescheduled.");
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(Math.max(delay, 0L)), MAX_DELAY_NANOS);
+        synchronized (this.lock) {
+            if (timer.state == RUNNING) {
+                // The timer may be in the executor's queue, which orders it by its current deadline.
+                timer.rearmDeadline = deadline;
+                timer.rearm = true;
+                return;
+            }
+            if (timer.state == PENDING) this.unlink(timer);
+            timer.failure = null;
+            timer.deadline = deadline;
+            this.link(timer);
+            if (this.worker == null) this.startWorker();
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * <p>Creates a timer and links it into the wheel.</p>
+     *
+     * @param command never {@code null}.
+     * @param delay the time from now to delay the first execution.
+     * @param period the period between successive executions, or zero for a one-shot timer.
+     * @param unit never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull private Timer schedule(@NonNull Runnable command, long delay, long period, @NonNull TimeUnit unit) {
+        if (command == null) throw new IllegalArgumentException("Task is null.");
+        if (unit == null) throw new IllegalArgumentException("Task time unit is null.");
+        long delayNanos = Math.min(unit.toNanos(Math.max(delay, 0L)), MAX_DELAY_NANOS);
+        long periodNanos = Math.min(unit.toNanos(period), MAX_DELAY_NANOS);
+        Timer timer = new Timer(command, this.executor.statsFor(command), System.nanoTime() + delayNanos, periodNanos);
+        synchronized (this.lock) {
+            this.link(timer);
+            if (this.worker == null) this.startWorker();
+            // The timer thread may be sleeping until a later tick than the one for this timer.
+            this.lock.notifyAll();
+        }
+        return timer;
+    }
+
+    /**
+     * <p>Links the given timer into the bucket for the tick in which its deadline falls.</p>
+     *
+     * @param timer never {@code null}.
+     */
+    @GuardedBy("lock") private void link(@NonNull Timer timer) {
+        long now = System.nanoTime();
+        // While no timers are scheduled, the timer thread does not process ticks, so catch up first.
+        if (this.size == 0) this.tick = Math.max(this.tick, (now - this.startNanos) / this.tickNanos);
+        long ticks = Math.max((timer.deadline - this.startNanos) / this.tickNanos, this.tick);
+        timer.rounds = (ticks - this.tick) / this.buckets.length;
+        timer.bucket = (int) (ticks & this.mask);
+        timer.prev = null;
+        timer.next = this.buckets[timer.bucket];
+        if (timer.next != null) timer.next.prev = timer;
+        this.buckets[timer.bucket] = timer;
+        timer.state = PENDING;
+        this.size++;
+        this.executor.timerPending(timer.stats, 1);
+    }
+
+    /**
+     * <p>Removes the given timer from its bucket.</p>
+     *
+     * @param timer never {@code null}.
+     */
+    @GuardedBy("lock") private void unlink(@NonNull Timer timer) {
+        if (timer.prev == null) this.buckets[timer.bucket] = timer.next;
+        else timer.prev.next = timer.next;
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        this.size--;
+        this.executor.timerPending(timer.stats, -1);
+    }
+
+    /** <p>Starts the timer thread.</p> */
+    @GuardedBy("lock") private void startWorker() {
+        this.worker = this.threadFactory.newThread(new Runnable() {
+            @Override public void run() {
+                runWorker();
+            }
+        });
+        this.worker.start();
+    }
+
+    /** <p>The timer thread's main loop, which waits for each non-empty bucket's tick and expires it.</p> */
+    private void runWorker() {
+        try {
+            while (true) {
+                Timer expired;
+                synchronized (this.lock) {
+                    int ticksAhead = this.ticksUntilNonEmptyBucket();
+                    if (ticksAhead < 0) {
+                        this.lock.wait();
+                        continue;
+                    }
+                    long target = this.tick + ticksAhead;
+                    long waitNanos = this.startNanos + (target + 1) * this.tickNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this.lock, waitNanos);
+                        continue;
+                    }
+                    // All buckets between the current tick and the target tick are empty.
+                    this.tick = target;
+                    expired = this.expireBucket();
+                    this.tick++;
+                }
+                this.dispatch(expired);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Auklet timer thread interrupted; restarting it.", e);
+        } finally {
+            synchronized (this.lock) {
+                this.worker = null;
+                if (this.size > 0) this.startWorker();
+            }
+        }
+    }
+
+    /**
+     * <p>Returns how many ticks from the current tick the next non-empty bucket is.</p>
+     *
+     * @return {@code -1} if the wheel is empty.
+     */
+    @GuardedBy("lock") private int ticksUntilNonEmptyBucket() {
+        if (this.size == 0) return -1;
+        for (int i = 0; i < this.buckets.length; i++) {
+            if (this.buckets[(int) ((this.tick + i) & this.mask)] != null) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * <p>Unlinks all timers in the current tick's bucket that are due in this revolution of the wheel,
+     * and counts down the remaining revolutions of the others.</p>
+     *
+     * @return the expired timers, chained via {@link Timer#next}. May be {@code null}.
+     */
+    @GuardedBy("lock") @CheckForNull private Timer expireBucket() {
+        Timer expired = null;
+        Timer timer = this.buckets[(int) (this.tick & this.mask)];
+        while (timer != null) {
+            Timer next = timer.next;
+            if (timer.rounds <= 0) {
+                this.unlink(timer);
+                timer.state = RUNNING;
+                timer.next = expired;
+                expired = timer;
+            } else {
+                timer.rounds--;
+            }
+            timer = next;
+        }
+        return expired;
+    }
+
+    /**
+     * <p>Runs the given expired timers on the executor.</p>
+     *
+     * @param expired the expired timers, chained via {@link Timer#next}. May be {@code null}.
+     */
+    private void dispatch(@Nullable Timer expired) {
+        while (expired != null) {
+            Timer timer = expired;
+            synchronized (this.lock) {
+                expired = timer.next;
+                timer.next = null;
+            }
+            try {
+                this.executor.executeTimer(timer, timer.stats);
+            } catch (RejectedExecutionException e) {
+                LOGGER.warn("Could not run Auklet timer task.", e);
+                timer.complete(e);
+            }
+        }
+    }
+
+    /** <p>A timer that is scheduled in this wheel.</p> */
+    private final class Timer implements AukletDaemonExecutor.ExpiredTimer, AukletDaemonExecutor.TaskWrapper {
+
+        private final Runnable command;
+        private final AukletDaemonExecutor.TaskTypeStats stats;
+        private final long periodNanos;
+        @GuardedBy("lock") private long deadline;
+        @GuardedBy("lock") private long rounds;
+        @GuardedBy("lock") private int bucket;
+        @GuardedBy("lock") private Timer prev;
+        @GuardedBy("lock") private Timer next;
+        @GuardedBy("lock") private int state = PENDING;
+        @GuardedBy("lock") private Throwable failure;
+        // Set when a one-shot timer is rescheduled while its task is queued or running.
+        @GuardedBy("lock") private boolean rearm;
+        @GuardedBy("lock") private long rearmDeadline;
+
+        private Timer(@NonNull Runnable command, @NonNull AukletDaemonExecutor.TaskTypeStats stats, long deadline, long periodNanos) {
+            this.command = command;
+            this.stats = stats;
+            this.deadline = deadline;
+            this.periodNanos = periodNanos;
+        }
+
+        @Override @NonNull public Object getTask() {
+            return this.command;
+        }
+
+        @NonNull private TimingWheel wheel() {
+            return TimingWheel.this;
+        }
+
+        /* The executor must not re-queue the timer itself; repeating timers are re-linked instead. */
+        @Override public boolean isPeriodic() {
+            return false;
+        }
+
+        /* Runs on the executor, which does not instrument timers, so the timer records its own stats. */
+        @Override public void run() {
+            long startNanos = System.nanoTime();
+            long deadline;
+            synchronized (lock) {
+                if (this.state != RUNNING) return;
+                deadline = this.deadline;
+            }
+            executor.timerStarted(this.stats, startNanos - deadline);
+            Throwable failure = null;
+            try {
+                this.command.run();
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            }
+            executor.timerFinished(this.stats, System.nanoTime() - startNanos, failure);
+            synchronized (lock) {
+                if (this.state != RUNNING) return;
+                if (this.rearm) {
+                    this.rearm = false;
+                    this.deadline = this.rearmDeadline;
+                    link(this);
+                } else if (failure != null) {
+                    this.state = FAILED;
+                    this.failure = failure;
+                } else if (this.periodNanos > 0) {
+                    this.deadline += this.periodNanos;
+                    link(this);
+                } else {
+                    this.state = DONE;
+                }
+                lock.notifyAll();
+            }
+        }
+
+        /**
+         * <p>Completes this timer because its task could not be run.</p>
+         *
+         * @param cause never {@code null}.
+         */
+        private void complete(@NonNull Throwable cause) {
+            synchronized (lock) {
+                if (this.state != RUNNING) return;
+                this.rearm = false;
+                this.state = FAILED;
+                this.failure = cause;
+                lock.notifyAll();
+            }
+        }
+
+        /* The task is never interrupted; if it is running, only its subsequent executions are suppressed. */
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (lock) {
+                if (this.state == PENDING) unlink(this);
+                else if (this.state != RUNNING) return false;
+                this.rearm = false;
+                this.state = CANCELLED;
+                lock.notifyAll();
+            }
+            executor.timerCancelled(this.stats, this.command);
+            return true;
+        }
+
+        @Override public boolean isCancelled() {
+            synchronized (lock) {
+                return this.state == CANCELLED;
+            }
+        }
+
+        @Override public boolean isDone() {
+            synchronized (lock) {
+                return this.state > RUNNING;
+            }
+        }
+
+        @Override public long getDelay(@NonNull TimeUnit unit) {
+            synchronized (lock) {
+                return unit.convert(this.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override public int compareTo(@NonNull Delayed o) {
+            if (o == this) return 0;
+            long diff = this.getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
+        @Override public Object get() throws InterruptedException, ExecutionException {
+            synchronized (lock) {
+                while (this.state <= RUNNING) lock.wait();
+                return this.result();
+            }
+        }
+
+        @Override public Object get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long waitUntil = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (lock) {
+                while (this.state <= RUNNING) {
+                    long waitNanos = waitUntil - System.nanoTime();
+                    if (waitNanos <= 0) throw new TimeoutException();
+                    TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+                }
+                return this.result();
+            }
+        }
+
+        /**
+         * <p>Reports the result of this completed timer.</p>
+         *
+         * @return always {@code null}.
+         * @throws ExecutionException if the task failed.
+         */
+        @GuardedBy("lock") @CheckForNull private Object result() throws ExecutionException {
+            if (this.state == CANCELLED) throw new CancellationException();
+            if (this.state == FAILED) throw new ExecutionException(this.failure);
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,218 @@
+package io.auklet.net;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A circuit breaker for requests to a remote service, which also derives request timeouts from the
+ * service's observed latency.</p>
+ *
+ * <p>While the circuit is closed, requests are allowed, and each request's timeout is a multiple of the
+ * 99th percentile latency of recent successful requests, bounded to a sensible range. Latencies exclude
+ * the time spent setting up new connections (DNS, TCP and TLS handshakes), which is far slower than a
+ * request over a pooled connection; instead, requests that may need a new connection get a higher
+ * minimum timeout, so that a cold handshake is not counted as a failure. After several
+ * consecutive failures the circuit opens, and requests fail immediately without touching the network.
+ * Once the open period has elapsed, the circuit becomes half-open and allows a single probe request;
+ * if the probe succeeds the circuit closes, and otherwise it re-opens for twice as long, up to a limit.
+ * Open periods are randomly jittered so that many devices do not probe the service in lockstep after
+ * an outage.</p>
+ */
+@ThreadSafe
+public final class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final double OPEN_JITTER = 0.2d;
+    private static final int LATENCY_WINDOW = 100;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static final long TIMEOUT_MULTIPLIER = 4L;
+    private static final long MIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(3);
+    private static final long MIN_NEW_CONNECTION_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final long MAX_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** <p>The state of a circuit breaker.</p> */
+    public enum State {
+        /** <p>Requests are allowed.</p> */
+        CLOSED,
+        /** <p>Requests fail immediately.</p> */
+        OPEN,
+        /** <p>A single probe request is allowed, to determine whether the circuit should close.</p> */
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final Clock clock;
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final Random random;
+    @GuardedBy("lock") private State state = State.CLOSED;
+    @GuardedBy("lock") private int consecutiveFailures = 0;
+    @GuardedBy("lock") private long openMillis = MIN_OPEN_MILLIS;
+    @GuardedBy("lock") private long openUntilNanos = 0L;
+    @GuardedBy("lock") private boolean probeInFlight = false;
+    // A ring buffer of the latencies of recent successful requests.
+    @GuardedBy("lock") private final long[] latencies = new long[LATENCY_WINDOW];
+    @GuardedBy("lock") private int latencyCount = 0;
+    @GuardedBy("lock") private int latencyIndex = 0;
+    @GuardedBy("lock") private long timeoutMillis = MAX_TIMEOUT_MILLIS;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the remote service, used in log messages. Never {@code null}.
+     */
+    public CircuitBreaker(@NonNull String name) {
+        this(name, Clock.SYSTEM, new Random());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the remote service, used in log messages. Never {@code null}.
+     * @param clock the source of the current time. Never {@code null}.
+     * @param random the source of jitter for open periods. Never {@code null}.
+     */
+    /*package*/ CircuitBreaker(@NonNull String name, @NonNull Clock clock, @NonNull Random random) {
+        this.name = name;
+        this.clock = clock;
+        this.random = random;
+    }
+
+    /**
+     * <p>Determines whether a request may be made now. If this method returns {@code true}, the caller
+     * must subsequently report the outcome of the request via {@link #recordSuccess(long)},
+     * {@link #recordFailure()} or {@link #recordAbandoned()}.</p>
+     *
+     * @return {@code true} if the request may be made, {@code false} if it should fail immediately.
+     */
+    public boolean allowRequest() {
+        synchronized (this.lock) {
+            switch (this.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (this.clock.nanoTime() - this.openUntilNanos < 0) return false;
+                    LOGGER.info("Circuit for {} is half-open; probing.", this.name);
+                    this.state = State.HALF_OPEN;
+                    this.probeInFlight = true;
+                    return true;
+                default:
+                    if (this.probeInFlight) return false;
+                    this.probeInFlight = true;
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * <p>Returns the timeout to apply to the next request.</p>
+     *
+     * @param newConnection {@code true} if the request may need to set up a new connection.
+     * @return a positive number of milliseconds.
+     */
+    public long getTimeoutMillis(boolean newConnection) {
+        synchronized (this.lock) {
+            return newConnection ? Math.max(this.timeoutMillis, MIN_NEW_CONNECTION_TIMEOUT_MILLIS) : this.timeoutMillis;
+        }
+    }
+
+    /**
+     * <p>Returns the current state of the circuit.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public State getState() {
+        synchronized (this.lock) {
+            return this.state;
+        }
+    }
+
+    /**
+     * <p>Records a successful request, closing the circuit.</p>
+     *
+     * @param latencyNanos how long the request took, excluding any time spent setting up a new connection.
+     */
+    public void recordSuccess(long latencyNanos) {
+        synchronized (this.lock) {
+            if (this.state != State.CLOSED) LOGGER.info("Circuit for {} is closed.", this.name);
+            this.state = State.CLOSED;
+            this.probeInFlight = false;
+            this.consecutiveFailures = 0;
+            this.openMillis = MIN_OPEN_MILLIS;
+            this.latencies[this.latencyIndex] = latencyNanos;
+            this.latencyIndex = (this.latencyIndex + 1) % LATENCY_WINDOW;
+            if (this.latencyCount < LATENCY_WINDOW) this.latencyCount++;
+            if (this.latencyCount >= MIN_LATENCY_SAMPLES) this.timeoutMillis = this.computeTimeoutMillis();
+        }
+    }
+
+    /** <p>Records a failed request, opening the circuit if there have been too many consecutive failures.</p> */
+    public void recordFailure() {
+        synchronized (this.lock) {
+            this.consecutiveFailures++;
+            if (this.state == State.HALF_OPEN) {
+                this.probeInFlight = false;
+                this.openMillis = Math.min(this.openMillis * 2, MAX_OPEN_MILLIS);
+                this.open();
+            } else if (this.state == State.CLOSED && this.consecutiveFailures >= FAILURE_THRESHOLD) {
+                this.open();
+            }
+        }
+    }
+
+    /** <p>Records a request whose outcome is unknown (e.g. because it was cancelled by the caller).</p> */
+    public void recordAbandoned() {
+        synchronized (this.lock) {
+            this.probeInFlight = false;
+        }
+    }
+
+    /** <p>Opens the circuit for the current open period, with jitter.</p> */
+    @GuardedBy("lock") private void open() {
+        double jitter = 1d + OPEN_JITTER * (2d * this.random.nextDouble() - 1d);
+        long millis = (long) (this.openMillis * jitter);
+        this.state = State.OPEN;
+        this.openUntilNanos = this.clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        LOGGER.warn("Circuit for {} is open for {}ms after {} consecutive failures.", this.name, millis, this.consecutiveFailures);
+    }
+
+    /**
+     * <p>Computes the request timeout from the latencies of recent successful requests.</p>
+     *
+     * @return a positive number of milliseconds.
+     */
+    @GuardedBy("lock") private long computeTimeoutMillis() {
+        long[] sorted = Arrays.copyOf(this.latencies, this.latencyCount);
+        Arrays.sort(sorted);
+        long p99 = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.99d) - 1)];
+        long timeout = TimeUnit.NANOSECONDS.toMillis(p99) * TIMEOUT_MULTIPLIER;
+        return Math.max(MIN_TIMEOUT_MILLIS, Math.min(timeout, MAX_TIMEOUT_MILLIS));
+    }
+
+    /** <p>A source of the current time, which tests can replace.</p> */
+    /*package*/ interface Clock {
+        /** <p>The system clock.</p> */
+        Clock SYSTEM = new Clock() {
+            @Override public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+
+        /**
+         * <p>Returns the current value of this clock.</p>
+         *
+         * @return a number of nanoseconds, as for {@link System#nanoTime()}.
+         */
+        long nanoTime();
+    }
+
+}
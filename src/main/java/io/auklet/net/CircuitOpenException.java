@@ -0,0 +1,15 @@
+package io.auklet.net;
+
+import java.io.IOException;
+
+/**
+ * <p>Thrown in place of making a request when the {@link CircuitBreaker} for the requested service is
+ * open. This is an {@link IOException} because, to the caller, the service is unreachable.</p>
+ */
+public final class CircuitOpenException extends IOException {
+
+    public static final long serialVersionUID = 0L;
+
+    public CircuitOpenException(String message) { super(message); }
+
+}
@@ -6,17 +6,18 @@ import io.auklet.AukletException;
 import io.auklet.util.ThreadUtil;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.Immutable;
-import okhttp3.Cache;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import net.jcip.annotations.ThreadSafe;
+import okhttp3.*;
 import okhttp3.logging.HttpLoggingInterceptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * <p>All HTTP requests from the Auklet agent, most of which are to the Auklet API, are
@@ -41,6 +42,12 @@ import java.util.List;
  * <p><b>Per the above, please note that setting the logging level for the logger {@code io.auklet.http}
  * to any level more verbose than {@code INFO} will result in authorization headers being logged, thus
  * leaking your Auklet API key. Do not do this in your production environment!</b></p>
+ *
+ * <p>Requests are executed concurrently by OkHttp's dispatcher, including those made via the blocking
+ * {@link #doRequest(Request.Builder)} methods, so the configurable limits on the number of concurrent
+ * requests apply to every request. Connections are pooled, and the number of idle pooled connections is
+ * also configurable. Where both the platform and the server support HTTP/2 via ALPN, OkHttp negotiates
+ * it, and multiplexes concurrent requests to the same host over a single connection.</p>
  */
 @Immutable
 public final class Https {
@@ -48,53 +55,141 @@ public final class Https {
     private static final Logger LOGGER = LoggerFactory.getLogger(Https.class);
     private static final Logger HTTP_LOGGER = LoggerFactory.getLogger("io.auklet.http");
     private static final HttpLoggingInterceptor INTERCEPTOR = Https.createLogger();
-    @GuardedBy("itself") private final OkHttpClient httpClient;
+    private static final long KEEP_ALIVE_MINUTES = 5L;
+    private final OkHttpClient httpClient;
 
     /**
      * <p>Constructor.</p>
      *
      * @param sslCertificates the SSL certificates to use. If {@code null} or empty,
      * the truststore provided by the OS/JVM will be used.
+     * @param maxIdleConnections the maximum number of idle connections to keep in the connection pool.
+     * @param maxRequests the maximum number of requests to execute concurrently.
+     * @param maxRequestsPerHost the maximum number of requests to execute concurrently for each host.
      * @throws AukletException if an error occurs while initializing the SSL trust object.
      */
-    public Https(@Nullable List<InputStream> sslCertificates) throws AukletException {
+    public Https(@Nullable List<InputStream> sslCertificates, int maxIdleConnections, int maxRequests, int maxRequestsPerHost) throws AukletException {
         X509Trust trust = X509Trust.fromStreams(sslCertificates);
+        // OkHttp's default dispatcher uses non-daemon threads, which would keep the JVM alive.
+        Dispatcher dispatcher = new Dispatcher(new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), ThreadUtil.createDaemonThreadFactory("AukletHttp-%d")));
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                // The call timer runs first, so that it wraps the rest of the chain.
+                .addInterceptor(CallTimer.INTERCEPTOR)
                 .addInterceptor(Https.INTERCEPTOR)
-                .sslSocketFactory(trust.createSocketFactory(), trust.getTrustManager());
+                .sslSocketFactory(trust.getSocketFactory(), trust.getTrustManager())
+                .connectionPool(new ConnectionPool(maxIdleConnections, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .eventListenerFactory(CallTimer.FACTORY);
         this.httpClient = builder.build();
     }
 
     /**
-     * <p>Makes a request via OkHttp.</p>
+     * <p>Makes a request via OkHttp. The request is executed by OkHttp's dispatcher, subject to its limits
+     * on concurrent requests, and this method waits for it to complete.</p>
      *
      * @param request never {@code null}.
      * @return never {@code null}.
      * @throws AukletException if an error occurs with the request.
      */
     @NonNull public Response doRequest(@NonNull Request.Builder request) throws AukletException {
+        return this.doRequest(request, null);
+    }
+
+    /**
+     * <p>Makes a request via OkHttp, guarded by the given circuit breaker. If the circuit is open, the
+     * request fails immediately with a {@link CircuitOpenException} as the cause; otherwise, the request
+     * is subject to the circuit breaker's timeout, and its outcome is recorded. Responses with a 5xx
+     * status code are recorded as failures. The latency recorded for a successful request excludes any
+     * time spent setting up a new connection.</p>
+     *
+     * @param request never {@code null}.
+     * @param breaker may be {@code null}, in which case the request is not guarded.
+     * @return never {@code null}.
+     * @throws AukletException if an error occurs with the request.
+     */
+    @NonNull public Response doRequest(@NonNull Request.Builder request, @Nullable CircuitBreaker breaker) throws AukletException {
+        Future<Response> future = this.doRequestAsync(request, breaker);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AukletException) throw (AukletException) cause;
+            throw new AukletException("Error while making HTTP request.", cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AukletException("Interrupted while making HTTP request.", e);
+        }
+    }
+
+    /**
+     * <p>Makes a request via OkHttp without blocking the calling thread. If the request fails, the
+     * returned future's {@link Future#get()} method throws an {@link ExecutionException} whose cause is
+     * an {@link AukletException}. Cancelling the future cancels the request.</p>
+     *
+     * @param request never {@code null}.
+     * @return never {@code null}. The caller must close the response.
+     * @throws AukletException if the request cannot be queued.
+     */
+    @NonNull public Future<Response> doRequestAsync(@NonNull Request.Builder request) throws AukletException {
+        return this.doRequestAsync(request, null);
+    }
+
+    /**
+     * <p>Makes a request via OkHttp without blocking the calling thread, guarded by the given circuit
+     * breaker as described in {@link #doRequest(Request.Builder, CircuitBreaker)}.</p>
+     *
+     * @param request never {@code null}.
+     * @param breaker may be {@code null}, in which case the request is not guarded.
+     * @return never {@code null}. The caller must close the response.
+     * @throws AukletException if the request cannot be queued.
+     */
+    @NonNull public Future<Response> doRequestAsync(@NonNull Request.Builder request, @Nullable CircuitBreaker breaker) throws AukletException {
         if (request == null) throw new AukletException("HTTP request is null.");
-        Request req = request.build();
+        Call call = this.newCall(request, breaker);
+        ResponseFuture future = new ResponseFuture(call, breaker);
         try {
-            synchronized (this.httpClient) {
-                return this.httpClient.newCall(req).execute();
-            }
-        } catch (IOException e) {
-            throw new AukletException("Error while making HTTP request.", e);
+            call.enqueue(future);
+        } catch (RejectedExecutionException e) {
+            if (breaker != null) breaker.recordAbandoned();
+            throw new AukletException("Could not queue HTTP request.", e);
+        }
+        return future;
+    }
+
+    /**
+     * <p>Creates an OkHttp call for the given request, applying the given circuit breaker's timeout. If
+     * no pooled connection is idle, the request may need to set up a new connection, so the circuit
+     * breaker's new-connection timeout applies.</p>
+     *
+     * @param request never {@code null}.
+     * @param breaker may be {@code null}.
+     * @return never {@code null}.
+     * @throws AukletException if the circuit breaker is open.
+     */
+    @NonNull private Call newCall(@NonNull Request.Builder request, @Nullable CircuitBreaker breaker) throws AukletException {
+        if (breaker != null && !breaker.allowRequest()) {
+            throw new AukletException("Error while making HTTP request.", new CircuitOpenException("Circuit breaker is open."));
         }
+        if (breaker == null) return this.httpClient.newCall(request.build());
+        Call call = this.httpClient.newCall(request.tag(CallTimer.class, new CallTimer()).build());
+        boolean newConnection = this.httpClient.connectionPool().idleConnectionCount() == 0;
+        call.timeout().timeout(breaker.getTimeoutMillis(newConnection), TimeUnit.MILLISECONDS);
+        return call;
     }
 
     /** <p>Shuts down the internal HTTP client.</p> */
     public void shutdown() {
-        synchronized (this.httpClient) {
-            try {
-                ThreadUtil.shutdown(this.httpClient.dispatcher().executorService());
-                this.httpClient.connectionPool().evictAll();
-                Cache cache = this.httpClient.cache();
-                if (cache != null) cache.close();
-            } catch (IOException e) {
-                LOGGER.warn("Error while shutting down OkHttp.", e);
-            }
+        try {
+            ThreadUtil.shutdown(this.httpClient.dispatcher().executorService());
+            this.httpClient.connectionPool().evictAll();
+            Cache cache = this.httpClient.cache();
+            if (cache != null) cache.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error while shutting down OkHttp.", e);
         }
     }
 
@@ -120,4 +215,193 @@ public final class Https {
         return logging;
     }
 
+    /**
+     * <p>Measures how long a call runs, from when the dispatcher starts to execute it rather than from
+     * when it was queued, excluding the time that it spends setting up new connections: from the start
+     * of a DNS lookup or connection attempt until the connection is established or fails. Only requests
+     * tagged with an instance of this class are measured.</p>
+     *
+     * <p>The interceptor also turns unchecked exceptions from the rest of the chain into
+     * {@link IOException}s, because OkHttp does not complete the callback of an asynchronous call that
+     * fails with an unchecked exception, which would leave a blocking request waiting forever.</p>
+     */
+    @ThreadSafe
+    private static final class CallTimer extends EventListener {
+
+        private static final Interceptor INTERCEPTOR = new Interceptor() {
+            @Override public Response intercept(Chain chain) throws IOException {
+                CallTimer timer = chain.request().tag(CallTimer.class);
+                if (timer != null) timer.started();
+                try {
+                    return chain.proceed(chain.request());
+                } catch (RuntimeException e) {
+                    throw new IOException("Unexpected error while making HTTP request.", e);
+                }
+            }
+        };
+        private static final EventListener.Factory FACTORY = new EventListener.Factory() {
+            @Override public EventListener create(Call call) {
+                CallTimer timer = call.request().tag(CallTimer.class);
+                return timer == null ? EventListener.NONE : timer;
+            }
+        };
+        private final Object lock = new Object();
+        @GuardedBy("lock") private long callStartNanos = 0L;
+        @GuardedBy("lock") private boolean callStarted = false;
+        @GuardedBy("lock") private long setupStartNanos = 0L;
+        @GuardedBy("lock") private boolean settingUp = false;
+        @GuardedBy("lock") private long setupNanos = 0L;
+
+        /**
+         * <p>Returns how long the given call has run so far, excluding the time that it spent setting up
+         * new connections.</p>
+         *
+         * @param call never {@code null}.
+         * @return a non-negative number of nanoseconds.
+         */
+        private static long latencyNanos(@NonNull Call call) {
+            CallTimer timer = call.request().tag(CallTimer.class);
+            if (timer == null) return 0L;
+            synchronized (timer.lock) {
+                if (!timer.callStarted) return 0L;
+                return Math.max(0L, System.nanoTime() - timer.callStartNanos - timer.setupNanos);
+            }
+        }
+
+        /** <p>Marks the start of the call's execution. Retries and redirects do not restart it.</p> */
+        private void started() {
+            synchronized (this.lock) {
+                if (this.callStarted) return;
+                this.callStarted = true;
+                this.callStartNanos = System.nanoTime();
+            }
+        }
+
+        @Override public void dnsStart(Call call, String domainName) {
+            this.beginSetup();
+        }
+
+        @Override public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            this.beginSetup();
+        }
+
+        @Override public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, @Nullable Protocol protocol) {
+            this.endSetup();
+        }
+
+        @Override public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, @Nullable Protocol protocol, IOException ioe) {
+            this.endSetup();
+        }
+
+        /** <p>Marks the start of a connection setup, unless one is already in progress.</p> */
+        private void beginSetup() {
+            synchronized (this.lock) {
+                if (this.settingUp) return;
+                this.settingUp = true;
+                this.setupStartNanos = System.nanoTime();
+            }
+        }
+
+        /** <p>Marks the end of the connection setup that is in progress.</p> */
+        private void endSetup() {
+            synchronized (this.lock) {
+                if (!this.settingUp) return;
+                this.settingUp = false;
+                this.setupNanos += System.nanoTime() - this.setupStartNanos;
+            }
+        }
+
+    }
+
+    /**
+     * <p>A future that is completed by an asynchronous OkHttp call. If the future is cancelled, a response
+     * that arrives anyway is closed, since nobody will read it.</p>
+     */
+    @ThreadSafe
+    private static final class ResponseFuture implements Future<Response>, Callback {
+
+        private final Call call;
+        private final CircuitBreaker breaker;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final Object lock = new Object();
+        @GuardedBy("lock") private Response response = null;
+        @GuardedBy("lock") private IOException failure = null;
+        @GuardedBy("lock") private boolean cancelled = false;
+
+        private ResponseFuture(@NonNull Call call, @Nullable CircuitBreaker breaker) {
+            this.call = call;
+            this.breaker = breaker;
+        }
+
+        @Override public void onFailure(@NonNull Call call, @NonNull IOException e) {
+            if (this.breaker != null) {
+                if (call.isCanceled()) this.breaker.recordAbandoned();
+                else this.breaker.recordFailure();
+            }
+            synchronized (this.lock) {
+                this.failure = e;
+            }
+            this.done.countDown();
+        }
+
+        @Override public void onResponse(@NonNull Call call, @NonNull Response response) {
+            if (this.breaker != null) {
+                if (response.code() >= 500) this.breaker.recordFailure();
+                else this.breaker.recordSuccess(CallTimer.latencyNanos(call));
+            }
+            boolean cancelled;
+            synchronized (this.lock) {
+                cancelled = this.cancelled;
+                if (!cancelled) this.response = response;
+            }
+            if (cancelled) response.close();
+            this.done.countDown();
+        }
+
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this.lock) {
+                if (this.cancelled || this.response != null || this.failure != null) return false;
+                this.cancelled = true;
+            }
+            this.call.cancel();
+            this.done.countDown();
+            return true;
+        }
+
+        @Override public boolean isCancelled() {
+            synchronized (this.lock) {
+                return this.cancelled;
+            }
+        }
+
+        @Override public boolean isDone() {
+            return this.done.getCount() == 0;
+        }
+
+        @Override public Response get() throws InterruptedException, ExecutionException {
+            this.done.await();
+            return this.result();
+        }
+
+        @Override public Response get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!this.done.await(timeout, unit)) throw new TimeoutException();
+            return this.result();
+        }
+
+        /**
+         * <p>Returns the response of the completed call.</p>
+         *
+         * @return never {@code null}.
+         * @throws ExecutionException if the call failed.
+         */
+        @NonNull private Response result() throws ExecutionException {
+            synchronized (this.lock) {
+                if (this.cancelled) throw new CancellationException();
+                if (this.response == null) throw new ExecutionException(new AukletException("Error while making HTTP request.", this.failure));
+                return this.response;
+            }
+        }
+
+    }
+
 }
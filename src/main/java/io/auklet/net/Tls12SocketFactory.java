@@ -3,7 +3,7 @@ package io.auklet.net;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
-import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
 
 import javax.net.ssl.*;
 import java.io.IOException;
@@ -18,7 +18,7 @@ import java.net.Socket;
  *
  * @see <a href="https://developer.android.com/reference/javax/net/ssl/SSLSocket.html">SSLSocket docs for Android</a>
  */
-@NotThreadSafe
+@ThreadSafe
 public final class Tls12SocketFactory extends SSLSocketFactory {
 
     private final SSLSocketFactory delegateFactory;
@@ -4,11 +4,13 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.AukletException;
 import io.auklet.util.Util;
-import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -22,10 +24,8 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.text.DateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>A data structure that contains an X.509-baesd TLSv1.2 SSL context and corresponding
@@ -34,13 +34,30 @@ import java.util.List;
  * the case and the default truststore provided by the OS/JVM is desired.</p>
  *
  * <p>After construction, the underlying SSL context is already initialized.</p>
+ *
+ * <p>Trust objects are shared: all requests for the same set of certificates (or for the default
+ * truststore) return the same instance, and therefore the same SSL context. Since the client session
+ * cache belongs to the SSL context, this allows TLS sessions to be resumed with an abbreviated handshake
+ * across HTTP requests, MQTT reconnects and agent restarts, instead of requiring a full handshake each
+ * time. Sessions are only cached in memory; JSSE provides no way to export a session so that it can be
+ * resumed by another process.</p>
  */
-@NotThreadSafe
+@ThreadSafe
 public final class X509Trust {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(X509Trust.class);
+    private static final int MAX_CACHED_TRUSTS = 4;
+    private static final int SESSION_CACHE_SIZE = 32;
+    private static final long SESSION_TIMEOUT_HOURS = 24L;
+    // Keyed by the set of trusted certificates; the empty set represents the default truststore.
+    @GuardedBy("itself") private static final Map<Set<X509Certificate>, X509Trust> CACHE = new LinkedHashMap<Set<X509Certificate>, X509Trust>(MAX_CACHED_TRUSTS, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Set<X509Certificate>, X509Trust> eldest) {
+            return this.size() > MAX_CACHED_TRUSTS;
+        }
+    };
     private final SSLContext context;
     private final X509TrustManager trustManager;
+    private final Tls12SocketFactory socketFactory;
 
     /**
      * <p>Constructor.</p>
@@ -85,13 +102,21 @@ public final class X509Trust {
             // Define and initialize the context.
             context = SSLContext.getInstance("TLSv1.2");
             context.init(null, tms, null);
+            // Make the client session cache size and lifetime explicit, since some platforms' defaults
+            // are small enough that sessions are evicted between reconnects.
+            SSLSessionContext sessions = context.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout((int) TimeUnit.HOURS.toSeconds(SESSION_TIMEOUT_HOURS));
+            }
+            socketFactory = new Tls12SocketFactory(context);
         } catch (KeyStoreException | IOException | NoSuchAlgorithmException | CertificateException | KeyManagementException e) {
             throw new AukletException("Could not create X.509 trust object.", e);
         }
     }
 
     /**
-     * <p>Creates an X.509 trust object from a list of input streams of X.509 certificates
+     * <p>Returns the X.509 trust object for a list of input streams of X.509 certificates
      * that are to form the truststore. These input streams will be closed by this method.</p>
      *
      * @param certificates the SSL certificates to use. If {@code null} or empty,
@@ -101,7 +126,7 @@ public final class X509Trust {
      * creating the trust manager or the SSL context.
      */
     @NonNull public static X509Trust fromStreams(@Nullable Collection<InputStream> certificates) throws AukletException {
-        if (Util.isNullOrEmpty(certificates)) return new X509Trust(null);
+        if (Util.isNullOrEmpty(certificates)) return fromCerts(null);
         try {
             CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
             List<X509Certificate> certList = new ArrayList<>(certificates.size());
@@ -109,15 +134,15 @@ public final class X509Trust {
                 certList.add((X509Certificate) certificateFactory.generateCertificate(cert));
                 Util.closeQuietly(cert);
             }
-            return new X509Trust(certList);
+            return fromCerts(certList);
         } catch (CertificateException e) {
             throw new AukletException("Could not create X.509 trust object.", e);
         }
     }
 
     /**
-     * <p>Creates an X.509 trust object from a list of X.509 certificate objects that are
-     * to form the truststore. These input streams will be closed by this method.</p>
+     * <p>Returns the X.509 trust object for a list of X.509 certificate objects that are
+     * to form the truststore, creating it if no trust object for the same certificates is cached.</p>
      *
      * @param certificates the SSL certificates to use. If {@code null} or empty,
      * the truststore provided by the OS/JVM will be used.
@@ -126,7 +151,15 @@ public final class X509Trust {
      * creating the trust manager or the SSL context.
      */
     @NonNull public static X509Trust fromCerts(@Nullable Collection<X509Certificate> certificates) throws AukletException {
-        return new X509Trust(certificates);
+        Set<X509Certificate> key = certificates == null ? Collections.<X509Certificate>emptySet() : new HashSet<>(certificates);
+        synchronized (CACHE) {
+            X509Trust trust = CACHE.get(key);
+            if (trust == null) {
+                trust = new X509Trust(key);
+                CACHE.put(key, trust);
+            }
+            return trust;
+        }
     }
 
     /**
@@ -137,10 +170,10 @@ public final class X509Trust {
     @NonNull public X509TrustManager getTrustManager() { return trustManager; }
 
     /**
-     * <p>Creates and returns a TLSv1.2-only SSL socket factory.</p>
+     * <p>Returns the TLSv1.2-only SSL socket factory for this trust object's SSL context.</p>
      *
      * @return never {@code null}.
      */
-    @NonNull public Tls12SocketFactory createSocketFactory() { return new Tls12SocketFactory(context); }
+    @NonNull public Tls12SocketFactory getSocketFactory() { return socketFactory; }
 
 }
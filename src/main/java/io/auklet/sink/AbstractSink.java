@@ -1,35 +1,125 @@
 package io.auklet.sink;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
+import io.auklet.config.ConfigSnapshot;
 import io.auklet.core.HasAgent;
-import io.auklet.util.Util;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.msgpack.core.MessageBufferPacker;
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.UUID;
+import java.util.*;
 
 /**
  * <p>Base class of all Auklet agent data sinks. Each implementation provides a {@link MessagePacker} that
  * is used to construct MessagePack payloads that are then sent to the underlying output in the
  * {@link MessagePacker} object (e.g. an {@code OutputStream}).</p>
  *
- * <p>Subclasses are thread-safe as long as they synchronize on {@link #msgpack}.</p>
+ * <p>Subclasses are thread-safe as long as they synchronize on {@link #msgpack} and their implementation
+ * of {@link #write(byte[])} is thread-safe.</p>
  */
 @ThreadSafe
 public abstract class AbstractSink extends HasAgent implements Sink {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractSink.class);
+    /**
+     * <p>The minimum number of map entries in the body of an event: its timestamp, and the type, message
+     * and stack trace of its throwable. Event bodies encoded by {@link EventEncoder} also have a
+     * fingerprint, and may have more entries.</p>
+     */
+    public static final int EVENT_BODY_SIZE = 4;
+    private static final Set<String> REFERENCE_OMITTED_KEYS = new HashSet<>(Arrays.asList("stackTrace", "cause", "suppressed", "omittedThrowables"));
     @GuardedBy("itself") protected final MessageBufferPacker msgpack = MessagePack.newDefaultBufferPacker();
 
+    /**
+     * <p>Loads any configuration that this sink needs in order to start. The agent invokes this method
+     * prior to {@link #start(Auklet)}, concurrently with the startup of other agent components; thus,
+     * implementations must not depend on the device auth or data usage config. This method does not set
+     * the agent reference for this object.</p>
+     *
+     * <p>The default implementation is no-op.</p>
+     *
+     * @param agent the Auklet agent object. Never {@code null}.
+     * @throws AukletException if the config cannot be loaded.
+     */
+    public void prepare(@NonNull Auklet agent) throws AukletException {
+        // No-op by default.
+    }
+
+    /**
+     * <p>Adds any config files owned by this sink to the given warm-start snapshot.</p>
+     *
+     * <p>The default implementation is no-op.</p>
+     *
+     * @param snapshot never {@code null}.
+     */
+    public void addToSnapshot(@NonNull ConfigSnapshot snapshot) {
+        // No-op by default.
+    }
+
+    /**
+     * <p>Shuts down this data sink, taking no longer than the given amount of time to deliver any
+     * messages that are still in flight.</p>
+     *
+     * <p>The default implementation delegates to {@link #shutdown()}.</p>
+     *
+     * @param timeoutMillis the maximum amount of time to wait. If not positive, do not wait.
+     */
+    public void shutdown(long timeoutMillis) {
+        this.shutdown();
+    }
+
+    /**
+     * <p>Returns the number of messages that have been written to this sink, but whose delivery has not
+     * yet been confirmed.</p>
+     *
+     * <p>The default implementation returns zero, which is appropriate for sinks whose writes are
+     * synchronous.</p>
+     *
+     * @return a non-negative number.
+     */
+    public int getPendingCount() {
+        return 0;
+    }
+
+    /**
+     * <p>Returns the number of events that this sink has deliberately not sent since it was created,
+     * because they would have exceeded the data usage limit.</p>
+     *
+     * <p>The default implementation returns zero, which is appropriate for sinks that do not enforce the
+     * data usage limit.</p>
+     *
+     * @return a non-negative number.
+     */
+    public long getDroppedCount() {
+        return 0L;
+    }
+
+    /**
+     * <p>Waits until all messages that have been written to this sink are delivered, or until the given
+     * amount of time has passed.</p>
+     *
+     * <p>The default implementation returns immediately with an empty list, which is appropriate for sinks
+     * whose writes are synchronous.</p>
+     *
+     * @param timeoutMillis the maximum amount of time to wait. If not positive, do not wait.
+     * @return the messages whose delivery was not confirmed in time. Never {@code null}.
+     */
+    @NonNull public List<byte[]> awaitDelivery(long timeoutMillis) {
+        return Collections.emptyList();
+    }
+
     @Override public void shutdown() {
         synchronized (this.msgpack) {
             try {
@@ -42,43 +132,321 @@ public abstract class AbstractSink extends HasAgent implements Sink {
 
     @Override public void send(@Nullable Throwable throwable) throws AukletException {
         if (throwable == null) return;
-        StackTraceElement[] stackTrace = throwable.getStackTrace();
-        // Assemble the complete message.
+        this.send(throwable, System.currentTimeMillis());
+    }
+
+    /**
+     * <p>Transforms the given throwable object into an Auklet event object and sends it to this sink.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     * @throws AukletException if an error occurs while sending the event to the sink.
+     */
+    public void send(@NonNull Throwable throwable, long timestamp) throws AukletException {
+        this.write(this.encode(throwable, timestamp));
+    }
+
+    /**
+     * <p>Sends an event whose body was previously encoded by {@link EventEncoder#encodeEventBody(Throwable, long)}.</p>
+     *
+     * @param eventBody never {@code null}.
+     * @throws AukletException if an error occurs while sending the event to the sink.
+     */
+    public void sendEncoded(@NonNull byte[] eventBody) throws AukletException {
+        this.write(this.encodeFromBody(eventBody));
+    }
+
+    /**
+     * <p>Sends a message that was previously assembled by {@link #encode(Throwable, long)} or
+     * {@link #encodeFromBody(byte[])}.</p>
+     *
+     * @param message never {@code null} or empty.
+     * @throws AukletException if an error occurs while sending the message to the sink.
+     */
+    public void sendMessage(@NonNull byte[] message) throws AukletException {
+        this.write(message);
+    }
+
+    /**
+     * <p>Sends a message that was previously assembled by {@link #encode(Throwable, long)} or
+     * {@link #encodeFromBody(byte[])}, and runs the given callback once the message has been delivered.
+     * The callback is also run if the message is deliberately not sent, because it would exceed the data
+     * usage limit. It is not run if the message cannot be delivered.</p>
+     *
+     * <p>The default implementation writes the message and then runs the callback, which is appropriate
+     * for sinks whose writes are synchronous.</p>
+     *
+     * @param message never {@code null} or empty.
+     * @param onDelivered never {@code null}. Must be quick and thread-safe.
+     * @throws AukletException if an error occurs while sending the message to the sink.
+     */
+    public void sendMessage(@NonNull byte[] message, @NonNull Runnable onDelivered) throws AukletException {
+        this.write(message);
+        onDelivered.run();
+    }
+
+    /**
+     * <p>Sends messages that were previously assembled by {@link #encode(Throwable, long)} or
+     * {@link #encodeFromBody(byte[])} as one columnar batch message.</p>
+     *
+     * @param messages never {@code null} or empty.
+     * @throws AukletException if an error occurs while assembling the batch or sending it to the sink.
+     * @see ColumnarBatch
+     */
+    public void sendBatch(@NonNull List<byte[]> messages) throws AukletException {
+        this.writeBatch(this.encodeBatch(messages), messages, null);
+    }
+
+    /**
+     * <p>Sends messages as one columnar batch message, as described by {@link #sendBatch(List)}, and runs
+     * the given callback once the batch has been delivered. The callback is run or not run as described
+     * by {@link #sendMessage(byte[], Runnable)}.</p>
+     *
+     * @param messages never {@code null} or empty.
+     * @param onDelivered never {@code null}. Must be quick and thread-safe.
+     * @throws AukletException if an error occurs while assembling the batch or sending it to the sink.
+     */
+    public void sendBatch(@NonNull List<byte[]> messages, @NonNull Runnable onDelivered) throws AukletException {
+        this.writeBatch(this.encodeBatch(messages), messages, onDelivered);
+    }
+
+    /**
+     * <p>Transforms the given throwable object into a complete message for this sink, without sending it.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     * @return never {@code null} or empty.
+     * @throws AukletException if an error occurs while assembling the message.
+     */
+    @NonNull public byte[] encode(@NonNull Throwable throwable, long timestamp) throws AukletException {
+        // The body is encoded outside of the lock, because planning its truncation may take a while.
+        return this.encodeFromBody(this.getAgent().getEventEncoder().encodeEventBody(throwable, timestamp));
+    }
+
+    /**
+     * <p>Transforms an event body that was previously encoded by {@link EventEncoder#encodeEventBody(Throwable, long)}
+     * into a complete message for this sink, without sending it.</p>
+     *
+     * @param eventBody never {@code null}.
+     * @return never {@code null} or empty.
+     * @throws AukletException if an error occurs while assembling the message.
+     */
+    @NonNull public byte[] encodeFromBody(@NonNull byte[] eventBody) throws AukletException {
         synchronized (this.msgpack) {
             this.msgpack.clear();
             try {
-                this.initMessage(11);
-                this.msgpack
-                        .packString("timestamp").packLong(System.currentTimeMillis())
-                        .packString("excType").packString(throwable.getClass().getName())
-                        .packString("message").packString(Util.orElse(throwable.getMessage(), ""))
-                        .packString("stackTrace").packArrayHeader(stackTrace.length);
-                for (StackTraceElement ste : stackTrace) {
-                    int lineNumber = ste.getLineNumber();
-                    this.msgpack.packMapHeader(4)
-                            .packString("functionName").packString(ste.getMethodName())
-                            .packString("className").packString(ste.getClassName())
-                            .packString("filePath").packString(Util.orElse(ste.getFileName(), ""))
-                            // Normalize all negative return values.
-                            .packString("lineNumber").packInt(lineNumber < 0 ? -1 : lineNumber);
-                }
-                this.msgpack.flush();
+                this.beginMessage();
+                this.initMessage(7 + countEventBodyEntries(eventBody));
+                this.msgpack.addPayload(eventBody);
             } catch (IOException e) {
                 throw new AukletException("Could not assemble event message.", e);
             }
-            byte[] payload = this.msgpack.toByteArray();
-            if (payload == null || payload.length == 0) return;
-            this.write(payload);
+            return this.finishMessage();
+        }
+    }
+
+    /**
+     * <p>Combines messages that were previously assembled by {@link #encode(Throwable, long)} or
+     * {@link #encodeFromBody(byte[])} into one columnar batch message for this sink, without sending it.</p>
+     *
+     * @param messages never {@code null} or empty.
+     * @return never {@code null} or empty.
+     * @throws AukletException if any of the messages is not an event message assembled by this sink, or
+     * if an error occurs while assembling the batch.
+     */
+    @NonNull public byte[] encodeBatch(@NonNull List<byte[]> messages) throws AukletException {
+        if (messages.isEmpty()) throw new AukletException("Batch is empty.");
+        byte[] batch;
+        try {
+            ColumnarBatch columnarBatch = new ColumnarBatch();
+            for (byte[] message : messages) {
+                try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(message)) {
+                    this.skipMessagePrefix(unpacker);
+                    columnarBatch.add(unpacker, message);
+                }
+            }
+            batch = columnarBatch.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            throw new AukletException("Could not assemble batch message.", e);
+        }
+        synchronized (this.msgpack) {
+            this.msgpack.clear();
+            try {
+                this.beginMessage();
+                this.msgpack.addPayload(batch);
+            } catch (IOException e) {
+                throw new AukletException("Could not assemble batch message.", e);
+            }
+            return this.finishMessage();
+        }
+    }
+
+    /**
+     * <p>Extracts the event body from a message that was previously assembled by
+     * {@link #encode(Throwable, long)} or {@link #encodeFromBody(byte[])}, so that the event can be
+     * spooled and sent again later.</p>
+     *
+     * @param message never {@code null}.
+     * @return never {@code null}.
+     * @throws AukletException if the message is not an event message assembled by this sink.
+     */
+    @NonNull public byte[] extractEventBody(@NonNull byte[] message) throws AukletException {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(message)) {
+            this.skipMessagePrefix(unpacker);
+            if (unpacker.unpackMapHeader() < 7 + EVENT_BODY_SIZE) throw new AukletException("Message is not an event message.");
+            // Skip the keys and values of the 7 header entries; the body entries follow.
+            for (int i = 0; i < 7 * 2; i++) unpacker.skipValue();
+            return Arrays.copyOfRange(message, (int) unpacker.getTotalReadBytes(), message.length);
+        } catch (IOException | RuntimeException e) {
+            throw new AukletException("Could not extract event body from message.", e);
+        }
+    }
+
+    /**
+     * <p>Reads the fingerprint of the event in a message that was previously assembled by this sink.</p>
+     *
+     * @param message never {@code null}.
+     * @return {@code null} if the message has no fingerprint, or cannot be read.
+     */
+    @CheckForNull protected Long readFingerprint(@NonNull byte[] message) {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(message)) {
+            this.skipMessagePrefix(unpacker);
+            int entries = unpacker.unpackMapHeader();
+            for (int i = 0; i < entries; i++) {
+                boolean fingerprint = false;
+                if (unpacker.getNextFormat().getValueType() == ValueType.STRING) fingerprint = "fingerprint".equals(unpacker.unpackString());
+                else unpacker.skipValue();
+                if (fingerprint && unpacker.getNextFormat().getValueType() == ValueType.INTEGER) return unpacker.unpackLong();
+                unpacker.skipValue();
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Could not read event fingerprint.", e);
+            return null;
+        }
+    }
+
+    /**
+     * <p>Converts a message that was previously assembled by this sink into a reference to an event that
+     * the receiver has already seen in full. The reference keeps every entry of the message except for
+     * the {@code stackTrace}, {@code cause}, {@code suppressed} and {@code omittedThrowables} entries,
+     * so it still has the event's timestamp, fingerprint, exception type, message and system metrics.</p>
+     *
+     * @param message never {@code null}.
+     * @return never {@code null}.
+     * @throws AukletException if the message cannot be read.
+     */
+    @NonNull protected byte[] toReferenceMessage(@NonNull byte[] message) throws AukletException {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(message);
+             MessageBufferPacker kept = MessagePack.newDefaultBufferPacker();
+             MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            this.skipMessagePrefix(unpacker);
+            int prefixLength = (int) unpacker.getTotalReadBytes();
+            int entries = unpacker.unpackMapHeader();
+            // Copy the entries that are kept, and count them so that the map header can be packed.
+            int keptEntries = 0;
+            for (int i = 0; i < entries; i++) {
+                int start = (int) unpacker.getTotalReadBytes();
+                Value key = unpacker.unpackValue();
+                unpacker.skipValue();
+                if (key.isStringValue() && REFERENCE_OMITTED_KEYS.contains(key.asStringValue().asString())) continue;
+                kept.addPayload(message, start, (int) unpacker.getTotalReadBytes() - start);
+                keptEntries++;
+            }
+            kept.flush();
+            packer.addPayload(message, 0, prefixLength);
+            packer.packMapHeader(keptEntries);
+            packer.addPayload(kept.toByteArray());
+            packer.flush();
+            return packer.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            throw new AukletException("Could not convert message to a reference.", e);
+        }
+    }
+
+    /**
+     * <p>Skips whatever {@link #beginMessage()} wrote at the start of a message, so that
+     * {@link #extractEventBody(byte[])} can locate the event body.</p>
+     *
+     * <p>The default implementation is no-op.</p>
+     *
+     * @param unpacker never {@code null}.
+     * @throws IOException if the message cannot be read.
+     */
+    protected void skipMessagePrefix(@NonNull MessageUnpacker unpacker) throws IOException {
+        // No-op by default.
+    }
+
+    /**
+     * <p>Invoked before the event message is assembled, to allow subclasses to wrap the message.</p>
+     *
+     * <p>The default implementation is no-op.</p>
+     *
+     * @throws AukletException if an error occurs while assembling the message.
+     */
+    @GuardedBy("msgpack") protected void beginMessage() throws AukletException {
+        // No-op by default.
+    }
+
+    /**
+     * <p>Returns the number of map entries in the given event body. Event bodies that were spooled by
+     * older versions of the agent may have a different number of entries.</p>
+     *
+     * @param eventBody never {@code null}.
+     * @return a non-negative number.
+     * @throws IOException if the event body cannot be read.
+     */
+    private static int countEventBodyEntries(@NonNull byte[] eventBody) throws IOException {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(eventBody)) {
+            int values = 0;
+            while (unpacker.hasNext()) {
+                unpacker.skipValue();
+                values++;
+            }
+            return values / 2;
         }
     }
 
     /**
-     * <p>Writes the given byte array to the underlying data sink.</p>
+     * <p>Flushes the assembled message and returns it.</p>
+     *
+     * @return never {@code null} or empty.
+     * @throws AukletException if the message cannot be flushed, or is empty.
+     */
+    @GuardedBy("msgpack") @NonNull private byte[] finishMessage() throws AukletException {
+        try {
+            this.msgpack.flush();
+        } catch (IOException e) {
+            throw new AukletException("Could not assemble event message.", e);
+        }
+        byte[] payload = this.msgpack.toByteArray();
+        if (payload == null || payload.length == 0) throw new AukletException("Assembled event message is empty.");
+        return payload;
+    }
+
+    /**
+     * <p>Writes the given byte array to the underlying data sink. Messages are assembled and written on
+     * different threads, so implementations must not depend on {@link #msgpack}.</p>
      *
      * @param bytes the byte array, never {@code null} or empty.
      * @throws AukletException if the data cannot be written.
      */
-    @GuardedBy("msgpack") protected abstract void write(@NonNull byte[] bytes) throws AukletException;
+    protected abstract void write(@NonNull byte[] bytes) throws AukletException;
+
+    /**
+     * <p>Writes the given batch message to the underlying data sink.</p>
+     *
+     * <p>The default implementation delegates to {@link #write(byte[])}, and then runs the callback.</p>
+     *
+     * @param batch the batch message, never {@code null} or empty.
+     * @param messages the messages that were combined into the batch, never {@code null} or empty.
+     * @param onDelivered the callback to run once the batch has been delivered. May be {@code null}.
+     * @throws AukletException if the data cannot be written.
+     */
+    protected void writeBatch(@NonNull byte[] batch, @NonNull List<byte[]> messages, @Nullable Runnable onDelivered) throws AukletException {
+        this.write(batch);
+        if (onDelivered != null) onDelivered.run();
+    }
 
     /**
      * <p>Starts assembling an Auklet-compatible MessagePack message, which is defined as a MessagePack
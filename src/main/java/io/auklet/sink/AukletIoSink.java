@@ -1,10 +1,13 @@
 package io.auklet.sink;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
 import io.auklet.config.AukletIoBrokers;
 import io.auklet.config.AukletIoCert;
+import io.auklet.config.ConfigSnapshot;
+import io.auklet.config.KnownFingerprints;
 import io.auklet.core.AukletDaemonExecutor;
 import io.auklet.util.ThreadUtil;
 import io.auklet.net.X509Trust;
@@ -15,58 +18,205 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.security.cert.X509Certificate;
-import java.util.Collections;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /** <p>The default Auklet data sink, which sends data to {@code auklet.io} via MQTT.</p> */
 @ThreadSafe
 public final class AukletIoSink extends AbstractSink {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AukletIoSink.class);
+    private static final long MIN_CONNECT_RETRY_SECONDS = 1L;
+    private static final long MAX_CONNECT_RETRY_SECONDS = 120L;
     private final Object lock = new Object();
+    @GuardedBy("lock") private AukletIoCert cert;
+    @GuardedBy("lock") private AukletIoBrokers brokers;
     @GuardedBy("lock") private AukletDaemonExecutor executorService;
     @GuardedBy("lock") private MqttAsyncClient client;
+    @GuardedBy("lock") private MqttConnectOptions connectOptions;
+    @GuardedBy("lock") private long connectRetrySeconds = MIN_CONNECT_RETRY_SECONDS;
+    // Rescheduled for each retry, rather than scheduling a new task.
+    @GuardedBy("lock") private ScheduledFuture<?> connectRetryTask = null;
+    @GuardedBy("lock") private boolean shutdown = false;
+    @GuardedBy("lock") private long droppedCount = 0L;
+    // Null unless fingerprint references are enabled.
+    @GuardedBy("lock") private KnownFingerprints knownFingerprints = null;
+    // Null unless the frame dictionary is enabled; read by the MQTT callback without the lock.
+    private volatile FrameDictionary dictionary = null;
 
     /**
-     * <p>Constructs the underlying MQTT client.</p>
+     * <p>Loads the SSL cert and broker config.</p>
+     *
+     * @throws AukletException if the SSL cert/broker config cannot be obtained.
+     */
+    @Override public void prepare(@NonNull Auklet agent) throws AukletException {
+        AukletIoCert newCert = new AukletIoCert();
+        newCert.start(agent);
+        AukletIoBrokers newBrokers = new AukletIoBrokers();
+        newBrokers.start(agent);
+        synchronized (this.lock) {
+            this.cert = newCert;
+            this.brokers = newBrokers;
+        }
+    }
+
+    @Override public void addToSnapshot(@NonNull ConfigSnapshot snapshot) {
+        synchronized (this.lock) {
+            if (this.cert != null) snapshot.add(this.cert);
+            if (this.brokers != null) snapshot.add(this.brokers);
+        }
+    }
+
+    /**
+     * <p>Constructs the underlying MQTT client and begins connecting to the broker. This method does not
+     * wait for the connection to be established; messages sent before then are buffered by the client.</p>
      *
      * @throws AukletException if the underlying MQTT client cannot be constructed or started, or if
      * the SSL cert/broker config cannot be obtained.
      */
     @Override public void start(@NonNull Auklet agent) throws AukletException {
         this.setAgent(agent);
+        boolean prepared;
+        synchronized (this.lock) {
+            prepared = this.cert != null && this.brokers != null;
+        }
+        if (!prepared) this.prepare(agent);
+        if (agent.isFingerprintReferencesEnabled()) {
+            KnownFingerprints known = new KnownFingerprints(agent.getFingerprintResendHours());
+            known.start(agent);
+            synchronized (this.lock) {
+                this.knownFingerprints = known;
+            }
+        }
         LOGGER.info("Establishing MQTT client.");
-        try {
-            AukletIoCert cert = new AukletIoCert();
-            cert.start(agent);
-            AukletIoBrokers brokers = new AukletIoBrokers();
-            brokers.start(agent);
-            // Workaround to ensure that MQTT client threads do not stop JVM shutdown.
-            // https://github.com/eclipse/paho.mqtt.java/issues/402#issuecomment-424686340
-            // MQTT threads must be daemon threads or else the JVM will hang on shutdown.
-            this.executorService = new AukletDaemonExecutor(agent.getMqttThreads(), ThreadUtil.createDaemonThreadFactory("AukletPahoMQTT-%d"));
-            org.eclipse.paho.client.mqttv3.logging.LoggerFactory.setLogger("io.auklet.misc.PahoLogger");
-            this.client = new MqttAsyncClient(brokers.getUrl(), agent.getDeviceAuth().getClientId(), new MemoryPersistence(), new TimerPingSender(), executorService);
-            this.client.setCallback(this.getCallback());
-            this.client.setBufferOpts(this.getDisconnectBufferOptions(agent));
-            // Wait 10 seconds for connect to succeed, then give up.
-            this.client.connect(this.getConnectOptions(agent, cert.getCert())).waitForCompletion(10000L);
-        } catch (MqttException e) {
-            this.shutdown();
-            throw new AukletException("Could not initialize MQTT sink.", e);
+        synchronized (this.lock) {
+            try {
+                // Workaround to ensure that MQTT client threads do not stop JVM shutdown.
+                // https://github.com/eclipse/paho.mqtt.java/issues/402#issuecomment-424686340
+                // MQTT threads must be daemon threads or else the JVM will hang on shutdown.
+                this.executorService = new AukletDaemonExecutor(agent.getMqttThreads(), ThreadUtil.createDaemonThreadFactory("AukletPahoMQTT-%d"));
+                org.eclipse.paho.client.mqttv3.logging.LoggerFactory.setLogger("io.auklet.misc.PahoLogger");
+                this.client = new MqttAsyncClient(this.brokers.getUrl(), agent.getDeviceAuth().getClientId(), new MemoryPersistence(), new TimerPingSender(), executorService);
+                this.client.setCallback(this.getCallback());
+                this.client.setBufferOpts(this.getDisconnectBufferOptions(agent));
+                this.connectOptions = this.getConnectOptions(agent, this.cert.getCert());
+                if (agent.isFrameDictionaryEnabled()) this.dictionary = new FrameDictionary();
+            } catch (MqttException e) {
+                this.shutdown();
+                throw new AukletException("Could not initialize MQTT sink.", e);
+            }
+            this.connect();
         }
     }
 
+    /**
+     * <p>Publishes the given message. If fingerprint references are enabled and an event with the same
+     * fingerprint was recently delivered in full, only a reference to the event is sent. If the frame
+     * dictionary is enabled and the client is connected, the message's frame strings are rewritten to
+     * refer to the dictionary; messages that the client buffers while it is disconnected are sent as-is.</p>
+     *
+     * <p>Unacknowledged messages are kept by the client and retransmitted after a reconnect, but the
+     * client's disconnected buffer drops its oldest message when it is full. A rewritten message can still
+     * end up in that buffer if the connection is lost while it is being published, so the dictionary is
+     * reset whenever the client is not connected once a rewritten message has been published. This way no
+     * later message refers to strings that only a buffered message defined.</p>
+     */
     @Override protected void write(@NonNull byte[] bytes) throws AukletException {
+        this.publish(bytes, null);
+    }
+
+    /** <p>The callback is run once the broker acknowledges the message.</p> */
+    @Override public void sendMessage(@NonNull byte[] message, @NonNull Runnable onDelivered) throws AukletException {
+        this.publish(message, onDelivered);
+    }
+
+    /**
+     * <p>Publishes the given message as described by {@link #write(byte[])}.</p>
+     *
+     * @param bytes never {@code null} or empty.
+     * @param onDelivered the callback to run once the message has been delivered. May be {@code null}.
+     * @throws AukletException if the message cannot be published.
+     */
+    private void publish(@NonNull byte[] bytes, @Nullable final Runnable onDelivered) throws AukletException {
         synchronized (this.lock) {
+            final KnownFingerprints known = this.knownFingerprints;
+            final Long fingerprint = known == null ? null : this.readFingerprint(bytes);
+            boolean reference = fingerprint != null && known.isKnown(fingerprint, System.currentTimeMillis());
+            byte[] payload = reference ? this.toReferenceMessage(bytes) : bytes;
+            FrameDictionary frameDictionary = this.dictionary;
+            boolean rewrite = frameDictionary != null && this.client.isConnected();
             try {
-                MqttMessage message = new MqttMessage(bytes);
+                if (rewrite) payload = frameDictionary.rewrite(payload);
+                MqttMessage message = payload == bytes ? new MqttMessage(bytes) : new RewrittenMessage(payload, Collections.singletonList(bytes));
                 message.setQos(1);
-                int size = bytes.length;
+                int size = payload.length;
                 boolean willExceedLimit = this.getAgent().getUsageMonitor().willExceedLimit(size);
                 if (!willExceedLimit) {
-                    client.publish(this.getAgent().getDeviceAuth().getMqttEventsTopic(), message);
+                    String topic = this.getAgent().getDeviceAuth().getMqttEventsTopic();
+                    // Only once the event has been delivered in full may later occurrences refer to it.
+                    final boolean recordFingerprint = fingerprint != null && !reference;
+                    if (!recordFingerprint && onDelivered == null) {
+                        client.publish(topic, message);
+                    } else {
+                        client.publish(topic, message, null, new IMqttActionListener() {
+                            @Override public void onSuccess(IMqttToken asyncActionToken) {
+                                if (recordFingerprint) known.delivered(fingerprint, System.currentTimeMillis());
+                                if (onDelivered != null) onDelivered.run();
+                            }
+
+                            @Override public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                                // The event will be sent in full again next time.
+                            }
+                        });
+                    }
+                    this.getAgent().getUsageMonitor().addMoreData(size);
+                    // The message may have been buffered, and may be dropped before it is sent.
+                    if (rewrite && !this.client.isConnected()) frameDictionary.reset();
+                } else {
+                    // The receiver will never see the strings that this message added to the dictionary.
+                    if (rewrite) frameDictionary.reset();
+                    this.droppedCount++;
+                    if (onDelivered != null) onDelivered.run();
+                }
+            } catch (MqttException | IOException e) {
+                if (rewrite) frameDictionary.reset();
+                throw new AukletException("Error while publishing MQTT message.", e);
+            }
+        }
+    }
+
+    /**
+     * <p>Publishes the given batch message. The events in a batch are always sent in full, and are not
+     * rewritten by the frame dictionary, because the batch carries its own string table.</p>
+     */
+    @Override protected void writeBatch(@NonNull byte[] batch, @NonNull List<byte[]> messages, @Nullable final Runnable onDelivered) throws AukletException {
+        synchronized (this.lock) {
+            MqttMessage message = new RewrittenMessage(batch, messages);
+            message.setQos(1);
+            int size = batch.length;
+            try {
+                if (!this.getAgent().getUsageMonitor().willExceedLimit(size)) {
+                    String topic = this.getAgent().getDeviceAuth().getMqttEventsTopic();
+                    if (onDelivered == null) {
+                        client.publish(topic, message);
+                    } else {
+                        client.publish(topic, message, null, new IMqttActionListener() {
+                            @Override public void onSuccess(IMqttToken asyncActionToken) {
+                                onDelivered.run();
+                            }
+
+                            @Override public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                                // The events are not confirmed as delivered.
+                            }
+                        });
+                    }
                     this.getAgent().getUsageMonitor().addMoreData(size);
+                } else {
+                    this.droppedCount += messages.size();
+                    if (onDelivered != null) onDelivered.run();
                 }
             } catch (MqttException e) {
                 throw new AukletException("Error while publishing MQTT message.", e);
@@ -75,27 +225,37 @@ public final class AukletIoSink extends AbstractSink {
     }
 
     @Override public void shutdown() {
+        // Wait 2 seconds for work to quiesce and 1 second for disconnect to finish.
+        this.shutdown(3000L);
+    }
+
+    /**
+     * <p>Shuts down this sink. Two thirds of the given time are spent waiting for in-flight work to
+     * quiesce, and the rest waiting for the disconnect to finish.</p>
+     *
+     * @param timeoutMillis the maximum amount of time to wait. If not positive, the client is
+     * disconnected forcibly without waiting.
+     */
+    @Override public void shutdown(long timeoutMillis) {
         synchronized (this.lock) {
+            this.shutdown = true;
             super.shutdown();
             if (this.client != null) {
                 if (this.client.isConnected()) {
                     this.executorService.logCancelExceptions(false);
-                    try {
-                        // Wait 2 seconds for work to quiesce and 1 second for disconnect to finish.
-                        this.client.disconnect(2000L).waitForCompletion(1000L);
-                    } catch (MqttException e) {
-                        // TODO remove this conditional after upgrading Paho to fix this
-                        if (!e.getMessage().equals("Timed out waiting for a response from the server")) {
-                            LOGGER.warn("Error while disconnecting MQTT client.", e);
-                        }
+                    if (timeoutMillis > 0) {
+                        long quiesceMillis = timeoutMillis * 2 / 3;
                         try {
-                            // Do not wait for work to quiesce.
-                            // Wait 1ms to disconnect (effectively do not wait, but if we say 0ms
-                            // it will actually wait forever).
-                            this.client.disconnectForcibly(0L, 1L);
-                        } catch (MqttException e2) {
-                            LOGGER.warn("Error while forcibly disconnecting MQTT client.", e);
+                            this.client.disconnect(quiesceMillis).waitForCompletion(Math.max(1L, timeoutMillis - quiesceMillis));
+                        } catch (MqttException e) {
+                            // TODO remove this conditional after upgrading Paho to fix this
+                            if (!e.getMessage().equals("Timed out waiting for a response from the server")) {
+                                LOGGER.warn("Error while disconnecting MQTT client.", e);
+                            }
+                            this.disconnectForcibly();
                         }
+                    } else {
+                        this.disconnectForcibly();
                     }
                 }
                 try {
@@ -108,16 +268,171 @@ public final class AukletIoSink extends AbstractSink {
         }
     }
 
+    /** <p>Counts each event in a batch message separately.</p> */
+    @Override public long getDroppedCount() {
+        synchronized (this.lock) {
+            return this.droppedCount;
+        }
+    }
+
+    /** <p>Counts each event in a batch message separately.</p> */
+    @Override public int getPendingCount() {
+        synchronized (this.lock) {
+            if (this.client == null) return 0;
+            int count = 0;
+            for (IMqttDeliveryToken token : this.client.getPendingDeliveryTokens()) {
+                try {
+                    count += countEvents(token.getMessage());
+                } catch (MqttException e) {
+                    count++;
+                }
+            }
+            for (int i = 0; i < this.client.getBufferedMessageCount(); i++) {
+                count += countEvents(this.client.getBufferedMessage(i));
+            }
+            return count;
+        }
+    }
+
+    /**
+     * <p>Returns the number of events in the given message.</p>
+     *
+     * @param message may be {@code null}.
+     * @return a non-negative number.
+     */
+    private static int countEvents(@Nullable MqttMessage message) {
+        return message instanceof RewrittenMessage ? ((RewrittenMessage) message).originals.size() : 1;
+    }
+
+    /**
+     * <p>Waits for the broker to acknowledge all in-flight messages. Messages that are buffered by the
+     * MQTT client because it is disconnected are returned immediately as undelivered.</p>
+     */
+    @Override @NonNull public List<byte[]> awaitDelivery(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        IMqttDeliveryToken[] tokens;
+        synchronized (this.lock) {
+            if (this.client == null) return Collections.emptyList();
+            tokens = this.client.getPendingDeliveryTokens();
+        }
+        for (IMqttDeliveryToken token : tokens) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) break;
+            try {
+                token.waitForCompletion(remainingMillis);
+            } catch (MqttException e) {
+                LOGGER.debug("MQTT message was not acknowledged.", e);
+            }
+        }
+        // The same message may be both pending and buffered, so collect them by identity.
+        Set<MqttMessage> undelivered = Collections.newSetFromMap(new IdentityHashMap<MqttMessage, Boolean>());
+        for (IMqttDeliveryToken token : tokens) {
+            if (token.isComplete()) continue;
+            try {
+                MqttMessage message = token.getMessage();
+                if (message != null) undelivered.add(message);
+            } catch (MqttException e) {
+                LOGGER.debug("Could not obtain undelivered MQTT message.", e);
+            }
+        }
+        synchronized (this.lock) {
+            for (int i = 0; i < this.client.getBufferedMessageCount(); i++) {
+                undelivered.add(this.client.getBufferedMessage(i));
+            }
+        }
+        List<byte[]> payloads = new ArrayList<>(undelivered.size());
+        // Rewritten messages may refer to a dictionary or an event that the receiver will not have when they
+        // are sent again, and batches are split back into their events so that those can be spooled.
+        for (MqttMessage message : undelivered) {
+            if (message instanceof RewrittenMessage) payloads.addAll(((RewrittenMessage) message).originals);
+            else payloads.add(message.getPayload());
+        }
+        return payloads;
+    }
+
+    /** <p>Disconnects from the broker without waiting for in-flight work to quiesce.</p> */
+    @GuardedBy("lock") private void disconnectForcibly() {
+        try {
+            // Wait 1ms to disconnect (effectively do not wait, but if we say 0ms
+            // it will actually wait forever).
+            this.client.disconnectForcibly(0L, 1L);
+        } catch (MqttException e) {
+            LOGGER.warn("Error while forcibly disconnecting MQTT client.", e);
+        }
+    }
+
+    /**
+     * <p>Begins connecting to the MQTT broker. If the connection attempt fails, another attempt is
+     * scheduled with exponential backoff. Once connected, the MQTT client automatically reconnects
+     * if the connection is lost.</p>
+     */
+    @GuardedBy("lock") private void connect() {
+        if (this.shutdown) return;
+        try {
+            this.client.connect(this.connectOptions, null, new IMqttActionListener() {
+                @Override public void onSuccess(IMqttToken asyncActionToken) {
+                    LOGGER.info("Connected to MQTT broker.");
+                    synchronized (lock) {
+                        connectRetrySeconds = MIN_CONNECT_RETRY_SECONDS;
+                    }
+                }
+
+                @Override public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    LOGGER.warn("Could not connect to MQTT broker.", exception);
+                    synchronized (lock) {
+                        scheduleConnect();
+                    }
+                }
+            });
+        } catch (MqttException e) {
+            LOGGER.warn("Could not connect to MQTT broker.", e);
+            this.scheduleConnect();
+        }
+    }
+
+    /** <p>Schedules another attempt to connect to the MQTT broker.</p> */
+    @GuardedBy("lock") private void scheduleConnect() {
+        if (this.shutdown) return;
+        long delay = this.connectRetrySeconds;
+        this.connectRetrySeconds = Math.min(delay * 2, MAX_CONNECT_RETRY_SECONDS);
+        LOGGER.info("Retrying MQTT connection in {} seconds.", delay);
+        try {
+            if (this.connectRetryTask == null) {
+                this.connectRetryTask = this.getAgent().scheduleOneShotTask(new AukletDaemonExecutor.CancelSilentlyRunnable() {
+                    @Override public void run() {
+                        synchronized (lock) {
+                            connect();
+                        }
+                    }
+                }, delay, TimeUnit.SECONDS);
+            } else {
+                this.getAgent().rescheduleOneShotTask(this.connectRetryTask, delay, TimeUnit.SECONDS);
+            }
+        } catch (AukletException e) {
+            LOGGER.warn("Could not schedule MQTT connection retry.", e);
+        }
+    }
+
     /**
      * <p>Returns the MQTT callback object used by the MQTT client.</p>
      *
      * @return never {@code null}.
      */
     @NonNull private MqttCallback getCallback() {
-        return new MqttCallback() {
+        return new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                // The receiver keys its tables by epoch, and unacknowledged messages of the current epoch are
+                // retransmitted over the new connection, so the dictionary remains valid.
+            }
+
             @Override
             public void connectionLost(Throwable cause) {
                 LOGGER.error("Unexpected disconnect from MQTT.", cause);
+                // A message that was being published as the connection was lost may have been buffered, and
+                // the buffer may drop it; see publish().
+                FrameDictionary frameDictionary = dictionary;
+                if (frameDictionary != null) frameDictionary.reset();
             }
 
             @Override
@@ -171,8 +486,23 @@ public final class AukletIoSink extends AbstractSink {
         options.setKeepAliveInterval(60);
         options.setCleanSession(false);
         options.setAutomaticReconnect(true);
-        options.setSocketFactory(X509Trust.fromCerts(Collections.singleton(cert)).createSocketFactory());
+        options.setSocketFactory(X509Trust.fromCerts(Collections.singleton(cert)).getSocketFactory());
         return options;
     }
 
+    /**
+     * <p>A message whose payload was rewritten by the frame dictionary, converted to a reference, or
+     * combined with other messages into a batch.</p>
+     */
+    private static final class RewrittenMessage extends MqttMessage {
+
+        private final List<byte[]> originals;
+
+        private RewrittenMessage(@NonNull byte[] payload, @NonNull List<byte[]> originals) {
+            super(payload);
+            this.originals = originals;
+        }
+
+    }
+
 }
@@ -0,0 +1,170 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.Immutable;
+
+import java.util.*;
+
+/**
+ * <p>A throwable together with its tree of causes and suppressed throwables, as it will be encoded in an
+ * event.</p>
+ *
+ * <p>Like {@link Throwable#printStackTrace()}, each nested throwable records how many frames at the end of
+ * its stack trace are the same as those of its enclosing throwable, so that those frames need not be
+ * encoded twice. A throwable that occurs more than once in the tree is captured only the first time,
+ * and the tree is bounded in depth and size.</p>
+ */
+@Immutable
+/*package*/ final class CapturedThrowable {
+
+    private static final int MAX_DEPTH = 16;
+    private static final int MAX_THROWABLES = 32;
+
+    private final Throwable throwable;
+    private final StackTraceElement[] stackTrace;
+    private final boolean nested;
+    private final int framesInCommon;
+    private final CapturedThrowable cause;
+    private final List<CapturedThrowable> suppressed;
+
+    private CapturedThrowable(@NonNull Throwable throwable, @Nullable StackTraceElement[] enclosingTrace, @NonNull Set<Throwable> seen, int depth) {
+        seen.add(throwable);
+        this.throwable = throwable;
+        this.stackTrace = throwable.getStackTrace();
+        this.nested = enclosingTrace != null;
+        this.framesInCommon = enclosingTrace == null ? 0 : countFramesInCommon(this.stackTrace, enclosingTrace);
+        // The cause is captured first, because it is usually the more useful of the two if the tree is too big.
+        this.cause = capture(throwable.getCause(), this.stackTrace, seen, depth + 1);
+        List<CapturedThrowable> capturedSuppressed = new ArrayList<>();
+        for (Throwable t : getSuppressed(throwable)) {
+            CapturedThrowable captured = capture(t, this.stackTrace, seen, depth + 1);
+            if (captured != null) capturedSuppressed.add(captured);
+        }
+        this.suppressed = Collections.unmodifiableList(capturedSuppressed);
+    }
+
+    /**
+     * <p>Captures the given throwable and its tree of causes and suppressed throwables.</p>
+     *
+     * @param throwable never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull public static CapturedThrowable capture(@NonNull Throwable throwable) {
+        return new CapturedThrowable(throwable, null, Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>()), 0);
+    }
+
+    /**
+     * <p>Captures the given nested throwable, unless it has already been captured or the tree is full.</p>
+     *
+     * @param throwable may be {@code null}.
+     * @param enclosingTrace the stack trace of the enclosing throwable. Never {@code null}.
+     * @param seen the throwables that have already been captured. Never {@code null}.
+     * @param depth the depth of the given throwable in the tree.
+     * @return {@code null} if the throwable is {@code null} or is not captured.
+     */
+    @CheckForNull private static CapturedThrowable capture(@Nullable Throwable throwable, @NonNull StackTraceElement[] enclosingTrace, @NonNull Set<Throwable> seen, int depth) {
+        if (throwable == null || depth > MAX_DEPTH || seen.size() >= MAX_THROWABLES || seen.contains(throwable)) return null;
+        return new CapturedThrowable(throwable, enclosingTrace, seen, depth);
+    }
+
+    /**
+     * <p>Returns the throwable.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public Throwable getThrowable() {
+        return this.throwable;
+    }
+
+    /**
+     * <p>Returns the stack trace of the throwable, including any frames in common with its enclosing
+     * throwable.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StackTraceElement[] getStackTrace() {
+        return this.stackTrace;
+    }
+
+    /**
+     * <p>Returns the number of frames at the start of the stack trace that are not in common with the
+     * enclosing throwable.</p>
+     *
+     * @return a non-negative number.
+     */
+    public int getUniqueFrameCount() {
+        return this.stackTrace.length - this.framesInCommon;
+    }
+
+    /**
+     * <p>Returns whether this throwable is the cause, or a suppressed throwable, of another.</p>
+     *
+     * @return {@code false} if this is the root of the tree.
+     */
+    public boolean isNested() {
+        return this.nested;
+    }
+
+    /**
+     * <p>Returns the number of frames at the end of the stack trace that are the same as those at the end
+     * of the enclosing throwable's stack trace.</p>
+     *
+     * @return zero if this is the root of the tree.
+     */
+    public int getFramesInCommon() {
+        return this.framesInCommon;
+    }
+
+    /**
+     * <p>Returns the captured cause.</p>
+     *
+     * @return {@code null} if there is no cause, or it was not captured.
+     */
+    @CheckForNull public CapturedThrowable getCause() {
+        return this.cause;
+    }
+
+    /**
+     * <p>Returns the captured suppressed throwables.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public List<CapturedThrowable> getSuppressed() {
+        return this.suppressed;
+    }
+
+    /**
+     * <p>Returns the number of frames that two stack traces have in common, counting from the end.</p>
+     *
+     * @param trace never {@code null}.
+     * @param enclosingTrace never {@code null}.
+     * @return a non-negative number.
+     */
+    private static int countFramesInCommon(@NonNull StackTraceElement[] trace, @NonNull StackTraceElement[] enclosingTrace) {
+        int m = trace.length - 1;
+        int n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        return trace.length - 1 - m;
+    }
+
+    /**
+     * <p>Returns the throwables that were suppressed by the given throwable.</p>
+     *
+     * @param throwable never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull private static Throwable[] getSuppressed(@NonNull Throwable throwable) {
+        try {
+            return throwable.getSuppressed();
+        } catch (NoSuchMethodError e) {
+            // Android API levels below 19 do not support suppressed throwables.
+            return new Throwable[0];
+        }
+    }
+
+}
@@ -0,0 +1,314 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+import org.msgpack.value.ValueType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * <p>Combines several event messages into one message, in which the events' stack frames are stored
+ * column by column rather than as one map per frame. The frame strings of the whole batch are sent only
+ * once, and each column holds values of one kind, which makes the batch both smaller and more
+ * compressible than the events would be separately.</p>
+ *
+ * <p>A batch is a MessagePack map with the following entries:</p>
+ *
+ * <ul>
+ *   <li>{@code batchVersion}: the version of this format, which is {@value #VERSION}. Event messages never
+ *   have this entry, so receivers can tell batches apart from events, and must reject versions that they
+ *   do not support.</li>
+ *   <li>{@code shared}: a map of the header entries, such as {@code application}, {@code device} and
+ *   {@code systemMetrics}, whose values are the same in every event of the batch. These entries are
+ *   omitted from the events.</li>
+ *   <li>{@code metrics}: only if the events' system metrics are not all the same, an array of the
+ *   distinct {@code systemMetrics} maps of the batch. The {@code systemMetrics} entry of each event is
+ *   then an index into this array.</li>
+ *   <li>{@code strings}: the batch's string table, which holds each distinct function name, class name
+ *   and file path in the batch's stack traces.</li>
+ *   <li>{@code events}: an array of maps, each of which holds the remaining entries of one event.</li>
+ * </ul>
+ *
+ * <p>In each event, and in each of its causes and suppressed throwables, the {@code stackTrace} array of
+ * frames is replaced by a map of columns that have one element per frame. The {@code functionName},
+ * {@code className} and {@code filePath} columns hold indexes into the string table. The
+ * {@code lineNumber} column holds the difference between each frame's line number and that of the
+ * nearest previous frame that has one, or from zero for the first such frame. An element is {@code nil} if its
+ * frame has no such entry. Any other frame entries, such as {@code omittedFrames}, are held in an
+ * {@code extras} array of pairs of a frame index and a map of that frame's other entries, which is
+ * present only if there are any.</p>
+ */
+@NotThreadSafe
+/*package*/ final class ColumnarBatch {
+
+    /*package*/ static final int VERSION = 1;
+    private static final List<String> SHARED_KEYS = Arrays.asList("application", "macAddressHash", "publicIP", "systemMetrics", "agentVersion", "device");
+    private static final Set<String> THROWABLE_KEYS = new HashSet<>(Arrays.asList("stackTrace", "cause", "suppressed"));
+
+    private final List<Map<String, byte[]>> events = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final Map<ByteBuffer, Integer> metricIds = new HashMap<>();
+    private final List<byte[]> metrics = new ArrayList<>();
+
+    /**
+     * <p>Adds an event message to this batch.</p>
+     *
+     * @param unpacker never {@code null}. Must be reading {@code message}, and be positioned at the start
+     * of the event map.
+     * @param message never {@code null}.
+     * @throws IOException if the message is not an event message.
+     */
+    /*package*/ void add(@NonNull MessageUnpacker unpacker, @NonNull byte[] message) throws IOException {
+        int entries = unpacker.unpackMapHeader();
+        Map<String, byte[]> event = new LinkedHashMap<>();
+        for (int i = 0; i < entries; i++) {
+            if (unpacker.getNextFormat().getValueType() != ValueType.STRING) throw new IOException("Event message has a non-string key.");
+            String key = unpacker.unpackString();
+            int start = (int) unpacker.getTotalReadBytes();
+            unpacker.skipValue();
+            event.put(key, Arrays.copyOfRange(message, start, (int) unpacker.getTotalReadBytes()));
+        }
+        if (!event.containsKey("id")) throw new IOException("Message is not an event message.");
+        this.events.add(event);
+    }
+
+    /**
+     * <p>Encodes this batch.</p>
+     *
+     * @return never {@code null}.
+     * @throws IOException if an event's stack trace is not in the expected format.
+     */
+    @NonNull /*package*/ byte[] toByteArray() throws IOException {
+        Map<String, byte[]> shared = new LinkedHashMap<>();
+        for (String key : SHARED_KEYS) {
+            byte[] value = this.events.isEmpty() ? null : this.events.get(0).get(key);
+            for (int i = 1; i < this.events.size() && value != null; i++) {
+                if (!Arrays.equals(value, this.events.get(i).get(key))) value = null;
+            }
+            if (value != null) shared.put(key, value);
+        }
+        try (MessageBufferPacker eventsPacker = MessagePack.newDefaultBufferPacker();
+             MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            // The events are packed first, because that is what fills the string and metrics tables.
+            for (Map<String, byte[]> event : this.events) this.packEvent(eventsPacker, event, shared.keySet());
+            eventsPacker.flush();
+            packer.packMapHeader(this.metrics.isEmpty() ? 4 : 5);
+            packer.packString("batchVersion").packInt(VERSION);
+            packer.packString("shared").packMapHeader(shared.size());
+            for (Map.Entry<String, byte[]> entry : shared.entrySet()) {
+                packer.packString(entry.getKey());
+                packer.addPayload(entry.getValue());
+            }
+            if (!this.metrics.isEmpty()) {
+                packer.packString("metrics").packArrayHeader(this.metrics.size());
+                for (byte[] metric : this.metrics) packer.addPayload(metric);
+            }
+            packer.packString("strings").packArrayHeader(this.strings.size());
+            for (String s : this.strings) packer.packString(s);
+            packer.packString("events").packArrayHeader(this.events.size());
+            packer.addPayload(eventsPacker.toByteArray());
+            packer.flush();
+            return packer.toByteArray();
+        }
+    }
+
+    /**
+     * <p>Packs the entries of the given event that are not shared.</p>
+     *
+     * @param packer never {@code null}.
+     * @param event never {@code null}.
+     * @param shared never {@code null}.
+     * @throws IOException if the event cannot be read or written.
+     */
+    private void packEvent(@NonNull MessagePacker packer, @NonNull Map<String, byte[]> event, @NonNull Set<String> shared) throws IOException {
+        int entries = 0;
+        for (String key : event.keySet()) {
+            if (!shared.contains(key)) entries++;
+        }
+        packer.packMapHeader(entries);
+        for (Map.Entry<String, byte[]> entry : event.entrySet()) {
+            String key = entry.getKey();
+            if (shared.contains(key)) continue;
+            packer.packString(key);
+            if ("systemMetrics".equals(key)) {
+                packer.packInt(this.metricId(entry.getValue()));
+            } else if (THROWABLE_KEYS.contains(key)) {
+                try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(entry.getValue())) {
+                    this.copyValue(unpacker, packer, key);
+                }
+            } else {
+                packer.addPayload(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * <p>Copies the value of a throwable's map entry, converting any stack traces that it contains into
+     * columns.</p>
+     *
+     * @param unpacker never {@code null}.
+     * @param packer never {@code null}.
+     * @param key never {@code null}.
+     * @throws IOException if the value cannot be read or written.
+     */
+    private void copyValue(@NonNull MessageUnpacker unpacker, @NonNull MessagePacker packer, @NonNull String key) throws IOException {
+        ValueType type = unpacker.getNextFormat().getValueType();
+        if ("stackTrace".equals(key) && type == ValueType.ARRAY) {
+            this.packStackTrace(unpacker, packer);
+        } else if ("cause".equals(key) && type == ValueType.MAP) {
+            this.copyThrowable(unpacker, packer);
+        } else if ("suppressed".equals(key) && type == ValueType.ARRAY) {
+            int elements = unpacker.unpackArrayHeader();
+            packer.packArrayHeader(elements);
+            for (int i = 0; i < elements; i++) {
+                if (unpacker.getNextFormat().getValueType() == ValueType.MAP) this.copyThrowable(unpacker, packer);
+                else packer.packValue(unpacker.unpackValue());
+            }
+        } else {
+            packer.packValue(unpacker.unpackValue());
+        }
+    }
+
+    /**
+     * <p>Copies a nested throwable's map.</p>
+     *
+     * @param unpacker never {@code null}.
+     * @param packer never {@code null}.
+     * @throws IOException if the throwable cannot be read or written.
+     */
+    private void copyThrowable(@NonNull MessageUnpacker unpacker, @NonNull MessagePacker packer) throws IOException {
+        int entries = unpacker.unpackMapHeader();
+        packer.packMapHeader(entries);
+        for (int i = 0; i < entries; i++) {
+            if (unpacker.getNextFormat().getValueType() != ValueType.STRING) {
+                packer.packValue(unpacker.unpackValue());
+                packer.packValue(unpacker.unpackValue());
+                continue;
+            }
+            String key = unpacker.unpackString();
+            packer.packString(key);
+            this.copyValue(unpacker, packer, key);
+        }
+    }
+
+    /**
+     * <p>Converts a stack trace into columns.</p>
+     *
+     * @param unpacker never {@code null}. Must be positioned at the stack trace array.
+     * @param packer never {@code null}.
+     * @throws IOException if the stack trace cannot be read or written, or if a frame is not a map.
+     */
+    private void packStackTrace(@NonNull MessageUnpacker unpacker, @NonNull MessagePacker packer) throws IOException {
+        int frames = unpacker.unpackArrayHeader();
+        Integer[] functionNames = new Integer[frames];
+        Integer[] classNames = new Integer[frames];
+        Integer[] filePaths = new Integer[frames];
+        Long[] lineNumbers = new Long[frames];
+        Map<Integer, List<Value>> extras = new LinkedHashMap<>();
+        for (int i = 0; i < frames; i++) {
+            if (unpacker.getNextFormat().getValueType() != ValueType.MAP) throw new IOException("Stack frame is not a map.");
+            int entries = unpacker.unpackMapHeader();
+            for (int j = 0; j < entries; j++) {
+                boolean stringKey = unpacker.getNextFormat().getValueType() == ValueType.STRING;
+                String name = stringKey ? unpacker.unpackString() : "";
+                ValueType type = unpacker.getNextFormat().getValueType();
+                if ("functionName".equals(name) && type == ValueType.STRING) {
+                    functionNames[i] = this.stringId(unpacker.unpackString());
+                } else if ("className".equals(name) && type == ValueType.STRING) {
+                    classNames[i] = this.stringId(unpacker.unpackString());
+                } else if ("filePath".equals(name) && type == ValueType.STRING) {
+                    filePaths[i] = this.stringId(unpacker.unpackString());
+                } else if ("lineNumber".equals(name) && type == ValueType.INTEGER) {
+                    lineNumbers[i] = unpacker.unpackLong();
+                } else {
+                    List<Value> extra = extras.get(i);
+                    if (extra == null) {
+                        extra = new ArrayList<>();
+                        extras.put(i, extra);
+                    }
+                    extra.add(stringKey ? ValueFactory.newString(name) : unpacker.unpackValue());
+                    extra.add(unpacker.unpackValue());
+                }
+            }
+        }
+        packer.packMapHeader(extras.isEmpty() ? 4 : 5);
+        packColumn(packer, "functionName", functionNames);
+        packColumn(packer, "className", classNames);
+        packColumn(packer, "filePath", filePaths);
+        packer.packString("lineNumber").packArrayHeader(frames);
+        long previous = 0L;
+        for (Long lineNumber : lineNumbers) {
+            if (lineNumber == null) {
+                packer.packNil();
+            } else {
+                packer.packLong(lineNumber - previous);
+                previous = lineNumber;
+            }
+        }
+        if (extras.isEmpty()) return;
+        packer.packString("extras").packArrayHeader(extras.size());
+        for (Map.Entry<Integer, List<Value>> extra : extras.entrySet()) {
+            packer.packArrayHeader(2).packInt(extra.getKey()).packMapHeader(extra.getValue().size() / 2);
+            for (Value value : extra.getValue()) packer.packValue(value);
+        }
+    }
+
+    /**
+     * <p>Packs a column of string table indexes.</p>
+     *
+     * @param packer never {@code null}.
+     * @param name never {@code null}.
+     * @param ids never {@code null}. An element is {@code null} if its frame has no such string.
+     * @throws IOException if the column cannot be written.
+     */
+    private static void packColumn(@NonNull MessagePacker packer, @NonNull String name, @NonNull Integer[] ids) throws IOException {
+        packer.packString(name).packArrayHeader(ids.length);
+        for (Integer id : ids) {
+            if (id == null) packer.packNil();
+            else packer.packInt(id);
+        }
+    }
+
+    /**
+     * <p>Returns the index of the given string in the string table, adding it if necessary.</p>
+     *
+     * @param s never {@code null}.
+     * @return a non-negative number.
+     */
+    private int stringId(@NonNull String s) {
+        Integer id = this.stringIds.get(s);
+        if (id == null) {
+            id = this.strings.size();
+            this.strings.add(s);
+            this.stringIds.put(s, id);
+        }
+        return id;
+    }
+
+    /**
+     * <p>Returns the index of the given system metrics in the metrics table, adding them if necessary.</p>
+     *
+     * @param metric never {@code null}. The encoded system metrics map.
+     * @return a non-negative number.
+     */
+    private int metricId(@NonNull byte[] metric) {
+        ByteBuffer key = ByteBuffer.wrap(metric);
+        Integer id = this.metricIds.get(key);
+        if (id == null) {
+            id = this.metrics.size();
+            this.metrics.add(metric);
+            this.metricIds.put(key, id);
+        }
+        return id;
+    }
+
+}
@@ -0,0 +1,626 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.AukletException;
+import io.auklet.util.StackTraceUtil;
+import io.auklet.util.Util;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * <p>Encodes the body of an event, which describes a throwable and its tree of causes and suppressed
+ * throwables, without exceeding a maximum size.</p>
+ *
+ * <p>Before anything is packed, the encoder measures each part of the event. If the event would be too
+ * large, it is truncated in the following order of priority, and each truncation is recorded in the event:</p>
+ *
+ * <ul>
+ *   <li>Nested throwables are dropped, starting with those that are furthest from the root, and
+ *   suppressed throwables before causes at the same depth. The root has an {@code omittedThrowables}
+ *   entry, which is the number of throwables that were dropped.</li>
+ *   <li>The remaining space is shared among the remaining throwables, so that one huge message cannot
+ *   crowd out the stack traces of the others.</li>
+ *   <li>Within its share, each throwable's message is truncated at a character boundary, and the
+ *   throwable has a {@code messageLength} entry, which is the length of the original message in
+ *   characters. Frames are then removed from the middle of its stack trace, keeping the frames where it
+ *   was created and the frames of the thread's entry point, and replaced by a marker frame: its
+ *   {@code functionName}, {@code className} and {@code filePath} are empty, its {@code lineNumber} is -1,
+ *   and its extra {@code omittedFrames} entry is the number of frames it replaces.</li>
+ * </ul>
+ *
+ * <p>Class, method, file and package names are always truncated to {@value #MAX_NAME_BYTES} bytes. The
+ * message is never measured beyond the maximum size, so the cost of encoding an event is bounded by the
+ * maximum size and the depth of its stack traces, not by the length of its message.</p>
+ */
+@ThreadSafe
+public final class EventEncoder {
+
+    /** <p>The default maximum size of an event body, in bytes.</p> */
+    public static final int DEFAULT_MAX_EVENT_SIZE = 32 * 1024;
+    /** <p>The smallest maximum size of an event body, in bytes, which always fits the root throwable.</p> */
+    public static final int MIN_MAX_EVENT_SIZE = 1024;
+    /** <p>An encoder that collapses no frames and has the default maximum size.</p> */
+    public static final EventEncoder DEFAULT = new EventEncoder(FrameFilter.NONE, DEFAULT_MAX_EVENT_SIZE);
+    private static final int MAX_NAME_BYTES = 256;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // The largest header that an array of frames or suppressed throwables can have.
+    private static final int MAX_ARRAY_HEADER_SIZE = 3;
+    // The largest integer that an omittedFrames, messageLength or omittedThrowables entry can have.
+    private static final int MAX_INT_SIZE = 5;
+    private static final int FRAME_KEYS_SIZE = keySize("functionName") + keySize("className") + keySize("filePath") + keySize("lineNumber");
+    // An empty functionName, className and filePath, and a lineNumber of -1.
+    private static final int OMITTED_MARKER_SIZE = 1 + FRAME_KEYS_SIZE + 3 * stringSize(0) + intSize(-1) + keySize("omittedFrames") + MAX_INT_SIZE;
+
+    private final FrameFilter frameFilter;
+    private final int maxEventSize;
+
+    /**
+     * Constructor.
+     *
+     * @param frameFilter the filter that decides which stack frames to collapse. Never {@code null}.
+     * @param maxEventSize the maximum size of an event body, in bytes. Values less than
+     * {@link #MIN_MAX_EVENT_SIZE} are raised to it.
+     */
+    public EventEncoder(@NonNull FrameFilter frameFilter, int maxEventSize) {
+        this.frameFilter = frameFilter;
+        this.maxEventSize = Math.max(MIN_MAX_EVENT_SIZE, maxEventSize);
+    }
+
+    /**
+     * <p>Returns the filter that decides which stack frames to collapse.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public FrameFilter getFrameFilter() {
+        return this.frameFilter;
+    }
+
+    /**
+     * <p>Returns the maximum size of an event body, in bytes.</p>
+     *
+     * @return at least {@link #MIN_MAX_EVENT_SIZE}.
+     */
+    public int getMaxEventSize() {
+        return this.maxEventSize;
+    }
+
+    /**
+     * <p>Encodes the parts of an event that do not depend on the data sink, so that the event can be
+     * buffered or spooled, and later sent via {@link AbstractSink#sendEncoded(byte[])}.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     * @return never {@code null}. No longer than the maximum event size.
+     * @throws AukletException if the event cannot be encoded.
+     */
+    @NonNull public byte[] encodeEventBody(@NonNull Throwable throwable, long timestamp) throws AukletException {
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            this.packEventBody(packer, throwable, timestamp);
+            packer.flush();
+            return packer.toByteArray();
+        } catch (IOException e) {
+            throw new AukletException("Could not encode event.", e);
+        }
+    }
+
+    /**
+     * <p>Packs the map entries that describe the given throwable, without a map header. These entries form
+     * the event body returned by {@link #encodeEventBody(Throwable, long)}.</p>
+     *
+     * <p>The throwable's cause and suppressed throwables, and theirs in turn, are packed in {@code cause}
+     * and {@code suppressed} entries, which are omitted if there are none. Each nested throwable has a
+     * {@code framesInCommon} entry, which is the number of frames at the end of its stack trace that are
+     * the same as those of its enclosing throwable; like the "... N more" of
+     * {@link Throwable#printStackTrace()}, these frames are not packed again.</p>
+     *
+     * <p>Consecutive frames whose classes are in the same package that the frame filter excludes are
+     * packed as a single marker frame: its {@code className} is the excluded package, its
+     * {@code functionName} and {@code filePath} are empty, its {@code lineNumber} is -1, and its extra
+     * {@code collapsedFrames} entry is the number of frames it replaces. The first frame of each stack
+     * trace, where the throwable was created, is never collapsed, and neither is a lone framework frame.</p>
+     *
+     * <p>Cycles of frames that repeat consecutively, such as those in the stack trace of a
+     * {@link StackOverflowError}, are packed only once. The first frame of such a cycle has two extra
+     * entries: {@code cycleLength}, the number of frames in the cycle, and {@code cycleRepeats}, the number
+     * of times the cycle repeats.</p>
+     *
+     * <p>The {@code fingerprint} entry is a 64-bit hash of the exception types and stack frames of the
+     * whole tree, but not of the messages, so that repeat occurrences of the same error can be recognized.
+     * It is computed before any truncation.</p>
+     *
+     * <p>If the entries would be larger than the maximum event size, they are truncated as described in
+     * the documentation of this class.</p>
+     *
+     * @param packer never {@code null}.
+     * @param throwable never {@code null}.
+     * @param timestamp the time at which the throwable was reported, in milliseconds since the epoch.
+     * @throws IOException if an error occurs while packing the entries.
+     */
+    public void packEventBody(@NonNull MessagePacker packer, @NonNull Throwable throwable, long timestamp) throws IOException {
+        CapturedThrowable root = CapturedThrowable.capture(throwable);
+        // Plan the throwables in order of priority: breadth first, with each cause before its siblings.
+        List<Plan> plans = new ArrayList<>();
+        plans.add(new Plan(root, null, false));
+        for (int i = 0; i < plans.size(); i++) {
+            CapturedThrowable captured = plans.get(i).captured;
+            if (captured.getCause() != null) plans.add(new Plan(captured.getCause(), plans.get(i), false));
+            boolean first = true;
+            for (CapturedThrowable s : captured.getSuppressed()) {
+                plans.add(new Plan(s, plans.get(i), first));
+                first = false;
+            }
+        }
+        for (Plan plan : plans) plan.measure();
+        // Keep as many throwables as can be packed at their minimum size.
+        long fingerprint = fingerprint(root, FNV_OFFSET_BASIS);
+        int used = keySize("timestamp") + longSize(timestamp) + keySize("fingerprint") + longSize(fingerprint)
+                + keySize("omittedThrowables") + MAX_INT_SIZE;
+        int selected = 0;
+        while (selected < plans.size() && (selected == 0 || used + plans.get(selected).minimum <= this.maxEventSize)) {
+            Plan plan = plans.get(selected++);
+            used += plan.minimum;
+            if (plan.parent == null) continue;
+            if (plan.isCause()) plan.parent.cause = plan;
+            else plan.parent.suppressed.add(plan);
+        }
+        // Share out the remaining space, giving throwables that need little of it all that they need.
+        List<Plan> byNeed = new ArrayList<>(plans.subList(0, selected));
+        Collections.sort(byNeed, new Comparator<Plan>() {
+            @Override public int compare(Plan a, Plan b) {
+                int needA = a.natural - a.minimum;
+                int needB = b.natural - b.minimum;
+                return needA < needB ? -1 : needA == needB ? 0 : 1;
+            }
+        });
+        int spare = Math.max(0, this.maxEventSize - used);
+        for (int i = 0; i < byNeed.size(); i++) {
+            Plan plan = byNeed.get(i);
+            int share = Math.min(plan.natural - plan.minimum, spare / (byNeed.size() - i));
+            spare -= share;
+            plan.fit(plan.minimum + share);
+        }
+        packer.packString("timestamp").packLong(timestamp)
+                .packString("fingerprint").packLong(fingerprint);
+        packThrowable(packer, plans.get(0));
+        if (selected < plans.size()) packer.packString("omittedThrowables").packInt(plans.size() - selected);
+    }
+
+    /**
+     * <p>Returns the FNV-1a hash of the exception types and stack frames of the given captured throwable
+     * and its nested throwables, continuing from the given hash.</p>
+     *
+     * @param captured never {@code null}.
+     * @param hash the hash so far.
+     * @return the new hash.
+     */
+    private static long fingerprint(@NonNull CapturedThrowable captured, long hash) {
+        hash = hash(hash, captured.getThrowable().getClass().getName());
+        StackTraceElement[] stackTrace = captured.getStackTrace();
+        for (int i = 0; i < captured.getUniqueFrameCount(); i++) {
+            StackTraceElement ste = stackTrace[i];
+            hash = hash(hash, ste.getClassName());
+            hash = hash(hash, ste.getMethodName());
+            hash = hash(hash, Util.orElse(ste.getFileName(), ""));
+            hash = hash(hash, ste.getLineNumber());
+        }
+        hash = hash(hash, captured.getFramesInCommon());
+        // Mark where each nested throwable starts, so that a cause and a suppressed throwable differ.
+        if (captured.getCause() != null) hash = fingerprint(captured.getCause(), hash(hash, 'c'));
+        for (CapturedThrowable s : captured.getSuppressed()) hash = fingerprint(s, hash(hash, 's'));
+        return hash(hash, 'e');
+    }
+
+    /**
+     * <p>Adds the characters of the given string, and a terminator, to the given FNV-1a hash.</p>
+     *
+     * @param hash the hash so far.
+     * @param s never {@code null}.
+     * @return the new hash.
+     */
+    private static long hash(long hash, @NonNull String s) {
+        for (int i = 0; i < s.length(); i++) hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+        // No character in a class, method or file name is U+FFFF.
+        return (hash ^ 0xffff) * FNV_PRIME;
+    }
+
+    /**
+     * <p>Adds the given integer to the given FNV-1a hash.</p>
+     *
+     * @param hash the hash so far.
+     * @param v the integer.
+     * @return the new hash.
+     */
+    private static long hash(long hash, int v) {
+        hash = (hash ^ (v >>> 16)) * FNV_PRIME;
+        return (hash ^ (v & 0xffff)) * FNV_PRIME;
+    }
+
+    /**
+     * <p>Packs the map entries that describe the given planned throwable and its nested throwables.</p>
+     *
+     * @param packer never {@code null}.
+     * @param plan never {@code null}.
+     * @throws IOException if an error occurs while packing the entries.
+     */
+    private static void packThrowable(@NonNull MessagePacker packer, @NonNull Plan plan) throws IOException {
+        packer
+                .packString("excType").packString(plan.excType)
+                .packString("message").packString(plan.packedMessage);
+        if (plan.packedMessage.length() < plan.message.length()) packer.packString("messageLength").packInt(plan.message.length());
+        packStackTrace(packer, plan);
+        if (plan.captured.isNested()) packer.packString("framesInCommon").packInt(plan.captured.getFramesInCommon());
+        if (plan.cause != null) {
+            packer.packString("cause").packMapHeader(plan.cause.countEntries());
+            packThrowable(packer, plan.cause);
+        }
+        if (!plan.suppressed.isEmpty()) {
+            packer.packString("suppressed").packArrayHeader(plan.suppressed.size());
+            for (Plan s : plan.suppressed) {
+                packer.packMapHeader(s.countEntries());
+                packThrowable(packer, s);
+            }
+        }
+    }
+
+    /**
+     * <p>Packs the {@code stackTrace} entry for the given planned throwable.</p>
+     *
+     * @param packer never {@code null}.
+     * @param plan never {@code null}.
+     * @throws IOException if an error occurs while packing the entry.
+     */
+    private static void packStackTrace(@NonNull MessagePacker packer, @NonNull Plan plan) throws IOException {
+        StackTraceElement[] stackTrace = plan.captured.getStackTrace();
+        int omittedFrames = 0;
+        for (int i = plan.head; i < plan.tail; i++) omittedFrames += plan.elements.get(i).frames;
+        // Each frame of a cycle is packed as its own map.
+        int elements = omittedFrames > 0 ? 1 : 0;
+        for (int i = 0; i < plan.elements.size(); i++) {
+            if (i >= plan.head && i < plan.tail) continue;
+            StackTraceUtil.FrameRun cycle = plan.elements.get(i).cycle;
+            elements += cycle != null ? cycle.getLength() : 1;
+        }
+        packer.packString("stackTrace").packArrayHeader(elements);
+        for (int i = 0; i < plan.elements.size(); i++) {
+            if (i == plan.head && omittedFrames > 0) {
+                packer.packMapHeader(5)
+                        .packString("functionName").packString("")
+                        .packString("className").packString("")
+                        .packString("filePath").packString("")
+                        .packString("lineNumber").packInt(-1)
+                        .packString("omittedFrames").packInt(omittedFrames);
+            }
+            if (i >= plan.head && i < plan.tail) continue;
+            Element element = plan.elements.get(i);
+            if (element.collapsedPackage != null) {
+                packer.packMapHeader(5)
+                        .packString("functionName").packString("")
+                        .packString("className").packString(element.collapsedPackage)
+                        .packString("filePath").packString("")
+                        .packString("lineNumber").packInt(-1)
+                        .packString("collapsedFrames").packInt(element.frames);
+            } else if (element.cycle != null) {
+                StackTraceUtil.FrameRun cycle = element.cycle;
+                for (int j = 0; j < cycle.getLength(); j++) {
+                    packFrame(packer, stackTrace[cycle.getStart() + j], j == 0);
+                    if (j == 0) {
+                        packer.packString("cycleLength").packInt(cycle.getLength())
+                                .packString("cycleRepeats").packInt(cycle.getRepeats());
+                    }
+                }
+            } else {
+                packFrame(packer, stackTrace[element.start], false);
+            }
+        }
+    }
+
+    /**
+     * <p>Packs the map header and the four regular entries of the given frame.</p>
+     *
+     * @param packer never {@code null}.
+     * @param ste never {@code null}.
+     * @param cycleStart {@code true} if the caller packs the two extra entries of the first frame of a cycle.
+     * @throws IOException if an error occurs while packing the frame.
+     */
+    private static void packFrame(@NonNull MessagePacker packer, @NonNull StackTraceElement ste, boolean cycleStart) throws IOException {
+        int lineNumber = ste.getLineNumber();
+        packer.packMapHeader(cycleStart ? 6 : 4)
+                .packString("functionName").packString(truncateName(ste.getMethodName()))
+                .packString("className").packString(truncateName(ste.getClassName()))
+                .packString("filePath").packString(truncateName(ste.getFileName()))
+                // Normalize all negative return values.
+                .packString("lineNumber").packInt(lineNumber < 0 ? -1 : lineNumber);
+    }
+
+    /**
+     * <p>Returns the number of bytes that the regular entries of the given frame occupy when packed by
+     * {@link #packFrame(MessagePacker, StackTraceElement, boolean)}.</p>
+     *
+     * @param ste never {@code null}.
+     * @return a positive number.
+     */
+    private static int frameSize(@NonNull StackTraceElement ste) {
+        int lineNumber = ste.getLineNumber();
+        return 1 + FRAME_KEYS_SIZE + nameSize(ste.getMethodName()) + nameSize(ste.getClassName())
+                + nameSize(ste.getFileName()) + intSize(lineNumber < 0 ? -1 : lineNumber);
+    }
+
+    /**
+     * <p>Truncates the given class, method, file or package name to the maximum name length.</p>
+     *
+     * @param name may be {@code null}.
+     * @return never {@code null}. The empty string if the name is {@code null}.
+     */
+    @NonNull private static String truncateName(@Nullable String name) {
+        return name == null ? "" : Util.truncateUtf8(name, MAX_NAME_BYTES);
+    }
+
+    /**
+     * <p>Returns the number of bytes that the given name occupies when truncated and packed.</p>
+     *
+     * @param name may be {@code null}.
+     * @return a positive number.
+     */
+    private static int nameSize(@Nullable String name) {
+        return stringSize(Util.utf8Length(truncateName(name)));
+    }
+
+    /**
+     * <p>Returns the number of bytes that a map key occupies when packed.</p>
+     *
+     * @param key never {@code null}. Must be ASCII.
+     * @return a positive number.
+     */
+    private static int keySize(@NonNull String key) {
+        return stringSize(key.length());
+    }
+
+    /**
+     * <p>Returns the number of bytes that a string occupies when packed.</p>
+     *
+     * @param utf8Length the length of the string in UTF-8.
+     * @return a positive number.
+     */
+    private static int stringSize(int utf8Length) {
+        return utf8Length + (utf8Length < (1 << 5) ? 1 : utf8Length < (1 << 8) ? 2 : utf8Length < (1 << 16) ? 3 : 5);
+    }
+
+    /**
+     * <p>Returns the UTF-8 length of the longest string that occupies no more than the given number of
+     * bytes when packed; this is the inverse of {@link #stringSize(int)}.</p>
+     *
+     * @param size a non-negative number.
+     * @return a non-negative number.
+     */
+    private static int maxStringLength(int size) {
+        if (size <= (1 << 5)) return Math.max(0, size - 1);
+        if (size <= (1 << 8) + 1) return size - 2;
+        if (size <= (1 << 16) + 2) return size - 3;
+        return size - 5;
+    }
+
+    /**
+     * <p>Returns the number of bytes that an integer occupies when packed.</p>
+     *
+     * @param v the integer.
+     * @return a positive number.
+     */
+    private static int intSize(int v) {
+        if (v < -(1 << 5)) return v < -(1 << 15) ? 5 : v < -(1 << 7) ? 3 : 2;
+        if (v < (1 << 7)) return 1;
+        return v < (1 << 8) ? 2 : v < (1 << 16) ? 3 : 5;
+    }
+
+    /**
+     * <p>Returns the number of bytes that a long integer occupies when packed.</p>
+     *
+     * @param v the long integer.
+     * @return a positive number.
+     */
+    private static int longSize(long v) {
+        return v < Integer.MIN_VALUE || v > 0xffffffffL ? 9 : v > Integer.MAX_VALUE ? 5 : intSize((int) v);
+    }
+
+    /**
+     * <p>A packed element of a stack trace: a frame, a cycle of frames, or a marker for collapsed frames.</p>
+     */
+    private static final class Element {
+
+        private final int start;
+        private final int frames;
+        private final int size;
+        @Nullable private final StackTraceUtil.FrameRun cycle;
+        @Nullable private final String collapsedPackage;
+
+        private Element(int start, int frames, int size, @Nullable StackTraceUtil.FrameRun cycle, @Nullable String collapsedPackage) {
+            this.start = start;
+            this.frames = frames;
+            this.size = size;
+            this.cycle = cycle;
+            this.collapsedPackage = collapsedPackage;
+        }
+
+    }
+
+    /** <p>The plan for packing one throwable of an event within its share of the maximum size.</p> */
+    @NotThreadSafe
+    private final class Plan {
+
+        private final CapturedThrowable captured;
+        @Nullable private final Plan parent;
+        // Whether this is the first suppressed throwable of its parent, which carries the array's key and header.
+        private final boolean firstSuppressed;
+        private final List<Element> elements = new ArrayList<>();
+        private final List<Plan> suppressed = new ArrayList<>();
+        @CheckForNull private Plan cause = null;
+        private String excType;
+        private String message;
+        // The message, truncated to the maximum event size.
+        private String messagePrefix;
+        private int messageBytes;
+        private int framesSize = 0;
+        // The size of the entries that are packed if the throwable does not fit, except for the message.
+        private int truncatedSize;
+        private int natural;
+        private int minimum;
+        private String packedMessage;
+        // The elements from head (inclusive) to tail (exclusive) are omitted.
+        private int head;
+        private int tail;
+
+        private Plan(@NonNull CapturedThrowable captured, @Nullable Plan parent, boolean firstSuppressed) {
+            this.captured = captured;
+            this.parent = parent;
+            this.firstSuppressed = firstSuppressed;
+        }
+
+        /** <p>Measures the natural size of this throwable, and the smallest size to which it can be truncated.</p> */
+        private void measure() {
+            Throwable throwable = this.captured.getThrowable();
+            this.excType = truncateName(throwable.getClass().getName());
+            this.message = Util.orElse(throwable.getMessage(), "");
+            this.messagePrefix = Util.truncateUtf8(this.message, EventEncoder.this.maxEventSize);
+            // A message that is longer than the maximum event size can never fit, so it is not measured further.
+            this.messageBytes = this.messagePrefix.length() == this.message.length() ? Util.utf8Length(this.message) : EventEncoder.this.maxEventSize + 1;
+            this.planElements();
+            int size = keySize("excType") + stringSize(Util.utf8Length(this.excType)) + keySize("message") + keySize("stackTrace");
+            if (this.parent != null) {
+                size += 1 + keySize("framesInCommon") + intSize(this.captured.getFramesInCommon());
+                if (this.isCause()) size += keySize("cause");
+                else if (this.firstSuppressed) size += keySize("suppressed") + MAX_ARRAY_HEADER_SIZE;
+            }
+            this.truncatedSize = size + keySize("messageLength") + MAX_INT_SIZE + MAX_ARRAY_HEADER_SIZE + OMITTED_MARKER_SIZE;
+            this.natural = size + stringSize(this.messageBytes) + arrayHeaderSize(this.elements.size()) + this.framesSize;
+            this.minimum = Math.min(this.natural, this.truncatedSize + stringSize(0));
+        }
+
+        /**
+         * <p>Returns whether this throwable is the cause of its parent.</p>
+         *
+         * @return {@code false} if this is the root, or a suppressed throwable.
+         */
+        private boolean isCause() {
+            return this.parent != null && this.parent.captured.getCause() == this.captured;
+        }
+
+        /** <p>Divides the unique frames of this throwable into packed elements, and measures them.</p> */
+        private void planElements() {
+            StackTraceElement[] stackTrace = this.captured.getStackTrace();
+            FrameFilter frameFilter = EventEncoder.this.frameFilter;
+            for (StackTraceUtil.FrameRun run : StackTraceUtil.findFrameRuns(stackTrace, this.captured.getUniqueFrameCount())) {
+                if (run.getRepeats() > 1) {
+                    int size = keySize("cycleLength") + intSize(run.getLength()) + keySize("cycleRepeats") + intSize(run.getRepeats());
+                    for (int j = 0; j < run.getLength(); j++) size += frameSize(stackTrace[run.getStart() + j]);
+                    this.add(new Element(run.getStart(), run.getLength() * run.getRepeats(), size, run, null));
+                    continue;
+                }
+                int end = run.getStart() + run.getLength();
+                int i = run.getStart();
+                while (i < end) {
+                    int collapsible = countCollapsibleFrames(stackTrace, i, end, frameFilter);
+                    if (collapsible > 0) {
+                        String collapsedPackage = truncateName(frameFilter.getCollapsedPackage(stackTrace[i].getClassName()));
+                        int size = 1 + FRAME_KEYS_SIZE + stringSize(0) + stringSize(Util.utf8Length(collapsedPackage)) + stringSize(0)
+                                + intSize(-1) + keySize("collapsedFrames") + intSize(collapsible);
+                        this.add(new Element(i, collapsible, size, null, collapsedPackage));
+                        i += collapsible;
+                    } else {
+                        this.add(new Element(i, 1, frameSize(stackTrace[i]), null, null));
+                        i++;
+                    }
+                }
+            }
+        }
+
+        private void add(@NonNull Element element) {
+            this.elements.add(element);
+            this.framesSize += element.size;
+        }
+
+        /**
+         * <p>Decides how to truncate this throwable so that it fits in the given number of bytes.</p>
+         *
+         * @param allowance at least the minimum size of this throwable.
+         */
+        private void fit(int allowance) {
+            this.head = this.elements.size();
+            this.tail = this.elements.size();
+            if (allowance >= this.natural) {
+                this.packedMessage = this.message;
+                return;
+            }
+            int room = allowance - this.truncatedSize;
+            // The message may use the space that the frames do not need, and at least a quarter of the rest.
+            int messageSize = Math.min(room, Math.max(room - this.framesSize, Math.min(stringSize(this.messageBytes), room / 4)));
+            this.packedMessage = Util.truncateUtf8(this.messagePrefix, maxStringLength(messageSize));
+            int frameRoom = room - stringSize(Util.utf8Length(this.packedMessage));
+            // Keep the top two thirds of the frames that fit, then the bottom third, then more at the top if possible.
+            int used = 0;
+            int n = this.elements.size();
+            int h = 0;
+            while (h < n && used + this.elements.get(h).size <= frameRoom * 2 / 3) used += this.elements.get(h++).size;
+            int t = n;
+            while (t > h && used + this.elements.get(t - 1).size <= frameRoom) used += this.elements.get(--t).size;
+            while (h < t && used + this.elements.get(h).size <= frameRoom) used += this.elements.get(h++).size;
+            this.head = h;
+            this.tail = t;
+        }
+
+        /**
+         * <p>Returns the number of map entries that {@link #packThrowable(MessagePacker, Plan)} packs for
+         * this throwable, once it has been fitted.</p>
+         *
+         * @return a positive number.
+         */
+        private int countEntries() {
+            int entries = 3;
+            if (this.packedMessage.length() < this.message.length()) entries++;
+            if (this.captured.isNested()) entries++;
+            if (this.cause != null) entries++;
+            if (!this.suppressed.isEmpty()) entries++;
+            return entries;
+        }
+
+    }
+
+    /**
+     * <p>Counts the consecutive frames, starting at the given frame, whose classes are in the same package
+     * that the given frame filter excludes.</p>
+     *
+     * @param stackTrace never {@code null}.
+     * @param start the index of the first frame.
+     * @param end the index just past the last frame that may be counted.
+     * @param frameFilter never {@code null}.
+     * @return the number of frames, or zero if the frames starting at the given frame are not collapsed.
+     */
+    private static int countCollapsibleFrames(@NonNull StackTraceElement[] stackTrace, int start, int end, @NonNull FrameFilter frameFilter) {
+        // The first frame shows where the throwable was created, so it is always kept.
+        if (start == 0 || frameFilter.isEmpty()) return 0;
+        String collapsedPackage = frameFilter.getCollapsedPackage(stackTrace[start].getClassName());
+        if (collapsedPackage == null) return 0;
+        int i = start + 1;
+        while (i < end && collapsedPackage.equals(frameFilter.getCollapsedPackage(stackTrace[i].getClassName()))) i++;
+        // Collapsing a lone frame would lose information without saving much.
+        return i - start > 1 ? i - start : 0;
+    }
+
+    /**
+     * <p>Returns the number of bytes that an array header occupies when packed.</p>
+     *
+     * @param size the number of elements.
+     * @return a positive number.
+     */
+    private static int arrayHeaderSize(int size) {
+        return size < (1 << 4) ? 1 : size < (1 << 16) ? 3 : 5;
+    }
+
+}
@@ -0,0 +1,161 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.ValueType;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * <p>A table of the frame strings that have been sent in the current epoch, so that each string need only
+ * be sent once per epoch.</p>
+ *
+ * <p>In a message rewritten by this dictionary, the value of each {@code functionName}, {@code className}
+ * and {@code filePath} entry is one of the following:</p>
+ *
+ * <ul>
+ *   <li>A string, which is not in the dictionary. Very short strings are always sent this way.</li>
+ *   <li>An array of an integer ID and a string, which defines the ID as that string. If the ID was
+ *   previously defined, the new definition replaces the old one.</li>
+ *   <li>An integer ID, which refers to the string that it was most recently defined as.</li>
+ * </ul>
+ *
+ * <p>The dictionary holds a bounded number of strings, and evicts the least recently used string to make
+ * room for a new one, reusing its ID. Each rewritten message has a {@code dictionaryEpoch} entry, which
+ * changes whenever the dictionary is reset.</p>
+ *
+ * <p>The receiver keys its tables by {@code dictionaryEpoch}, not by connection: messages of one epoch
+ * may arrive over several connections, for example when unacknowledged messages are retransmitted after
+ * a reconnect, and may be interleaved with messages of later epochs. Within an epoch, the receiver must
+ * process messages in the order in which they were rewritten, and must ignore duplicates of messages that
+ * it has already processed. The sender must reset the dictionary whenever a rewritten message may never
+ * reach the receiver, so that no later message refers to the strings that it defined.</p>
+ */
+@ThreadSafe
+/*package*/ final class FrameDictionary {
+
+    private static final int MAX_ENTRIES = 1024;
+    // Strings shorter than this are no longer than a reference to them.
+    private static final int MIN_STRING_LENGTH = 4;
+    private static final Set<String> DICTIONARY_KEYS = new HashSet<>(Arrays.asList("functionName", "className", "filePath"));
+
+    @GuardedBy("this") private final LinkedHashMap<String, Integer> ids = new LinkedHashMap<>(64, 0.75f, true);
+    @GuardedBy("this") private long epoch = 0L;
+
+    /** Constructor. */
+    /*package*/ FrameDictionary() {
+        this.reset();
+    }
+
+    /**
+     * <p>Clears this dictionary and starts a new epoch. This must be done whenever a rewritten message is
+     * not sent, or may be lost after it was sent.</p>
+     */
+    /*package*/ synchronized void reset() {
+        this.ids.clear();
+        // Epochs increase across resets and, because they follow the clock, across agent restarts.
+        this.epoch = Math.max(this.epoch + 1, System.currentTimeMillis());
+    }
+
+    /**
+     * <p>Rewrites the given message so that its frame strings refer to this dictionary, and adds the new
+     * frame strings in the message to this dictionary.</p>
+     *
+     * @param message never {@code null}.
+     * @return never {@code null}. The given message itself if it is not a map.
+     * @throws IOException if the message cannot be read.
+     */
+    @NonNull /*package*/ synchronized byte[] rewrite(@NonNull byte[] message) throws IOException {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(message);
+             MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            if (!unpacker.hasNext() || unpacker.getNextFormat().getValueType() != ValueType.MAP) return message;
+            int entries = unpacker.unpackMapHeader();
+            packer.packMapHeader(entries + 1);
+            for (int i = 0; i < entries; i++) this.copyEntry(unpacker, packer);
+            packer.packString("dictionaryEpoch").packLong(this.epoch);
+            packer.flush();
+            return packer.toByteArray();
+        }
+    }
+
+    /**
+     * <p>Copies one map entry, rewriting its value if it is a frame string.</p>
+     *
+     * @param unpacker never {@code null}.
+     * @param packer never {@code null}.
+     * @throws IOException if the entry cannot be read or written.
+     */
+    @GuardedBy("this") private void copyEntry(@NonNull MessageUnpacker unpacker, @NonNull MessagePacker packer) throws IOException {
+        if (unpacker.getNextFormat().getValueType() != ValueType.STRING) {
+            packer.packValue(unpacker.unpackValue());
+            this.copyValue(unpacker, packer);
+            return;
+        }
+        String key = unpacker.unpackString();
+        packer.packString(key);
+        if (DICTIONARY_KEYS.contains(key) && unpacker.getNextFormat().getValueType() == ValueType.STRING) {
+            this.packFrameString(packer, unpacker.unpackString());
+        } else {
+            this.copyValue(unpacker, packer);
+        }
+    }
+
+    /**
+     * <p>Copies one value, rewriting the frame strings in any maps that it contains.</p>
+     *
+     * @param unpacker never {@code null}.
+     * @param packer never {@code null}.
+     * @throws IOException if the value cannot be read or written.
+     */
+    @GuardedBy("this") private void copyValue(@NonNull MessageUnpacker unpacker, @NonNull MessagePacker packer) throws IOException {
+        switch (unpacker.getNextFormat().getValueType()) {
+            case MAP:
+                int entries = unpacker.unpackMapHeader();
+                packer.packMapHeader(entries);
+                for (int i = 0; i < entries; i++) this.copyEntry(unpacker, packer);
+                break;
+            case ARRAY:
+                int elements = unpacker.unpackArrayHeader();
+                packer.packArrayHeader(elements);
+                for (int i = 0; i < elements; i++) this.copyValue(unpacker, packer);
+                break;
+            default:
+                packer.packValue(unpacker.unpackValue());
+        }
+    }
+
+    /**
+     * <p>Packs the given frame string as a plain string, a definition or a reference.</p>
+     *
+     * @param packer never {@code null}.
+     * @param s never {@code null}.
+     * @throws IOException if the string cannot be written.
+     */
+    @GuardedBy("this") private void packFrameString(@NonNull MessagePacker packer, @NonNull String s) throws IOException {
+        if (s.length() < MIN_STRING_LENGTH) {
+            packer.packString(s);
+            return;
+        }
+        Integer id = this.ids.get(s);
+        if (id != null) {
+            packer.packInt(id);
+            return;
+        }
+        if (this.ids.size() < MAX_ENTRIES) {
+            id = this.ids.size();
+        } else {
+            Iterator<Map.Entry<String, Integer>> eldest = this.ids.entrySet().iterator();
+            id = eldest.next().getValue();
+            eldest.remove();
+        }
+        this.ids.put(s, id);
+        packer.packArrayHeader(2).packInt(id).packString(s);
+    }
+
+}
@@ -0,0 +1,158 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Decides which stack frames belong to framework packages, so that consecutive runs of such frames
+ * can be collapsed when an event is encoded.</p>
+ *
+ * <p>Frames whose class is in an excluded package are collapsed, unless the class is also in an included
+ * package that is more specific; for example, excluding {@code org.springframework} and including
+ * {@code org.springframework.samples} collapses frames from Spring itself but not from its sample code.
+ * Package prefixes match whole name segments, so {@code org.spring} does not match
+ * {@code org.springframework}.</p>
+ *
+ * <p>The prefixes are compiled into a trie of name segments, and the result of matching each distinct
+ * class name is cached, so matching is cheap even for long stack traces.</p>
+ */
+@ThreadSafe
+public final class FrameFilter {
+
+    /**
+     * <p>Reflection, Spring, Netty and Tomcat packages, whose frames are worth collapsing in most
+     * applications. No frames are collapsed unless excluded packages are configured.</p>
+     */
+    public static final String FRAMEWORK_PACKAGES = "java.lang.reflect,sun.reflect,jdk.internal.reflect,"
+            + "org.springframework,io.netty,org.apache.catalina,org.apache.coyote,org.apache.tomcat";
+    /** <p>A filter that collapses no frames.</p> */
+    public static final FrameFilter NONE = new FrameFilter(null, null);
+    private static final int MAX_CACHED_NAMES = 2048;
+    // Cached for class names that are not collapsed, because the cache cannot hold null.
+    private static final String NOT_COLLAPSED = "";
+
+    private final Node root = new Node(null);
+    private final boolean empty;
+    @GuardedBy("itself") private final Map<String, String> cache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return this.size() > MAX_CACHED_NAMES;
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param excludedPackages a comma-separated list of package prefixes whose frames are collapsed. May
+     * be {@code null}.
+     * @param includedPackages a comma-separated list of package prefixes whose frames are not collapsed,
+     * even if they are within an excluded package. May be {@code null}.
+     */
+    public FrameFilter(@Nullable String excludedPackages, @Nullable String includedPackages) {
+        int excluded = this.addAll(excludedPackages, true);
+        this.addAll(includedPackages, false);
+        this.empty = excluded == 0;
+    }
+
+    /**
+     * <p>Returns whether this filter collapses no frames.</p>
+     *
+     * @return {@code true} if no packages are excluded.
+     */
+    public boolean isEmpty() {
+        return this.empty;
+    }
+
+    /**
+     * <p>Returns the excluded package that contains the given class, if its frames are to be collapsed.</p>
+     *
+     * @param className never {@code null}.
+     * @return the most specific excluded package prefix that contains the class, or {@code null} if frames
+     * of the class are not to be collapsed.
+     */
+    @CheckForNull public String getCollapsedPackage(@NonNull String className) {
+        if (this.empty) return null;
+        String collapsed;
+        synchronized (this.cache) {
+            collapsed = this.cache.get(className);
+        }
+        if (collapsed == null) {
+            collapsed = this.match(className);
+            synchronized (this.cache) {
+                this.cache.put(className, collapsed);
+            }
+        }
+        return collapsed == NOT_COLLAPSED ? null : collapsed; //NOSONAR
+    }
+
+    /**
+     * <p>Walks the trie along the segments of the given class name, and returns the outcome of the most
+     * specific prefix that matches.</p>
+     *
+     * @param className never {@code null}.
+     * @return the excluded package prefix, or {@link #NOT_COLLAPSED}.
+     */
+    @NonNull private String match(@NonNull String className) {
+        String collapsed = NOT_COLLAPSED;
+        Node node = this.root;
+        int start = 0;
+        while (node != null && start <= className.length()) {
+            int end = className.indexOf('.', start);
+            if (end < 0) end = className.length();
+            node = node.children.get(className.substring(start, end));
+            if (node != null && node.excluded != null) collapsed = node.excluded ? node.prefix : NOT_COLLAPSED;
+            start = end + 1;
+        }
+        return collapsed;
+    }
+
+    /**
+     * <p>Adds the given package prefixes to the trie.</p>
+     *
+     * @param packages a comma-separated list of package prefixes. May be {@code null}.
+     * @param excluded {@code true} if the packages are excluded, {@code false} if they are included.
+     * @return the number of prefixes that were added.
+     */
+    private int addAll(@Nullable String packages, boolean excluded) {
+        if (packages == null) return 0;
+        int added = 0;
+        for (String prefix : packages.split(",")) {
+            prefix = prefix.trim();
+            if (prefix.endsWith(".")) prefix = prefix.substring(0, prefix.length() - 1);
+            if (prefix.isEmpty() || "none".equalsIgnoreCase(prefix)) continue;
+            Node node = this.root;
+            for (String segment : prefix.split("\\.")) {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node(node.prefix == null ? segment : node.prefix + '.' + segment);
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.excluded = excluded;
+            added++;
+        }
+        return added;
+    }
+
+    /** <p>A node of the trie, which corresponds to a package prefix.</p> */
+    private static final class Node {
+
+        private final String prefix;
+        private final Map<String, Node> children = new HashMap<>();
+        // Null if the prefix was not configured.
+        private Boolean excluded = null;
+
+        private Node(@Nullable String prefix) {
+            this.prefix = prefix;
+        }
+
+    }
+
+}
@@ -1,11 +1,11 @@
 package io.auklet.sink;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
-import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessageUnpacker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import purejavacomm.CommPortIdentifier;
@@ -51,23 +51,26 @@ public final class SerialPortSink extends AbstractSink {
     }
 
     /**
-     * <p>Sends the given throwable as an Auklet event object, wrapped further inside another MessagePack
-     * map with 2 elements: the name of the target MQTT topic and the event payload.</p>
+     * <p>Wraps the Auklet event object inside another MessagePack map with 2 elements: the name of the
+     * target MQTT topic and the event payload.</p>
      */
-    @Override public void send(@Nullable Throwable throwable) throws AukletException {
-        synchronized (this.msgpack) {
-            try {
-                LOGGER.debug("Adding MQTT info to payload.");
-                this.msgpack.packMapHeader(2)
-                        .packString("topic").packString(this.getAgent().getDeviceAuth().getMqttEventsTopic())
-                        .packString("payload"); // The value will be set by calling super.write().
-            } catch (IOException e) {
-                throw new AukletException("Could not assemble event message.", e);
-            }
-            super.send(throwable);
+    @Override protected void beginMessage() throws AukletException {
+        try {
+            LOGGER.debug("Adding MQTT info to payload.");
+            this.msgpack.packMapHeader(2)
+                    .packString("topic").packString(this.getAgent().getDeviceAuth().getMqttEventsTopic())
+                    .packString("payload"); // The value is the event message that follows.
+        } catch (IOException e) {
+            throw new AukletException("Could not assemble event message.", e);
         }
     }
 
+    @Override protected void skipMessagePrefix(@NonNull MessageUnpacker unpacker) throws IOException {
+        // Skip the wrapper map header, the topic entry and the payload key.
+        unpacker.unpackMapHeader();
+        for (int i = 0; i < 3; i++) unpacker.skipValue();
+    }
+
     @Override protected void write(@NonNull byte[] bytes) throws AukletException {
         synchronized (this.lock) {
             try {
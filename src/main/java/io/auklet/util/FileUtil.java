@@ -61,7 +61,82 @@ public final class FileUtil {
     }
 
     /**
-     * <p>Reads a file and returns its bytes.</p>
+     * <p>Atomically replaces the contents of a file with the given byte array. The bytes are written to
+     * a temporary file in the same directory, which is then renamed over the target file, so that a crash
+     * during the write leaves either the old or the new contents on disk, but never a partial file.</p>
+     *
+     * <p>Where the platform does not support renaming over an existing file, the target file is first
+     * renamed to a backup file, which is deleted once the rename of the temporary file succeeds, or renamed
+     * back if it fails. If a crash leaves the target file missing but the backup file present, the backup
+     * file is restored by {@link #restoreBackup(File)}, which {@link #read(File)} invokes.</p>
+     *
+     * @param file the file to write. Never {@code null}.
+     * @param bytes the bytes to write to the file. Never {@code null}.
+     * @param sync {@code true} to force the written bytes to the storage device before the file is
+     * replaced.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void writeAtomically(@NonNull File file, @NonNull byte[] bytes, boolean sync) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(temp)) {
+                outputStream.write(bytes);
+                outputStream.flush();
+                if (sync) outputStream.getFD().sync();
+            }
+            if (!temp.renameTo(file)) replaceViaBackup(temp, file);
+        } catch (IOException | SecurityException e) {
+            deleteQuietly(temp);
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * <p>Replaces the given file with the given temporary file, on platforms that do not support renaming
+     * over an existing file. The file is never missing unless a backup file is present.</p>
+     *
+     * @param temp the temporary file. Never {@code null}.
+     * @param file the file to replace. Never {@code null}.
+     * @throws IOException if the file cannot be replaced. The file is then unchanged.
+     */
+    private static void replaceViaBackup(@NonNull File temp, @NonNull File file) throws IOException {
+        File backup = backupOf(file);
+        // A backup file that is left over from a crash after a successful replacement is stale.
+        if (file.exists()) deleteQuietly(backup);
+        if (!file.renameTo(backup)) throw new IOException("Could not rename " + file + " to " + backup);
+        if (!temp.renameTo(file)) {
+            backup.renameTo(file); // NOSONAR
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+        deleteQuietly(backup);
+    }
+
+    /**
+     * <p>Restores the given file from the backup file that {@link #writeAtomically(File, byte[], boolean)}
+     * leaves behind if it is interrupted while replacing the file. This is a no-op if the file exists or
+     * if there is no backup file.</p>
+     *
+     * @param file no-op if {@code null}.
+     */
+    public static void restoreBackup(@Nullable File file) {
+        if (file == null) return;
+        try {
+            File backup = backupOf(file);
+            if (!file.exists() && backup.exists() && !backup.renameTo(file)) {
+                LOGGER.warn("Could not restore file '{}' from its backup.", file.getName());
+            }
+        } catch (SecurityException e) {
+            LOGGER.warn("Could not restore file '{}' from its backup.", file.getName(), e);
+        }
+    }
+
+    @NonNull private static File backupOf(@NonNull File file) {
+        return new File(file.getParentFile(), file.getName() + ".bak");
+    }
+
+    /**
+     * <p>Reads a file and returns its bytes, first restoring it from its backup file if necessary.</p>
      *
      * @param file the file to read.
      * @return never {@code null}. If file is {@code null} or does not exist, returned array is empty.
@@ -69,6 +144,7 @@ public final class FileUtil {
      */
     @NonNull
     public static byte[] read(@Nullable File file) throws IOException {
+        restoreBackup(file);
         if (file == null || file.length() == 0) return new byte[0];
         if (file.length() > Integer.MAX_VALUE) throw new IOException("File too large: " + file.length());
         byte[] bytes = new byte[(int) file.length()];
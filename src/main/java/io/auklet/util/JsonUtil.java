@@ -9,10 +9,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /** <p>Utility methods related to JSON manipulation.</p> */
 public final class JsonUtil {
 
+    // Compiled schemas hold no per-validation state, so they can be shared between threads.
+    private static final ConcurrentMap<String, Json.Schema> SCHEMAS = new ConcurrentHashMap<>();
+
     private JsonUtil() {}
 
     /**
@@ -48,7 +53,8 @@ public final class JsonUtil {
     }
 
     /**
-     * <p>Returns the JSON schema for the given Java class.</p>
+     * <p>Returns the JSON schema for the given Java class. Each schema is read and compiled only once,
+     * the first time it is requested.</p>
      *
      * @param clazz the classname of the JSON schema. Never {@code null}.
      * @return never {@code null}.
@@ -56,6 +62,24 @@ public final class JsonUtil {
      */
     @NonNull public static Json.Schema getJsonSchema(@NonNull String clazz) throws AukletException {
         if (clazz == null) throw new AukletException("Schema class is null.");
+        Json.Schema schema = SCHEMAS.get(clazz);
+        if (schema == null) {
+            // If two threads race here, both compile the schema but only one result is kept.
+            Json.Schema compiled = compileJsonSchema(clazz);
+            schema = SCHEMAS.putIfAbsent(clazz, compiled);
+            if (schema == null) schema = compiled;
+        }
+        return schema;
+    }
+
+    /**
+     * <p>Reads and compiles the JSON schema for the given Java class.</p>
+     *
+     * @param clazz the classname of the JSON schema. Never {@code null}.
+     * @return never {@code null}.
+     * @throws AukletException if the schema could not be read.
+     */
+    @NonNull private static Json.Schema compileJsonSchema(@NonNull String clazz) throws AukletException {
         String schemaPath = clazz.replace('.', '/') + ".schema.json";
         try (InputStream schemaStream = Util.class.getClassLoader().getResourceAsStream(schemaPath)) {
             if (schemaStream == null) throw new AukletException("JSON schema stream is null.");
@@ -0,0 +1,136 @@
+package io.auklet.util;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** <p>Utility methods related to stack traces.</p> */
+public final class StackTraceUtil {
+
+    // Longer cycles are rare, and would make cycle detection more expensive.
+    private static final int MAX_CYCLE_LENGTH = 64;
+    // A sequence of frames must repeat at least this many times to be compressed.
+    private static final int MIN_CYCLE_REPEATS = 3;
+
+    private StackTraceUtil() {}
+
+    /**
+     * <p>Divides the given stack trace into runs of frames, where each run is either a sequence of frames
+     * that occurs once, or a cycle of frames that repeats consecutively, as in the stack trace of a
+     * {@link StackOverflowError}. Frames that precede or follow a cycle are kept in their own runs, so
+     * the context around a recursion is preserved.</p>
+     *
+     * <p>Where cycles of several lengths start at the same frame, the one that covers the most frames is
+     * chosen, so a cycle is never reported as a repetition of a shorter cycle.</p>
+     *
+     * @param frames never {@code null}.
+     * @return never {@code null}. Together, the runs cover all of the given frames, in order.
+     */
+    @NonNull public static List<FrameRun> findFrameRuns(@NonNull StackTraceElement[] frames) {
+        return findFrameRuns(frames, frames.length);
+    }
+
+    /**
+     * <p>Divides the first frames of the given stack trace into runs of frames, as
+     * {@link #findFrameRuns(StackTraceElement[])} does.</p>
+     *
+     * @param frames never {@code null}.
+     * @param count the number of frames, from the start of the stack trace, to divide into runs.
+     * @return never {@code null}. Together, the runs cover the first {@code count} frames, in order.
+     */
+    @NonNull public static List<FrameRun> findFrameRuns(@NonNull StackTraceElement[] frames, int count) {
+        List<FrameRun> runs = new ArrayList<>();
+        int singlesStart = 0;
+        int i = 0;
+        while (i < count) {
+            int bestLength = 0;
+            int bestRepeats = 0;
+            int maxLength = Math.min(MAX_CYCLE_LENGTH, (count - i) / MIN_CYCLE_REPEATS);
+            for (int length = 1; length <= maxLength; length++) {
+                // Cheap check before counting repeats.
+                if (!frames[i].equals(frames[i + length])) continue;
+                int repeats = countRepeats(frames, count, i, length);
+                if (repeats >= MIN_CYCLE_REPEATS && length * repeats > bestLength * bestRepeats) {
+                    bestLength = length;
+                    bestRepeats = repeats;
+                }
+            }
+            if (bestLength == 0) {
+                i++;
+                continue;
+            }
+            if (singlesStart < i) runs.add(new FrameRun(singlesStart, i - singlesStart, 1));
+            runs.add(new FrameRun(i, bestLength, bestRepeats));
+            i += bestLength * bestRepeats;
+            singlesStart = i;
+        }
+        if (singlesStart < count) runs.add(new FrameRun(singlesStart, count - singlesStart, 1));
+        return runs;
+    }
+
+    /**
+     * <p>Counts how many times the given sequence of frames occurs consecutively, starting with itself.</p>
+     *
+     * @param frames never {@code null}.
+     * @param count the number of frames to consider, from the start of the stack trace.
+     * @param start the index of the first frame of the sequence.
+     * @param length the length of the sequence.
+     * @return a positive number.
+     */
+    private static int countRepeats(@NonNull StackTraceElement[] frames, int count, int start, int length) {
+        int repeats = 1;
+        for (int next = start + length; next + length <= count; next += length) {
+            for (int j = 0; j < length; j++) {
+                if (!frames[start + j].equals(frames[next + j])) return repeats;
+            }
+            repeats++;
+        }
+        return repeats;
+    }
+
+    /** <p>A run of consecutive frames in a stack trace, which may be repeated.</p> */
+    @Immutable
+    public static final class FrameRun {
+
+        private final int start;
+        private final int length;
+        private final int repeats;
+
+        private FrameRun(int start, int length, int repeats) {
+            this.start = start;
+            this.length = length;
+            this.repeats = repeats;
+        }
+
+        /**
+         * <p>Returns the index of the first frame of this run.</p>
+         *
+         * @return a non-negative number.
+         */
+        public int getStart() {
+            return this.start;
+        }
+
+        /**
+         * <p>Returns the number of distinct frames in this run.</p>
+         *
+         * @return a positive number.
+         */
+        public int getLength() {
+            return this.length;
+        }
+
+        /**
+         * <p>Returns the number of times the frames in this run repeat consecutively.</p>
+         *
+         * @return {@code 1} if the frames occur once, or a larger number if they form a cycle.
+         */
+        public int getRepeats() {
+            return this.repeats;
+        }
+
+    }
+
+}
@@ -0,0 +1,32 @@
+package io.auklet.util;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Threading primitives whose best implementation depends on the Java version.</p>
+ *
+ * <p>This is the Java 7 baseline. The agent JAR is a multi-release JAR; JVMs that support newer Java
+ * versions load the overrides of this class from {@code META-INF/versions}.</p>
+ */
+final class ThreadSupport {
+
+    private ThreadSupport() {}
+
+    /** <p>Hints that the caller is busy-waiting. Java 7 has no such hint, so this is no-op.</p> */
+    static void onSpinWait() {
+        // No-op on Java 7/8.
+    }
+
+    /**
+     * <p>Returns a thread factory for threads that spend most of their time in blocking I/O.</p>
+     *
+     * @param nameFormat see {@link ThreadUtil#createDaemonThreadFactory(String)}.
+     * @return never {@code null}.
+     */
+    @NonNull static ThreadFactory createBlockingIoThreadFactory(@NonNull String nameFormat) {
+        return ThreadUtil.createDaemonThreadFactory(nameFormat);
+    }
+
+}
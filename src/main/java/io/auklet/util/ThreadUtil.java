@@ -40,6 +40,30 @@ public final class ThreadUtil {
         };
     }
 
+    /**
+     * <p>Returns a thread factory for daemon threads that spend most of their time in blocking I/O. On
+     * Java 21 and later, these are virtual threads.</p>
+     *
+     * <p>Only use this for tasks that never block while holding a monitor, i.e. inside a
+     * {@code synchronized} block or in {@link Object#wait()}. A virtual thread that does so pins its
+     * carrier thread until it unblocks, which can starve every other virtual thread in the JVM. This rules
+     * out the agent's own executors, whose tasks write to disk and to the network under locks, as well as
+     * OkHttp's dispatcher; they use {@link #createDaemonThreadFactory(String)}.</p>
+     *
+     * @param nameFormat the name format for threads created by this factory. You can use the placeholder
+     * {@code %d} to substitute the thread number (auto-increments starting at 1).
+     * @return never {@code null}.
+     */
+    @NonNull
+    public static ThreadFactory createBlockingIoThreadFactory(@NonNull String nameFormat) {
+        return ThreadSupport.createBlockingIoThreadFactory(nameFormat);
+    }
+
+    /** <p>Hints to the JVM that the current thread is busy-waiting, on Java 9 and later.</p> */
+    public static void onSpinWait() {
+        ThreadSupport.onSpinWait();
+    }
+
     /**
      * <p>Shuts down the given executor service. If it does not shut down within 3 seconds,
      * or if the current thread is interrupted while waiting for shutdown to complete,
@@ -88,6 +88,57 @@ public final class Util {
         return s;
     }
 
+    /**
+     * <p>Returns the longest prefix of the input string whose UTF-8 encoding is no longer than the given
+     * number of bytes. Surrogate pairs are never split, so the prefix is always valid UTF-8. The cost of
+     * this method is proportional to the number of bytes, not the length of the input string.</p>
+     *
+     * @param s never {@code null}.
+     * @param maxBytes the maximum number of bytes.
+     * @return never {@code null}. The input string itself if it fits.
+     */
+    @NonNull public static String truncateUtf8(@NonNull String s, int maxBytes) {
+        int bytes = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            int charBytes;
+            int chars = 1;
+            if (c < 0x80) charBytes = 1;
+            else if (c < 0x800) charBytes = 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                charBytes = 4;
+                chars = 2;
+            } else charBytes = 3;
+            if (bytes + charBytes > maxBytes) return s.substring(0, i);
+            bytes += charBytes;
+            i += chars - 1;
+        }
+        return s;
+    }
+
+    /**
+     * <p>Returns the length of the UTF-8 encoding of the input string, without encoding it. Unpaired
+     * surrogates are counted as 3 bytes, which is at least as long as any replacement.</p>
+     *
+     * @param s never {@code null}.
+     * @return a non-negative number.
+     */
+    public static int utf8Length(@NonNull String s) {
+        int bytes = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) bytes += 1;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else bytes += 3;
+        }
+        return bytes;
+    }
+
     /**
      * <p>Closes the given closeable and silences any exceptions that occur.</p>
      *
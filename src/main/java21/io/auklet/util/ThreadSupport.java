@@ -0,0 +1,40 @@
+package io.auklet.util;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Threading primitives whose best implementation depends on the Java version.</p>
+ *
+ * <p>This is the Java 21 override, which runs blocking I/O on virtual threads.</p>
+ */
+final class ThreadSupport {
+
+    private ThreadSupport() {}
+
+    /** <p>Hints that the caller is busy-waiting.</p> */
+    static void onSpinWait() {
+        Thread.onSpinWait();
+    }
+
+    /**
+     * <p>Returns a thread factory for threads that spend most of their time in blocking I/O. Such threads
+     * are virtual threads, which are always daemon threads. Tasks that run on them must not block while
+     * holding a monitor, which would pin the carrier thread.</p>
+     *
+     * @param nameFormat see {@link ThreadUtil#createDaemonThreadFactory(String)}.
+     * @return never {@code null}.
+     */
+    @NonNull static ThreadFactory createBlockingIoThreadFactory(@NonNull String nameFormat) {
+        ThreadFactory virtualThreads = Thread.ofVirtual().factory();
+        AtomicLong counter = new AtomicLong();
+        return r -> {
+            Thread t = virtualThreads.newThread(r);
+            t.setName(String.format(nameFormat, counter.incrementAndGet()));
+            return t;
+        };
+    }
+
+}
@@ -0,0 +1,108 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.ThreadSafe;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * <p>A bounded, lock-free queue with any number of producers and a single consumer, through which
+ * captured events are handed from application threads to the agent.</p>
+ *
+ * <p>This is the Java 9 override, which accesses a plain array and plain fields via {@code VarHandle}s
+ * with acquire/release semantics, rather than via atomic wrapper objects.</p>
+ *
+ * @param <E> the type of element held in this queue.
+ */
+@ThreadSafe
+public final class CaptureQueue<E> {
+
+    private static final VarHandle BUFFER = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(CaptureQueue.class, "head", long.class);
+            TAIL = lookup.findVarHandle(CaptureQueue.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // How long the consumer busy-waits for a producer before yielding, e.g. if the producer was descheduled.
+    private static final int MAX_SPINS = 100;
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] buffer;
+    @SuppressWarnings("unused") private volatile long head;
+    @SuppressWarnings("unused") private volatile long tail;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the capacity of this queue. Must be a positive power of two.
+     * @throws IllegalArgumentException if the capacity is not a positive power of two.
+     */
+    public CaptureQueue(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a positive power of two.");
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.buffer = new Object[capacity];
+    }
+
+    /**
+     * <p>Adds the given element to this queue. This method may be invoked by any thread.</p>
+     *
+     * @param e never {@code null}.
+     * @return {@code true} if the element was added, {@code false} if this queue is full.
+     */
+    public boolean offer(@NonNull E e) {
+        while (true) {
+            long t = (long) TAIL.getAcquire(this);
+            if (t - (long) HEAD.getAcquire(this) >= this.capacity) return false;
+            if (TAIL.compareAndSet(this, t, t + 1)) {
+                BUFFER.setRelease(this.buffer, (int) (t & this.mask), e);
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * <p>Removes and returns the element at the head of this queue. This method must only be invoked by
+     * one thread at a time.</p>
+     *
+     * @return {@code null} if this queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    @CheckForNull public E poll() {
+        long h = (long) HEAD.getOpaque(this);
+        int index = (int) (h & this.mask);
+        Object e = BUFFER.getAcquire(this.buffer, index);
+        if (e == null) {
+            if (h == (long) TAIL.getAcquire(this)) return null;
+            // A producer has claimed this slot but has not yet stored its element.
+            for (int spins = 0; (e = BUFFER.getAcquire(this.buffer, index)) == null; spins++) {
+                if (spins < MAX_SPINS) Thread.onSpinWait();
+                else Thread.yield();
+            }
+        }
+        BUFFER.setRelease(this.buffer, index, null);
+        HEAD.setRelease(this, h + 1);
+        return (E) e;
+    }
+
+    /**
+     * <p>Determines whether or not this queue is empty.</p>
+     *
+     * @return {@code true} if this queue is empty.
+     */
+    public boolean isEmpty() {
+        return (long) HEAD.getAcquire(this) == (long) TAIL.getAcquire(this);
+    }
+
+}
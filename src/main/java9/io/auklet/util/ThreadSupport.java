@@ -0,0 +1,31 @@
+package io.auklet.util;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Threading primitives whose best implementation depends on the Java version.</p>
+ *
+ * <p>This is the Java 9 override, which uses {@link Thread#onSpinWait()}.</p>
+ */
+final class ThreadSupport {
+
+    private ThreadSupport() {}
+
+    /** <p>Hints that the caller is busy-waiting.</p> */
+    static void onSpinWait() {
+        Thread.onSpinWait();
+    }
+
+    /**
+     * <p>Returns a thread factory for threads that spend most of their time in blocking I/O.</p>
+     *
+     * @param nameFormat see {@link ThreadUtil#createDaemonThreadFactory(String)}.
+     * @return never {@code null}.
+     */
+    @NonNull static ThreadFactory createBlockingIoThreadFactory(@NonNull String nameFormat) {
+        return ThreadUtil.createDaemonThreadFactory(nameFormat);
+    }
+
+}
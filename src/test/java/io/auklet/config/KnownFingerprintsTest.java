@@ -0,0 +1,94 @@
+package io.auklet.config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KnownFingerprintsTest {
+
+    private static final long START = 1500000000000L;
+    private static final long RESEND_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // The number of fingerprints that are kept exactly.
+    private static final int MAX_RECENT = 256;
+
+    @Test public void testFingerprintExpiresAfterResendInterval() {
+        KnownFingerprints known = new KnownFingerprints(1);
+        assertFalse(known.isKnown(fingerprint(0), START));
+        known.delivered(fingerprint(0), START);
+        assertTrue(known.isKnown(fingerprint(0), START + RESEND_MILLIS - 1));
+        assertFalse(known.isKnown(fingerprint(0), START + RESEND_MILLIS));
+        // Delivering the event in full again restarts the interval.
+        known.delivered(fingerprint(0), START + RESEND_MILLIS);
+        assertTrue(known.isKnown(fingerprint(0), START + 2 * RESEND_MILLIS - 1));
+    }
+
+    @Test public void testEvictedFingerprintIsKnownFromBloomFilter() {
+        KnownFingerprints known = new KnownFingerprints(1);
+        for (int i = 0; i <= MAX_RECENT; i++) known.delivered(fingerprint(i), START + i);
+        // The first fingerprint was evicted from the recent fingerprints into the Bloom filter.
+        for (int i = 0; i <= MAX_RECENT; i++) assertTrue(known.isKnown(fingerprint(i), START + MAX_RECENT));
+        for (int i = MAX_RECENT + 1; i < 2 * MAX_RECENT; i++) assertFalse(known.isKnown(fingerprint(i), START + MAX_RECENT));
+    }
+
+    @Test public void testBloomFilterIsClearedAfterResendInterval() {
+        KnownFingerprints known = new KnownFingerprints(1);
+        for (int i = 0; i < 2 * MAX_RECENT; i++) known.delivered(fingerprint(i), START);
+        assertTrue(known.isKnown(fingerprint(0), START + RESEND_MILLIS - 1));
+        assertFalse(known.isKnown(fingerprint(0), START + RESEND_MILLIS));
+        // A clock that goes backwards also clears the Bloom filter, rather than extending its lifetime.
+        for (int i = 0; i < 2 * MAX_RECENT; i++) known.delivered(fingerprint(i), START + RESEND_MILLIS);
+        assertTrue(known.isKnown(fingerprint(0), START + RESEND_MILLIS));
+        assertFalse(known.isKnown(fingerprint(0), START));
+    }
+
+    @Test public void testFingerprintOlderThanBloomFilterIsNotAddedToIt() {
+        KnownFingerprints known = new KnownFingerprints(1);
+        known.delivered(fingerprint(0), START);
+        // The Bloom filter is recreated after the first fingerprint was delivered, which is then evicted.
+        for (int i = 1; i <= MAX_RECENT; i++) known.delivered(fingerprint(i), START + RESEND_MILLIS - 1 + i);
+        assertFalse(known.isKnown(fingerprint(0), START + RESEND_MILLIS + MAX_RECENT));
+        assertTrue(known.isKnown(fingerprint(1), START + RESEND_MILLIS + MAX_RECENT));
+    }
+
+    @Test public void testFingerprintsSurviveRoundTrip() throws IOException {
+        KnownFingerprints known = new KnownFingerprints(1);
+        for (int i = 0; i < 2 * MAX_RECENT; i++) known.delivered(fingerprint(i), START + i);
+        KnownFingerprints restored = new KnownFingerprints(1);
+        restored.read(known.toBytes());
+        long now = START + 2 * MAX_RECENT;
+        for (int i = 0; i < 2 * MAX_RECENT; i++) assertTrue(restored.isKnown(fingerprint(i), now));
+        for (int i = 2 * MAX_RECENT; i < 3 * MAX_RECENT; i++) assertFalse(restored.isKnown(fingerprint(i), now));
+        // The restored Bloom filter keeps its creation time, so it is not kept for longer than the resend interval.
+        assertFalse(restored.isKnown(fingerprint(0), START + RESEND_MILLIS));
+    }
+
+    @Test public void testUnsupportedVersionIsRejected() throws IOException {
+        byte[] bytes = new KnownFingerprints(1).toBytes();
+        bytes[3]++;
+        try {
+            new KnownFingerprints(1).read(bytes);
+            fail("Unsupported version was read.");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    /**
+     * <p>Returns a well-mixed fingerprint, as event fingerprints are.</p>
+     *
+     * @param i the index of the fingerprint.
+     * @return a fingerprint.
+     */
+    private static long fingerprint(int i) {
+        long z = (i + 1) * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,153 @@
+package io.auklet.core;
+
+import io.auklet.sink.EventEncoder;
+import io.auklet.sink.FrameFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CrashJournalTest {
+
+    private static final long TIMESTAMP = 1500000000000L;
+    private File dir;
+
+    @Before public void createDir() throws IOException {
+        this.dir = File.createTempFile("auklet-journal", "");
+        assertTrue(this.dir.delete() && this.dir.mkdir());
+    }
+
+    @After public void deleteDir() {
+        File[] files = this.dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        this.dir.delete();
+    }
+
+    @Test public void testReleasedEventsAreNotRecoveredAfterUncleanExit() throws Exception {
+        CrashJournal journal = newJournal();
+        assertTrue(journal.open());
+        Throwable[] throwables = {new RuntimeException("first"), new RuntimeException("second"), new RuntimeException("third")};
+        for (Throwable throwable : throwables) assertTrue(journal.append(throwable, TIMESTAMP));
+        journal.release(journal.claim(throwables[0]));
+        journal.release(journal.claim(throwables[2]));
+        // The process dies without draining or clearing the journal; the next run recovers it.
+        journal.close();
+        assertEquals(singletonMessages("second"), messages(newJournal().drain()));
+    }
+
+    @Test public void testUnreleasedEventsAreRecoveredAfterUncleanExit() throws Exception {
+        CrashJournal journal = newJournal();
+        assertTrue(journal.open());
+        Throwable claimed = new IllegalStateException("claimed");
+        assertTrue(journal.append(new IllegalStateException("unclaimed"), TIMESTAMP));
+        assertTrue(journal.append(claimed, TIMESTAMP));
+        journal.claim(claimed);
+        journal.close();
+        List<String> expected = new ArrayList<>();
+        expected.add("unclaimed");
+        expected.add("claimed");
+        assertEquals(expected, messages(newJournal().drain()));
+    }
+
+    @Test public void testEventsAppendedAfterReleaseAreRecovered() throws Exception {
+        CrashJournal journal = newJournal();
+        assertTrue(journal.open());
+        Throwable first = new RuntimeException("first");
+        assertTrue(journal.append(first, TIMESTAMP));
+        journal.release(journal.claim(first));
+        assertTrue(journal.append(new RuntimeException("second"), TIMESTAMP));
+        journal.close();
+        assertEquals(singletonMessages("second"), messages(newJournal().drain()));
+    }
+
+    @Test public void testDrainEmptiesJournal() throws Exception {
+        CrashJournal journal = newJournal();
+        assertTrue(journal.open());
+        assertTrue(journal.append(new RuntimeException("event"), TIMESTAMP));
+        assertEquals(1, journal.drain().size());
+        journal.close();
+        assertEquals(0, newJournal().drain().size());
+    }
+
+    @Test public void testEmergencyEventIsHandedOverOnce() throws Exception {
+        CrashJournal journal = newJournal();
+        assertFalse("The journal is not open.", journal.appendEmergency(new OutOfMemoryError("closed"), TIMESTAMP));
+        assertTrue(journal.open());
+        assertNull(journal.takeEmergencyEvent());
+        assertTrue(journal.appendEmergency(new OutOfMemoryError("first"), TIMESTAMP));
+        // Only one emergency event can wait to be handed over.
+        assertFalse(journal.appendEmergency(new OutOfMemoryError("second"), TIMESTAMP));
+        List<byte[]> events = new ArrayList<>();
+        events.add(journal.takeEmergencyEvent());
+        assertEquals(singletonMessages("first"), messages(events));
+        assertNull(journal.takeEmergencyEvent());
+        assertTrue(journal.appendEmergency(new OutOfMemoryError("third"), TIMESTAMP));
+        events.set(0, journal.takeEmergencyEvent());
+        assertEquals(singletonMessages("third"), messages(events));
+        journal.close();
+    }
+
+    @Test public void testEmergencyEventIsRecoveredAfterUncleanExit() throws Exception {
+        CrashJournal journal = newJournal();
+        assertTrue(journal.open());
+        assertTrue(journal.append(new RuntimeException("regular"), TIMESTAMP));
+        Throwable error = new OutOfMemoryError(EmergencyEncoderTest.repeat("x", 100000));
+        assertTrue(journal.appendEmergency(error, TIMESTAMP));
+        byte[] handedOver = journal.takeEmergencyEvent();
+        assertNotNull(handedOver);
+        assertTrue(handedOver.length <= 16 * 1024);
+        // The process dies before the event is delivered; the next run recovers it from the journal.
+        journal.close();
+        List<byte[]> recovered = newJournal().drain();
+        assertEquals(2, recovered.size());
+        assertEquals("regular", messages(recovered).get(0));
+        assertArrayEquals(handedOver, recovered.get(1));
+        assertEquals(100000L, EmergencyEncoderTest.decode(recovered.get(1)).get("messageLength").asIntegerValue().asLong());
+    }
+
+    /*package*/ CrashJournal newJournal() {
+        return new CrashJournal(this.dir, false, new EventEncoder(FrameFilter.NONE, EventEncoder.DEFAULT_MAX_EVENT_SIZE));
+    }
+
+    /**
+     * <p>Returns the {@code message} entry of each of the given event bodies.</p>
+     *
+     * @param events never {@code null}.
+     * @return never {@code null}.
+     */
+    /*package*/ static List<String> messages(List<byte[]> events) throws IOException {
+        List<String> messages = new ArrayList<>();
+        for (byte[] event : events) {
+            String message = null;
+            try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(event)) {
+                while (unpacker.hasNext()) {
+                    String key = unpacker.unpackValue().toString();
+                    if ("message".equals(key)) message = unpacker.unpackString();
+                    else unpacker.skipValue();
+                }
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static List<String> singletonMessages(String message) {
+        List<String> messages = new ArrayList<>();
+        messages.add(message);
+        return messages;
+    }
+
+}
@@ -0,0 +1,159 @@
+package io.auklet.core;
+
+import io.auklet.sink.EventEncoder;
+import io.auklet.sink.FrameFilter;
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EmergencyEncoderTest {
+
+    private static final long TIMESTAMP = 1500000000000L;
+    private static final int HEADER_SIZE = 8;
+    private static final int SLOT_SIZE = 16 * 1024;
+
+    @Test public void testLayoutMatchesEventEncoder() throws Exception {
+        Throwable throwable = new OutOfMemoryError("Java heap space");
+        StackTraceElement[] frames = new StackTraceElement[8];
+        for (int i = 0; i < frames.length; i++) frames[i] = new StackTraceElement("com.example.Cache", "grow" + i, i % 2 == 0 ? "Cache.java" : null, i % 3 == 0 ? -2 : 100 + i);
+        throwable.setStackTrace(frames);
+        Map<String, Value> emergency = decode(encode(throwable));
+        Map<String, Value> regular = decode(new EventEncoder(FrameFilter.NONE, EventEncoder.DEFAULT_MAX_EVENT_SIZE).encodeEventBody(throwable, TIMESTAMP));
+        // The emergency encoding is the regular encoding without a fingerprint.
+        regular.remove("fingerprint");
+        assertEquals(new ArrayList<>(regular.keySet()), new ArrayList<>(emergency.keySet()));
+        for (Map.Entry<String, Value> entry : regular.entrySet()) assertEquals(entry.getKey(), entry.getValue(), emergency.get(entry.getKey()));
+    }
+
+    @Test public void testMessageIsTruncatedAtCodePointBoundary() throws Exception {
+        // The 1024th character is the first half of a surrogate pair.
+        String message = repeat("a", 1023) + repeat("\ud83d\ude00", 100);
+        Map<String, Value> body = decode(encode(new OutOfMemoryError(message)));
+        assertEquals(repeat("a", 1023), body.get("message").asStringValue().asString());
+        assertEquals((long) message.length(), body.get("messageLength").asIntegerValue().asLong());
+        // Two-, three- and four-byte sequences, truncated at the character limit.
+        message = repeat("\u00e9\u20ac\ud83d\ude00", 1024);
+        body = decode(encode(new OutOfMemoryError(message)));
+        String truncated = body.get("message").asStringValue().asString();
+        assertTrue(message.startsWith(truncated));
+        assertTrue(truncated.length() <= 1024 && truncated.length() >= 1023);
+        assertEquals((long) message.length(), body.get("messageLength").asIntegerValue().asLong());
+    }
+
+    @Test public void testShortAndMissingMessagesAreNotTruncated() throws Exception {
+        Map<String, Value> body = decode(encode(new OutOfMemoryError(repeat("b", 1024))));
+        assertEquals(repeat("b", 1024), body.get("message").asStringValue().asString());
+        assertNull(body.get("messageLength"));
+        body = decode(encode(new OutOfMemoryError()));
+        assertEquals("", body.get("message").asStringValue().asString());
+        assertNull(body.get("messageLength"));
+    }
+
+    @Test public void testLongNamesAndMessageStayWithinSlot() throws Exception {
+        StackTraceElement[] frames = new StackTraceElement[64];
+        for (int i = 0; i < frames.length; i++) {
+            // Three bytes per character, and longer than the limit on names.
+            frames[i] = new StackTraceElement("com.example." + repeat("\u20ac", 1000) + i, repeat("\u20ac", 1000), repeat("\u20ac", 1000), i);
+        }
+        Throwable throwable = new OutOfMemoryError(repeat("\u20ac", 100000));
+        throwable.setStackTrace(frames);
+        EmergencyEncoder encoder = new EmergencyEncoder(HEADER_SIZE + SLOT_SIZE);
+        int end = encoder.encode(throwable, TIMESTAMP, HEADER_SIZE);
+        assertTrue("Event body is " + (end - HEADER_SIZE) + " bytes.", end <= HEADER_SIZE + SLOT_SIZE);
+        Map<String, Value> body = decode(Arrays.copyOfRange(encoder.array(), HEADER_SIZE, end));
+        List<Value> stackTrace = body.get("stackTrace").asArrayValue().list();
+        assertTrue("Only " + stackTrace.size() + " frames fit.", stackTrace.size() > 0 && stackTrace.size() < frames.length);
+        for (Value frame : stackTrace) {
+            Map<Value, Value> map = frame.asMapValue().map();
+            for (Value value : map.values()) {
+                if (value.isStringValue()) assertTrue(value.asStringValue().asString().length() <= 256);
+            }
+        }
+    }
+
+    @Test public void testEncoderIsReusable() throws Exception {
+        EmergencyEncoder encoder = new EmergencyEncoder(HEADER_SIZE + SLOT_SIZE);
+        encoder.encode(new OutOfMemoryError(repeat("long message ", 100)), TIMESTAMP, HEADER_SIZE);
+        int end = encoder.encode(new StackOverflowError("short"), TIMESTAMP, HEADER_SIZE);
+        Map<String, Value> body = decode(Arrays.copyOfRange(encoder.array(), HEADER_SIZE, end));
+        assertEquals(StackOverflowError.class.getName(), body.get("excType").asStringValue().asString());
+        assertEquals("short", body.get("message").asStringValue().asString());
+    }
+
+    private static byte[] encode(Throwable throwable) {
+        EmergencyEncoder encoder = new EmergencyEncoder(HEADER_SIZE + SLOT_SIZE);
+        int end = encoder.encode(throwable, TIMESTAMP, HEADER_SIZE);
+        return Arrays.copyOfRange(encoder.array(), HEADER_SIZE, end);
+    }
+
+    /**
+     * <p>Decodes the given event body, failing if it is malformed, if it does not consist of key/value
+     * pairs, or if any of its strings is not valid UTF-8.</p>
+     *
+     * @param body never {@code null}.
+     * @return the entries of the body, in order. Never {@code null}.
+     */
+    /*package*/ static Map<String, Value> decode(byte[] body) throws IOException {
+        Map<String, Value> entries = new LinkedHashMap<>();
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(body)) {
+            while (unpacker.hasNext()) {
+                Value key = unpacker.unpackValue();
+                assertTrue("Event body has an odd number of map keys and values.", unpacker.hasNext());
+                Value value = unpacker.unpackValue();
+                assertValidUtf8(key);
+                assertValidUtf8(value);
+                entries.put(key.asStringValue().asString(), value);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * <p>Asserts that every string in the given value is valid UTF-8.</p>
+     *
+     * @param value never {@code null}.
+     */
+    private static void assertValidUtf8(Value value) {
+        if (value.isStringValue()) {
+            try {
+                Charset.forName("UTF-8").newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(value.asStringValue().asByteArray()));
+            } catch (CharacterCodingException e) {
+                fail("String is not valid UTF-8: " + e);
+            }
+        } else if (value.isArrayValue()) {
+            for (Value element : value.asArrayValue()) assertValidUtf8(element);
+        } else if (value.isMapValue()) {
+            for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                assertValidUtf8(entry.getKey());
+                assertValidUtf8(entry.getValue());
+            }
+        }
+    }
+
+    /*package*/ static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) sb.append(s);
+        return sb.toString();
+    }
+
+}
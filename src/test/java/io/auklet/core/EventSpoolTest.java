@@ -0,0 +1,72 @@
+package io.auklet.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventSpoolTest {
+
+    private File dir;
+
+    @Before public void createDir() throws IOException {
+        this.dir = File.createTempFile("auklet-spool", "");
+        assertTrue(this.dir.delete() && this.dir.mkdir());
+    }
+
+    @After public void deleteDir() {
+        File[] files = this.dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        this.dir.delete();
+    }
+
+    @Test public void testDrainedEventsAreReplayedUntilReleased() {
+        EventSpool spool = new EventSpool(this.dir);
+        assertTrue(spool.append(new byte[] {1}));
+        assertTrue(spool.append(new byte[] {2}));
+        assertEquals(2, spool.drain().size());
+        // The process dies before the events are delivered; they are replayed, ahead of newer events.
+        EventSpool next = new EventSpool(this.dir);
+        assertTrue(next.append(new byte[] {3}));
+        List<byte[]> events = next.drain();
+        assertEquals(3, events.size());
+        for (int i = 0; i < events.size(); i++) assertArrayEquals(new byte[] {(byte) (i + 1)}, events.get(i));
+        next.release();
+        assertEquals(0, new EventSpool(this.dir).drain().size());
+    }
+
+    @Test public void testEventsSpooledAfterDrainAreKeptOnRelease() {
+        EventSpool spool = new EventSpool(this.dir);
+        assertTrue(spool.append(new byte[] {1}));
+        assertEquals(1, spool.drain().size());
+        assertTrue(spool.append(new byte[] {2}));
+        spool.release();
+        List<byte[]> events = spool.drain();
+        assertEquals(1, events.size());
+        assertArrayEquals(new byte[] {2}, events.get(0));
+    }
+
+    @Test public void testTruncatedRecordIsDiscarded() throws IOException {
+        EventSpool spool = new EventSpool(this.dir);
+        assertTrue(spool.append(new byte[] {1, 2, 3}));
+        File file = new File(this.dir, EventSpool.FILENAME);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length());
+            // The length of a record whose bytes were never written.
+            raf.writeInt(100);
+        } finally {
+            raf.close();
+        }
+        assertEquals(1, spool.drain().size());
+    }
+
+}
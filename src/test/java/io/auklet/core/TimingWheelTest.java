@@ -0,0 +1,148 @@
+package io.auklet.core;
+
+import io.auklet.ExecutorStats;
+import io.auklet.util.ThreadUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimingWheelTest {
+
+    private AukletDaemonExecutor executor;
+    private TimingWheel wheel;
+
+    @Before public void createWheel() {
+        this.executor = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("TimingWheelTest-%d"));
+        this.wheel = new TimingWheel(this.executor, ThreadUtil.createDaemonThreadFactory("TimingWheelTest-timer"), 10L, TimeUnit.MILLISECONDS, 64);
+    }
+
+    @After public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test public void testRescheduledTimerRunsAgain() throws Exception {
+        Counter counter = new Counter();
+        ScheduledFuture<?> timer = this.wheel.schedule(counter, 0L, TimeUnit.MILLISECONDS);
+        timer.get(5, TimeUnit.SECONDS);
+        this.wheel.reschedule(timer, 20L, TimeUnit.MILLISECONDS);
+        assertTrue(!timer.isDone());
+        timer.get(5, TimeUnit.SECONDS);
+        assertEquals(2, counter.runs.get());
+        assertEquals(2L, this.stats(Counter.class).getRunTime().getCount());
+        assertEquals(0, this.stats(Counter.class).getPendingTimerCount());
+    }
+
+    @Test public void testTimerRescheduledWhileRunningRunsAgainAfterwards() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        ScheduledFuture<?> timer = this.wheel.schedule(new Runnable() {
+            @Override public void run() {
+                if (runs.incrementAndGet() > 1) return;
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0L, TimeUnit.MILLISECONDS);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        this.wheel.reschedule(timer, 0L, TimeUnit.MILLISECONDS);
+        release.countDown();
+        // The rescheduled run completes the timer again.
+        timer.get(5, TimeUnit.SECONDS);
+        assertEquals(2, runs.get());
+    }
+
+    @Test public void testExpiredTimerIsQueuedWithoutWrapping() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        this.executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        ScheduledFuture<?> timer = this.wheel.schedule(new Counter(), 0L, TimeUnit.MILLISECONDS);
+        long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!this.executor.getQueue().contains(timer) && System.nanoTime() < waitUntil) Thread.sleep(5);
+        assertTrue(this.executor.getQueue().contains(timer));
+        release.countDown();
+        timer.get(5, TimeUnit.SECONDS);
+        ExecutorStats.TaskStats stats = this.stats(Counter.class);
+        assertEquals(1L, stats.getQueueTime().getCount());
+        assertEquals(1L, stats.getRunTime().getCount());
+    }
+
+    @Test public void testFailedTimerIsRecordedWithoutStoppingExecutor() throws Exception {
+        ScheduledFuture<?> timer = this.wheel.schedule(new Failure(), 0L, TimeUnit.MILLISECONDS);
+        try {
+            timer.get(5, TimeUnit.SECONDS);
+            fail("Timer did not fail.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1L, this.stats(Failure.class).getFailedCount());
+        // A failed timer can be rescheduled, and other timers still run.
+        this.wheel.reschedule(timer, 0L, TimeUnit.MILLISECONDS);
+        Counter counter = new Counter();
+        this.wheel.schedule(counter, 0L, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+        assertEquals(1, counter.runs.get());
+        try {
+            timer.get(5, TimeUnit.SECONDS);
+            fail("Timer did not fail.");
+        } catch (ExecutionException e) {
+            assertEquals(2L, this.stats(Failure.class).getFailedCount());
+        }
+    }
+
+    @Test public void testCancelledTimerDoesNotRun() throws Exception {
+        Counter counter = new Counter();
+        ScheduledFuture<?> timer = this.wheel.schedule(counter, 50L, TimeUnit.MILLISECONDS);
+        assertTrue(timer.cancel(false));
+        assertTrue(timer.isCancelled());
+        Thread.sleep(100);
+        assertEquals(0, counter.runs.get());
+        assertEquals(0, this.stats(Counter.class).getPendingTimerCount());
+    }
+
+    @Test public void testRepeatingTimerCannotBeRescheduled() {
+        ScheduledFuture<?> timer = this.wheel.scheduleAtFixedRate(new Counter(), 1L, 1L, TimeUnit.SECONDS);
+        try {
+            this.wheel.reschedule(timer, 0L, TimeUnit.MILLISECONDS);
+            fail("Repeating timer was rescheduled.");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        } finally {
+            timer.cancel(false);
+        }
+    }
+
+    private ExecutorStats.TaskStats stats(Class<?> type) {
+        return this.executor.getStats().getTaskStats().get(type.getName());
+    }
+
+    private static final class Counter implements Runnable {
+        private final AtomicInteger runs = new AtomicInteger();
+        @Override public void run() {
+            this.runs.incrementAndGet();
+        }
+    }
+
+    private static final class Failure implements Runnable {
+        @Override public void run() {
+            throw new IllegalStateException("failure");
+        }
+    }
+
+}
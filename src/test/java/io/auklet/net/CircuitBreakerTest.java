@@ -0,0 +1,146 @@
+package io.auklet.net;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private TestClock clock;
+    private CircuitBreaker breaker;
+
+    @Before public void createBreaker() {
+        this.clock = new TestClock();
+        this.breaker = new CircuitBreaker("test", this.clock, new NoJitter());
+    }
+
+    @Test public void testOpensAfterFiveConsecutiveFailures() {
+        fail(4);
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+        // A success resets the count of consecutive failures.
+        this.breaker.recordSuccess(millis(10));
+        fail(4);
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+        assertTrue(this.breaker.allowRequest());
+        this.breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        assertFalse(this.breaker.allowRequest());
+    }
+
+    @Test public void testAllowsSingleProbeWhenHalfOpen() {
+        fail(5);
+        this.clock.advance(TimeUnit.SECONDS.toMillis(5) - 1);
+        assertFalse(this.breaker.allowRequest());
+        this.clock.advance(1);
+        assertTrue(this.breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+        assertFalse("Only one probe may be in flight.", this.breaker.allowRequest());
+        this.breaker.recordSuccess(millis(10));
+        assertEquals(CircuitBreaker.State.CLOSED, this.breaker.getState());
+        assertTrue(this.breaker.allowRequest());
+        assertTrue(this.breaker.allowRequest());
+    }
+
+    @Test public void testOpenPeriodDoublesAfterEachFailedProbe() {
+        fail(5);
+        long[] expected = {5, 10, 20, 40, 80, 160, 300, 300};
+        for (int i = 0; i < expected.length; i++) {
+            long openMillis = TimeUnit.SECONDS.toMillis(expected[i]);
+            this.clock.advance(openMillis - 1);
+            assertFalse("Probe allowed before " + openMillis + "ms.", this.breaker.allowRequest());
+            this.clock.advance(1);
+            assertTrue("Probe not allowed after " + openMillis + "ms.", this.breaker.allowRequest());
+            this.breaker.recordFailure();
+            assertEquals(CircuitBreaker.State.OPEN, this.breaker.getState());
+        }
+        // A successful probe resets the open period.
+        this.clock.advance(TimeUnit.MINUTES.toMillis(5));
+        assertTrue(this.breaker.allowRequest());
+        this.breaker.recordSuccess(millis(10));
+        fail(5);
+        this.clock.advance(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(this.breaker.allowRequest());
+    }
+
+    @Test public void testOpenPeriodIsJittered() {
+        this.breaker = new CircuitBreaker("test", this.clock, new MaxJitter());
+        fail(5);
+        // Up to 20% longer than the 5s open period.
+        this.clock.advance(TimeUnit.SECONDS.toMillis(6) - 1);
+        assertFalse(this.breaker.allowRequest());
+        this.clock.advance(1);
+        assertTrue(this.breaker.allowRequest());
+    }
+
+    @Test public void testAbandonedProbeAllowsAnotherProbe() {
+        fail(5);
+        this.clock.advance(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(this.breaker.allowRequest());
+        assertFalse(this.breaker.allowRequest());
+        this.breaker.recordAbandoned();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.breaker.getState());
+        assertTrue(this.breaker.allowRequest());
+        assertFalse(this.breaker.allowRequest());
+    }
+
+    @Test public void testTimeoutIsDerivedFromP99Latency() {
+        // Until there are enough samples, the maximum timeout applies.
+        assertEquals(30000L, this.breaker.getTimeoutMillis(false));
+        for (int i = 0; i < 19; i++) this.breaker.recordSuccess(millis(100));
+        assertEquals(30000L, this.breaker.getTimeoutMillis(false));
+        // Latencies of 50ms to 5000ms; the 99th percentile of 100 samples is the 99th smallest.
+        for (int i = 1; i <= 100; i++) this.breaker.recordSuccess(millis(50 * i));
+        assertEquals(4L * 4950L, this.breaker.getTimeoutMillis(false));
+        assertEquals(4L * 4950L, this.breaker.getTimeoutMillis(true));
+        // Only the most recent 100 samples count, and the timeout has a lower bound.
+        for (int i = 0; i < 100; i++) this.breaker.recordSuccess(millis(10));
+        assertEquals(3000L, this.breaker.getTimeoutMillis(false));
+        assertEquals("Requests that may need a new connection get a higher minimum.", 15000L, this.breaker.getTimeoutMillis(true));
+        // And an upper bound.
+        for (int i = 0; i < 100; i++) this.breaker.recordSuccess(millis(60000));
+        assertEquals(30000L, this.breaker.getTimeoutMillis(false));
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(this.breaker.allowRequest());
+            this.breaker.recordFailure();
+        }
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /** <p>A clock that only moves when it is told to.</p> */
+    private static final class TestClock implements CircuitBreaker.Clock {
+        private long nanos = 1000000000L;
+        @Override public long nanoTime() {
+            return this.nanos;
+        }
+        private void advance(long millis) {
+            this.nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    /** <p>Jitter of zero.</p> */
+    private static final class NoJitter extends Random {
+        @Override public double nextDouble() {
+            return 0.5d;
+        }
+    }
+
+    /** <p>The maximum jitter.</p> */
+    private static final class MaxJitter extends Random {
+        @Override public double nextDouble() {
+            return 1d;
+        }
+    }
+
+}
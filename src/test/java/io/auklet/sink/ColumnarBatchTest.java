@@ -0,0 +1,348 @@
+package io.auklet.sink;
+
+import org.junit.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ColumnarBatchTest {
+
+    private static final EventEncoder ENCODER = new EventEncoder(new FrameFilter(FrameFilter.FRAMEWORK_PACKAGES, null), EventEncoder.DEFAULT_MAX_EVENT_SIZE);
+
+    @Test public void testRoundTripWithSharedMetrics() throws Exception {
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) messages.add(message(ENCODER.encodeEventBody(throwable(i), 1500000000000L + i), 0));
+        Map<String, Object> batch = assertRoundTrip(messages);
+        assertFalse(batch.containsKey("metrics"));
+        assertTrue(((Map<?, ?>) batch.get("shared")).containsKey("systemMetrics"));
+    }
+
+    @Test public void testRoundTripWithPerEventMetrics() throws Exception {
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) messages.add(message(ENCODER.encodeEventBody(throwable(i), 1500000000000L + i), i % 3));
+        Map<String, Object> batch = assertRoundTrip(messages);
+        assertEquals(3, ((List<?>) batch.get("metrics")).size());
+        assertFalse(((Map<?, ?>) batch.get("shared")).containsKey("systemMetrics"));
+    }
+
+    @Test public void testRoundTripOfDeltaLineNumbers() throws Exception {
+        MessageBufferPacker body = MessagePack.newDefaultBufferPacker();
+        body.packString("timestamp").packLong(1500000000000L)
+                .packString("excType").packString("java.lang.RuntimeException")
+                .packString("message").packString("lines")
+                .packString("stackTrace").packArrayHeader(6);
+        packFrame(body, "run", "com.example.A", "A.java", 120L);
+        packFrame(body, "call", "com.example.B", "B.java", 80L);
+        packFrame(body, "invoke", "com.example.C", null, null);
+        packFrame(body, "call", "com.example.B", "B.java", 80L);
+        packFrame(body, "main", "com.example.Main", "Main.java", 4000L);
+        packFrame(body, "native0", "sun.misc.Unsafe", "Unsafe.java", -2L);
+        body.flush();
+        Map<String, Object> batch = assertRoundTrip(Collections.singletonList(message(body.toByteArray(), 0)));
+        Map<?, ?> event = (Map<?, ?>) ((List<?>) batch.get("events")).get(0);
+        Map<?, ?> columns = (Map<?, ?>) event.get("stackTrace");
+        assertEquals(Arrays.asList(120L, -40L, null, 0L, 3920L, -4002L), columns.get("lineNumber"));
+        assertEquals(null, ((List<?>) columns.get("filePath")).get(2));
+    }
+
+    @Test public void testRoundTripOfExtras() throws Exception {
+        List<byte[]> messages = new ArrayList<>();
+        // Recursion, which the encoder packs as a cycle with extra entries on its first frame.
+        messages.add(message(ENCODER.encodeEventBody(recursion(200), 1500000000000L), 0));
+        // Reflection frames, which the encoder collapses into marker frames with a collapsedFrames entry.
+        Throwable reflective = new IllegalStateException("reflective");
+        StackTraceElement[] frames = new StackTraceElement[12];
+        for (int i = 0; i < frames.length; i++) {
+            String className = i % 4 == 0 ? "com.example.Handler" + i : "sun.reflect.GeneratedMethodAccessor" + i;
+            frames[i] = new StackTraceElement(className, "invoke", "Handler.java", 10 + i);
+        }
+        reflective.setStackTrace(frames);
+        messages.add(message(ENCODER.encodeEventBody(reflective, 1500000000001L), 0));
+        // A frame with an entry that the batch format does not know about, under a non-string key.
+        MessageBufferPacker body = MessagePack.newDefaultBufferPacker();
+        body.packString("timestamp").packLong(1500000000002L)
+                .packString("excType").packString("java.lang.Error")
+                .packString("message").packString("extras")
+                .packString("stackTrace").packArrayHeader(1)
+                .packMapHeader(5)
+                .packString("functionName").packString("run")
+                .packString("className").packString("com.example.Custom")
+                .packInt(7).packString("custom")
+                .packString("filePath").packString("Custom.java")
+                .packString("lineNumber").packString("not a number");
+        body.flush();
+        messages.add(message(body.toByteArray(), 0));
+        Map<String, Object> batch = assertRoundTrip(messages);
+        for (Object event : (List<?>) batch.get("events")) {
+            Map<?, ?> columns = (Map<?, ?>) ((Map<?, ?>) event).get("stackTrace");
+            assertTrue(columns.containsKey("extras"));
+        }
+    }
+
+    @Test public void testRoundTripOfNestedCauseAndSuppressedTraces() throws Exception {
+        Throwable root = new RuntimeException("root", new IllegalStateException("cause", new IOException("root cause")));
+        Throwable suppressed = new IOException("close failed", new IllegalArgumentException("bad handle"));
+        suppressed.addSuppressed(new UnsupportedOperationException("nested suppressed"));
+        root.addSuppressed(suppressed);
+        root.addSuppressed(recursion(50));
+        root.getCause().addSuppressed(new ArithmeticException("suppressed by cause"));
+        List<byte[]> messages = new ArrayList<>();
+        messages.add(message(ENCODER.encodeEventBody(root, 1500000000000L), 0));
+        messages.add(message(ENCODER.encodeEventBody(throwable(1), 1500000000001L), 1));
+        Map<String, Object> batch = assertRoundTrip(messages);
+        Map<?, ?> event = (Map<?, ?>) ((List<?>) batch.get("events")).get(0);
+        Map<?, ?> cause = (Map<?, ?>) event.get("cause");
+        assertTrue(cause.get("stackTrace") instanceof Map);
+        assertTrue(((Map<?, ?>) ((List<?>) event.get("suppressed")).get(0)).get("stackTrace") instanceof Map);
+    }
+
+    @Test public void testRejectsNonEventMessage() throws Exception {
+        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+        packer.packMapHeader(1).packString("timestamp").packLong(0L);
+        packer.flush();
+        byte[] message = packer.toByteArray();
+        try {
+            new ColumnarBatch().add(MessagePack.newDefaultUnpacker(message), message);
+            fail("A message without an ID was added to a batch.");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    /**
+     * <p>Asserts that the given messages survive conversion to a batch and back.</p>
+     *
+     * @param messages never {@code null}.
+     * @return the decoded batch, before its events are restored. Never {@code null}.
+     */
+    private static Map<String, Object> assertRoundTrip(List<byte[]> messages) throws IOException {
+        ColumnarBatch batch = new ColumnarBatch();
+        for (byte[] message : messages) batch.add(MessagePack.newDefaultUnpacker(message), message);
+        byte[] bytes = batch.toByteArray();
+        List<Object> restored = decode(bytes);
+        assertEquals(messages.size(), restored.size());
+        for (int i = 0; i < messages.size(); i++) assertEquals("Event " + i + " differs.", toObject(unpack(messages.get(i))), restored.get(i));
+        return asStringMap(toObject(unpack(bytes)));
+    }
+
+    /**
+     * <p>Decodes a batch back into its events, as a receiver would.</p>
+     *
+     * @param batch never {@code null}.
+     * @return the events, in the form returned by {@link #toObject(Value)}. Never {@code null}.
+     * @throws IOException if the batch cannot be read.
+     */
+    /*package*/ static List<Object> decode(byte[] batch) throws IOException {
+        Map<String, Object> top = asStringMap(toObject(unpack(batch)));
+        assertEquals((long) ColumnarBatch.VERSION, top.get("batchVersion"));
+        List<?> strings = (List<?>) top.get("strings");
+        List<?> metrics = (List<?>) top.get("metrics");
+        Map<?, ?> shared = (Map<?, ?>) top.get("shared");
+        List<Object> events = new ArrayList<>();
+        for (Object packed : (List<?>) top.get("events")) {
+            Map<Object, Object> event = new HashMap<>(shared);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) packed).entrySet()) {
+                Object value = entry.getValue();
+                if ("systemMetrics".equals(entry.getKey())) value = metrics.get(((Long) value).intValue());
+                event.put(entry.getKey(), value);
+            }
+            events.add(restoreThrowable(event, strings));
+        }
+        return events;
+    }
+
+    /**
+     * <p>Restores the stack traces in the given throwable map, and in its causes and suppressed throwables.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param strings the batch's string table. Never {@code null}.
+     * @return never {@code null}.
+     */
+    private static Map<Object, Object> restoreThrowable(Map<?, ?> throwable, List<?> strings) {
+        Map<Object, Object> restored = new HashMap<>(throwable);
+        Object stackTrace = throwable.get("stackTrace");
+        if (stackTrace instanceof Map) restored.put("stackTrace", restoreStackTrace((Map<?, ?>) stackTrace, strings));
+        Object cause = throwable.get("cause");
+        if (cause instanceof Map) restored.put("cause", restoreThrowable((Map<?, ?>) cause, strings));
+        Object suppressed = throwable.get("suppressed");
+        if (suppressed instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object s : (List<?>) suppressed) list.add(s instanceof Map ? restoreThrowable((Map<?, ?>) s, strings) : s);
+            restored.put("suppressed", list);
+        }
+        return restored;
+    }
+
+    /**
+     * <p>Converts a stack trace from columns back into one map per frame.</p>
+     *
+     * @param columns never {@code null}.
+     * @param strings the batch's string table. Never {@code null}.
+     * @return never {@code null}.
+     */
+    private static List<Object> restoreStackTrace(Map<?, ?> columns, List<?> strings) {
+        List<?> lineNumbers = (List<?>) columns.get("lineNumber");
+        List<Map<Object, Object>> frames = new ArrayList<>();
+        long previous = 0L;
+        for (int i = 0; i < lineNumbers.size(); i++) {
+            Map<Object, Object> frame = new HashMap<>();
+            for (String column : new String[] {"functionName", "className", "filePath"}) {
+                Object id = ((List<?>) columns.get(column)).get(i);
+                if (id != null) frame.put(column, strings.get(((Long) id).intValue()));
+            }
+            Object delta = lineNumbers.get(i);
+            if (delta != null) {
+                previous += (Long) delta;
+                frame.put("lineNumber", previous);
+            }
+            frames.add(frame);
+        }
+        if (columns.containsKey("extras")) {
+            for (Object extra : (List<?>) columns.get("extras")) {
+                List<?> pair = (List<?>) extra;
+                frames.get(((Long) pair.get(0)).intValue()).putAll((Map<?, ?>) pair.get(1));
+            }
+        }
+        return new ArrayList<Object>(frames);
+    }
+
+    /**
+     * <p>Converts a MessagePack value into plain Java objects, so that values can be compared regardless of
+     * how they were packed: maps become {@link Map}s, arrays {@link List}s, integers {@link Long}s, floats
+     * {@link Double}s and strings {@link String}s.</p>
+     *
+     * @param value never {@code null}.
+     * @return {@code null} if the value is nil.
+     */
+    /*package*/ static Object toObject(Value value) {
+        switch (value.getValueType()) {
+            case NIL:
+                return null;
+            case BOOLEAN:
+                return value.asBooleanValue().getBoolean();
+            case INTEGER:
+                return value.asIntegerValue().asLong();
+            case FLOAT:
+                return value.asFloatValue().toDouble();
+            case STRING:
+                return value.asStringValue().asString();
+            case ARRAY:
+                List<Object> list = new ArrayList<>();
+                for (Value element : value.asArrayValue()) list.add(toObject(element));
+                return list;
+            case MAP:
+                Map<Object, Object> map = new HashMap<>();
+                for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) map.put(toObject(entry.getKey()), toObject(entry.getValue()));
+                return map;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * <p>Assembles an event message around the given event body, with the same header entries as
+     * {@link AbstractSink} and the given variant of system metrics.</p>
+     *
+     * @param body never {@code null}.
+     * @param metricsVariant messages with the same variant have the same system metrics.
+     * @return never {@code null}.
+     */
+    /*package*/ static byte[] message(byte[] body, int metricsVariant) throws IOException {
+        int entries = 0;
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(body)) {
+            while (unpacker.hasNext()) {
+                unpacker.skipValue();
+                entries++;
+            }
+        }
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            packer.packMapHeader(7 + entries / 2)
+                    .packString("id").packString(UUID.randomUUID().toString())
+                    .packString("application").packString("a1b2c3d4e5f6a7b8c9d0e1")
+                    .packString("macAddressHash").packString("5f3a9c0e1b2d4f6a8c0e2b4d6f8a0c2e")
+                    .packString("publicIP").packString("203.0.113.42")
+                    .packString("systemMetrics").packMapHeader(4)
+                    .packString("memoryUsage").packDouble(40.0 + metricsVariant)
+                    .packString("cpuUsage").packDouble(12.5 * metricsVariant)
+                    .packString("outboundNetwork").packDouble(0.0)
+                    .packString("inboundNetwork").packDouble(0.0)
+                    .packString("agentVersion").packString("1.0.0")
+                    .packString("device").packString("device-0123456789abcdef");
+            packer.addPayload(body);
+            packer.flush();
+            return packer.toByteArray();
+        }
+    }
+
+    /**
+     * <p>Returns one of several throwables with different types, causes and stack depths.</p>
+     *
+     * @param kind any non-negative number.
+     * @return never {@code null}.
+     */
+    /*package*/ static Throwable throwable(int kind) {
+        return nested(5 + kind % 7, kind);
+    }
+
+    /**
+     * <p>Returns a throwable created by a recursive method, whose stack trace has a cycle of two frames.</p>
+     *
+     * @param depth the depth of the recursion.
+     * @return never {@code null}.
+     */
+    /*package*/ static Throwable recursion(int depth) {
+        return depth > 0 ? recurseAgain(depth - 1) : new StackOverflowError();
+    }
+
+    private static Throwable recurseAgain(int depth) {
+        return recursion(depth);
+    }
+
+    private static Throwable nested(int depth, int kind) {
+        if (depth > 0) return nested(depth - 1, kind);
+        switch (kind % 5) {
+            case 0:
+                return new IllegalStateException("state " + kind, new IOException("io"));
+            case 1:
+                return new NullPointerException();
+            case 2:
+                RuntimeException wrapped = new RuntimeException("wrapped", new IllegalArgumentException("arg " + kind));
+                wrapped.addSuppressed(new IOException("close"));
+                return wrapped;
+            case 3:
+                return new UnsupportedOperationException("unsupported");
+            default:
+                return new ArithmeticException("/ by zero");
+        }
+    }
+
+    private static void packFrame(MessagePacker packer, String functionName, String className, String filePath, Long lineNumber) throws IOException {
+        packer.packMapHeader(2 + (filePath == null ? 0 : 1) + (lineNumber == null ? 0 : 1));
+        packer.packString("functionName").packString(functionName);
+        packer.packString("className").packString(className);
+        if (filePath != null) packer.packString("filePath").packString(filePath);
+        if (lineNumber != null) packer.packString("lineNumber").packLong(lineNumber);
+    }
+
+    private static Value unpack(byte[] bytes) throws IOException {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes)) {
+            return unpacker.unpackValue();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asStringMap(Object map) {
+        return (Map<String, Object>) map;
+    }
+
+}
@@ -0,0 +1,367 @@
+package io.auklet.sink;
+
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventEncoderTest {
+
+    private static final long TIMESTAMP = 1500000000000L;
+    private static final int[] MAX_SIZES = {EventEncoder.MIN_MAX_EVENT_SIZE, 4096, EventEncoder.DEFAULT_MAX_EVENT_SIZE};
+
+    @Test public void testMultiMegabyteAsciiMessage() throws Exception {
+        String message = repeat("abcdefgh", 512 * 1024);
+        for (Map<String, Object> body : assertFitsAtAllSizes(FrameFilter.NONE, new RuntimeException(message))) {
+            assertMessageTruncated(body, message);
+        }
+    }
+
+    @Test public void testMultiMegabyteMultibyteMessage() throws Exception {
+        // Two-, three- and four-byte UTF-8 sequences, so that truncation cannot land on a character boundary by luck.
+        String message = repeat("\u00e9\u20ac\ud83d\ude00", 384 * 1024);
+        for (Map<String, Object> body : assertFitsAtAllSizes(FrameFilter.NONE, new RuntimeException(message))) {
+            assertMessageTruncated(body, message);
+        }
+    }
+
+    @Test public void testUnpairedSurrogates() throws Exception {
+        // The encoded messages are checked for valid UTF-8 as they are decoded.
+        assertFitsAtAllSizes(FrameFilter.NONE, new RuntimeException(repeat("x\ud800", 256 * 1024)));
+        assertFitsAtAllSizes(FrameFilter.NONE, new RuntimeException(repeat("\udc00y", 256 * 1024)));
+        assertFitsAtAllSizes(FrameFilter.NONE, new RuntimeException(repeat("\ud83d\ud83d\ude00\ude00", 128 * 1024)));
+        Throwable inFrames = new RuntimeException("frames");
+        StackTraceElement[] frames = new StackTraceElement[256];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new StackTraceElement("com.example.\ud800Class" + i + repeat("\udfff", 200), "method\ud83d" + i, "File\ude00" + i + ".java", i);
+        }
+        inFrames.setStackTrace(frames);
+        assertFitsAtAllSizes(FrameFilter.NONE, inFrames);
+    }
+
+    @Test public void testCauseAndSuppressedTreeOf32Throwables() throws Exception {
+        Throwable[] throwables = new Throwable[32];
+        for (int i = 0; i < throwables.length; i++) {
+            throwables[i] = new IllegalStateException("throwable " + i + ' ' + repeat("message ", 4096));
+            throwables[i].setStackTrace(frames("com.example.Tree" + i, 128));
+        }
+        // Throwable i has throwable 2i+1 as its cause and throwable 2i+2 as a suppressed throwable.
+        for (int i = 0; i < throwables.length; i++) {
+            if (2 * i + 1 < throwables.length) throwables[i].initCause(throwables[2 * i + 1]);
+            if (2 * i + 2 < throwables.length) throwables[i].addSuppressed(throwables[2 * i + 2]);
+        }
+        List<Map<String, Object>> bodies = assertFitsAtAllSizes(FrameFilter.NONE, throwables[0]);
+        for (Map<String, Object> body : bodies) {
+            List<Map<String, Object>> kept = new ArrayList<>();
+            List<Throwable> originals = new ArrayList<>();
+            collectThrowables(body, throwables[0], kept, originals);
+            Long omittedThrowables = (Long) body.get("omittedThrowables");
+            assertEquals(throwables.length, kept.size() + (omittedThrowables == null ? 0L : omittedThrowables));
+            for (int i = 0; i < kept.size(); i++) {
+                assertMessageTruncated(kept.get(i), originals.get(i).getMessage());
+                assertFramesTruncated(kept.get(i), originals.get(i).getStackTrace());
+            }
+        }
+        assertNotNull("Dropped throwables are not recorded.", bodies.get(0).get("omittedThrowables"));
+        // With room to spare, every kept throwable has the start of its message and both ends of its stack trace.
+        List<Map<String, Object>> kept = new ArrayList<>();
+        collectThrowables(bodies.get(bodies.size() - 1), throwables[0], kept, new ArrayList<Throwable>());
+        for (Map<String, Object> throwable : kept) {
+            assertTrue(((String) throwable.get("message")).startsWith("throwable "));
+            assertKeepsHeadAndTail(throwable);
+        }
+    }
+
+    @Test public void testFrameCycleOf1024Frames() throws Exception {
+        // A two-frame recursion that is 1024 frames deep, below the thread's entry point.
+        StackTraceElement[] frames = new StackTraceElement[1025];
+        for (int i = 0; i < frames.length - 1; i++) {
+            frames[i] = i % 2 == 0
+                    ? new StackTraceElement("com.example.tree.TreeWalker", "visitNode", "TreeWalker.java", 42)
+                    : new StackTraceElement("com.example.tree.TreeWalker", "visitChildren", "TreeWalker.java", 57);
+        }
+        frames[frames.length - 1] = new StackTraceElement("com.example.Main", "main", "Main.java", 1);
+        Throwable overflow = new StackOverflowError();
+        overflow.setStackTrace(frames);
+        for (int maxSize : MAX_SIZES) {
+            EventEncoder encoder = new EventEncoder(FrameFilter.NONE, maxSize);
+            byte[] encoded = encoder.encodeEventBody(overflow, TIMESTAMP);
+            assertTrue("Event body is " + encoded.length + " bytes.", encoded.length < 1000);
+            List<Map<String, Object>> stackTrace = stackTrace(assertFits(encoder, overflow));
+            assertEquals(3, stackTrace.size());
+            assertFrame(frames[0], stackTrace.get(0));
+            assertEquals(2L, stackTrace.get(0).get("cycleLength"));
+            assertEquals(512L, stackTrace.get(0).get("cycleRepeats"));
+            assertFrame(frames[1], stackTrace.get(1));
+            assertNull(stackTrace.get(1).get("cycleLength"));
+            assertFrame(frames[frames.length - 1], stackTrace.get(2));
+        }
+    }
+
+    @Test public void testRepeatedSequenceLongerThanMaxCycleLength() throws Exception {
+        StackTraceElement[] sequence = frames("com.example.Recursive", 1024);
+        StackTraceElement[] frames = new StackTraceElement[sequence.length * 8 + 1];
+        for (int i = 0; i < frames.length - 1; i++) frames[i] = sequence[i % sequence.length];
+        frames[frames.length - 1] = new StackTraceElement("com.example.Main", "main", "Main.java", 1);
+        Throwable overflow = new StackOverflowError();
+        overflow.setStackTrace(frames);
+        // The sequence is too long to be packed as a cycle, so the middle of the stack trace is omitted.
+        for (Map<String, Object> body : assertFitsAtAllSizes(FrameFilter.NONE, overflow)) {
+            assertFramesTruncated(body, frames);
+            assertKeepsHeadAndTail(body);
+        }
+    }
+
+    @Test public void testCollapsedFramesAtMinimumMaxEventSize() throws Exception {
+        FrameFilter filter = new FrameFilter(FrameFilter.FRAMEWORK_PACKAGES, null);
+        StackTraceElement[] frames = new StackTraceElement[2048];
+        for (int i = 0; i < frames.length; i++) {
+            // Runs of three reflection frames between application frames, each run collapsed to one marker.
+            String className = i % 4 == 0 ? "com.example.app.Service" + i : "sun.reflect.GeneratedMethodAccessor" + i;
+            frames[i] = new StackTraceElement(className, "invoke" + repeat("X", 64), "Generated.java", i);
+        }
+        Throwable throwable = new RuntimeException(repeat("collapsed ", 1024));
+        throwable.setStackTrace(frames);
+        Throwable cause = new IllegalArgumentException("cause");
+        cause.setStackTrace(Arrays.copyOfRange(frames, 1, frames.length));
+        throwable.initCause(cause);
+        assertFits(new EventEncoder(filter, EventEncoder.MIN_MAX_EVENT_SIZE), throwable);
+    }
+
+    @Test public void testMaxEventSizeIsRaisedToMinimum() {
+        assertEquals(EventEncoder.MIN_MAX_EVENT_SIZE, new EventEncoder(FrameFilter.NONE, 1).getMaxEventSize());
+    }
+
+    /**
+     * <p>Asserts that the given throwable is encoded within each of several maximum event sizes.</p>
+     *
+     * @param filter never {@code null}.
+     * @param throwable never {@code null}.
+     * @return the decoded event body at each size, in the form returned by {@link #decode(byte[])}.
+     */
+    private static List<Map<String, Object>> assertFitsAtAllSizes(FrameFilter filter, Throwable throwable) throws Exception {
+        List<Map<String, Object>> bodies = new ArrayList<>();
+        for (int maxSize : MAX_SIZES) bodies.add(assertFits(new EventEncoder(filter, maxSize), throwable));
+        return bodies;
+    }
+
+    /**
+     * <p>Asserts that the given throwable is encoded within the encoder's maximum event size, as a
+     * well-formed sequence of map entries whose strings are valid UTF-8.</p>
+     *
+     * @param encoder never {@code null}.
+     * @param throwable never {@code null}.
+     * @return the decoded event body, in the form returned by {@link #decode(byte[])}.
+     */
+    private static Map<String, Object> assertFits(EventEncoder encoder, Throwable throwable) throws Exception {
+        byte[] body = encoder.encodeEventBody(throwable, TIMESTAMP);
+        int max = encoder.getMaxEventSize();
+        assertTrue("Event body is " + body.length + " bytes, but the maximum is " + max + '.', body.length <= max);
+        return decode(body);
+    }
+
+    /**
+     * <p>Asserts that the given encoded throwable's message is either the original message or a prefix
+     * of it, and in the latter case that the original length is recorded.</p>
+     *
+     * @param throwable the encoded throwable. Never {@code null}.
+     * @param original the original message. Never {@code null}.
+     */
+    private static void assertMessageTruncated(Map<String, Object> throwable, String original) {
+        String message = (String) throwable.get("message");
+        assertTrue("Message is not a prefix of the original message.", original.startsWith(message));
+        if (message.length() == original.length()) {
+            assertNull(throwable.get("messageLength"));
+        } else {
+            assertEquals((long) original.length(), throwable.get("messageLength"));
+            // A prefix that ends in the middle of a surrogate pair would not be a valid prefix.
+            assertTrue(message.isEmpty() || !Character.isHighSurrogate(message.charAt(message.length() - 1)));
+        }
+    }
+
+    /**
+     * <p>Asserts that the frames of the given encoded throwable's stack trace are the head and the tail
+     * of the original frames, and that any frames that are omitted between them are counted by a marker.</p>
+     *
+     * @param throwable the encoded throwable. Never {@code null}.
+     * @param original the original frames, none of which form a cycle. Never {@code null}.
+     */
+    private static void assertFramesTruncated(Map<String, Object> throwable, StackTraceElement[] original) {
+        List<Map<String, Object>> stackTrace = stackTrace(throwable);
+        int marker = -1;
+        for (int i = 0; i < stackTrace.size(); i++) {
+            if (stackTrace.get(i).containsKey("omittedFrames")) {
+                assertEquals("There is more than one marker.", -1, marker);
+                marker = i;
+            }
+        }
+        if (marker < 0) {
+            assertEquals(original.length, stackTrace.size());
+            for (int i = 0; i < original.length; i++) assertFrame(original[i], stackTrace.get(i));
+            return;
+        }
+        Map<String, Object> omitted = stackTrace.get(marker);
+        assertEquals("", omitted.get("functionName"));
+        assertEquals("", omitted.get("className"));
+        assertEquals(-1L, omitted.get("lineNumber"));
+        int tail = stackTrace.size() - marker - 1;
+        assertEquals((long) (original.length - marker - tail), omitted.get("omittedFrames"));
+        for (int i = 0; i < marker; i++) assertFrame(original[i], stackTrace.get(i));
+        for (int i = 0; i < tail; i++) assertFrame(original[original.length - tail + i], stackTrace.get(marker + 1 + i));
+    }
+
+    /**
+     * <p>Asserts that the given encoded throwable's stack trace keeps at least one frame on each side of
+     * the marker for omitted frames, if there is one.</p>
+     *
+     * @param throwable the encoded throwable. Never {@code null}.
+     */
+    private static void assertKeepsHeadAndTail(Map<String, Object> throwable) {
+        List<Map<String, Object>> stackTrace = stackTrace(throwable);
+        for (int i = 0; i < stackTrace.size(); i++) {
+            if (!stackTrace.get(i).containsKey("omittedFrames")) continue;
+            assertTrue("The frames where the throwable was created are not kept.", i > 0);
+            assertTrue("The frames of the thread's entry point are not kept.", i < stackTrace.size() - 1);
+        }
+    }
+
+    private static void assertFrame(StackTraceElement expected, Map<String, Object> frame) {
+        assertEquals(expected.getClassName(), frame.get("className"));
+        assertEquals(expected.getMethodName(), frame.get("functionName"));
+        assertEquals(expected.getFileName(), frame.get("filePath"));
+        assertEquals((long) expected.getLineNumber(), frame.get("lineNumber"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> stackTrace(Map<String, Object> throwable) {
+        return (List<Map<String, Object>>) throwable.get("stackTrace");
+    }
+
+    /**
+     * <p>Adds the given encoded throwable and all of its nested throwables to the given list, and the
+     * original throwable of each to the other list.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param original the throwable that was encoded, which has at most one suppressed throwable. Never {@code null}.
+     * @param throwables never {@code null}.
+     * @param originals never {@code null}.
+     */
+    @SuppressWarnings("unchecked")
+    private static void collectThrowables(Map<String, Object> throwable, Throwable original, List<Map<String, Object>> throwables, List<Throwable> originals) {
+        throwables.add(throwable);
+        originals.add(original);
+        Map<String, Object> cause = (Map<String, Object>) throwable.get("cause");
+        if (cause != null) collectThrowables(cause, original.getCause(), throwables, originals);
+        List<Map<String, Object>> suppressed = (List<Map<String, Object>>) throwable.get("suppressed");
+        if (suppressed != null) {
+            assertEquals(1, suppressed.size());
+            collectThrowables(suppressed.get(0), original.getSuppressed()[0], throwables, originals);
+        }
+    }
+
+    /**
+     * <p>Decodes the given event body, failing if it is malformed, if it does not consist of key/value
+     * pairs, or if any of its strings is not valid UTF-8.</p>
+     *
+     * @param body never {@code null}.
+     * @return the entries of the body, with values in the form returned by
+     * {@link ColumnarBatchTest#toObject(Value)}. Never {@code null}.
+     */
+    private static Map<String, Object> decode(byte[] body) throws IOException {
+        List<Value> values = new ArrayList<>();
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(body)) {
+            while (unpacker.hasNext()) values.add(unpacker.unpackValue());
+        }
+        assertTrue("Event body has an odd number of map keys and values.", values.size() % 2 == 0);
+        Map<String, Object> entries = new LinkedHashMap<>();
+        for (int i = 0; i < values.size(); i += 2) {
+            assertValidUtf8(values.get(i));
+            assertValidUtf8(values.get(i + 1));
+            entries.put(values.get(i).asStringValue().asString(), ColumnarBatchTest.toObject(values.get(i + 1)));
+        }
+        return asStringKeys(entries);
+    }
+
+    /**
+     * <p>Asserts that every string in the given value is valid UTF-8.</p>
+     *
+     * @param value never {@code null}.
+     */
+    private static void assertValidUtf8(Value value) {
+        if (value.isStringValue()) {
+            try {
+                Charset.forName("UTF-8").newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(value.asStringValue().asByteArray()));
+            } catch (CharacterCodingException e) {
+                fail("String is not valid UTF-8: " + e);
+            }
+        } else if (value.isArrayValue()) {
+            for (Value element : value.asArrayValue()) assertValidUtf8(element);
+        } else if (value.isMapValue()) {
+            for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                assertValidUtf8(entry.getKey());
+                assertValidUtf8(entry.getValue());
+            }
+        }
+    }
+
+    /** <p>Converts the maps that {@link ColumnarBatchTest#toObject(Value)} returns to string-keyed maps.</p> */
+    @SuppressWarnings("unchecked")
+    private static <T> T asStringKeys(T object) {
+        if (object instanceof Map) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) map.put((String) entry.getKey(), asStringKeys(entry.getValue()));
+            return (T) map;
+        }
+        if (object instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (List<?>) object) list.add(asStringKeys(element));
+            return (T) list;
+        }
+        return object;
+    }
+
+    /**
+     * <p>Returns stack frames with long, distinct class and method names.</p>
+     *
+     * @param classPrefix never {@code null}.
+     * @param count the number of frames.
+     * @return never {@code null}.
+     */
+    private static StackTraceElement[] frames(String classPrefix, int count) {
+        StackTraceElement[] frames = new StackTraceElement[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new StackTraceElement(classPrefix + "$Inner" + i, "method" + i + repeat("_", 48), "Source" + i + ".java", i + 1);
+        }
+        return frames;
+    }
+
+    /**
+     * <p>Returns the given string repeated the given number of times.</p>
+     *
+     * @param s never {@code null}.
+     * @param times a non-negative number.
+     * @return never {@code null}.
+     */
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) sb.append(s);
+        return sb.toString();
+    }
+
+}
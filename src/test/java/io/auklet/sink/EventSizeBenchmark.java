@@ -0,0 +1,232 @@
+package io.auklet.sink;
+
+import io.auklet.Auklet;
+import io.auklet.AukletException;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Measures the size of event messages under each of the encodings that shrink them, and the time that
+ * those encodings take. This is not run as part of the test suite; run its {@code main} method from the
+ * test classpath, and pass a number of iterations to override the default.</p>
+ *
+ * <ul>
+ *   <li>Frame cycles: a deep recursion, encoded as one cycle versus one map per frame.</li>
+ *   <li>Collapsed frames: reflection frames between application frames, collapsed versus not.</li>
+ *   <li>Frame dictionary: the first and subsequent rewrites of a message, and the time per rewrite.</li>
+ *   <li>Event references: a full message versus the reference that replaces a repeated event.</li>
+ *   <li>Columnar batches: a batch of messages as rows versus as columns, raw and deflated, and a check
+ *   that the batch decodes back to the original messages. Both paths are timed over the same events
+ *   from encoding onwards: each event is encoded and assembled into a message, as by
+ *   {@link AbstractSink#encode(Throwable, long)}, and the messages are then either packed as rows or
+ *   converted to columns.</li>
+ * </ul>
+ */
+public final class EventSizeBenchmark {
+
+    private static final long TIMESTAMP = 1500000000000L;
+    private static final int DEFAULT_ITERATIONS = 20000;
+
+    private EventSizeBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        EventEncoder encoder = new EventEncoder(new FrameFilter(FrameFilter.FRAMEWORK_PACKAGES, null), EventEncoder.DEFAULT_MAX_EVENT_SIZE);
+        EventEncoder unfiltered = new EventEncoder(FrameFilter.NONE, EventEncoder.DEFAULT_MAX_EVENT_SIZE);
+
+        // Frame cycles.
+        Throwable overflow = recursionFrames();
+        print("Frame cycle (1000 frames)", "frames as maps", naiveSize(overflow), "encoded body", unfiltered.encodeEventBody(overflow, TIMESTAMP).length);
+
+        // Collapsed frames.
+        Throwable reflective = reflectiveFrames();
+        print("Collapsed frames (200 frames)", "not collapsed", unfiltered.encodeEventBody(reflective, TIMESTAMP).length, "collapsed", encoder.encodeEventBody(reflective, TIMESTAMP).length);
+
+        // Frame dictionary.
+        byte[] message = ColumnarBatchTest.message(encoder.encodeEventBody(applicationFrames(), TIMESTAMP), 0);
+        FrameDictionary dictionary = new FrameDictionary();
+        int first = dictionary.rewrite(message).length;
+        int steady = dictionary.rewrite(message).length;
+        print("Frame dictionary (60 frames)", "plain", message.length, "first", first);
+        print("", "plain", message.length, "steady", steady);
+        for (int i = 0; i < iterations; i++) dictionary.rewrite(message);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) dictionary.rewrite(message);
+        printTime("", "rewrite", System.nanoTime() - start, iterations);
+
+        // Event references.
+        byte[] reference = new ReferenceSink().toReferenceMessage(message);
+        print("Event reference", "full", message.length, "reference", reference.length);
+
+        // Columnar batches.
+        List<Throwable> throwables = new ArrayList<>();
+        for (int i = 0; i < 100; i++) throwables.add(ColumnarBatchTest.throwable(i));
+        List<byte[]> messages = encodeMessages(encoder, throwables);
+        byte[] rows = rows(messages);
+        byte[] columns = columns(messages);
+        print("Columnar batch (100 events)", "rows", rows.length, "columns", columns.length);
+        print("", "rows deflated", deflatedSize(rows), "columns deflated", deflatedSize(columns));
+        int batches = Math.max(1, iterations / 100);
+        for (int i = 0; i < batches; i++) {
+            rows(encodeMessages(encoder, throwables));
+            columns(encodeMessages(encoder, throwables));
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < batches; i++) rows(encodeMessages(encoder, throwables));
+        long rowsNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < batches; i++) columns(encodeMessages(encoder, throwables));
+        long columnsNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < batches; i++) columns(messages);
+        long convertNanos = System.nanoTime() - start;
+        printTime("", "encode + rows", rowsNanos, batches);
+        printTime("", "encode + columns", columnsNanos, batches);
+        printTime("", "of which convert", convertNanos, batches);
+        List<Object> decoded = ColumnarBatchTest.decode(columns);
+        for (int i = 0; i < messages.size(); i++) {
+            if (!ColumnarBatchTest.toObject(MessagePack.newDefaultUnpacker(messages.get(i)).unpackValue()).equals(decoded.get(i))) {
+                throw new AssertionError("Event " + i + " does not survive the columnar batch round trip.");
+            }
+        }
+        System.out.println("  round trip: OK");
+    }
+
+    /**
+     * <p>Returns the size of the given throwable's stack trace when every frame is packed as a map,
+     * without cycle detection or frame filtering.</p>
+     *
+     * @param throwable never {@code null}.
+     * @return a non-negative number.
+     */
+    private static int naiveSize(Throwable throwable) throws IOException {
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            StackTraceElement[] frames = throwable.getStackTrace();
+            packer.packArrayHeader(frames.length);
+            for (StackTraceElement frame : frames) packFrame(packer, frame);
+            packer.flush();
+            return packer.toByteArray().length;
+        }
+    }
+
+    private static void packFrame(MessagePacker packer, StackTraceElement frame) throws IOException {
+        packer.packMapHeader(4)
+                .packString("functionName").packString(frame.getMethodName())
+                .packString("className").packString(frame.getClassName())
+                .packString("filePath").packString(String.valueOf(frame.getFileName()))
+                .packString("lineNumber").packInt(frame.getLineNumber());
+    }
+
+    private static Throwable recursionFrames() {
+        StackTraceElement[] frames = new StackTraceElement[1000];
+        for (int i = 0; i < frames.length - 1; i++) {
+            frames[i] = new StackTraceElement("com.example.tree.TreeWalker", i % 2 == 0 ? "visitNode" : "visitChildren", "TreeWalker.java", i % 2 == 0 ? 42 : 57);
+        }
+        frames[frames.length - 1] = new StackTraceElement("com.example.Main", "main", "Main.java", 12);
+        Throwable throwable = new StackOverflowError();
+        throwable.setStackTrace(frames);
+        return throwable;
+    }
+
+    private static Throwable reflectiveFrames() {
+        StackTraceElement[] frames = new StackTraceElement[200];
+        for (int i = 0; i < frames.length; i++) {
+            if (i % 4 == 0) frames[i] = new StackTraceElement("com.example.app.Handler" + i, "handle", "Handler" + i + ".java", 30 + i);
+            else frames[i] = new StackTraceElement("sun.reflect.GeneratedMethodAccessor" + i, "invoke", null, -1);
+        }
+        Throwable throwable = new IllegalStateException("reflective");
+        throwable.setStackTrace(frames);
+        return throwable;
+    }
+
+    private static Throwable applicationFrames() {
+        StackTraceElement[] frames = new StackTraceElement[60];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new StackTraceElement("com.example.orders.service.impl.OrderProcessingStep" + i, "processIncomingOrder" + i, "OrderProcessingStep" + i + ".java", 100 + i);
+        }
+        Throwable throwable = new RuntimeException("Order 1234 failed", new IllegalArgumentException("bad quantity"));
+        throwable.setStackTrace(frames);
+        return throwable;
+    }
+
+    /**
+     * <p>Encodes each of the given throwables and assembles it into an event message, as the sink does
+     * for each event that it sends.</p>
+     *
+     * @param encoder never {@code null}.
+     * @param throwables never {@code null}.
+     * @return never {@code null}.
+     */
+    private static List<byte[]> encodeMessages(EventEncoder encoder, List<Throwable> throwables) throws AukletException, IOException {
+        List<byte[]> messages = new ArrayList<>(throwables.size());
+        for (int i = 0; i < throwables.size(); i++) {
+            messages.add(ColumnarBatchTest.message(encoder.encodeEventBody(throwables.get(i), TIMESTAMP + i), i % 4));
+        }
+        return messages;
+    }
+
+    private static byte[] rows(List<byte[]> messages) throws IOException {
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            packer.packArrayHeader(messages.size());
+            for (byte[] message : messages) packer.addPayload(message);
+            packer.flush();
+            return packer.toByteArray();
+        }
+    }
+
+    private static byte[] columns(List<byte[]> messages) throws IOException {
+        ColumnarBatch batch = new ColumnarBatch();
+        for (byte[] message : messages) {
+            try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(message)) {
+                batch.add(unpacker, message);
+            }
+        }
+        return batch.toByteArray();
+    }
+
+    private static int deflatedSize(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[4096];
+            int size = 0;
+            while (!deflater.finished()) size += deflater.deflate(buffer);
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void print(String title, String baselineName, int baseline, String encodedName, int encoded) {
+        if (!title.isEmpty()) System.out.println(title);
+        System.out.println(String.format(Locale.ROOT, "  %s: %d bytes, %s: %d bytes (%.1f%%)", baselineName, baseline, encodedName, encoded, 100.0 * encoded / baseline));
+    }
+
+    private static void printTime(String title, String name, long nanos, int iterations) {
+        if (!title.isEmpty()) System.out.println(title);
+        System.out.println(String.format(Locale.ROOT, "  %s: %.2f us", name, nanos / 1000.0 / iterations));
+    }
+
+    /** <p>A sink that is never started, used only to create reference messages.</p> */
+    private static final class ReferenceSink extends AbstractSink {
+
+        @Override public void start(Auklet agent) {
+            // Never started.
+        }
+
+        @Override protected void write(byte[] bytes) throws AukletException {
+            throw new AukletException("This sink does not write messages.");
+        }
+
+    }
+
+}
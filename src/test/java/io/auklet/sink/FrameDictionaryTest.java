@@ -0,0 +1,160 @@
+package io.auklet.sink;
+
+import org.junit.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDictionaryTest {
+
+    private static final int MAX_ENTRIES = 1024;
+
+    @Test public void testFirstOccurrenceIsDefinedAndLaterOccurrencesAreReferenced() throws IOException {
+        FrameDictionary dictionary = new FrameDictionary();
+        Map<Value, Value> first = rewrite(dictionary, frameMessage("com.example.Service", "handle", "Service.java"));
+        Map<Value, Value> frame = onlyFrame(first);
+        assertDefinition(frame.get(key("className")), 0, "com.example.Service");
+        assertDefinition(frame.get(key("functionName")), 1, "handle");
+        assertDefinition(frame.get(key("filePath")), 2, "Service.java");
+        // Other entries are copied unchanged.
+        assertEquals(42L, frame.get(key("lineNumber")).asIntegerValue().asLong());
+        assertEquals("boom", first.get(key("message")).asStringValue().asString());
+
+        Map<Value, Value> second = rewrite(dictionary, frameMessage("com.example.Service", "handle", "Other.java"));
+        frame = onlyFrame(second);
+        assertReference(frame.get(key("className")), 0);
+        assertReference(frame.get(key("functionName")), 1);
+        assertDefinition(frame.get(key("filePath")), 3, "Other.java");
+        assertEquals(first.get(key("dictionaryEpoch")), second.get(key("dictionaryEpoch")));
+    }
+
+    @Test public void testShortStringsAndOtherKeysAreSentAsStrings() throws IOException {
+        FrameDictionary dictionary = new FrameDictionary();
+        for (int i = 0; i < 2; i++) {
+            Map<Value, Value> message = rewrite(dictionary, frameMessage("com.example.Service", "run", "Service.java"));
+            // Shorter than a reference would be.
+            assertEquals("run", onlyFrame(message).get(key("functionName")).asStringValue().asString());
+            // Not a frame string, although it equals one.
+            assertEquals("boom", message.get(key("message")).asStringValue().asString());
+        }
+        Map<Value, Value> message = rewrite(dictionary, frameMessage("com.example.Service", "boom", "Service.java"));
+        assertDefinition(onlyFrame(message).get(key("functionName")), 2, "boom");
+    }
+
+    @Test public void testLeastRecentlyUsedStringIsEvictedAndItsIdReused() throws IOException {
+        FrameDictionary dictionary = new FrameDictionary();
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            assertDefinition(rewriteClassName(dictionary, "com.example.Class" + i), i, "com.example.Class" + i);
+        }
+        // Using the eldest string makes the second eldest the least recently used.
+        assertReference(rewriteClassName(dictionary, "com.example.Class0"), 0);
+        assertDefinition(rewriteClassName(dictionary, "com.example.New0"), 1, "com.example.New0");
+        assertDefinition(rewriteClassName(dictionary, "com.example.New1"), 2, "com.example.New1");
+        // The evicted string is defined again, under the ID of the string that is now least recently used.
+        assertDefinition(rewriteClassName(dictionary, "com.example.Class1"), 3, "com.example.Class1");
+        assertReference(rewriteClassName(dictionary, "com.example.Class0"), 0);
+        assertReference(rewriteClassName(dictionary, "com.example.New0"), 1);
+        assertReference(rewriteClassName(dictionary, "com.example.Class" + (MAX_ENTRIES - 1)), MAX_ENTRIES - 1);
+    }
+
+    @Test public void testResetStartsNewEpoch() throws IOException {
+        FrameDictionary dictionary = new FrameDictionary();
+        Map<Value, Value> before = rewrite(dictionary, frameMessage("com.example.Service", "handle", "Service.java"));
+        dictionary.reset();
+        Map<Value, Value> after = rewrite(dictionary, frameMessage("com.example.Service", "handle", "Service.java"));
+        assertTrue(epoch(after) > epoch(before));
+        // Nothing defined in the earlier epoch is referenced in the new one.
+        assertDefinition(onlyFrame(after).get(key("className")), 0, "com.example.Service");
+        // Resets in quick succession still change the epoch.
+        long previous = epoch(after);
+        for (int i = 0; i < 3; i++) {
+            dictionary.reset();
+            long next = epoch(rewrite(dictionary, frameMessage("com.example.Service", "handle", "Service.java")));
+            assertTrue(next > previous);
+            previous = next;
+        }
+    }
+
+    @Test public void testNonMapMessageIsReturnedUnchanged() throws IOException {
+        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+        packer.packArrayHeader(1).packString("com.example.Service");
+        packer.close();
+        byte[] message = packer.toByteArray();
+        assertArrayEquals(message, new FrameDictionary().rewrite(message));
+    }
+
+    /**
+     * <p>Returns an event message with the given throwable frame.</p>
+     *
+     * @param className never {@code null}.
+     * @param functionName never {@code null}.
+     * @param filePath never {@code null}.
+     * @return never {@code null}.
+     */
+    private static byte[] frameMessage(String className, String functionName, String filePath) throws IOException {
+        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+        packer.packMapHeader(2);
+        packer.packString("message").packString("boom");
+        packer.packString("stackTrace").packArrayHeader(1).packMapHeader(4);
+        packer.packString("className").packString(className);
+        packer.packString("functionName").packString(functionName);
+        packer.packString("filePath").packString(filePath);
+        packer.packString("lineNumber").packInt(42);
+        packer.close();
+        return packer.toByteArray();
+    }
+
+    private static Value rewriteClassName(FrameDictionary dictionary, String className) throws IOException {
+        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+        packer.packMapHeader(1).packString("className").packString(className);
+        packer.close();
+        return rewrite(dictionary, packer.toByteArray()).get(key("className"));
+    }
+
+    private static Map<Value, Value> rewrite(FrameDictionary dictionary, byte[] message) throws IOException {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(dictionary.rewrite(message))) {
+            Map<Value, Value> map = unpacker.unpackValue().asMapValue().map();
+            assertFalse("Rewritten message has trailing bytes.", unpacker.hasNext());
+            return map;
+        }
+    }
+
+    private static Map<Value, Value> onlyFrame(Map<Value, Value> message) {
+        List<Value> stackTrace = message.get(key("stackTrace")).asArrayValue().list();
+        assertEquals(1, stackTrace.size());
+        return stackTrace.get(0).asMapValue().map();
+    }
+
+    private static long epoch(Map<Value, Value> message) {
+        return message.get(key("dictionaryEpoch")).asIntegerValue().asLong();
+    }
+
+    private static void assertDefinition(Value value, int id, String s) {
+        assertTrue("Not a definition: " + value, value.isArrayValue());
+        List<Value> definition = value.asArrayValue().list();
+        assertEquals(2, definition.size());
+        assertEquals((long) id, definition.get(0).asIntegerValue().asLong());
+        assertEquals(s, definition.get(1).asStringValue().asString());
+    }
+
+    private static void assertReference(Value value, int id) {
+        assertTrue("Not a reference: " + value, value.isIntegerValue());
+        assertEquals((long) id, value.asIntegerValue().asLong());
+    }
+
+    private static Value key(String s) {
+        return ValueFactory.newString(s);
+    }
+
+}
@@ -0,0 +1,57 @@
+package io.auklet.sink;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameFilterTest {
+
+    @Test public void testIncludedPackageOverridesExcludedPackage() {
+        FrameFilter filter = new FrameFilter("org.springframework", "org.springframework.samples");
+        assertEquals("org.springframework", filter.getCollapsedPackage("org.springframework.web.DispatcherServlet"));
+        assertNull(filter.getCollapsedPackage("org.springframework.samples.petclinic.OwnerController"));
+        // An included package does not override a more specific excluded package.
+        filter = new FrameFilter("org.springframework.samples.internal", "org.springframework");
+        assertEquals("org.springframework.samples.internal", filter.getCollapsedPackage("org.springframework.samples.internal.Proxy"));
+        assertNull(filter.getCollapsedPackage("org.springframework.samples.Main"));
+    }
+
+    @Test public void testMostSpecificExcludedPackageIsReturned() {
+        FrameFilter filter = new FrameFilter("org.apache, org.apache.catalina", null);
+        assertEquals("org.apache.catalina", filter.getCollapsedPackage("org.apache.catalina.core.StandardWrapperValve"));
+        assertEquals("org.apache", filter.getCollapsedPackage("org.apache.coyote.Request"));
+    }
+
+    @Test public void testPrefixesMatchOnlyWholeSegments() {
+        FrameFilter filter = new FrameFilter("org.spring,io.netty.", null);
+        assertNull(filter.getCollapsedPackage("org.springframework.web.DispatcherServlet"));
+        assertEquals("org.spring", filter.getCollapsedPackage("org.spring.Bean"));
+        // The trailing dot of a prefix is ignored.
+        assertEquals("io.netty", filter.getCollapsedPackage("io.netty.channel.DefaultChannelPipeline"));
+        assertNull(filter.getCollapsedPackage("io.nettyx.Channel"));
+        assertNull(filter.getCollapsedPackage("io.Netty"));
+        // A class whose name equals an excluded prefix is within it.
+        assertEquals("io.netty", filter.getCollapsedPackage("io.netty"));
+        assertNull(filter.getCollapsedPackage("org"));
+    }
+
+    @Test public void testCachedResultsAreConsistent() {
+        FrameFilter filter = new FrameFilter(FrameFilter.FRAMEWORK_PACKAGES, null);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("sun.reflect", filter.getCollapsedPackage("sun.reflect.GeneratedMethodAccessor1"));
+            assertNull(filter.getCollapsedPackage("com.example.Main"));
+        }
+    }
+
+    @Test public void testNoneAndEmptyListsCollapseNothing() {
+        assertTrue(FrameFilter.NONE.isEmpty());
+        assertTrue(new FrameFilter("none", null).isEmpty());
+        assertTrue(new FrameFilter(" , ", "org.springframework").isEmpty());
+        assertNull(new FrameFilter("none", null).getCollapsedPackage("sun.reflect.GeneratedMethodAccessor1"));
+        assertFalse(new FrameFilter(FrameFilter.FRAMEWORK_PACKAGES, null).isEmpty());
+    }
+
+}
@@ -0,0 +1,55 @@
+package io.auklet.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileUtilTest {
+
+    private File dir;
+
+    @Before public void createDir() throws IOException {
+        this.dir = File.createTempFile("auklet-file", "");
+        assertTrue(this.dir.delete() && this.dir.mkdir());
+    }
+
+    @After public void deleteDir() {
+        File[] files = this.dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        this.dir.delete();
+    }
+
+    @Test public void testWriteAtomicallyReplacesFileAndLeavesNothingBehind() throws IOException {
+        File file = new File(this.dir, "config");
+        FileUtil.writeAtomically(file, new byte[] {1}, false);
+        FileUtil.writeAtomically(file, new byte[] {2, 3}, true);
+        assertArrayEquals(new byte[] {2, 3}, FileUtil.read(file));
+        assertEquals(1, this.dir.list().length);
+    }
+
+    @Test public void testBackupIsRestoredWhenFileIsMissing() throws IOException {
+        File file = new File(this.dir, "config");
+        // The process died after the file was renamed to its backup, before the new file was renamed into place.
+        FileUtil.write(new File(this.dir, "config.bak"), new byte[] {1, 2});
+        FileUtil.write(new File(this.dir, "config.tmp"), new byte[] {3});
+        assertArrayEquals(new byte[] {1, 2}, FileUtil.read(file));
+        assertTrue(file.exists());
+        assertFalse(new File(this.dir, "config.bak").exists());
+    }
+
+    @Test public void testStaleBackupIsIgnoredWhenFileExists() throws IOException {
+        File file = new File(this.dir, "config");
+        FileUtil.write(file, new byte[] {4});
+        FileUtil.write(new File(this.dir, "config.bak"), new byte[] {1, 2});
+        assertArrayEquals(new byte[] {4}, FileUtil.read(file));
+    }
+
+}